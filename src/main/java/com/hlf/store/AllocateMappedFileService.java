@@ -0,0 +1,235 @@
+package com.hlf.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 内存映射文件预分配服务：在后台提前创建下一个以及下下个文件，并按需预热，
+ * 使文件滚动时写入线程无需在请求路径上创建、映射1G的文件
+ */
+public class AllocateMappedFileService extends ServiceThread {
+
+    // 等待文件创建完成的超时时间
+    private static final int WAIT_TIMEOUT = 1000 * 5;
+    // <文件路径, 分配请求>
+    private final ConcurrentMap<String, AllocateRequest> requestTable = new ConcurrentHashMap<String, AllocateRequest>();
+    // 按文件起始偏移量排序的分配请求队列
+    private final PriorityBlockingQueue<AllocateRequest> requestQueue = new PriorityBlockingQueue<AllocateRequest>();
+    private volatile boolean hasException = false;
+
+    private final MessageStoreConfig messageStoreConfig;
+    // 堆外内存池，未启用时为null
+    private final TransientStorePool transientStorePool;
+
+    public AllocateMappedFileService(final MessageStoreConfig messageStoreConfig, final TransientStorePool transientStorePool) {
+        this.messageStoreConfig = messageStoreConfig;
+        this.transientStorePool = transientStorePool;
+    }
+
+    /**
+     * 提交下一个和下下个文件的分配请求，并等待下一个文件分配完成。
+     * 下下个文件在后台继续创建，下次滚动时可以直接拿到
+     * @param nextFilePath
+     * @param nextNextFilePath
+     * @param fileSize
+     * @return 创建失败或超时返回null
+     */
+    public CommitLogSegment putRequestAndReturnMappedFile(String nextFilePath, String nextNextFilePath, int fileSize) {
+        AllocateRequest nextReq = new AllocateRequest(nextFilePath, fileSize);
+        if (this.requestTable.putIfAbsent(nextFilePath, nextReq) == null) {
+            this.requestQueue.offer(nextReq);
+        }
+
+        // 堆外内存不足时不预先创建下下个文件，避免文件拿不到堆外内存
+        boolean canSubmitNextNext = this.transientStorePool == null
+                || this.transientStorePool.availableBufferNums() - this.requestQueue.size() > 0;
+        if (canSubmitNextNext) {
+            AllocateRequest nextNextReq = new AllocateRequest(nextNextFilePath, fileSize);
+            if (this.requestTable.putIfAbsent(nextNextFilePath, nextNextReq) == null) {
+                this.requestQueue.offer(nextNextReq);
+            }
+        }
+
+        if (hasException) {
+            System.out.println(this.getServiceName() + " service has exception. so return null");
+            return null;
+        }
+
+        AllocateRequest result = this.requestTable.get(nextFilePath);
+        try {
+            if (result != null) {
+                boolean waitOK = result.getCountDownLatch().await(WAIT_TIMEOUT, TimeUnit.MILLISECONDS);
+                if (!waitOK) {
+                    System.out.println("create mmap timeout " + result.getFilePath() + " " + result.getFileSize());
+                    return null;
+                } else {
+                    this.requestTable.remove(nextFilePath);
+                    return result.getMappedFile();
+                }
+            } else {
+                System.out.println("find preallocate mmap failed, this never happen");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        return null;
+    }
+
+    public TransientStorePool getTransientStorePool() {
+        return transientStorePool;
+    }
+
+    @Override
+    public String getServiceName() {
+        return AllocateMappedFileService.class.getSimpleName();
+    }
+
+    @Override
+    public void shutdown() {
+        this.stopped = true;
+        // 服务线程阻塞在take上，需要中断
+        this.thread.interrupt();
+
+        try {
+            this.thread.join(WAIT_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // 销毁已创建但没有被取走的文件，同时归还其借用的堆外内存
+        for (AllocateRequest req : this.requestTable.values()) {
+            CommitLogSegment mappedFile = req.getMappedFile();
+            if (mappedFile != null) {
+                System.out.println("delete pre allocated mapped file " + mappedFile.getFileName());
+                mappedFile.destroy(1000);
+            }
+        }
+        this.requestTable.clear();
+        this.requestQueue.clear();
+    }
+
+    @Override
+    public void run() {
+        System.out.println(this.getServiceName() + " service started");
+
+        while (!this.isStopped() && this.mmapOperation()) {
+
+        }
+
+        System.out.println(this.getServiceName() + " service end");
+    }
+
+    /**
+     * 处理一个分配请求
+     * @return 被中断时返回false
+     */
+    private boolean mmapOperation() {
+        boolean isSuccess = false;
+        AllocateRequest req = null;
+        try {
+            req = this.requestQueue.take();
+            AllocateRequest expectedRequest = this.requestTable.get(req.getFilePath());
+            if (null == expectedRequest || expectedRequest != req) {
+                // 请求已超时被移除或被替换
+                return true;
+            }
+
+            if (req.getMappedFile() == null) {
+                long beginTime = System.currentTimeMillis();
+
+                CommitLogSegment mappedFile;
+                if (this.transientStorePool != null) {
+                    mappedFile = new MappedFile(req.getFilePath(), req.getFileSize(), this.transientStorePool);
+                } else {
+                    mappedFile = CommitLogSegment.create(this.messageStoreConfig.getCommitLogByteBufferType(), req.getFilePath(),
+                            req.getFileSize(), this.messageStoreConfig.getFileChannelReadAheadSize());
+                }
+
+                long elapsedTime = System.currentTimeMillis() - beginTime;
+                if (elapsedTime > 10) {
+                    System.out.println("create mappedFile spent time(ms) " + elapsedTime + " queue size " + this.requestQueue.size()
+                            + " " + req.getFilePath() + " " + req.getFileSize());
+                }
+
+                // 只预热commitLog文件
+                if (mappedFile.getFileSize() >= this.messageStoreConfig.getMappedFileSizeCommitLog()
+                        && this.messageStoreConfig.isWarmMappedFileEnable()) {
+                    mappedFile.warmMappedFile(this.messageStoreConfig.getFlushLeastPagesWhenWarmMappedFile());
+                }
+
+                req.setMappedFile(mappedFile);
+                this.hasException = false;
+            }
+            isSuccess = true;
+        } catch (InterruptedException e) {
+            System.out.println(this.getServiceName() + " interrupted, possibly by shutdown.");
+            this.hasException = true;
+            return false;
+        } catch (IOException e) {
+            System.out.println(this.getServiceName() + " service has exception. ");
+            e.printStackTrace();
+            this.hasException = true;
+            if (null != req) {
+                this.requestQueue.offer(req);
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException ignored) {
+                }
+            }
+        } finally {
+            if (req != null && isSuccess) {
+                req.getCountDownLatch().countDown();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 文件分配请求
+     */
+    static class AllocateRequest implements Comparable<AllocateRequest> {
+        private final String filePath;
+        private final int fileSize;
+        // 文件起始偏移量，用于排序
+        private final long fileFromOffset;
+        private final CountDownLatch countDownLatch = new CountDownLatch(1);
+        private volatile CommitLogSegment mappedFile = null;
+
+        public AllocateRequest(String filePath, int fileSize) {
+            this.filePath = filePath;
+            this.fileSize = fileSize;
+            this.fileFromOffset = Long.parseLong(new File(filePath).getName());
+        }
+
+        public String getFilePath() {
+            return filePath;
+        }
+
+        public int getFileSize() {
+            return fileSize;
+        }
+
+        public CountDownLatch getCountDownLatch() {
+            return countDownLatch;
+        }
+
+        public CommitLogSegment getMappedFile() {
+            return mappedFile;
+        }
+
+        public void setMappedFile(CommitLogSegment mappedFile) {
+            this.mappedFile = mappedFile;
+        }
+
+        @Override
+        public int compareTo(AllocateRequest other) {
+            return Long.compare(this.fileFromOffset, other.fileFromOffset);
+        }
+    }
+}
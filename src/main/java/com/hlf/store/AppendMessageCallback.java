@@ -1,12 +1,85 @@
 package com.hlf.store;
 
 import java.nio.ByteBuffer;
+import java.util.List;
 
 /**
  * append消息回调接口
  */
 public interface AppendMessageCallback {
 
+    // calMsgLength的返回值：消息(或整批消息)超过最大长度，或topic超过Byte.MAX_VALUE字节
+    int LENGTH_MESSAGE_SIZE_EXCEEDED = -1;
+    // calMsgLength的返回值：消息属性超过Short.MAX_VALUE字节
+    int LENGTH_PROPERTIES_SIZE_EXCEEDED = -2;
+
+    /**
+     * calMsgLength返回负数时对应的追加结果状态
+     * @param msgLength
+     * @return
+     */
+    static AppendMessageStatus lengthExceededStatus(final int msgLength) {
+        return msgLength == LENGTH_PROPERTIES_SIZE_EXCEEDED
+                ? AppendMessageStatus.PROPERTIES_SIZE_EXCEEDED : AppendMessageStatus.MESSAGE_SIZE_EXCEEDED;
+    }
+
     AppendMessageResult doAppend(final long fileFromOffset, final ByteBuffer byteBuffer,
                                  final int maxBlank, final MessageExtBrokerInner msg);
+
+    /**
+     * 批量追加：整批消息编码为连续的字节，只做一次空间检查，返回一个包含每条消息偏移量的结果
+     */
+    AppendMessageResult doAppend(final long fileFromOffset, final ByteBuffer byteBuffer,
+                                 final int maxBlank, final List<MessageExtBrokerInner> msgs);
+
+    /**
+     * 并发写入模式：将消息编码到写线程私有的缓冲区，返回null表示消息长度超过限制，原因由calMsgLength给出
+     */
+    ByteBuffer encode(final MessageExtBrokerInner msg);
+
+    /**
+     * 并发写入模式：将整批消息连续编码到写线程私有的缓冲区，返回null表示整批消息长度超过限制
+     */
+    ByteBuffer encode(final List<MessageExtBrokerInner> msgs);
+
+    /**
+     * 并发写入模式：将encode的结果写入已预留的空间
+     */
+    AppendMessageResult doWrite(final long fileFromOffset, final ByteBuffer byteBuffer, final ByteBuffer encoded);
+
+    /**
+     * 是否直接把消息编码到文件的写入区域。并发写入模式下，为true时先用calMsgLength计算长度预留空间，
+     * 再用doWrite(fileFromOffset, byteBuffer, msg)直接编码，否则先encode到私有缓冲区再拷贝
+     */
+    boolean isDirectEncode();
+
+    /**
+     * 计算消息编码后的长度，超过限制时返回LENGTH_MESSAGE_SIZE_EXCEEDED或LENGTH_PROPERTIES_SIZE_EXCEEDED
+     */
+    int calMsgLength(final MessageExtBrokerInner msg);
+
+    /**
+     * 计算整批消息编码后的总长度，超过限制时返回LENGTH_MESSAGE_SIZE_EXCEEDED或LENGTH_PROPERTIES_SIZE_EXCEEDED
+     */
+    int calMsgLength(final List<MessageExtBrokerInner> msgs);
+
+    /**
+     * 并发写入模式：将消息直接编码到已预留的空间
+     */
+    AppendMessageResult doWrite(final long fileFromOffset, final ByteBuffer byteBuffer, final MessageExtBrokerInner msg);
+
+    /**
+     * 并发写入模式：将整批消息直接编码到已预留的空间
+     */
+    AppendMessageResult doWrite(final long fileFromOffset, final ByteBuffer byteBuffer, final List<MessageExtBrokerInner> msgs);
+
+    /**
+     * 文件剩余空间不足以写入消息时，用一条空白记录填满文件尾部，返回END_OF_FILE由调用方滚动到下一个文件
+     */
+    AppendMessageResult doAppendBlank(final long fileFromOffset, final ByteBuffer byteBuffer, final int maxBlank);
+
+    /**
+     * 并发写入模式：预留空间后写入失败时，用一条填充记录占满预留的length字节，使读取和恢复能跳过这段空间
+     */
+    void doAppendFiller(final ByteBuffer byteBuffer, final int length);
 }
@@ -8,12 +8,27 @@ public class AppendMessageResult {
     private long wroteOffset;
     // 本次消息写入的字节数
     private int wroteBytes;
+    // 消息ID，为null时在第一次获取时由wroteOffset生成
     private String msgId;
+    // 本次写入的消息条数
+    private int msgNum = 1;
+    // 批量写入时每条消息的物理偏移量，单条写入时为null
+    private long[] msgOffsets;
 
     public AppendMessageResult(AppendMessageStatus status) {
         this(status, 0, 0, "");
     }
 
+    /**
+     * 单条写入结果，消息ID在需要时才根据偏移量生成
+     * @param status
+     * @param wroteOffset
+     * @param wroteBytes
+     */
+    public AppendMessageResult(AppendMessageStatus status, long wroteOffset, int wroteBytes) {
+        this(status, wroteOffset, wroteBytes, (String) null);
+    }
+
     public AppendMessageResult(AppendMessageStatus status, long wroteOffset, int wroteBytes, String msgId) {
         this.status = status;
         this.wroteOffset = wroteOffset;
@@ -21,6 +36,50 @@ public class AppendMessageResult {
         this.msgId = msgId;
     }
 
+    /**
+     * 批量写入结果，消息ID在需要时才根据偏移量生成
+     * @param status
+     * @param wroteOffset
+     * @param wroteBytes
+     * @param msgOffsets
+     */
+    public AppendMessageResult(AppendMessageStatus status, long wroteOffset, int wroteBytes, long[] msgOffsets) {
+        this(status, wroteOffset, wroteBytes, (String) null);
+        this.msgNum = msgOffsets.length;
+        this.msgOffsets = msgOffsets;
+    }
+
+    /**
+     * 获取批量写入中第index条消息的消息ID
+     * @param index
+     * @return
+     */
+    public String getMsgId(int index) {
+        if (this.msgOffsets == null) {
+            return this.getMsgId();
+        }
+        return MessageDecoder.createMessageId(this.msgOffsets[index]);
+    }
+
+    /**
+     * 复用结果对象时，重置为一次新的单条写入结果
+     * @param status
+     * @param wroteOffset
+     * @param wroteBytes
+     */
+    public void reset(AppendMessageStatus status, long wroteOffset, int wroteBytes) {
+        this.status = status;
+        this.wroteOffset = wroteOffset;
+        this.wroteBytes = wroteBytes;
+        this.msgId = null;
+        this.msgNum = 1;
+        this.msgOffsets = null;
+    }
+
+    public boolean isOk() {
+        return this.status == AppendMessageStatus.PUT_OK;
+    }
+
     public AppendMessageStatus getStatus() {
         return status;
     }
@@ -46,10 +105,40 @@ public class AppendMessageResult {
     }
 
     public String getMsgId() {
+        if (this.msgId == null) {
+            this.msgId = MessageDecoder.createMessageId(this.wroteOffset);
+        }
         return msgId;
     }
 
     public void setMsgId(String msgId) {
         this.msgId = msgId;
     }
+
+    public int getMsgNum() {
+        return msgNum;
+    }
+
+    public void setMsgNum(int msgNum) {
+        this.msgNum = msgNum;
+    }
+
+    public long[] getMsgOffsets() {
+        return msgOffsets;
+    }
+
+    public void setMsgOffsets(long[] msgOffsets) {
+        this.msgOffsets = msgOffsets;
+    }
+
+    @Override
+    public String toString() {
+        return "AppendMessageResult{" +
+                "status=" + status +
+                ", wroteOffset=" + wroteOffset +
+                ", wroteBytes=" + wroteBytes +
+                ", msgId='" + msgId + '\'' +
+                ", msgNum=" + msgNum +
+                '}';
+    }
 }
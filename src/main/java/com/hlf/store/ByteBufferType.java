@@ -6,5 +6,5 @@ package com.hlf.store;
 public enum ByteBufferType {
 
     MAPPED,// 内存映射
-    UN_MAPPED,// 堆内存
+    UN_MAPPED,// 不使用内存映射，通过FileChannel按位置读写
 }
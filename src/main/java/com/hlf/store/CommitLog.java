@@ -0,0 +1,934 @@
+package com.hlf.store;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * 消息存储文件，由MappedFileQueue管理的多个内存映射文件组成。
+ * 开启分片时每个分片是一个独立的CommitLog，分片i的文件在 storePathCommitLog/i 目录下，
+ * 物理偏移量从 i * stripeOffsetSpace 开始
+ */
+public class CommitLog {
+
+    // 单个分片物理偏移量空间的上限，最多MAX_STRIPE_COUNT个分片时不会溢出
+    private static final long MAX_STRIPE_OFFSET_SPACE = 1L << 55;
+    // 最大分片数
+    public static final int MAX_STRIPE_COUNT = 128;
+
+    private final MessageStoreConfig messageStoreConfig;
+    // 分片号
+    private final int stripe;
+    // 本分片的起始物理偏移量，消息的物理偏移量都不小于该值
+    private final long baseOffset;
+    // 内存映射文件队列
+    private final MappedFileQueue mappedFileQueue;
+    // 消息追加回调
+    private final AppendMessageCallback appendMessageCallback;
+    // 写消息时的锁，保证同一时刻只有一个线程往commitLog中追加消息
+    private final ReentrantLock putMessageLock = new ReentrantLock();
+    // 当前写线程获得写锁的时间，没有线程持有锁时为0
+    private volatile long beginTimeInLock = 0;
+    // 刷盘服务，同步刷盘时为GroupCommitService，异步刷盘时为FlushRealTimeService
+    private final FlushCommitLogService flushCommitLogService;
+    // 启用堆外内存池时，将堆外内存中的数据提交到FileChannel的服务
+    private final FlushCommitLogService commitLogService;
+    // 堆外内存池，未启用时为null
+    private final TransientStorePool transientStorePool;
+    // 文件预分配服务
+    private final AllocateMappedFileService allocateMappedFileService;
+    // 预分配服务及其堆外内存池是否由外部传入、多个分片共用，共用时由创建方负责启动和销毁
+    private final boolean sharedAllocateService;
+    // 存储统计，分片时所有分片共用
+    private final StoreStatsService storeStatsService;
+    // 每个写线程复用的写入结果，开启appendResultReuseEnable时使用
+    private final ThreadLocal<PutMessageResult> localPutMessageResult = new ThreadLocal<PutMessageResult>() {
+        @Override
+        protected PutMessageResult initialValue() {
+            return new PutMessageResult(PutMessageStatus.PUT_OK, null);
+        }
+    };
+
+    public CommitLog(final MessageStoreConfig messageStoreConfig) {
+        this(messageStoreConfig, 0);
+    }
+
+    /**
+     * @param messageStoreConfig
+     * @param stripe 分片号，不分片时为0
+     */
+    public CommitLog(final MessageStoreConfig messageStoreConfig, final int stripe) {
+        this(messageStoreConfig, stripe, new StoreStatsService(messageStoreConfig));
+    }
+
+    /**
+     * @param messageStoreConfig
+     * @param stripe 分片号，不分片时为0
+     * @param storeStatsService 记录写入和刷盘统计
+     */
+    public CommitLog(final MessageStoreConfig messageStoreConfig, final int stripe, final StoreStatsService storeStatsService) {
+        this(messageStoreConfig, stripe, storeStatsService, null);
+    }
+
+    /**
+     * @param messageStoreConfig
+     * @param stripe 分片号，不分片时为0
+     * @param storeStatsService 记录写入和刷盘统计
+     * @param mappedFileBudget 内存映射预算，多个分片共享，为null时文件一直保持映射
+     */
+    public CommitLog(final MessageStoreConfig messageStoreConfig, final int stripe, final StoreStatsService storeStatsService,
+                     final MappedFileBudget mappedFileBudget) {
+        this(messageStoreConfig, stripe, storeStatsService, mappedFileBudget, null);
+    }
+
+    /**
+     * @param messageStoreConfig
+     * @param stripe 分片号，不分片时为0
+     * @param storeStatsService 记录写入和刷盘统计
+     * @param mappedFileBudget 内存映射预算，多个分片共享，为null时文件一直保持映射
+     * @param allocateMappedFileService 文件预分配服务，连同其堆外内存池由多个分片共享，由调用方启动和停止；为null时单独创建
+     */
+    public CommitLog(final MessageStoreConfig messageStoreConfig, final int stripe, final StoreStatsService storeStatsService,
+                     final MappedFileBudget mappedFileBudget, final AllocateMappedFileService allocateMappedFileService) {
+        // 最大长度的消息加上空白记录必须能写进一个新文件，否则滚动到新文件后仍然写不下
+        if (messageStoreConfig.getMappedFileSizeCommitLog()
+                < messageStoreConfig.getMaxMessageSize() + DefaultAppendMessageCallback.END_FILE_MIN_BLANK_LENGTH) {
+            throw new IllegalArgumentException("mappedFileSizeCommitLog must be at least maxMessageSize + "
+                    + DefaultAppendMessageCallback.END_FILE_MIN_BLANK_LENGTH + ", mappedFileSizeCommitLog: "
+                    + messageStoreConfig.getMappedFileSizeCommitLog() + ", maxMessageSize: " + messageStoreConfig.getMaxMessageSize());
+        }
+        this.messageStoreConfig = messageStoreConfig;
+        this.stripe = stripe;
+        this.storeStatsService = storeStatsService;
+        this.baseOffset = stripe * stripeOffsetSpace(messageStoreConfig.getMappedFileSizeCommitLog());
+        if (allocateMappedFileService != null) {
+            this.allocateMappedFileService = allocateMappedFileService;
+            this.transientStorePool = allocateMappedFileService.getTransientStorePool();
+            this.sharedAllocateService = true;
+        } else {
+            this.transientStorePool = createTransientStorePool(messageStoreConfig);
+            this.allocateMappedFileService = new AllocateMappedFileService(messageStoreConfig, this.transientStorePool);
+            this.sharedAllocateService = false;
+        }
+        String storePath = messageStoreConfig.getCommitLogStripeCount() > 1
+                ? messageStoreConfig.getStorePathCommitLog() + File.separator + stripe
+                : messageStoreConfig.getStorePathCommitLog();
+        this.mappedFileQueue = new MappedFileQueue(storePath, messageStoreConfig.getMappedFileSizeCommitLog(), this.allocateMappedFileService,
+                messageStoreConfig.getCommitLogByteBufferType(), messageStoreConfig.getFileChannelReadAheadSize());
+        this.mappedFileQueue.setMappedFileBudget(mappedFileBudget);
+        this.appendMessageCallback = new DefaultAppendMessageCallback(messageStoreConfig);
+
+        if (FlushDiskType.SYNC_FLUSH == messageStoreConfig.getFlushDiskType()) {
+            this.flushCommitLogService = new GroupCommitService();
+        } else {
+            this.flushCommitLogService = new FlushRealTimeService();
+        }
+
+        this.commitLogService = new CommitRealTimeService();
+    }
+
+    /**
+     * 每个分片的物理偏移量空间大小，取文件大小的整数倍，分片的第一个文件从分片的起始偏移量开始
+     * @param mappedFileSize commitLog每个文件的大小
+     * @return
+     */
+    public static long stripeOffsetSpace(final int mappedFileSize) {
+        return MAX_STRIPE_OFFSET_SPACE / mappedFileSize * mappedFileSize;
+    }
+
+    /**
+     * 加载已有的commitLog文件
+     * @return
+     */
+    public boolean load() {
+        boolean result = this.mappedFileQueue.load();
+        System.out.println("load commit log " + (result ? "OK" : "Failed"));
+        return result;
+    }
+
+    /**
+     * 启动恢复：检查点之前的数据已经落盘，从检查点开始逐条校验消息，
+     * 在第一条不完整或已损坏的消息处截断，之后的文件全部删除。
+     * 检查点之后有多个文件时(检查点过旧或不存在)并行扫描各文件
+     * @param checkpointOffset 检查点记录的commitLog已刷盘物理偏移量
+     */
+    public void recover(final long checkpointOffset) {
+        final List<CommitLogSegment> mappedFiles = this.mappedFileQueue.getMappedFiles();
+        if (mappedFiles.isEmpty()) {
+            this.mappedFileQueue.setFlushedWhere(this.baseOffset);
+            this.mappedFileQueue.setCommittedWhere(this.baseOffset);
+            return;
+        }
+
+        // 定位检查点所在的文件，检查点恰好在文件边界上时从下一个文件开始，超出范围时从最后一个文件开始
+        int index = mappedFiles.size() - 1;
+        int startPos = 0;
+        for (int i = 0; i < mappedFiles.size(); i++) {
+            CommitLogSegment mappedFile = mappedFiles.get(i);
+            if (checkpointOffset < mappedFile.getFileFromOffset() + mappedFile.getFileSize()) {
+                index = i;
+                startPos = (int) Math.max(0, checkpointOffset - mappedFile.getFileFromOffset());
+                break;
+            }
+        }
+
+        long beginTime = System.currentTimeMillis();
+        List<CommitLogSegment> scanFiles = new ArrayList<CommitLogSegment>(mappedFiles.subList(index, mappedFiles.size()));
+        int[] validEnds = new int[scanFiles.size()];
+        boolean[] dirty = new boolean[scanFiles.size()];
+        this.scanSegments(scanFiles, startPos, validEnds, dirty);
+
+        // 以空白记录结束的文件已经写满，继续看下一个文件；没有空白记录的旧文件在未写入区域结束且下一个文件开头有消息时，
+        // 同样说明写入时滚动到了下一个文件。下一个文件开头没有消息(预分配的空文件)时，写位置就在当前文件；
+        // 遇到损坏的消息则在此截断
+        long processOffset = 0;
+        for (int i = 0; i < scanFiles.size(); i++) {
+            processOffset = scanFiles.get(i).getFileFromOffset() + validEnds[i];
+            if (dirty[i]) {
+                System.out.println("found illegal message at " + processOffset + ", truncate commit log here");
+                break;
+            }
+            if (i + 1 < scanFiles.size() && validEnds[i + 1] == 0) {
+                break;
+            }
+        }
+
+        System.out.println("recover commit log from " + checkpointOffset + " to " + processOffset + ", scanned "
+                + scanFiles.size() + " files, elapsed time(ms) " + (System.currentTimeMillis() - beginTime));
+
+        this.mappedFileQueue.setFlushedWhere(processOffset);
+        this.mappedFileQueue.setCommittedWhere(processOffset);
+        this.mappedFileQueue.truncateDirtyFiles(processOffset);
+    }
+
+    /**
+     * 扫描多个文件，每个文件都从消息边界开始(第一个文件从startPos开始，其余从文件头开始)，可以相互独立地并行扫描
+     * @param scanFiles
+     * @param startPos
+     * @param validEnds 返回每个文件中有效数据的结束位置
+     * @param dirty 返回每个文件是否因消息损坏而结束
+     */
+    private void scanSegments(final List<CommitLogSegment> scanFiles, final int startPos, final int[] validEnds, final boolean[] dirty) {
+        int concurrency = Math.min(this.messageStoreConfig.getRecoverConcurrency(), scanFiles.size());
+        if (concurrency <= 1) {
+            for (int i = 0; i < scanFiles.size(); i++) {
+                this.scanSegment(scanFiles.get(i), i == 0 ? startPos : 0, validEnds, dirty, i);
+            }
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>(scanFiles.size());
+            for (int i = 0; i < scanFiles.size(); i++) {
+                final int fileIndex = i;
+                futures.add(executor.submit(() -> this.scanSegment(scanFiles.get(fileIndex),
+                        fileIndex == 0 ? startPos : 0, validEnds, dirty, fileIndex)));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (Exception e) {
+            // 并行扫描失败时退化为顺序扫描
+            System.out.println("scan commit log concurrently failed, fall back to sequential scan");
+            e.printStackTrace();
+            for (int i = 0; i < scanFiles.size(); i++) {
+                this.scanSegment(scanFiles.get(i), i == 0 ? startPos : 0, validEnds, dirty, i);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private void scanSegment(final CommitLogSegment mappedFile, final int startPos, final int[] validEnds,
+                             final boolean[] dirty, final int index) {
+        ByteBuffer byteBuffer = mappedFile.scanBuffer();
+        MessageRecord record = new MessageRecord();
+        int pos = startPos;
+        try {
+            for (;;) {
+                int size = this.checkMessageAndReturnSize(byteBuffer, pos, record);
+                if (size > 0) {
+                    pos += size;
+                } else {
+                    validEnds[index] = pos;
+                    dirty[index] = size < 0;
+                    return;
+                }
+            }
+        } finally {
+            mappedFile.releaseScanBuffer();
+        }
+    }
+
+    /**
+     * 校验pos处的消息
+     * @param byteBuffer
+     * @param pos
+     * @param record
+     * @return 消息大小，文件尾部的空白记录返回空白记录的长度；0表示到达未写入的区域，即数据结束；-1表示消息不完整或已损坏
+     */
+    public int checkMessageAndReturnSize(final ByteBuffer byteBuffer, final int pos, final MessageRecord record) {
+        if (pos + DefaultAppendMessageCallback.END_FILE_MIN_BLANK_LENGTH > byteBuffer.limit()) {
+            return 0;
+        }
+
+        int totalSize = byteBuffer.getInt(pos + MessageDecoder.MESSAGE_TOTALSIZE_POSITION);
+        int magicCode = byteBuffer.getInt(pos + MessageDecoder.MESSAGE_MAGIC_CODE_POSITION);
+        if (totalSize == 0 && magicCode == 0) {
+            return 0;
+        }
+
+        if (magicCode == MessageDecoder.BLANK_MAGIC_CODE) {
+            // 空白记录必须恰好填满到文件末尾
+            return pos + totalSize == byteBuffer.limit() ? totalSize : -1;
+        }
+
+        if (magicCode == MessageDecoder.FILLER_MAGIC_CODE) {
+            // 并发写入失败的预留空间，整段跳过，之后的消息仍然有效
+            return totalSize > DefaultAppendMessageCallback.END_FILE_MIN_BLANK_LENGTH
+                    && totalSize <= this.messageStoreConfig.getMaxMessageSize()
+                    && pos + totalSize <= byteBuffer.limit() ? totalSize : -1;
+        }
+
+        if (totalSize > this.messageStoreConfig.getMaxMessageSize() || !record.wrap(byteBuffer, pos)) {
+            return -1;
+        }
+
+        int expectedSize = DefaultAppendMessageCallback.calMsgLength(record.isCrcPresent(), record.getBodyLength(),
+                record.getTopicLength(), record.getPropertiesLength());
+        if (expectedSize != totalSize) {
+            return -1;
+        }
+
+        if (this.messageStoreConfig.isCheckCrcOnRecover() && !record.verifyCrc()) {
+            System.out.println("message crc check failed at position " + pos);
+            return -1;
+        }
+
+        return totalSize;
+    }
+
+    /**
+     * 按配置创建并初始化堆外内存池，堆外内存池只用于内存映射文件
+     * @param messageStoreConfig
+     * @return 未启用时返回null
+     */
+    public static TransientStorePool createTransientStorePool(final MessageStoreConfig messageStoreConfig) {
+        if (messageStoreConfig.isTransientStorePoolEnable()
+                && ByteBufferType.MAPPED == messageStoreConfig.getCommitLogByteBufferType()) {
+            TransientStorePool transientStorePool = new TransientStorePool(messageStoreConfig);
+            transientStorePool.init();
+            return transientStorePool;
+        }
+        return null;
+    }
+
+    public void start() {
+        if (!this.sharedAllocateService) {
+            this.allocateMappedFileService.start();
+        }
+        this.flushCommitLogService.start();
+
+        if (this.transientStorePool != null) {
+            this.commitLogService.start();
+        }
+    }
+
+    public void shutdown() {
+        // 先把堆外内存中的数据提交到FileChannel，再停止刷盘服务
+        if (this.transientStorePool != null) {
+            this.commitLogService.shutdown();
+        }
+
+        this.flushCommitLogService.shutdown();
+        // 数据都已提交，归还各文件借用的堆外内存，之后才能销毁堆外内存池
+        if (this.transientStorePool != null) {
+            for (CommitLogSegment mappedFile : this.mappedFileQueue.getMappedFiles()) {
+                ((MappedFile) mappedFile).returnWriteBuffer();
+            }
+        }
+        if (!this.sharedAllocateService) {
+            this.allocateMappedFileService.shutdown();
+            if (this.transientStorePool != null) {
+                this.transientStorePool.destroy();
+            }
+        }
+    }
+
+    /**
+     * 写入消息，当前文件剩余空间不足时自动滚动到下一个文件
+     * @param msg
+     * @return
+     */
+    public PutMessageResult putMessage(final MessageExtBrokerInner msg) {
+        this.prepareMessage(msg);
+
+        PutMessageResult putMessageResult;
+        if (this.messageStoreConfig.isConcurrentAppendEnable()) {
+            putMessageResult = this.putConcurrently(mappedFile -> mappedFile.appendMessagesConcurrently(msg, this.appendMessageCallback));
+        } else {
+            putMessageResult = this.putInLock(mappedFile -> mappedFile.appendMessagesInner(msg, this.appendMessageCallback));
+        }
+
+        if (putMessageResult.isOk()) {
+            this.storeStatsService.recordPut(msg.getTopic(), putMessageResult.getAppendMessageResult().getWroteBytes());
+            this.handleDiskFlush(putMessageResult);
+        } else {
+            this.storeStatsService.recordPutFailed();
+        }
+        return putMessageResult;
+    }
+
+    /**
+     * 批量写入消息，一批消息编码成连续的字节后一次性写入同一个文件
+     * @param msgs
+     * @return
+     */
+    public PutMessageResult putMessages(final List<MessageExtBrokerInner> msgs) {
+        if (msgs == null || msgs.isEmpty()) {
+            return new PutMessageResult(PutMessageStatus.MESSAGE_ILLEGAL, null);
+        }
+        for (MessageExtBrokerInner msg : msgs) {
+            this.prepareMessage(msg);
+        }
+
+        PutMessageResult putMessageResult;
+        if (this.messageStoreConfig.isConcurrentAppendEnable()) {
+            putMessageResult = this.putConcurrently(mappedFile -> mappedFile.appendMessagesConcurrently(msgs, this.appendMessageCallback));
+        } else {
+            putMessageResult = this.putInLock(mappedFile -> mappedFile.appendMessages(msgs, this.appendMessageCallback));
+        }
+
+        if (putMessageResult.isOk()) {
+            this.storeStatsService.recordPut(msgs, putMessageResult.getAppendMessageResult().getWroteBytes());
+            this.handleDiskFlush(putMessageResult);
+        } else {
+            this.storeStatsService.recordPutFailed();
+        }
+        return putMessageResult;
+    }
+
+    /**
+     * 写入前设置存储时间，调用方没有编码消息属性时按propertiesString或属性表编码。
+     * 属性在加锁之前编码为字节，调用方已经传入编码好的属性字节时不再编码。
+     * 属性表编码出的字符串不回写到propertiesString，之后修改属性表时不会写入过期的属性
+     * @param msg
+     */
+    private void prepareMessage(final MessageExtBrokerInner msg) {
+        msg.setStoreTimestamp(System.currentTimeMillis());
+        if (msg.getPropertiesData() == null) {
+            String propertiesString = msg.getPropertiesString();
+            if (propertiesString == null && msg.getProperties() != null) {
+                propertiesString = MessageDecoder.messageProperties2String(msg.getProperties());
+            }
+            if (propertiesString != null) {
+                msg.setPropertiesData(propertiesString.getBytes(MessageDecoder.CHARSET_UTF8));
+            }
+        }
+    }
+
+    /**
+     * 写入成功的结果，开启复用时返回当前线程复用的结果对象
+     * @param result
+     * @return
+     */
+    private PutMessageResult putOkResult(final AppendMessageResult result) {
+        if (this.messageStoreConfig.isAppendResultReuseEnable()) {
+            PutMessageResult putMessageResult = this.localPutMessageResult.get();
+            putMessageResult.setPutMessageStatus(PutMessageStatus.PUT_OK);
+            putMessageResult.setAppendMessageResult(result);
+            return putMessageResult;
+        }
+        return new PutMessageResult(PutMessageStatus.PUT_OK, result);
+    }
+
+    /**
+     * 刷盘处理：同步刷盘时等待组提交完成，异步刷盘时唤醒刷盘线程
+     * @param putMessageResult
+     */
+    private void handleDiskFlush(final PutMessageResult putMessageResult) {
+        AppendMessageResult result = putMessageResult.getAppendMessageResult();
+        if (FlushDiskType.SYNC_FLUSH == this.messageStoreConfig.getFlushDiskType()) {
+            final GroupCommitService service = (GroupCommitService) this.flushCommitLogService;
+            GroupCommitRequest request = new GroupCommitRequest(result.getWroteOffset() + result.getWroteBytes());
+            service.putRequest(request);
+            boolean flushOK = request.waitForFlush(this.messageStoreConfig.getSyncFlushTimeout());
+            if (!flushOK) {
+                System.out.println("do groupcommit, wait for flush failed, nextOffset: " + request.getNextOffset());
+                putMessageResult.setPutMessageStatus(PutMessageStatus.FLUSH_DISK_TIMEOUT);
+            }
+        } else {
+            if (this.transientStorePool == null) {
+                this.flushCommitLogService.wakeup();
+            } else {
+                this.commitLogService.wakeup();
+            }
+        }
+    }
+
+    /**
+     * 追加失败时的写入结果，滚动到新文件后仍返回END_OF_FILE的消息按未知错误处理
+     * @param result
+     * @return
+     */
+    private PutMessageResult putFailedResult(final AppendMessageResult result) {
+        switch (result.getStatus()) {
+            case MESSAGE_SIZE_EXCEEDED:
+            case PROPERTIES_SIZE_EXCEEDED:
+                return new PutMessageResult(PutMessageStatus.MESSAGE_ILLEGAL, result);
+            case END_OF_FILE:
+            case UNKNOWN_ERROR:
+            default:
+                return new PutMessageResult(PutMessageStatus.UNKNOWN_ERROR, result);
+        }
+    }
+
+    /**
+     * 持有全局锁串行写入
+     * @param appender 往指定文件中追加消息
+     * @return
+     */
+    private PutMessageResult putInLock(final Function<CommitLogSegment, AppendMessageResult> appender) {
+        AppendMessageResult result;
+
+        CommitLogSegment mappedFile = this.mappedFileQueue.getLastMappedFile();
+
+        putMessageLock.lock();
+        try {
+            this.beginTimeInLock = System.currentTimeMillis();
+            if (null == mappedFile || mappedFile.isFull()) {
+                mappedFile = this.mappedFileQueue.getLastMappedFile(this.baseOffset);
+            }
+            if (null == mappedFile) {
+                System.out.println("create mapped file error");
+                return new PutMessageResult(PutMessageStatus.CREATE_MAPEDFILE_FAILED, null);
+            }
+
+            result = this.append(mappedFile, appender);
+            switch (result.getStatus()) {
+                case PUT_OK:
+                    break;
+                case END_OF_FILE:
+                    // 当前文件已写满，创建新文件后重新写入
+                    mappedFile = this.mappedFileQueue.getLastMappedFile(this.baseOffset);
+                    if (null == mappedFile) {
+                        System.out.println("create mapped file error");
+                        return new PutMessageResult(PutMessageStatus.CREATE_MAPEDFILE_FAILED, result);
+                    }
+                    result = this.append(mappedFile, appender);
+                    if (AppendMessageStatus.PUT_OK != result.getStatus()) {
+                        return this.putFailedResult(result);
+                    }
+                    break;
+                default:
+                    return this.putFailedResult(result);
+            }
+        } finally {
+            this.beginTimeInLock = 0;
+            putMessageLock.unlock();
+        }
+
+        return this.putOkResult(result);
+    }
+
+    /**
+     * 无锁并发写入消息，写线程之间通过CAS竞争写指针，不再串行等待全局锁。
+     * 构造时已保证最大长度的消息能写进一个新文件，因此END_OF_FILE后滚动重试总会结束
+     * @param appender 往指定文件中追加消息
+     * @return
+     */
+    private PutMessageResult putConcurrently(final Function<CommitLogSegment, AppendMessageResult> appender) {
+        for (;;) {
+            CommitLogSegment mappedFile = this.mappedFileQueue.getLastMappedFile();
+            if (null == mappedFile || mappedFile.isFull()) {
+                mappedFile = this.mappedFileQueue.getLastMappedFile(this.baseOffset);
+            }
+            if (null == mappedFile) {
+                System.out.println("create mapped file error");
+                return new PutMessageResult(PutMessageStatus.CREATE_MAPEDFILE_FAILED, null);
+            }
+
+            AppendMessageResult result;
+            try {
+                result = this.append(mappedFile, appender);
+            } catch (RuntimeException e) {
+                // 写入方已用填充记录占满预留的空间，这条消息写入失败
+                System.out.println("append message concurrently to " + mappedFile.getFileName() + " error");
+                e.printStackTrace();
+                return new PutMessageResult(PutMessageStatus.UNKNOWN_ERROR, null);
+            }
+            switch (result.getStatus()) {
+                case PUT_OK:
+                    return this.putOkResult(result);
+                case END_OF_FILE:
+                    // 当前文件已写满，滚动到下一个文件重试
+                    continue;
+                case MESSAGE_SIZE_EXCEEDED:
+                case PROPERTIES_SIZE_EXCEEDED:
+                    return new PutMessageResult(PutMessageStatus.MESSAGE_ILLEGAL, result);
+                case UNKNOWN_ERROR:
+                default:
+                    return new PutMessageResult(PutMessageStatus.UNKNOWN_ERROR, result);
+            }
+        }
+    }
+
+    /**
+     * 往文件中追加消息，记录追加耗时
+     * @param mappedFile
+     * @param appender
+     * @return
+     */
+    private AppendMessageResult append(final CommitLogSegment mappedFile,
+                                       final Function<CommitLogSegment, AppendMessageResult> appender) {
+        long beginTime = System.nanoTime();
+        AppendMessageResult result = appender.apply(mappedFile);
+        this.storeStatsService.recordAppendLatency(System.nanoTime() - beginTime);
+        return result;
+    }
+
+    /**
+     * 刷盘，有数据落盘时记录刷盘耗时
+     * @param flushLeastPages
+     * @return true表示本次没有数据落盘
+     */
+    private boolean flush(final int flushLeastPages) {
+        long beginTime = System.nanoTime();
+        boolean result = this.mappedFileQueue.flush(flushLeastPages);
+        if (!result) {
+            this.storeStatsService.recordFlushLatency(System.nanoTime() - beginTime);
+        }
+        return result;
+    }
+
+    abstract class FlushCommitLogService extends ServiceThread {
+        // 停止服务时，最多重试刷盘的次数
+        protected static final int RETRY_TIMES_OVER = 10;
+    }
+
+    /**
+     * 堆外内存提交服务：定时把堆外内存中已写完的数据以大块顺序写的方式提交到FileChannel，
+     * 有数据提交后唤醒刷盘线程
+     */
+    class CommitRealTimeService extends FlushCommitLogService {
+        // 上次提交的时间
+        private long lastCommitTimestamp = 0;
+
+        @Override
+        public String getServiceName() {
+            return CommitRealTimeService.class.getSimpleName();
+        }
+
+        @Override
+        public void run() {
+            System.out.println(this.getServiceName() + " service started");
+
+            while (!this.isStopped()) {
+                int interval = CommitLog.this.messageStoreConfig.getCommitIntervalCommitLog();
+                int commitDataLeastPages = CommitLog.this.messageStoreConfig.getCommitCommitLogLeastPages();
+                int commitDataThoroughInterval = CommitLog.this.messageStoreConfig.getCommitCommitLogThoroughInterval();
+
+                long begin = System.currentTimeMillis();
+                if (begin >= (this.lastCommitTimestamp + commitDataThoroughInterval)) {
+                    this.lastCommitTimestamp = begin;
+                    commitDataLeastPages = 0;
+                }
+
+                try {
+                    boolean result = CommitLog.this.mappedFileQueue.commit(commitDataLeastPages);
+                    if (!result) {
+                        // 有新数据提交，唤醒刷盘线程
+                        this.lastCommitTimestamp = System.currentTimeMillis();
+                        CommitLog.this.flushCommitLogService.wakeup();
+                    }
+                    this.waitForRunning(interval);
+                } catch (Throwable e) {
+                    System.out.println(this.getServiceName() + " service has exception. ");
+                    e.printStackTrace();
+                }
+            }
+
+            // 正常关闭时，确保所有数据都已提交
+            boolean result = false;
+            for (int i = 0; i < RETRY_TIMES_OVER && !result; i++) {
+                result = CommitLog.this.mappedFileQueue.commit(0);
+            }
+
+            System.out.println(this.getServiceName() + " service end");
+        }
+    }
+
+    /**
+     * 异步刷盘服务：定时刷盘，脏页数达到flushCommitLogLeastPages才真正刷盘，
+     * 距上次刷盘超过flushCommitLogThoroughInterval时强制刷盘
+     */
+    class FlushRealTimeService extends FlushCommitLogService {
+        // 上次强制刷盘的时间
+        private long lastFlushTimestamp = 0;
+
+        @Override
+        public void run() {
+            System.out.println(this.getServiceName() + " service started");
+
+            while (!this.isStopped()) {
+                int interval = CommitLog.this.messageStoreConfig.getFlushIntervalCommitLog();
+                int flushPhysicQueueLeastPages = CommitLog.this.messageStoreConfig.getFlushCommitLogLeastPages();
+                int flushPhysicQueueThoroughInterval = CommitLog.this.messageStoreConfig.getFlushCommitLogThoroughInterval();
+
+                long currentTimeMillis = System.currentTimeMillis();
+                if (currentTimeMillis >= (this.lastFlushTimestamp + flushPhysicQueueThoroughInterval)) {
+                    this.lastFlushTimestamp = currentTimeMillis;
+                    flushPhysicQueueLeastPages = 0;
+                }
+
+                try {
+                    this.waitForRunning(interval);
+                    CommitLog.this.flush(flushPhysicQueueLeastPages);
+                } catch (Throwable e) {
+                    System.out.println(this.getServiceName() + " service has exception. ");
+                    e.printStackTrace();
+                }
+            }
+
+            // 正常关闭时，确保所有数据都已刷盘
+            boolean result = false;
+            for (int i = 0; i < RETRY_TIMES_OVER && !result; i++) {
+                result = CommitLog.this.flush(0);
+            }
+
+            System.out.println(this.getServiceName() + " service end");
+        }
+
+        @Override
+        public String getServiceName() {
+            return FlushRealTimeService.class.getSimpleName();
+        }
+    }
+
+    /**
+     * 同步刷盘的组提交请求
+     */
+    public static class GroupCommitRequest {
+        // 需要刷盘到的物理偏移量
+        private final long nextOffset;
+        private final CountDownLatch countDownLatch = new CountDownLatch(1);
+        private volatile boolean flushOK = false;
+
+        public GroupCommitRequest(long nextOffset) {
+            this.nextOffset = nextOffset;
+        }
+
+        public long getNextOffset() {
+            return nextOffset;
+        }
+
+        public void wakeupCustomer(final boolean flushOK) {
+            this.flushOK = flushOK;
+            this.countDownLatch.countDown();
+        }
+
+        public boolean waitForFlush(long timeout) {
+            try {
+                this.countDownLatch.await(timeout, TimeUnit.MILLISECONDS);
+                return this.flushOK;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * 同步刷盘服务(组提交)：写入线程提交刷盘请求后等待，
+     * 刷盘线程把一段时间内积累的请求合并为一次刷盘，完成后一起唤醒
+     */
+    class GroupCommitService extends FlushCommitLogService {
+        // 写入线程提交请求的队列
+        private volatile List<GroupCommitRequest> requestsWrite = new ArrayList<GroupCommitRequest>();
+        // 刷盘线程处理请求的队列
+        private volatile List<GroupCommitRequest> requestsRead = new ArrayList<GroupCommitRequest>();
+
+        public void putRequest(final GroupCommitRequest request) {
+            synchronized (this) {
+                this.requestsWrite.add(request);
+            }
+            this.wakeup();
+        }
+
+        /**
+         * 交换读写队列，刷盘期间写入线程可以继续提交请求
+         */
+        private void swapRequests() {
+            synchronized (this) {
+                List<GroupCommitRequest> tmp = this.requestsWrite;
+                this.requestsWrite = this.requestsRead;
+                this.requestsRead = tmp;
+            }
+        }
+
+        private void doCommit() {
+            if (this.requestsRead.isEmpty()) {
+                return;
+            }
+
+            // 一次刷盘到最大的请求偏移量，覆盖本批所有请求
+            long maxNextOffset = 0;
+            for (GroupCommitRequest req : this.requestsRead) {
+                maxNextOffset = Math.max(maxNextOffset, req.getNextOffset());
+            }
+
+            // 请求的数据可能跨越两个文件，因此最多刷盘两次
+            for (int i = 0; i < 2 && CommitLog.this.mappedFileQueue.getFlushedWhere() < maxNextOffset; i++) {
+                CommitLog.this.flush(0);
+            }
+
+            long flushedWhere = CommitLog.this.mappedFileQueue.getFlushedWhere();
+            for (GroupCommitRequest req : this.requestsRead) {
+                req.wakeupCustomer(flushedWhere >= req.getNextOffset());
+            }
+            this.requestsRead.clear();
+        }
+
+        @Override
+        public void run() {
+            System.out.println(this.getServiceName() + " service started");
+
+            while (!this.isStopped()) {
+                try {
+                    this.waitForRunning(10);
+                    this.doCommit();
+                } catch (Exception e) {
+                    System.out.println(this.getServiceName() + " service has exception. ");
+                    e.printStackTrace();
+                }
+            }
+
+            // 处理停止前提交的请求
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            this.swapRequests();
+            this.doCommit();
+
+            System.out.println(this.getServiceName() + " service end");
+        }
+
+        @Override
+        protected void onWaitEnd() {
+            this.swapRequests();
+        }
+
+        @Override
+        public String getServiceName() {
+            return GroupCommitService.class.getSimpleName();
+        }
+    }
+
+    /**
+     * 读取指定物理偏移量处的一条消息
+     * @param offset
+     * @param size
+     * @return
+     */
+    public SelectMappedBufferResult getMessage(final long offset, final int size) {
+        return this.mappedFileQueue.selectMappedBuffer(offset, size);
+    }
+
+    /**
+     * 读取offset所在文件中从offset开始的所有可读数据
+     * @param offset
+     * @return
+     */
+    public SelectMappedBufferResult getData(final long offset) {
+        return this.mappedFileQueue.selectMappedBuffer(offset);
+    }
+
+    /**
+     * 下一个文件的起始物理偏移量
+     * @param offset
+     * @return
+     */
+    public long rollNextFile(final long offset) {
+        int mappedFileSize = this.messageStoreConfig.getMappedFileSizeCommitLog();
+        return offset + mappedFileSize - offset % mappedFileSize;
+    }
+
+    /**
+     * 删除过期的commitLog文件
+     * @param expiredTime 文件保留时间(毫秒)
+     * @param deleteFilesInterval
+     * @param intervalForcibly
+     * @param cleanImmediately 是否不论是否过期都删除
+     * @return 删除的文件数
+     */
+    public int deleteExpiredFile(final long expiredTime, final int deleteFilesInterval, final long intervalForcibly,
+                                 final boolean cleanImmediately) {
+        return this.mappedFileQueue.deleteExpiredFileByTime(expiredTime, deleteFilesInterval, intervalForcibly,
+                cleanImmediately, this.messageStoreConfig.getDeleteFilesBatchMax());
+    }
+
+    public long getMinOffset() {
+        return this.mappedFileQueue.getMinOffset();
+    }
+
+    /**
+     * 已写入数据的最大物理偏移量，没有文件时为分片的起始偏移量
+     * @return
+     */
+    public long getMaxOffset() {
+        return Math.max(this.mappedFileQueue.getMaxOffset(), this.baseOffset);
+    }
+
+    /**
+     * 当前写线程已持有写锁的时间(毫秒)，没有线程持有锁时为0。
+     * 磁盘变慢时写线程阻塞在缺页或创建文件上，持锁时间随之变长；并发写入不加锁，始终为0
+     * @return
+     */
+    public long getLockTimeMills() {
+        long begin = this.beginTimeInLock;
+        return begin > 0 ? Math.max(0, System.currentTimeMillis() - begin) : 0;
+    }
+
+    /**
+     * 已写入但还未刷盘的字节数
+     * @return
+     */
+    public long getFlushBehindBytes() {
+        return Math.max(0, this.getMaxOffset() - this.mappedFileQueue.getFlushedWhere());
+    }
+
+    public StoreStatsService getStoreStatsService() {
+        return storeStatsService;
+    }
+
+    public int getStripe() {
+        return stripe;
+    }
+
+    public long getBaseOffset() {
+        return baseOffset;
+    }
+
+    public TransientStorePool getTransientStorePool() {
+        return transientStorePool;
+    }
+
+    public MappedFileQueue getMappedFileQueue() {
+        return mappedFileQueue;
+    }
+
+    public MessageStoreConfig getMessageStoreConfig() {
+        return messageStoreConfig;
+    }
+}
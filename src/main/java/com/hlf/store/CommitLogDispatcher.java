@@ -0,0 +1,21 @@
+package com.hlf.store;
+
+import java.util.List;
+
+/**
+ * commitLog分发器，根据写入commitLog的消息构建索引
+ */
+public interface CommitLogDispatcher {
+
+    void dispatch(final DispatchRequest request);
+
+    /**
+     * 批量分发，默认逐条分发
+     * @param requests 按物理偏移量升序排列
+     */
+    default void dispatch(final List<DispatchRequest> requests) {
+        for (DispatchRequest request : requests) {
+            this.dispatch(request);
+        }
+    }
+}
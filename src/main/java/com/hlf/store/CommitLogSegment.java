@@ -0,0 +1,386 @@
+package com.hlf.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 存储文件(段)：以起始物理偏移量命名的定长文件，负责追加、读取、提交和刷盘。
+ * 写指针、提交水位、刷盘位置以及并发写入时的空间预留与后端无关，由该类实现；
+ * 数据的读写方式由子类决定：
+ * MappedFile通过内存映射读写，FileChannelSegment通过FileChannel按位置读写，不建立内存映射
+ */
+public abstract class CommitLogSegment extends ReferenceResource {
+
+    // 操作系统每页大小，默认4K
+    public static final int OS_PAGE_SIZE = 1024 * 4;// 页大小4KB
+
+    // 文件名
+    protected String fileName;
+    // 物理文件
+    protected File file;
+    // 文件大小
+    protected int fileSize;
+    // 文件通道
+    protected FileChannel fileChannel;
+    // 文件的起始偏移量
+    protected long fileFromOffset;
+
+    // 当前文件中的写指针(并发写入模式下为已预留空间的末尾)
+    protected final AtomicInteger wrotePosition = new AtomicInteger(0);
+    // 已完整写入的位置(提交水位)，只越过已全部写完的区域，读和刷盘都不能超过该位置
+    protected final AtomicInteger publishedPosition = new AtomicInteger(0);
+    // 已刷盘的位置
+    protected final AtomicInteger flushedPosition = new AtomicInteger(0);
+    // 已从堆外内存提交到FileChannel的位置
+    protected final AtomicInteger committedPosition = new AtomicInteger(0);
+
+    /**
+     * 按后端类型创建文件
+     * @param byteBufferType MAPPED为内存映射，UN_MAPPED为FileChannel
+     * @param fileName
+     * @param fileSize
+     * @param readAheadSize FileChannel后端一次顺序读取的最大字节数
+     * @return
+     * @throws IOException
+     */
+    public static CommitLogSegment create(final ByteBufferType byteBufferType, final String fileName, final int fileSize,
+                                          final int readAheadSize) throws IOException {
+        if (ByteBufferType.UN_MAPPED == byteBufferType) {
+            return new FileChannelSegment(fileName, fileSize, readAheadSize);
+        }
+        return new MappedFile(fileName, fileSize);
+    }
+
+    public static void ensureDirOk(final String dirName) {
+        if (dirName != null) {
+            File f = new File(dirName);
+            if (!f.exists()) {
+                boolean result = f.mkdirs();
+                System.out.println(dirName + " mkdir " + (result ? "OK" : "Failed"));
+            }
+        }
+    }
+
+    /**
+     * 往文件中追加消息，调用方需保证同一时刻只有一个写线程
+     * @param msgInner
+     * @param cb
+     * @return
+     */
+    public abstract AppendMessageResult appendMessagesInner(final MessageExtBrokerInner msgInner, final AppendMessageCallback cb);
+
+    /**
+     * 往文件中批量追加消息，整批消息只做一次空间检查、一次写入
+     * @param msgs
+     * @param cb
+     * @return
+     */
+    public abstract AppendMessageResult appendMessages(final List<MessageExtBrokerInner> msgs, final AppendMessageCallback cb);
+
+    /**
+     * 多个写线程并发追加消息，通过reserve预留空间，无需全局锁
+     * @param msgInner
+     * @param cb
+     * @return
+     */
+    public abstract AppendMessageResult appendMessagesConcurrently(final MessageExtBrokerInner msgInner, final AppendMessageCallback cb);
+
+    /**
+     * 并发批量追加消息，整批消息只通过一次CAS预留空间
+     * @param msgs
+     * @param cb
+     * @return
+     */
+    public abstract AppendMessageResult appendMessagesConcurrently(final List<MessageExtBrokerInner> msgs, final AppendMessageCallback cb);
+
+    /**
+     * 追加原始数据，用于消费队列等定长条目的索引文件
+     * @param data
+     * @return 剩余空间不足时返回false
+     */
+    public abstract boolean appendMessage(final byte[] data);
+
+    /**
+     * 读取文件中[pos, pos + size)的数据
+     * @param pos 文件内的相对位置
+     * @param size
+     * @return 使用完毕后需调用release，数据还不可读或文件已关闭时返回null
+     */
+    public abstract SelectMappedBufferResult selectMappedBuffer(int pos, int size);
+
+    /**
+     * 读取文件中从pos开始的已写入数据，用于顺序读取
+     * @param pos 文件内的相对位置
+     * @return 使用完毕后需调用release，数据不存在时返回null
+     */
+    public abstract SelectMappedBufferResult selectMappedBuffer(int pos);
+
+    /**
+     * 整个文件的只读视图，用于启动恢复等一次性的顺序扫描，不持有引用，不能在运行时与删除并发使用。
+     * 扫描结束后调用releaseScanBuffer
+     * @return
+     */
+    public abstract ByteBuffer scanBuffer();
+
+    /**
+     * 释放scanBuffer建立的视图
+     */
+    public void releaseScanBuffer() {
+    }
+
+    /**
+     * 将已写完的数据提交到FileChannel
+     * @param commitLeastPages 至少提交的页数，为0时只要有未提交的数据就提交
+     * @return 提交后的位置
+     */
+    public abstract int commit(final int commitLeastPages);
+
+    /**
+     * 把已写入的数据强制写到磁盘
+     * @throws IOException
+     */
+    protected abstract void force() throws IOException;
+
+    /**
+     * 可读取的位置
+     * @return
+     */
+    public abstract int getReadPosition();
+
+    /**
+     * 预热文件，提前触发缺页中断
+     * @param pages
+     */
+    public abstract void warmMappedFile(int pages);
+
+    /**
+     * 在文件pos处写入填满文件尾部的空白记录
+     * @param pos
+     * @param cb
+     */
+    protected abstract void appendBlank(final int pos, final AppendMessageCallback cb);
+
+    /**
+     * 在文件pos处写入占满length字节的填充记录
+     * @param pos
+     * @param length
+     * @param cb
+     */
+    protected abstract void appendFiller(final int pos, final int length, final AppendMessageCallback cb);
+
+    /**
+     * 并发写入失败后，用填充记录占满预留的空间再推进水位。
+     * 水位之前的区域会被分发和恢复逐条解析，不能留下全0或写了一半的数据
+     * @param pos
+     * @param length
+     * @param cb
+     */
+    protected void fillFailedWrite(final int pos, final int length, final AppendMessageCallback cb) {
+        try {
+            this.appendFiller(pos, length, cb);
+        } catch (Throwable e) {
+            System.out.println("append filler to " + this.fileName + " at " + pos + " error");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 通过CAS移动写指针，为msgLength字节的消息预留空间
+     * @param msgLength
+     * @param cb
+     * @return 预留空间的起始位置；剩余空间不足时返回-1，抢占到文件尾部的线程负责写入空白记录
+     */
+    protected int reserve(final int msgLength, final AppendMessageCallback cb) {
+        for (;;) {
+            int currentPos = this.wrotePosition.get();
+            if (currentPos >= this.fileSize) {
+                // 其他写线程已将文件写满
+                return -1;
+            }
+
+            if (currentPos + msgLength + DefaultAppendMessageCallback.END_FILE_MIN_BLANK_LENGTH > this.fileSize) {
+                // 剩余空间不足，抢占文件尾部，抢占成功的线程负责写入空白记录并推进水位，由调用方滚动到下一个文件
+                if (this.wrotePosition.compareAndSet(currentPos, this.fileSize)) {
+                    try {
+                        this.appendBlank(currentPos, cb);
+                    } finally {
+                        this.publish(currentPos, this.fileSize);
+                    }
+                    return -1;
+                }
+                continue;
+            }
+
+            if (this.wrotePosition.compareAndSet(currentPos, currentPos + msgLength)) {
+                return currentPos;
+            }
+        }
+    }
+
+    /**
+     * 推进提交水位：等待之前预留的区域全部写完后，才把水位从start推进到end
+     * @param start
+     * @param end
+     */
+    protected void publish(final int start, final int end) {
+        while (!this.publishedPosition.compareAndSet(start, end)) {
+            Thread.yield();
+        }
+    }
+
+    /**
+     * 刷盘，脏页数不足flushLeastPages时不刷盘
+     * @param flushLeastPages 至少刷盘的页数，为0时只要有未刷盘的数据就刷盘
+     * @return 刷盘后的位置
+     */
+    public int flush(final int flushLeastPages) {
+        if (this.isAbleToFlush(flushLeastPages)) {
+            // 先取水位再刷盘，保证记录的刷盘位置之前的数据都已落盘
+            int value = getReadPosition();
+            try {
+                this.force();
+            } catch (Throwable e) {
+                System.out.println("Error occurred when force data to disk.");
+                e.printStackTrace();
+            }
+            this.flushedPosition.set(value);
+        }
+        return this.getFlushedPosition();
+    }
+
+    /**
+     * 判断是否需要刷盘
+     * @param flushLeastPages
+     * @return
+     */
+    private boolean isAbleToFlush(final int flushLeastPages) {
+        int flush = this.flushedPosition.get();
+        int write = getReadPosition();
+
+        // 文件已写满，剩余的数据必须刷盘
+        if (this.isFull()) {
+            return write > flush;
+        }
+
+        if (flushLeastPages > 0) {
+            return ((write / OS_PAGE_SIZE) - (flush / OS_PAGE_SIZE)) >= flushLeastPages;
+        }
+
+        return write > flush;
+    }
+
+    /**
+     * 关闭并删除文件，仍有读取方持有引用时等待其释放，超过intervalForcibly后强制删除
+     * @param intervalForcibly
+     * @return 是否删除成功
+     */
+    public boolean destroy(final long intervalForcibly) {
+        this.shutdown(intervalForcibly);
+
+        if (this.isCleanupOver()) {
+            try {
+                this.fileChannel.close();
+                boolean result = this.file.delete();
+                System.out.println("delete file " + this.fileName + (result ? " OK" : " Failed"));
+            } catch (Exception e) {
+                System.out.println("close file channel " + this.fileName + " Failed. ");
+                e.printStackTrace();
+            }
+            return true;
+        } else {
+            System.out.println("destroy mapped file[REF:" + this.getRefCount() + "] " + this.fileName
+                    + " Failed. cleanupOver: " + this.cleanupOver);
+        }
+
+        return false;
+    }
+
+    public int getCommittedPosition() {
+        return this.committedPosition.get();
+    }
+
+    public void setCommittedPosition(int pos) {
+        this.committedPosition.set(pos);
+    }
+
+    public int getFlushedPosition() {
+        return this.flushedPosition.get();
+    }
+
+    public void setFlushedPosition(int pos) {
+        this.flushedPosition.set(pos);
+    }
+
+    /**
+     * 文件最后修改时间，用于判断文件是否过期
+     * @return
+     */
+    public long getLastModifiedTimestamp() {
+        return this.file.lastModified();
+    }
+
+    /**
+     * 文件是否已写满
+     * @return
+     */
+    public boolean isFull() {
+        return this.fileSize == this.wrotePosition.get();
+    }
+
+    public long getFileFromOffset() {
+        return fileFromOffset;
+    }
+
+    public void setFileFromOffset(long fileFromOffset) {
+        this.fileFromOffset = fileFromOffset;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public void setFileName(String fileName) {
+        this.fileName = fileName;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public void setFile(File file) {
+        this.file = file;
+    }
+
+    public int getFileSize() {
+        return fileSize;
+    }
+
+    public void setFileSize(int fileSize) {
+        this.fileSize = fileSize;
+    }
+
+    public FileChannel getFileChannel() {
+        return fileChannel;
+    }
+
+    public void setFileChannel(FileChannel fileChannel) {
+        this.fileChannel = fileChannel;
+    }
+
+    public AtomicInteger getWrotePosition() {
+        return wrotePosition;
+    }
+
+    /**
+     * 恢复时设置写指针，同时设置提交水位
+     * @param pos
+     */
+    public void setWrotePosition(int pos) {
+        this.wrotePosition.set(pos);
+        this.publishedPosition.set(pos);
+    }
+}
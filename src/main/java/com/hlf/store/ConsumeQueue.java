@@ -0,0 +1,285 @@
+package com.hlf.store;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * 消费队列：每个(topic, queueId)一个，由定长20字节的条目组成，
+ * 条目内容为 commitLog物理偏移量(8) + 消息大小(4) + tag哈希码(8)。
+ * 第N条消息的条目位于 N * 20 处，逻辑偏移量到物理偏移量的查找为O(1)
+ */
+public class ConsumeQueue {
+
+    // 每个条目的大小
+    public static final int CQ_STORE_UNIT_SIZE = 20;
+
+    private final MappedFileQueue mappedFileQueue;
+    private final String topic;
+    private final int queueId;
+    // 编码条目用的缓冲区，写入方法是同步的，可以复用
+    private final ByteBuffer byteBufferIndex;
+    private final int mappedFileSize;
+    // 已构建索引的最大commitLog物理偏移量(消息末尾)
+    private volatile long maxPhysicOffset = -1;
+    // 队列中最小的逻辑偏移量(字节)
+    private volatile long minLogicOffset = 0;
+
+    public ConsumeQueue(final String topic, final int queueId, final String storePath, final int mappedFileSize) {
+        this.topic = topic;
+        this.queueId = queueId;
+        this.mappedFileSize = mappedFileSize;
+
+        String queueDir = storePath + File.separator + topic + File.separator + queueId;
+        this.mappedFileQueue = new MappedFileQueue(queueDir, mappedFileSize);
+        this.byteBufferIndex = ByteBuffer.allocate(CQ_STORE_UNIT_SIZE);
+    }
+
+    public boolean load() {
+        boolean result = this.mappedFileQueue.load();
+        System.out.println("load consume queue " + this.topic + "-" + this.queueId + " " + (result ? "OK" : "Failed"));
+        return result;
+    }
+
+    /**
+     * 启动恢复：从倒数第三个文件开始扫描条目，找到最后一个有效条目，截断之后的数据
+     */
+    public void recover() {
+        final List<CommitLogSegment> mappedFiles = this.mappedFileQueue.getMappedFiles();
+        if (mappedFiles.isEmpty()) {
+            return;
+        }
+
+        this.minLogicOffset = mappedFiles.get(0).getFileFromOffset();
+
+        int index = Math.max(0, mappedFiles.size() - 3);
+        CommitLogSegment mappedFile = mappedFiles.get(index);
+        long processOffset = mappedFile.getFileFromOffset();
+        int mappedFileOffset = 0;
+        long maxPhysicOffset = -1;
+        for (;;) {
+            ByteBuffer byteBuffer = mappedFile.scanBuffer();
+            try {
+                for (int i = 0; i < this.mappedFileSize; i += CQ_STORE_UNIT_SIZE) {
+                    long offset = byteBuffer.getLong(i);
+                    int size = byteBuffer.getInt(i + 8);
+                    if (offset >= 0 && size > 0) {
+                        mappedFileOffset = i + CQ_STORE_UNIT_SIZE;
+                        maxPhysicOffset = offset + size;
+                    } else {
+                        break;
+                    }
+                }
+            } finally {
+                mappedFile.releaseScanBuffer();
+            }
+
+            if (mappedFileOffset == this.mappedFileSize) {
+                // 文件已写满，继续扫描下一个文件
+                index++;
+                if (index >= mappedFiles.size()) {
+                    break;
+                }
+                mappedFile = mappedFiles.get(index);
+                processOffset = mappedFile.getFileFromOffset();
+                mappedFileOffset = 0;
+            } else {
+                break;
+            }
+        }
+
+        processOffset += mappedFileOffset;
+        this.mappedFileQueue.setFlushedWhere(processOffset);
+        this.mappedFileQueue.setCommittedWhere(processOffset);
+        this.mappedFileQueue.truncateDirtyFiles(processOffset);
+        this.maxPhysicOffset = maxPhysicOffset;
+    }
+
+    /**
+     * 删除指向commitLog中phyOffset之后的条目，这些消息已在commitLog恢复时被截断
+     * @param phyOffset commitLog恢复后的最大物理偏移量
+     */
+    public void truncateDirtyLogicFiles(final long phyOffset) {
+        for (;;) {
+            CommitLogSegment mappedFile = this.mappedFileQueue.getLastMappedFile();
+            if (mappedFile == null) {
+                break;
+            }
+
+            // 条目按物理偏移量升序排列，找到第一个超出phyOffset的条目
+            int wrotePosition = mappedFile.getWrotePosition().get();
+            int validPosition = 0;
+            long maxPhysicOffset = -1;
+            ByteBuffer byteBuffer = mappedFile.scanBuffer();
+            try {
+                for (int i = 0; i < wrotePosition; i += CQ_STORE_UNIT_SIZE) {
+                    long offset = byteBuffer.getLong(i);
+                    int size = byteBuffer.getInt(i + 8);
+                    if (offset + size > phyOffset) {
+                        break;
+                    }
+                    validPosition = i + CQ_STORE_UNIT_SIZE;
+                    maxPhysicOffset = offset + size;
+                }
+            } finally {
+                mappedFile.releaseScanBuffer();
+            }
+
+            if (validPosition > 0 || this.mappedFileQueue.getMappedFiles().size() == 1) {
+                if (validPosition < wrotePosition) {
+                    mappedFile.setWrotePosition(validPosition);
+                    mappedFile.setCommittedPosition(validPosition);
+                    mappedFile.setFlushedPosition(validPosition);
+                    long where = mappedFile.getFileFromOffset() + validPosition;
+                    this.mappedFileQueue.setFlushedWhere(Math.min(this.mappedFileQueue.getFlushedWhere(), where));
+                    this.mappedFileQueue.setCommittedWhere(Math.min(this.mappedFileQueue.getCommittedWhere(), where));
+                }
+                this.maxPhysicOffset = maxPhysicOffset;
+                break;
+            }
+
+            // 整个文件都是脏数据
+            this.mappedFileQueue.deleteLastMappedFile();
+        }
+    }
+
+    /**
+     * 删除所有条目都指向commitLog已删除部分的文件
+     * @param offset commitLog中最小的物理偏移量
+     * @return 删除的文件数
+     */
+    public int deleteExpiredFile(final long offset) {
+        int cnt = this.mappedFileQueue.deleteExpiredFileByOffset(offset, CQ_STORE_UNIT_SIZE);
+        this.correctMinOffset(offset);
+        return cnt;
+    }
+
+    /**
+     * commitLog删除过期文件后，把队列的最小逻辑偏移量修正为第一条仍然存在的消息
+     * @param phyMinOffset commitLog中最小的物理偏移量
+     */
+    public void correctMinOffset(final long phyMinOffset) {
+        CommitLogSegment mappedFile = this.mappedFileQueue.getFirstMappedFile();
+        if (mappedFile == null) {
+            return;
+        }
+
+        long minLogicOffset = Math.max(this.minLogicOffset, mappedFile.getFileFromOffset());
+        SelectMappedBufferResult result = mappedFile.selectMappedBuffer((int) (minLogicOffset - mappedFile.getFileFromOffset()));
+        if (result == null) {
+            return;
+        }
+
+        try {
+            ByteBuffer byteBuffer = result.getByteBuffer();
+            for (int i = 0; i < result.getSize(); i += CQ_STORE_UNIT_SIZE) {
+                long offsetPy = byteBuffer.getLong(i);
+                if (offsetPy >= phyMinOffset) {
+                    if (result.getStartOffset() + i != this.minLogicOffset) {
+                        this.minLogicOffset = result.getStartOffset() + i;
+                        System.out.println("compute logics min offset: " + this.getMinOffsetInQueue() + ", topic: "
+                                + this.topic + ", queueId: " + this.queueId);
+                    }
+                    return;
+                }
+            }
+            // 文件中已写入的条目都指向已删除的消息
+            this.minLogicOffset = result.getStartOffset() + result.getSize();
+        } finally {
+            result.release();
+        }
+    }
+
+    /**
+     * 追加一个条目，已构建过的消息直接跳过，恢复后重新分发时不会产生重复条目
+     * @param offset 消息在commitLog中的物理偏移量
+     * @param size 消息大小
+     * @param tagsCode tag哈希码
+     * @return 条目的逻辑偏移量(第几条消息)，写入失败或已构建过时返回-1
+     */
+    public synchronized long putMessagePositionInfo(final long offset, final int size, final long tagsCode) {
+        if (offset + size <= this.maxPhysicOffset) {
+            return -1;
+        }
+
+        this.byteBufferIndex.flip();
+        this.byteBufferIndex.limit(CQ_STORE_UNIT_SIZE);
+        this.byteBufferIndex.putLong(offset);
+        this.byteBufferIndex.putInt(size);
+        this.byteBufferIndex.putLong(tagsCode);
+
+        CommitLogSegment mappedFile = this.mappedFileQueue.getLastMappedFile(0);
+        if (null == mappedFile) {
+            System.out.println("create consume queue mapped file error, topic: " + this.topic + " queueId: " + this.queueId);
+            return -1;
+        }
+
+        long queueOffset = (mappedFile.getFileFromOffset() + mappedFile.getWrotePosition().get()) / CQ_STORE_UNIT_SIZE;
+        if (mappedFile.appendMessage(this.byteBufferIndex.array())) {
+            this.maxPhysicOffset = Math.max(this.maxPhysicOffset, offset + size);
+            return queueOffset;
+        }
+
+        return -1;
+    }
+
+    /**
+     * 读取从第startIndex条开始、到所在文件可读位置为止的所有条目
+     * @param startIndex 逻辑偏移量
+     * @return 使用完毕后需调用release，数据不存在时返回null
+     */
+    public SelectMappedBufferResult getIndexBuffer(final long startIndex) {
+        long offset = startIndex * CQ_STORE_UNIT_SIZE;
+        if (offset >= this.minLogicOffset) {
+            CommitLogSegment mappedFile = this.mappedFileQueue.findMappedFileByOffset(offset);
+            if (mappedFile != null) {
+                return mappedFile.selectMappedBuffer((int) (offset % this.mappedFileSize));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param flushLeastPages
+     * @return true表示本次没有数据落盘
+     */
+    public boolean flush(final int flushLeastPages) {
+        return this.mappedFileQueue.flush(flushLeastPages);
+    }
+
+    public long getMinOffsetInQueue() {
+        return this.minLogicOffset / CQ_STORE_UNIT_SIZE;
+    }
+
+    /**
+     * 队列中下一条消息的逻辑偏移量
+     * @return
+     */
+    public long getMaxOffsetInQueue() {
+        return this.mappedFileQueue.getMaxOffset() / CQ_STORE_UNIT_SIZE;
+    }
+
+    public long getMaxPhysicOffset() {
+        return maxPhysicOffset;
+    }
+
+    public long getMinLogicOffset() {
+        return minLogicOffset;
+    }
+
+    public void setMinLogicOffset(long minLogicOffset) {
+        this.minLogicOffset = minLogicOffset;
+    }
+
+    public String getTopic() {
+        return topic;
+    }
+
+    public int getQueueId() {
+        return queueId;
+    }
+
+    public MappedFileQueue getMappedFileQueue() {
+        return mappedFileQueue;
+    }
+}
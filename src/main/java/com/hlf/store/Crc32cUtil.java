@@ -0,0 +1,149 @@
+package com.hlf.store;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+
+/**
+ * CRC32C校验码计算。JDK9及以上使用java.util.zip.CRC32C(x86上由CPU指令加速)，
+ * JDK8上退化为查表实现，两者结果相同，存储格式与运行的JDK版本无关
+ */
+public class Crc32cUtil {
+
+    // java.util.zip.CRC32C的构造方法，JDK8上为null
+    private static final MethodHandle CRC32C_CONSTRUCTOR;
+    // Checksum.update(ByteBuffer)，JDK9新增，可直接计算堆外内存，JDK8上为null
+    private static final MethodHandle UPDATE_BYTE_BUFFER;
+
+    static {
+        MethodHandle constructor = null;
+        MethodHandle updateByteBuffer = null;
+        try {
+            Class<?> clazz = Class.forName("java.util.zip.CRC32C");
+            constructor = MethodHandles.publicLookup().findConstructor(clazz, MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(Checksum.class));
+            updateByteBuffer = MethodHandles.publicLookup().findVirtual(Checksum.class, "update",
+                    MethodType.methodType(void.class, ByteBuffer.class));
+        } catch (ReflectiveOperationException e) {
+            System.out.println("java.util.zip.CRC32C not available, use pure java implementation");
+        }
+        CRC32C_CONSTRUCTOR = constructor;
+        UPDATE_BYTE_BUFFER = updateByteBuffer;
+    }
+
+    // Checksum不是线程安全的，每个线程复用一个实例
+    private static final ThreadLocal<Checksum> LOCAL_CHECKSUM = new ThreadLocal<Checksum>() {
+        @Override
+        protected Checksum initialValue() {
+            return newChecksum();
+        }
+    };
+
+    // 没有Checksum.update(ByteBuffer)时，计算堆外内存用的拷贝缓冲区
+    private static final ThreadLocal<byte[]> LOCAL_COPY_BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[4096];
+        }
+    };
+
+    public static Checksum newChecksum() {
+        if (CRC32C_CONSTRUCTOR != null) {
+            try {
+                return (Checksum) CRC32C_CONSTRUCTOR.invokeExact();
+            } catch (Throwable e) {
+                e.printStackTrace();
+            }
+        }
+        return new PureJavaCrc32C();
+    }
+
+    public static int crc32c(final byte[] data, final int offset, final int length) {
+        Checksum checksum = LOCAL_CHECKSUM.get();
+        checksum.reset();
+        checksum.update(data, offset, length);
+        return (int) checksum.getValue();
+    }
+
+    /**
+     * 计算byteBuffer中[position, position + length)的校验码，不改变byteBuffer的position和limit
+     * @param byteBuffer
+     * @param position
+     * @param length
+     * @return
+     */
+    public static int crc32c(final ByteBuffer byteBuffer, final int position, final int length) {
+        if (byteBuffer.hasArray()) {
+            return crc32c(byteBuffer.array(), byteBuffer.arrayOffset() + position, length);
+        }
+
+        Checksum checksum = LOCAL_CHECKSUM.get();
+        checksum.reset();
+
+        ByteBuffer duplicate = byteBuffer.duplicate();
+        duplicate.limit(position + length);
+        duplicate.position(position);
+        if (UPDATE_BYTE_BUFFER != null) {
+            try {
+                UPDATE_BYTE_BUFFER.invokeExact(checksum, duplicate);
+            } catch (Throwable e) {
+                throw new IllegalStateException("calculate crc32c error", e);
+            }
+        } else {
+            byte[] copyBuffer = LOCAL_COPY_BUFFER.get();
+            while (duplicate.hasRemaining()) {
+                int n = Math.min(copyBuffer.length, duplicate.remaining());
+                duplicate.get(copyBuffer, 0, n);
+                checksum.update(copyBuffer, 0, n);
+            }
+        }
+        return (int) checksum.getValue();
+    }
+
+    /**
+     * 查表实现的CRC32C(Castagnoli多项式)，与java.util.zip.CRC32C结果相同
+     */
+    static class PureJavaCrc32C implements Checksum {
+        // 反转后的Castagnoli多项式
+        private static final int POLY = 0x82F63B78;
+        private static final int[] TABLE = new int[256];
+
+        static {
+            for (int i = 0; i < 256; i++) {
+                int crc = i;
+                for (int j = 0; j < 8; j++) {
+                    crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLY : crc >>> 1;
+                }
+                TABLE[i] = crc;
+            }
+        }
+
+        private int crc = 0xFFFFFFFF;
+
+        @Override
+        public void update(int b) {
+            this.crc = (this.crc >>> 8) ^ TABLE[(this.crc ^ b) & 0xFF];
+        }
+
+        @Override
+        public void update(byte[] b, int off, int len) {
+            int localCrc = this.crc;
+            for (int i = off; i < off + len; i++) {
+                localCrc = (localCrc >>> 8) ^ TABLE[(localCrc ^ b[i]) & 0xFF];
+            }
+            this.crc = localCrc;
+        }
+
+        @Override
+        public long getValue() {
+            return (~this.crc) & 0xFFFFFFFFL;
+        }
+
+        @Override
+        public void reset() {
+            this.crc = 0xFFFFFFFF;
+        }
+    }
+}
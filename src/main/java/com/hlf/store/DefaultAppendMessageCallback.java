@@ -1,21 +1,53 @@
 package com.hlf.store;
 
 import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public class DefaultAppendMessageCallback implements AppendMessageCallback {
 
-    private static final int END_FILE_MIN_BLANK_LENGTH = 4 + 4;
-    // 全局唯一消息ID内存缓存
-    private final ByteBuffer msgIdMemory;
+    static final int END_FILE_MIN_BLANK_LENGTH = 4 + 4;
+    // topic编码缓存的最大条数，超过后新的topic不再缓存
+    private static final int MAX_TOPIC_CACHE_SIZE = 4096;
     // 存储消息内容
     private final ByteBuffer msgStoreItemMemory;
+    // 并发写入模式下，每个写线程私有的消息编码缓冲区
+    private final ThreadLocal<ByteBuffer> localStoreItemMemory = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(maxMessageSize + END_FILE_MIN_BLANK_LENGTH);
+        }
+    };
     // 消息最大长度
     private int maxMessageSize;
+    // 是否在消息末尾写入CRC32C校验码
+    private final boolean crcEnable;
+    // 是否复用写入结果对象
+    private final boolean appendResultReuseEnable;
+    // 是否把消息直接编码到文件的写入区域，省去经由堆内缓冲区的一次拷贝
+    private final boolean directEncodeEnable;
+    // 每个写线程复用的写入结果，结果只在该线程下一次写入之前有效
+    private final ThreadLocal<AppendMessageResult> localAppendResult = new ThreadLocal<AppendMessageResult>() {
+        @Override
+        protected AppendMessageResult initialValue() {
+            return new AppendMessageResult(AppendMessageStatus.PUT_OK);
+        }
+    };
+    // <topic, topic的UTF-8编码>，topic数量有限，缓存后写入时不再重复编码
+    private final ConcurrentMap<String, byte[]> topicDataCache = new ConcurrentHashMap<String, byte[]>(256);
 
-    public DefaultAppendMessageCallback(final int size) {
-        this.msgIdMemory = ByteBuffer.allocate(MessageDecoder.MSG_ID_LENGTH);
-        this.msgStoreItemMemory = ByteBuffer.allocate(size + END_FILE_MIN_BLANK_LENGTH);
-        this.maxMessageSize = size;
+    public DefaultAppendMessageCallback(final MessageStoreConfig messageStoreConfig) {
+        this.maxMessageSize = messageStoreConfig.getMaxMessageSize();
+        this.msgStoreItemMemory = ByteBuffer.allocate(this.maxMessageSize + END_FILE_MIN_BLANK_LENGTH);
+        this.crcEnable = messageStoreConfig.isMessageCrcEnable();
+        this.appendResultReuseEnable = messageStoreConfig.isAppendResultReuseEnable();
+        this.directEncodeEnable = messageStoreConfig.isDirectEncodeEnable();
+    }
+
+    @Override
+    public boolean isDirectEncode() {
+        return this.directEncodeEnable;
     }
 
     /**
@@ -28,78 +60,428 @@ public class DefaultAppendMessageCallback implements AppendMessageCallback {
      */
     public AppendMessageResult doAppend(long fileFromOffset, ByteBuffer byteBuffer, int maxBlank, MessageExtBrokerInner msgInner) {
 
-        // 在整个消息文件中的起始物理偏移量，long类型，占用8字节
+        // 在整个消息文件中的起始物理偏移量，long类型，占用8字节，消息ID在需要时才由它生成
         long wroteOffset = fileFromOffset + byteBuffer.position();
-        String msgId = MessageDecoder.createMessageId(this.msgIdMemory, wroteOffset);
 
         // 消息属性
-        final byte[] propertiesData =
-                msgInner.getPropertiesString() == null ? null : msgInner.getPropertiesString().getBytes(MessageDecoder.CHARSET_UTF8);
+        final byte[] propertiesData = propertiesData(msgInner);
         final int propertiesLength = propertiesData == null ? 0: propertiesData.length;
 
         // 消息主题
-        final byte[] topicData = msgInner.getTopic().getBytes(MessageDecoder.CHARSET_UTF8);
+        final byte[] topicData = this.topicData(msgInner.getTopic());
         final int topicLength = topicData.length;
 
         // 消息体
         final int bodyLength = msgInner.getBody() == null ? 0 : msgInner.getBody().length;
 
 
-        // 计算消息总长度
-        final int msgLength = calMsgLength(bodyLength, topicLength, propertiesLength);
+        // 计算消息总长度，超过最大长度或topic、属性超过长度字段的表示范围时不写入
+        final int msgLength = this.checkedMsgLength(bodyLength, topicLength, propertiesLength);
+        if (msgLength < 0) {
+            return new AppendMessageResult(AppendMessageCallback.lengthExceededStatus(msgLength));
+        }
 
-        // 如果待插入的消息的长度大于配置的最大消息长度
-        if (msgLength > this.maxMessageSize) {
-            return new AppendMessageResult(AppendMessageStatus.MESSAGE_SIZE_EXCEEDED);
+        // 当前文件剩余空间不足以写入该消息，写入空白记录填满文件尾部，由调用方滚动到下一个文件
+        if ((msgLength + END_FILE_MIN_BLANK_LENGTH) > maxBlank) {
+            return this.doAppendBlank(fileFromOffset, byteBuffer, maxBlank);
+        }
+
+        if (this.directEncodeEnable) {
+            // 直接按消息存储格式写入内存映射文件(或堆外内存)
+            int msgPos = byteBuffer.position();
+            this.encodeMessage(byteBuffer, msgInner, msgLength, wroteOffset, bodyLength, topicData, propertiesData);
+            this.fillCrc(byteBuffer, msgPos, msgLength);
+            return this.putOkResult(wroteOffset, msgLength);
         }
 
         // 按消息存储格式填充msgStoreItemMemory
         // 初始化存储空间
         this.resetByteBuffer(msgStoreItemMemory, msgLength);
+        this.encodeMessage(this.msgStoreItemMemory, msgInner, msgLength, wroteOffset, bodyLength, topicData, propertiesData);
+        this.fillCrc(this.msgStoreItemMemory, 0, msgLength);
+
+        // 写入消息到对应的内存映射文件中
+        byteBuffer.put(this.msgStoreItemMemory.array(), 0 , msgLength);
+
+        return this.putOkResult(wroteOffset, msgLength);
+    }
+
+    /**
+     * 批量追加消息：整批消息连续编码后只做一次空间检查、一次写入，
+     * 整批消息的总长度同样不能超过消息最大长度
+     * @param fileFromOffset
+     * @param byteBuffer
+     * @param maxBlank
+     * @param msgs
+     * @return
+     */
+    public AppendMessageResult doAppend(long fileFromOffset, ByteBuffer byteBuffer, int maxBlank, List<MessageExtBrokerInner> msgs) {
+        long wroteOffset = fileFromOffset + byteBuffer.position();
+        long[] msgOffsets = new long[msgs.size()];
+
+        if (this.directEncodeEnable) {
+            // 先计算整批消息的长度检查剩余空间，再直接编码到文件中
+            final int totalLength = this.calMsgLength(msgs);
+            if (totalLength < 0) {
+                return new AppendMessageResult(AppendMessageCallback.lengthExceededStatus(totalLength));
+            }
+            if ((totalLength + END_FILE_MIN_BLANK_LENGTH) > maxBlank) {
+                return this.doAppendBlank(fileFromOffset, byteBuffer, maxBlank);
+            }
+            this.encodeBatch(byteBuffer, msgs, wroteOffset, msgOffsets, true);
+            return new AppendMessageResult(AppendMessageStatus.PUT_OK, wroteOffset, totalLength, msgOffsets);
+        }
+
+        this.resetByteBuffer(this.msgStoreItemMemory, this.msgStoreItemMemory.capacity());
+        final int totalLength = this.encodeBatch(this.msgStoreItemMemory, msgs, wroteOffset, msgOffsets, true);
+        if (totalLength < 0) {
+            return new AppendMessageResult(AppendMessageCallback.lengthExceededStatus(totalLength));
+        }
+
+        if ((totalLength + END_FILE_MIN_BLANK_LENGTH) > maxBlank) {
+            return this.doAppendBlank(fileFromOffset, byteBuffer, maxBlank);
+        }
+
+        byteBuffer.put(this.msgStoreItemMemory.array(), 0, totalLength);
+        return new AppendMessageResult(AppendMessageStatus.PUT_OK, wroteOffset, totalLength, msgOffsets);
+    }
+
+    /**
+     * 并发写入模式下，在预留写入空间之前，先把消息编码到当前线程私有的缓冲区中，
+     * 此时物理偏移量还未确定，先写0占位，校验码在回填物理偏移量后计算
+     * @param msgInner
+     * @return 编码后的消息(position=0, limit=消息总长度)，消息长度超过限制时返回null
+     */
+    public ByteBuffer encode(MessageExtBrokerInner msgInner) {
+        final byte[] propertiesData = propertiesData(msgInner);
+        final int propertiesLength = propertiesData == null ? 0: propertiesData.length;
+        final byte[] topicData = this.topicData(msgInner.getTopic());
+        final int bodyLength = msgInner.getBody() == null ? 0 : msgInner.getBody().length;
+        final int msgLength = this.checkedMsgLength(bodyLength, topicData.length, propertiesLength);
+        if (msgLength < 0) {
+            return null;
+        }
+
+        ByteBuffer storeItemMemory = this.localStoreItemMemory.get();
+        this.resetByteBuffer(storeItemMemory, msgLength);
+        this.encodeMessage(storeItemMemory, msgInner, msgLength, 0L, bodyLength, topicData, propertiesData);
+        storeItemMemory.flip();
+        return storeItemMemory;
+    }
+
+    /**
+     * 并发写入模式下，把整批消息连续编码到当前线程私有的缓冲区中，物理偏移量先写相对位置占位
+     * @param msgs
+     * @return 编码后的消息(position=0, limit=整批消息总长度)，总长度超过限制时返回null
+     */
+    public ByteBuffer encode(List<MessageExtBrokerInner> msgs) {
+        ByteBuffer storeItemMemory = this.localStoreItemMemory.get();
+        this.resetByteBuffer(storeItemMemory, storeItemMemory.capacity());
+        if (this.encodeBatch(storeItemMemory, msgs, 0L, null, false) < 0) {
+            return null;
+        }
+        storeItemMemory.flip();
+        return storeItemMemory;
+    }
+
+    /**
+     * 并发写入模式下，写线程已通过CAS预留好[byteBuffer.position(), byteBuffer.position() + 消息长度)的空间，
+     * 回填物理偏移量并计算校验码后，将编码好的消息拷贝到预留空间中
+     * @param fileFromOffset
+     * @param byteBuffer position已指向预留空间的起始位置
+     * @param encoded encode方法的返回值
+     * @return
+     */
+    public AppendMessageResult doWrite(long fileFromOffset, ByteBuffer byteBuffer, ByteBuffer encoded) {
+        long wroteOffset = fileFromOffset + byteBuffer.position();
+        int totalLength = encoded.limit();
+
+        // 统计消息条数，单条消息是最常见的情况
+        int msgNum = 0;
+        for (int pos = 0; pos < totalLength; pos += encoded.getInt(pos)) {
+            msgNum++;
+        }
+
+        long[] msgOffsets = msgNum > 1 ? new long[msgNum] : null;
+        for (int pos = 0, i = 0; pos < totalLength; pos += encoded.getInt(pos), i++) {
+            encoded.putLong(pos + MessageDecoder.MESSAGE_PHYSIC_OFFSET_POSITION, wroteOffset + pos);
+            this.fillCrc(encoded, pos, encoded.getInt(pos));
+            if (msgOffsets != null) {
+                msgOffsets[i] = wroteOffset + pos;
+            }
+        }
+        byteBuffer.put(encoded.array(), 0, totalLength);
+
+        if (msgOffsets != null) {
+            return new AppendMessageResult(AppendMessageStatus.PUT_OK, wroteOffset, totalLength, msgOffsets);
+        }
+        return this.putOkResult(wroteOffset, totalLength);
+    }
+
+    /**
+     * 并发写入模式下，写线程已按calMsgLength的结果预留好空间，直接把消息编码到预留空间中
+     * @param fileFromOffset
+     * @param byteBuffer position已指向预留空间的起始位置
+     * @param msgInner
+     * @return
+     */
+    public AppendMessageResult doWrite(long fileFromOffset, ByteBuffer byteBuffer, MessageExtBrokerInner msgInner) {
+        final int msgPos = byteBuffer.position();
+        final long wroteOffset = fileFromOffset + msgPos;
+        final byte[] propertiesData = propertiesData(msgInner);
+        final int propertiesLength = propertiesData == null ? 0: propertiesData.length;
+        final byte[] topicData = this.topicData(msgInner.getTopic());
+        final int bodyLength = msgInner.getBody() == null ? 0 : msgInner.getBody().length;
+        final int msgLength = calMsgLength(this.crcEnable, bodyLength, topicData.length, propertiesLength);
+
+        this.encodeMessage(byteBuffer, msgInner, msgLength, wroteOffset, bodyLength, topicData, propertiesData);
+        this.fillCrc(byteBuffer, msgPos, msgLength);
+        return this.putOkResult(wroteOffset, msgLength);
+    }
+
+    /**
+     * 并发写入模式下，直接把整批消息编码到预留空间中
+     * @param fileFromOffset
+     * @param byteBuffer position已指向预留空间的起始位置
+     * @param msgs
+     * @return
+     */
+    public AppendMessageResult doWrite(long fileFromOffset, ByteBuffer byteBuffer, List<MessageExtBrokerInner> msgs) {
+        final long wroteOffset = fileFromOffset + byteBuffer.position();
+        long[] msgOffsets = new long[msgs.size()];
+        final int totalLength = this.encodeBatch(byteBuffer, msgs, wroteOffset, msgOffsets, true);
+        return new AppendMessageResult(AppendMessageStatus.PUT_OK, wroteOffset, totalLength, msgOffsets);
+    }
+
+    /**
+     * 计算消息编码后的长度
+     * @param msgInner
+     * @return 超过限制时返回LENGTH_MESSAGE_SIZE_EXCEEDED或LENGTH_PROPERTIES_SIZE_EXCEEDED
+     */
+    public int calMsgLength(MessageExtBrokerInner msgInner) {
+        final byte[] propertiesData = propertiesData(msgInner);
+        final int propertiesLength = propertiesData == null ? 0: propertiesData.length;
+        final int bodyLength = msgInner.getBody() == null ? 0 : msgInner.getBody().length;
+        return this.checkedMsgLength(bodyLength, this.topicData(msgInner.getTopic()).length, propertiesLength);
+    }
+
+    /**
+     * 计算整批消息编码后的总长度
+     * @param msgs
+     * @return 超过限制时返回LENGTH_MESSAGE_SIZE_EXCEEDED或LENGTH_PROPERTIES_SIZE_EXCEEDED
+     */
+    public int calMsgLength(List<MessageExtBrokerInner> msgs) {
+        int totalLength = 0;
+        for (int i = 0; i < msgs.size(); i++) {
+            int msgLength = this.calMsgLength(msgs.get(i));
+            if (msgLength < 0) {
+                return msgLength;
+            }
+            if (totalLength + msgLength > this.maxMessageSize) {
+                return LENGTH_MESSAGE_SIZE_EXCEEDED;
+            }
+            totalLength += msgLength;
+        }
+        return totalLength;
+    }
+
+    /**
+     * 在byteBuffer的当前位置写入空白记录，占满到文件末尾的maxBlank字节。
+     * 写入消息前总会为空白记录留出END_FILE_MIN_BLANK_LENGTH字节，所以空白记录总能写下
+     * @param fileFromOffset
+     * @param byteBuffer
+     * @param maxBlank 到文件末尾的剩余空间
+     * @return
+     */
+    public AppendMessageResult doAppendBlank(long fileFromOffset, ByteBuffer byteBuffer, int maxBlank) {
+        long wroteOffset = fileFromOffset + byteBuffer.position();
+        byteBuffer.putInt(maxBlank);
+        byteBuffer.putInt(MessageDecoder.BLANK_MAGIC_CODE);
+        return new AppendMessageResult(AppendMessageStatus.END_OF_FILE, wroteOffset, maxBlank, "");
+    }
+
+    /**
+     * 在byteBuffer的当前位置写入填充记录的记录头，预留空间中其余的数据不再有意义
+     * @param byteBuffer
+     * @param length 预留空间的长度，总是大于记录头的长度
+     */
+    public void doAppendFiller(ByteBuffer byteBuffer, int length) {
+        byteBuffer.putInt(length);
+        byteBuffer.putInt(MessageDecoder.FILLER_MAGIC_CODE);
+    }
+
+    /**
+     * 单条消息写入成功的结果，开启复用时返回当前线程复用的结果对象
+     * @param wroteOffset
+     * @param wroteBytes
+     * @return
+     */
+    private AppendMessageResult putOkResult(long wroteOffset, int wroteBytes) {
+        if (this.appendResultReuseEnable) {
+            AppendMessageResult result = this.localAppendResult.get();
+            result.reset(AppendMessageStatus.PUT_OK, wroteOffset, wroteBytes);
+            return result;
+        }
+        return new AppendMessageResult(AppendMessageStatus.PUT_OK, wroteOffset, wroteBytes);
+    }
+
+    /**
+     * topic的UTF-8编码，优先从缓存中获取
+     * @param topic
+     * @return
+     */
+    private byte[] topicData(String topic) {
+        byte[] topicData = this.topicDataCache.get(topic);
+        if (topicData == null) {
+            topicData = topic.getBytes(MessageDecoder.CHARSET_UTF8);
+            if (this.topicDataCache.size() < MAX_TOPIC_CACHE_SIZE) {
+                this.topicDataCache.putIfAbsent(topic, topicData);
+            }
+        }
+        return topicData;
+    }
+
+    /**
+     * 消息属性的UTF-8编码，优先使用调用方预先编码好的属性
+     * @param msgInner
+     * @return
+     */
+    private static byte[] propertiesData(MessageExtBrokerInner msgInner) {
+        if (msgInner.getPropertiesData() != null) {
+            return msgInner.getPropertiesData();
+        }
+        return msgInner.getPropertiesString() == null ? null : msgInner.getPropertiesString().getBytes(MessageDecoder.CHARSET_UTF8);
+    }
+
+    /**
+     * 将整批消息从storeItemMemory的当前位置开始连续编码
+     * @param storeItemMemory
+     * @param msgs
+     * @param wroteOffset 第一条消息的物理偏移量
+     * @param msgOffsets 用于返回每条消息的物理偏移量，可以为null
+     * @param offsetResolved 物理偏移量是否已确定，确定时才计算校验码
+     * @return 整批消息的总长度，超过限制时返回LENGTH_MESSAGE_SIZE_EXCEEDED或LENGTH_PROPERTIES_SIZE_EXCEEDED
+     */
+    private int encodeBatch(ByteBuffer storeItemMemory, List<MessageExtBrokerInner> msgs, long wroteOffset,
+                            long[] msgOffsets, boolean offsetResolved) {
+        final int startPos = storeItemMemory.position();
+        int totalLength = 0;
+        for (int i = 0; i < msgs.size(); i++) {
+            MessageExtBrokerInner msgInner = msgs.get(i);
+            final byte[] propertiesData = propertiesData(msgInner);
+            final int propertiesLength = propertiesData == null ? 0: propertiesData.length;
+            final byte[] topicData = this.topicData(msgInner.getTopic());
+            final int bodyLength = msgInner.getBody() == null ? 0 : msgInner.getBody().length;
+            final int msgLength = this.checkedMsgLength(bodyLength, topicData.length, propertiesLength);
+            if (msgLength < 0) {
+                return msgLength;
+            }
+            if (totalLength + msgLength > this.maxMessageSize) {
+                return LENGTH_MESSAGE_SIZE_EXCEEDED;
+            }
+
+            long physicalOffset = wroteOffset + totalLength;
+            if (msgOffsets != null) {
+                msgOffsets[i] = physicalOffset;
+            }
+            this.encodeMessage(storeItemMemory, msgInner, msgLength, physicalOffset, bodyLength, topicData, propertiesData);
+            if (offsetResolved) {
+                this.fillCrc(storeItemMemory, startPos + totalLength, msgLength);
+            }
+            totalLength += msgLength;
+        }
+        return totalLength;
+    }
+
+    /**
+     * 按消息存储格式将消息写入ByteBuffer
+     */
+    private void encodeMessage(ByteBuffer storeItemMemory, MessageExtBrokerInner msgInner, int msgLength,
+                               long physicalOffset, int bodyLength, byte[] topicData, byte[] propertiesData) {
+        final int propertiesLength = propertiesData == null ? 0: propertiesData.length;
 
         // 消息总长度
-        this.msgStoreItemMemory.putInt(msgLength);
+        storeItemMemory.putInt(msgLength);
+        // 魔数，用于恢复时识别消息，同时标识消息末尾是否有校验码
+        storeItemMemory.putInt(this.crcEnable ? MessageDecoder.MESSAGE_MAGIC_CODE_CRC : MessageDecoder.MESSAGE_MAGIC_CODE);
         // 队列ID
-        this.msgStoreItemMemory.putInt(msgInner.getQueueId());
+        storeItemMemory.putInt(msgInner.getQueueId());
         // 物理偏移量
-        this.msgStoreItemMemory.putLong(fileFromOffset + byteBuffer.position());
+        storeItemMemory.putLong(physicalOffset);
+        // 存储时间
+        storeItemMemory.putLong(msgInner.getStoreTimestamp());
 
         // 消息体长度及数据
-        this.msgStoreItemMemory.putInt(bodyLength);
+        storeItemMemory.putInt(bodyLength);
         if (bodyLength > 0)
-            this.msgStoreItemMemory.put(msgInner.getBody());
+            storeItemMemory.put(msgInner.getBody());
 
         // 消息topic长度及数据
-        this.msgStoreItemMemory.put((byte) topicLength);
-        this.msgStoreItemMemory.put(topicData);
+        storeItemMemory.put((byte) topicData.length);
+        storeItemMemory.put(topicData);
 
         // 消息属性长度及数据
-        this.msgStoreItemMemory.putShort((short) propertiesLength);
+        storeItemMemory.putShort((short) propertiesLength);
         if (propertiesLength > 0) {
-            this.msgStoreItemMemory.put(propertiesData);
+            storeItemMemory.put(propertiesData);
         }
 
-        // 写入消息到对应的内存映射文件中
-        byteBuffer.put(this.msgStoreItemMemory.array(), 0 , msgLength);
+        // 校验码占位，物理偏移量确定后由fillCrc填充
+        if (this.crcEnable) {
+            storeItemMemory.putInt(0);
+        }
+    }
 
-        AppendMessageResult result = new AppendMessageResult(AppendMessageStatus.PUT_OK, wroteOffset, msgLength, msgId);
-        return result;
+    /**
+     * 计算消息除校验码外所有字节的CRC32C，写入消息末尾
+     * @param storeItemMemory 堆内缓冲区，或直接编码时的文件写入区域
+     * @param msgPos 消息在storeItemMemory中的起始位置
+     * @param msgLength
+     */
+    private void fillCrc(ByteBuffer storeItemMemory, int msgPos, int msgLength) {
+        if (this.crcEnable) {
+            int crc = Crc32cUtil.crc32c(storeItemMemory, msgPos, msgLength - 4);
+            storeItemMemory.putInt(msgPos + msgLength - 4, crc);
+        }
+    }
+
+    /**
+     * 计算消息总长度并检查限制。topic长度用1个字节、属性长度用2个字节存储，超出时截断的长度会让恢复和读取
+     * 把该消息当作损坏的数据，因此必须在写入前拒绝
+     * @param bodyLength
+     * @param topicLength
+     * @param propertiesLength
+     * @return 超过限制时返回LENGTH_MESSAGE_SIZE_EXCEEDED或LENGTH_PROPERTIES_SIZE_EXCEEDED
+     */
+    private int checkedMsgLength(int bodyLength, int topicLength, int propertiesLength) {
+        if (topicLength > Byte.MAX_VALUE) {
+            return LENGTH_MESSAGE_SIZE_EXCEEDED;
+        }
+        if (propertiesLength > Short.MAX_VALUE) {
+            return LENGTH_PROPERTIES_SIZE_EXCEEDED;
+        }
+        final int msgLength = calMsgLength(this.crcEnable, bodyLength, topicLength, propertiesLength);
+        return msgLength > this.maxMessageSize ? LENGTH_MESSAGE_SIZE_EXCEEDED : msgLength;
     }
 
     /**
      * 计算消息总长度(根据消息存储格式计算)
+     * @param crcEnable 消息末尾是否有校验码
      * @param bodyLength
      * @param topicLength
      * @param propertiesLength
      * @return
      */
-    private int calMsgLength(int bodyLength, int topicLength, int propertiesLength) {
+    static int calMsgLength(boolean crcEnable, int bodyLength, int topicLength, int propertiesLength) {
         final int msgLen = 4 // TOTALSIZE 该消息条目总长度 4字节
+            + 4 // MAGICCODE 魔数 4字节
             + 4 // 消息消费队列ID 4字节
             + 8 // 物理偏移量
+            + 8 // 存储时间
             + 4 + (bodyLength > 0 ? bodyLength : 0) // body data
             + 1 + topicLength // topic data
             + 2 + (propertiesLength > 0 ? propertiesLength : 0) // properties data
+            + (crcEnable ? 4 : 0) // BODYCRC 除校验码外整条消息的CRC32C
             + 0;
         return msgLen;
     }
@@ -0,0 +1,1135 @@
+package com.hlf.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 消息存储：commitLog保存消息本身，每个(topic, queueId)的消费队列保存消息在commitLog中的位置，
+ * 消费方按逻辑偏移量随机读取队列中的消息。
+ * 写入只追加commitLog，消费队列和索引由分发服务在后台跟随commitLog异步构建。
+ * commitLog可以分为多个相互独立的分片，每个分片有自己的写指针、刷盘服务、分发服务和索引，
+ * 队列按哈希固定写入一个分片；各分片的物理偏移量空间互不重叠，由偏移量即可定位消息所在的分片。
+ * 启动前需调用load加载已有文件并完成恢复
+ */
+public class DefaultMessageStore {
+
+    private final MessageStoreConfig messageStoreConfig;
+    // commitLog分片，不分片时只有一个
+    private final CommitLog[] commitLogs;
+    // 每个分片的物理偏移量空间大小
+    private final long stripeOffsetSpace;
+    // <topic, <queueId, 消费队列>>
+    private final ConcurrentMap<String, ConcurrentMap<Integer, ConsumeQueue>> consumeQueueTable;
+    // 每个分片的消息key索引服务
+    private final IndexService[] indexServices;
+    // 每个分片的分发服务，从commitLog中读取新写入的消息构建索引
+    private final ReputMessageService[] reputMessageServices;
+    // 消费队列刷盘服务
+    private final FlushConsumeQueueService flushConsumeQueueService;
+    // 消息写入commitLog后，依次交给各分发器构建索引
+    private final LinkedList<CommitLogDispatcher> dispatcherList;
+    // 检查点，记录已落盘的位置
+    private final StoreCheckpoint storeCheckpoint;
+    // 过期文件清理服务
+    private final CleanFileService cleanFileService;
+    // 新消息到达的监听器，为null时不通知
+    private volatile MessageArrivingListener messageArrivingListener;
+    // 存储统计服务，所有commitLog分片共用
+    private final StoreStatsService storeStatsService;
+    // commitLog文件的内存映射预算，所有commitLog分片共用
+    private final MappedFileBudget mappedFileBudget;
+    // 堆外内存池，所有commitLog分片共用，未启用时为null
+    private final TransientStorePool transientStorePool;
+    // commitLog文件预分配服务，所有commitLog分片共用一个线程和一个堆外内存池
+    private final AllocateMappedFileService allocateMappedFileService;
+    // commitLog所在磁盘的使用率(百分比)，由清理服务定时更新
+    private volatile double diskUsedRatio = 0;
+
+    public DefaultMessageStore(final MessageStoreConfig messageStoreConfig) throws IOException {
+        this.messageStoreConfig = messageStoreConfig;
+        int stripeCount = messageStoreConfig.getCommitLogStripeCount();
+        if (stripeCount < 1 || stripeCount > CommitLog.MAX_STRIPE_COUNT) {
+            throw new IllegalArgumentException("commitLogStripeCount must be between 1 and "
+                    + CommitLog.MAX_STRIPE_COUNT + ", " + stripeCount);
+        }
+
+        this.storeStatsService = new StoreStatsService(messageStoreConfig);
+        this.mappedFileBudget = new MappedFileBudget(messageStoreConfig.getMaxMappedVirtualMemory());
+        this.transientStorePool = CommitLog.createTransientStorePool(messageStoreConfig);
+        this.allocateMappedFileService = new AllocateMappedFileService(messageStoreConfig, this.transientStorePool);
+        this.stripeOffsetSpace = CommitLog.stripeOffsetSpace(messageStoreConfig.getMappedFileSizeCommitLog());
+        this.commitLogs = new CommitLog[stripeCount];
+        this.indexServices = new IndexService[stripeCount];
+        this.reputMessageServices = new ReputMessageService[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            this.commitLogs[i] = new CommitLog(messageStoreConfig, i, this.storeStatsService, this.mappedFileBudget,
+                    this.allocateMappedFileService);
+            this.indexServices[i] = stripeCount > 1
+                    ? new IndexService(messageStoreConfig, messageStoreConfig.getStorePathIndex() + File.separator + i)
+                    : new IndexService(messageStoreConfig);
+            this.reputMessageServices[i] = new ReputMessageService(this.commitLogs[i]);
+        }
+        this.consumeQueueTable = new ConcurrentHashMap<String, ConcurrentMap<Integer, ConsumeQueue>>(32);
+        this.flushConsumeQueueService = new FlushConsumeQueueService();
+        this.cleanFileService = new CleanFileService();
+
+        this.dispatcherList = new LinkedList<CommitLogDispatcher>();
+        this.dispatcherList.addLast(new CommitLogDispatcherBuildConsumeQueue());
+        this.dispatcherList.addLast(new CommitLogDispatcherBuildIndex());
+
+        this.storeCheckpoint = new StoreCheckpoint(messageStoreConfig.getStorePathCheckpoint(), stripeCount);
+    }
+
+    /**
+     * 加载commitLog、消费队列和索引文件，并根据上次是否正常退出完成恢复
+     * @return
+     */
+    public boolean load() {
+        // 启动时创建abort文件，正常停止时删除，文件存在说明上次是异常退出
+        boolean lastExitOK = !new File(this.messageStoreConfig.getStorePathAbortFile()).exists();
+        System.out.println("last shutdown " + (lastExitOK ? "normally" : "abnormally"));
+
+        // 队列按分片数哈希到分片，分片数改变后已有队列的消息与新写入的消息不在同一个分片
+        if (this.storeCheckpoint.getStoredStripeCount() != this.commitLogs.length) {
+            System.out.println("commit log stripe count changed from " + this.storeCheckpoint.getStoredStripeCount()
+                    + " to " + this.commitLogs.length + ", load store failed");
+            return false;
+        }
+
+        boolean result = true;
+        for (CommitLog commitLog : this.commitLogs) {
+            result = result && commitLog.load();
+        }
+        result = result && this.loadConsumeQueue();
+        for (int i = 0; i < this.indexServices.length; i++) {
+            result = result && this.indexServices[i].load(lastExitOK, this.storeCheckpoint.getLogicsOffset(i));
+        }
+
+        if (result) {
+            this.recover();
+        }
+
+        return result;
+    }
+
+    /**
+     * 加载消费队列，目录结构为 storePathConsumeQueue/topic/queueId
+     * @return
+     */
+    private boolean loadConsumeQueue() {
+        File dirLogic = new File(this.messageStoreConfig.getStorePathConsumeQueue());
+        File[] fileTopicList = dirLogic.listFiles();
+        if (fileTopicList == null) {
+            return true;
+        }
+
+        for (File fileTopic : fileTopicList) {
+            File[] fileQueueIdList = fileTopic.listFiles();
+            if (fileQueueIdList == null) {
+                continue;
+            }
+
+            for (File fileQueueId : fileQueueIdList) {
+                int queueId;
+                try {
+                    queueId = Integer.parseInt(fileQueueId.getName());
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+
+                ConsumeQueue logic = this.findConsumeQueue(fileTopic.getName(), queueId);
+                if (!logic.load()) {
+                    return false;
+                }
+            }
+        }
+
+        System.out.println("load logics queue all over, OK");
+        return true;
+    }
+
+    /**
+     * 恢复：先截断commitLog中不完整的消息，再截断消费队列中指向已截断消息的条目，
+     * 最后从检查点记录的分发位置开始重新分发，补齐异常退出时没有落盘的消费队列和索引
+     */
+    private void recover() {
+        for (int i = 0; i < this.commitLogs.length; i++) {
+            this.commitLogs[i].recover(this.storeCheckpoint.getPhysicOffset(i));
+        }
+
+        for (ConcurrentMap<Integer, ConsumeQueue> maps : this.consumeQueueTable.values()) {
+            for (ConsumeQueue logic : maps.values()) {
+                CommitLog commitLog = this.commitLogs[this.stripeOfQueue(logic.getTopic(), logic.getQueueId())];
+                logic.recover();
+                logic.truncateDirtyLogicFiles(commitLog.getMaxOffset());
+                // 跳过指向已删除commitLog文件的条目
+                logic.correctMinOffset(commitLog.getMinOffset());
+            }
+        }
+
+        for (int i = 0; i < this.commitLogs.length; i++) {
+            CommitLog commitLog = this.commitLogs[i];
+            long maxPhyOffset = commitLog.getMaxOffset();
+            long reputFromOffset = Math.min(this.storeCheckpoint.getLogicsOffset(i), this.indexServices[i].getRebuildFromOffset());
+            reputFromOffset = Math.max(reputFromOffset, Math.max(commitLog.getMinOffset(), commitLog.getBaseOffset()));
+            reputFromOffset = Math.min(reputFromOffset, maxPhyOffset);
+            this.reputMessageServices[i].setReputFromOffset(reputFromOffset);
+            System.out.println("recover over, commit log " + (this.commitLogs.length > 1 ? "stripe " + i + " " : "")
+                    + "max offset " + maxPhyOffset + ", reput from " + reputFromOffset);
+        }
+    }
+
+    public void start() {
+        this.createAbortFile();
+
+        for (ReputMessageService reputMessageService : this.reputMessageServices) {
+            reputMessageService.start();
+        }
+
+        this.allocateMappedFileService.start();
+        for (CommitLog commitLog : this.commitLogs) {
+            commitLog.start();
+        }
+        this.flushConsumeQueueService.start();
+        this.cleanFileService.start();
+        this.storeStatsService.start();
+    }
+
+    public void shutdown() {
+        this.storeStatsService.shutdown();
+        this.cleanFileService.shutdown();
+
+        // commitLog停止时会提交全部数据，之后再停止分发服务，保证已写入的消息全部分发完
+        for (CommitLog commitLog : this.commitLogs) {
+            commitLog.shutdown();
+        }
+        // 所有分片停止后再停止共用的预分配服务、销毁堆外内存池
+        this.allocateMappedFileService.shutdown();
+        if (this.transientStorePool != null) {
+            this.transientStorePool.destroy();
+        }
+        for (ReputMessageService reputMessageService : this.reputMessageServices) {
+            reputMessageService.shutdown();
+        }
+        this.flushConsumeQueueService.shutdown();
+        for (IndexService indexService : this.indexServices) {
+            indexService.shutdown();
+        }
+        this.storeCheckpoint.shutdown();
+
+        // 所有数据都已落盘，删除abort文件表示正常退出
+        this.deleteAbortFile();
+    }
+
+    private void createAbortFile() {
+        File file = new File(this.messageStoreConfig.getStorePathAbortFile());
+        MappedFile.ensureDirOk(file.getParent());
+        try {
+            boolean result = file.createNewFile();
+            System.out.println(this.messageStoreConfig.getStorePathAbortFile() + (result ? " create OK" : " already exists"));
+        } catch (IOException e) {
+            System.out.println("create abort file error");
+            e.printStackTrace();
+        }
+    }
+
+    private void deleteAbortFile() {
+        File file = new File(this.messageStoreConfig.getStorePathAbortFile());
+        if (file.exists() && !file.delete()) {
+            System.out.println("delete abort file failed, " + file.getPath());
+        }
+    }
+
+    public PutMessageResult putMessage(final MessageExtBrokerInner msg) {
+        return this.commitLogs[this.stripeOfQueue(msg.getTopic(), msg.getQueueId())].putMessage(msg);
+    }
+
+    /**
+     * 批量写入消息，一批消息一次性写入同一个文件，因此必须属于同一个commitLog分片
+     * @param msgs
+     * @return
+     */
+    public PutMessageResult putMessages(final List<MessageExtBrokerInner> msgs) {
+        if (msgs == null || msgs.isEmpty()) {
+            return new PutMessageResult(PutMessageStatus.MESSAGE_ILLEGAL, null);
+        }
+
+        int stripe = this.stripeOfQueue(msgs.get(0).getTopic(), msgs.get(0).getQueueId());
+        for (MessageExtBrokerInner msg : msgs) {
+            if (this.stripeOfQueue(msg.getTopic(), msg.getQueueId()) != stripe) {
+                System.out.println("messages in one batch belong to different commit log stripes");
+                return new PutMessageResult(PutMessageStatus.MESSAGE_ILLEGAL, null);
+            }
+        }
+        return this.commitLogs[stripe].putMessages(msgs);
+    }
+
+    /**
+     * 队列所在的commitLog分片，同一个队列的消息总是写入同一个分片，消费队列中的物理偏移量保持递增
+     * @param topic
+     * @param queueId
+     * @return
+     */
+    public int stripeOfQueue(final String topic, final int queueId) {
+        if (this.commitLogs.length == 1) {
+            return 0;
+        }
+        return ((topic.hashCode() * 31 + queueId) & Integer.MAX_VALUE) % this.commitLogs.length;
+    }
+
+    /**
+     * 物理偏移量所在的commitLog分片
+     * @param commitLogOffset
+     * @return
+     */
+    public int stripeOfOffset(final long commitLogOffset) {
+        int stripe = (int) (commitLogOffset / this.stripeOffsetSpace);
+        return Math.min(Math.max(stripe, 0), this.commitLogs.length - 1);
+    }
+
+    public void doDispatch(final DispatchRequest req) {
+        for (CommitLogDispatcher dispatcher : this.dispatcherList) {
+            dispatcher.dispatch(req);
+        }
+    }
+
+    /**
+     * 批量分发，一个分发器处理完整批再交给下一个
+     * @param requests
+     */
+    public void doDispatch(final List<DispatchRequest> requests) {
+        for (CommitLogDispatcher dispatcher : this.dispatcherList) {
+            dispatcher.dispatch(requests);
+        }
+    }
+
+    /**
+     * 存储是否繁忙：写锁持有时间过长、未刷盘的数据过多或磁盘使用率超过水位时返回true。
+     * broker在请求进入线程池之前据此快速拒绝写入，由客户端重试，避免请求在线程池中堆积直到超时
+     * @return
+     */
+    public boolean isStoreBusy() {
+        long lockTimeOutMills = this.messageStoreConfig.getOsPageCacheBusyTimeOutMills();
+        if (lockTimeOutMills > 0 && this.getLockTimeMills() > lockTimeOutMills) {
+            return true;
+        }
+
+        long flushBehindBusyBytes = this.messageStoreConfig.getFlushBehindBusyBytes();
+        if (flushBehindBusyBytes > 0 && this.getFlushBehindBytes() > flushBehindBusyBytes) {
+            return true;
+        }
+
+        return this.diskUsedRatio > this.messageStoreConfig.getDiskBusyUsedSpaceRatio();
+    }
+
+    /**
+     * 各commitLog分片中最长的写锁持有时间(毫秒)
+     * @return
+     */
+    public long getLockTimeMills() {
+        long lockTimeMills = 0;
+        for (CommitLog commitLog : this.commitLogs) {
+            lockTimeMills = Math.max(lockTimeMills, commitLog.getLockTimeMills());
+        }
+        return lockTimeMills;
+    }
+
+    /**
+     * 所有commitLog分片已写入但还未刷盘的字节数
+     * @return
+     */
+    public long getFlushBehindBytes() {
+        long behind = 0;
+        for (CommitLog commitLog : this.commitLogs) {
+            behind += commitLog.getFlushBehindBytes();
+        }
+        return behind;
+    }
+
+    public double getDiskUsedRatio() {
+        return diskUsedRatio;
+    }
+
+    /**
+     * 根据commitLog中的一条消息生成分发请求
+     * @param record
+     * @param commitLogOffset 消息的物理偏移量
+     * @return
+     */
+    public DispatchRequest buildDispatchRequest(final MessageRecord record, final long commitLogOffset) {
+        Map<String, String> properties = record.getProperties();
+        long tagsCode = MessageExtBrokerInner.tagsString2tagsCode(properties.get(MessageConst.PROPERTY_TAGS));
+        return new DispatchRequest(record.getTopic(), record.getQueueId(), commitLogOffset, record.getTotalSize(),
+                tagsCode, record.getStoreTimestamp(), properties.get(MessageConst.PROPERTY_KEYS));
+    }
+
+    /**
+     * commitLog中还未分发的字节数
+     * @return
+     */
+    public long dispatchBehindBytes() {
+        long behind = 0;
+        for (ReputMessageService reputMessageService : this.reputMessageServices) {
+            behind += reputMessageService.behind();
+        }
+        return behind;
+    }
+
+    /**
+     * 从队列的逻辑偏移量offset开始读取最多maxMsgNums条消息
+     * @param topic
+     * @param queueId
+     * @param offset 逻辑偏移量
+     * @param maxMsgNums
+     * @return 使用完毕后需调用release
+     */
+    public GetMessageResult getMessage(final String topic, final int queueId, final long offset, final int maxMsgNums) {
+        GetMessageStatus status;
+        long nextBeginOffset = offset;
+        GetMessageResult getResult = new GetMessageResult();
+
+        ConsumeQueue consumeQueue = this.findConsumeQueue(topic, queueId);
+        long minOffset = consumeQueue.getMinOffsetInQueue();
+        long maxOffset = consumeQueue.getMaxOffsetInQueue();
+
+        if (maxOffset == 0) {
+            status = GetMessageStatus.NO_MESSAGE_IN_QUEUE;
+            nextBeginOffset = 0;
+        } else if (offset < minOffset) {
+            status = GetMessageStatus.OFFSET_TOO_SMALL;
+            nextBeginOffset = minOffset;
+        } else if (offset == maxOffset) {
+            status = GetMessageStatus.OFFSET_OVERFLOW_ONE;
+        } else if (offset > maxOffset) {
+            status = GetMessageStatus.OFFSET_OVERFLOW_BADLY;
+            nextBeginOffset = maxOffset;
+        } else {
+            SelectMappedBufferResult bufferConsumeQueue = consumeQueue.getIndexBuffer(offset);
+            if (bufferConsumeQueue != null) {
+                try {
+                    status = GetMessageStatus.NO_MATCHED_MESSAGE;
+                    ByteBuffer byteBuffer = bufferConsumeQueue.getByteBuffer();
+                    MessageRecord record = new MessageRecord();
+
+                    int i = 0;
+                    for (; i < bufferConsumeQueue.getSize() && getResult.getMessageCount() < maxMsgNums;
+                         i += ConsumeQueue.CQ_STORE_UNIT_SIZE) {
+                        long offsetPy = byteBuffer.getLong(i);
+                        int sizePy = byteBuffer.getInt(i + 8);
+
+                        SelectMappedBufferResult selectResult = this.getCommitLog(this.stripeOfOffset(offsetPy)).getMessage(offsetPy, sizePy);
+                        if (null == selectResult) {
+                            if (getResult.getBufferTotalSize() == 0) {
+                                status = GetMessageStatus.MESSAGE_WAS_REMOVING;
+                            }
+                            continue;
+                        }
+
+                        if (!this.checkCrcOnRead(selectResult, record)) {
+                            // 跳过已损坏的消息
+                            selectResult.release();
+                            if (getResult.getBufferTotalSize() == 0) {
+                                status = GetMessageStatus.MESSAGE_CRC_ERROR;
+                            }
+                            continue;
+                        }
+
+                        getResult.addMessage(selectResult);
+                        status = GetMessageStatus.FOUND;
+                    }
+
+                    nextBeginOffset = offset + (i / ConsumeQueue.CQ_STORE_UNIT_SIZE);
+                } finally {
+                    bufferConsumeQueue.release();
+                }
+            } else {
+                status = GetMessageStatus.OFFSET_FOUND_NULL;
+                System.out.println("consumer request topic: " + topic + " offset: " + offset + " minOffset: " + minOffset
+                        + " maxOffset: " + maxOffset + ", but access logic queue failed.");
+            }
+        }
+
+        getResult.setStatus(status);
+        getResult.setNextBeginOffset(nextBeginOffset);
+        getResult.setMinOffset(minOffset);
+        getResult.setMaxOffset(maxOffset);
+        return getResult;
+    }
+
+    /**
+     * 队列中第consumeQueueOffset条消息在commitLog中的物理偏移量
+     * @param topic
+     * @param queueId
+     * @param consumeQueueOffset
+     * @return 不存在时返回-1
+     */
+    public long getCommitLogOffsetInQueue(final String topic, final int queueId, final long consumeQueueOffset) {
+        ConsumeQueue consumeQueue = this.findConsumeQueue(topic, queueId);
+        SelectMappedBufferResult bufferConsumeQueue = consumeQueue.getIndexBuffer(consumeQueueOffset);
+        if (bufferConsumeQueue != null) {
+            try {
+                return bufferConsumeQueue.getByteBuffer().getLong(0);
+            } finally {
+                bufferConsumeQueue.release();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 按消息key查询存储时间在[begin, end]内的消息
+     * @param topic
+     * @param key
+     * @param maxNum
+     * @param begin
+     * @param end
+     * @return 使用完毕后需调用release
+     */
+    public QueryMessageResult queryMessage(final String topic, final String key, final int maxNum,
+                                           final long begin, final long end) {
+        QueryMessageResult queryMessageResult = new QueryMessageResult();
+        QueryOffsetResult queryOffsetResult = this.queryOffset(topic, key, maxNum, begin, end);
+        queryMessageResult.setIndexLastUpdatePhyoffset(queryOffsetResult.getIndexLastUpdatePhyoffset());
+        queryMessageResult.setIndexLastUpdateTimestamp(queryOffsetResult.getIndexLastUpdateTimestamp());
+
+        // 索引只比较哈希码，需要再核对topic和key
+        byte[] topicData = topic.getBytes(MessageDecoder.CHARSET_UTF8);
+        MessageRecord record = new MessageRecord();
+        for (Long offset : queryOffsetResult.getPhyOffsets()) {
+            SelectMappedBufferResult result = this.selectOneMessageByOffset(offset);
+            if (result == null) {
+                continue;
+            }
+
+            boolean matched = record.wrap(result.getByteBuffer(), 0) && record.topicEquals(topicData)
+                    && this.checkCrcOnRead(result, record);
+            if (matched) {
+                String keys = record.getProperties().get(MessageConst.PROPERTY_KEYS);
+                matched = keys != null && Arrays.asList(keys.split(MessageConst.KEY_SEPARATOR)).contains(key);
+            }
+
+            if (matched) {
+                queryMessageResult.addMessage(result);
+            } else {
+                result.release();
+            }
+        }
+
+        return queryMessageResult;
+    }
+
+    /**
+     * 依次查询各分片的索引，合并查询到的物理偏移量
+     * @param topic
+     * @param key
+     * @param maxNum
+     * @param begin
+     * @param end
+     * @return
+     */
+    private QueryOffsetResult queryOffset(final String topic, final String key, final int maxNum,
+                                          final long begin, final long end) {
+        if (this.indexServices.length == 1) {
+            return this.indexServices[0].queryOffset(topic, key, maxNum, begin, end);
+        }
+
+        List<Long> phyOffsets = new ArrayList<Long>(maxNum);
+        long indexLastUpdateTimestamp = 0;
+        long indexLastUpdatePhyoffset = 0;
+        for (IndexService indexService : this.indexServices) {
+            if (phyOffsets.size() >= maxNum) {
+                break;
+            }
+
+            QueryOffsetResult result = indexService.queryOffset(topic, key, maxNum - phyOffsets.size(), begin, end);
+            phyOffsets.addAll(result.getPhyOffsets());
+            if (result.getIndexLastUpdateTimestamp() > indexLastUpdateTimestamp) {
+                indexLastUpdateTimestamp = result.getIndexLastUpdateTimestamp();
+                indexLastUpdatePhyoffset = result.getIndexLastUpdatePhyoffset();
+            }
+        }
+        return new QueryOffsetResult(phyOffsets, indexLastUpdateTimestamp, indexLastUpdatePhyoffset);
+    }
+
+    /**
+     * 读取commitLogOffset处的一条消息，先读取消息总长度再读取整条消息
+     * @param commitLogOffset
+     * @return 使用完毕后需调用release，不存在时返回null
+     */
+    public SelectMappedBufferResult selectOneMessageByOffset(final long commitLogOffset) {
+        CommitLog commitLog = this.getCommitLog(this.stripeOfOffset(commitLogOffset));
+        SelectMappedBufferResult sbr = commitLog.getMessage(commitLogOffset, 4);
+        if (null != sbr) {
+            try {
+                int size = sbr.getByteBuffer().getInt(0);
+                return commitLog.getMessage(commitLogOffset, size);
+            } finally {
+                sbr.release();
+            }
+        }
+
+        return null;
+    }
+
+    public MessageExt lookMessageByOffset(final long commitLogOffset) {
+        SelectMappedBufferResult sbr = this.selectOneMessageByOffset(commitLogOffset);
+        if (null != sbr) {
+            try {
+                if (!this.checkCrcOnRead(sbr, new MessageRecord())) {
+                    return null;
+                }
+                return MessageDecoder.decode(sbr.getByteBuffer());
+            } finally {
+                sbr.release();
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * 按消息ID查询消息，消息ID由物理偏移量生成，无需索引
+     * @param msgId
+     * @return
+     */
+    public MessageExt viewMessageById(final String msgId) {
+        return this.lookMessageByOffset(MessageDecoder.decodeMessageId(msgId));
+    }
+
+    /**
+     * 开启读取时校验后，校验读取到的消息的CRC32C，未开启时直接返回true
+     * @param result 一条消息
+     * @param record 复用的消息视图
+     * @return
+     */
+    private boolean checkCrcOnRead(final SelectMappedBufferResult result, final MessageRecord record) {
+        if (!this.messageStoreConfig.isCheckCrcOnRead()) {
+            return true;
+        }
+
+        if (record.wrap(result.getByteBuffer(), 0) && record.verifyCrc()) {
+            return true;
+        }
+
+        System.out.println("message crc check failed, commit log offset " + result.getStartOffset());
+        return false;
+    }
+
+    public long getMaxOffsetInQueue(final String topic, final int queueId) {
+        return this.findConsumeQueue(topic, queueId).getMaxOffsetInQueue();
+    }
+
+    public long getMinOffsetInQueue(final String topic, final int queueId) {
+        return this.findConsumeQueue(topic, queueId).getMinOffsetInQueue();
+    }
+
+    /**
+     * 获取消费队列，不存在时创建
+     * @param topic
+     * @param queueId
+     * @return
+     */
+    public ConsumeQueue findConsumeQueue(final String topic, final int queueId) {
+        ConcurrentMap<Integer, ConsumeQueue> map = this.consumeQueueTable.get(topic);
+        if (null == map) {
+            ConcurrentMap<Integer, ConsumeQueue> newMap = new ConcurrentHashMap<Integer, ConsumeQueue>(128);
+            ConcurrentMap<Integer, ConsumeQueue> oldMap = this.consumeQueueTable.putIfAbsent(topic, newMap);
+            map = oldMap != null ? oldMap : newMap;
+        }
+
+        ConsumeQueue logic = map.get(queueId);
+        if (null == logic) {
+            ConsumeQueue newLogic = new ConsumeQueue(topic, queueId, this.messageStoreConfig.getStorePathConsumeQueue(),
+                    this.messageStoreConfig.getMappedFileSizeConsumeQueue());
+            ConsumeQueue oldLogic = map.putIfAbsent(queueId, newLogic);
+            logic = oldLogic != null ? oldLogic : newLogic;
+        }
+
+        return logic;
+    }
+
+    /**
+     * 不分片时的commitLog，分片时为第一个分片
+     * @return
+     */
+    public CommitLog getCommitLog() {
+        return commitLogs[0];
+    }
+
+    public CommitLog getCommitLog(final int stripe) {
+        return commitLogs[stripe];
+    }
+
+    public int getCommitLogStripeCount() {
+        return commitLogs.length;
+    }
+
+    public MessageStoreConfig getMessageStoreConfig() {
+        return messageStoreConfig;
+    }
+
+    public ConcurrentMap<String, ConcurrentMap<Integer, ConsumeQueue>> getConsumeQueueTable() {
+        return consumeQueueTable;
+    }
+
+    public IndexService getIndexService() {
+        return indexServices[0];
+    }
+
+    public IndexService getIndexService(final int stripe) {
+        return indexServices[stripe];
+    }
+
+    public LinkedList<CommitLogDispatcher> getDispatcherList() {
+        return dispatcherList;
+    }
+
+    public StoreStatsService getStoreStatsService() {
+        return storeStatsService;
+    }
+
+    public TransientStorePool getTransientStorePool() {
+        return transientStorePool;
+    }
+
+    public MappedFileBudget getMappedFileBudget() {
+        return mappedFileBudget;
+    }
+
+    public StoreCheckpoint getStoreCheckpoint() {
+        return storeCheckpoint;
+    }
+
+    public MessageArrivingListener getMessageArrivingListener() {
+        return messageArrivingListener;
+    }
+
+    public void setMessageArrivingListener(MessageArrivingListener messageArrivingListener) {
+        this.messageArrivingListener = messageArrivingListener;
+    }
+
+    /**
+     * 构建消费队列
+     */
+    class CommitLogDispatcherBuildConsumeQueue implements CommitLogDispatcher {
+
+        @Override
+        public void dispatch(DispatchRequest request) {
+            ConsumeQueue cq = DefaultMessageStore.this.findConsumeQueue(request.getTopic(), request.getQueueId());
+            cq.putMessagePositionInfo(request.getCommitLogOffset(), request.getMsgSize(), request.getTagsCode());
+        }
+    }
+
+    /**
+     * 构建消息key索引
+     */
+    class CommitLogDispatcherBuildIndex implements CommitLogDispatcher {
+
+        @Override
+        public void dispatch(DispatchRequest request) {
+            if (DefaultMessageStore.this.messageStoreConfig.isMessageIndexEnable()) {
+                DefaultMessageStore.this.indexServices[DefaultMessageStore.this.stripeOfOffset(request.getCommitLogOffset())]
+                        .buildIndex(request);
+            }
+        }
+    }
+
+    /**
+     * 分发服务：跟随在commitLog写位置之后，逐条解码新写入的消息，
+     * 攒够一批后交给各分发器构建消费队列和索引，使写入路径的延迟与索引数量无关。
+     * 每个commitLog分片有一个分发服务
+     */
+    class ReputMessageService extends ServiceThread {
+        private final CommitLog commitLog;
+        // 下一条待分发消息的物理偏移量
+        private volatile long reputFromOffset;
+        // 上次发现无法解析的消息的位置，同一位置只打印一次
+        private long illegalOffset = -1;
+
+        ReputMessageService(final CommitLog commitLog) {
+            this.commitLog = commitLog;
+            this.reputFromOffset = commitLog.getBaseOffset();
+        }
+
+        public long getReputFromOffset() {
+            return reputFromOffset;
+        }
+
+        public void setReputFromOffset(long reputFromOffset) {
+            this.reputFromOffset = reputFromOffset;
+        }
+
+        public long behind() {
+            return this.commitLog.getMaxOffset() - this.reputFromOffset;
+        }
+
+        private boolean isCommitLogAvailable() {
+            return this.reputFromOffset < this.commitLog.getMaxOffset();
+        }
+
+        /**
+         * 读取到的数据在readSize处的消息是否不完整
+         * @param byteBuffer
+         * @param readSize
+         * @param size 读取到的数据长度
+         * @return
+         */
+        private boolean isTruncated(final ByteBuffer byteBuffer, final int readSize, final int size) {
+            int remaining = size - readSize;
+            return remaining < MessageDecoder.MESSAGE_BODY_LENGTH_POSITION + 4
+                    || byteBuffer.getInt(readSize + MessageDecoder.MESSAGE_TOTALSIZE_POSITION) > remaining;
+        }
+
+        /**
+         * 分发停在无法解析的消息处，每个位置只打印一次
+         * @param offset
+         */
+        private void reportIllegal(final long offset) {
+            if (this.illegalOffset != offset) {
+                this.illegalOffset = offset;
+                System.out.println("found illegal message at " + offset + " in committed data, dispatch stopped here, "
+                        + "behind " + (this.commitLog.getMaxOffset() - offset) + " bytes");
+            }
+        }
+
+        /**
+         * 按消息头中的总长度重新读取offset处的整条消息
+         * @param byteBuffer 已读取的数据，从offset开始
+         * @param offset
+         * @param size 已读取的数据长度
+         * @return 总长度不合法或超出可读范围时返回null
+         */
+        private SelectMappedBufferResult readWholeMessage(final ByteBuffer byteBuffer, final long offset, final int size) {
+            if (size < MessageDecoder.MESSAGE_TOTALSIZE_POSITION + 4) {
+                return null;
+            }
+            int totalSize = byteBuffer.getInt(MessageDecoder.MESSAGE_TOTALSIZE_POSITION);
+            if (totalSize <= size || totalSize > this.commitLog.rollNextFile(offset) - offset) {
+                return null;
+            }
+            return this.commitLog.getMessage(offset, totalSize);
+        }
+
+        /**
+         * 分发一批消息，消费队列构建完成后通知新消息到达
+         * @param batch
+         */
+        private void dispatch(final List<DispatchRequest> batch) {
+            DefaultMessageStore.this.doDispatch(batch);
+
+            MessageArrivingListener listener = DefaultMessageStore.this.messageArrivingListener;
+            if (listener != null) {
+                for (DispatchRequest request : batch) {
+                    long maxOffset = DefaultMessageStore.this.findConsumeQueue(request.getTopic(), request.getQueueId()).getMaxOffsetInQueue();
+                    listener.arriving(request.getTopic(), request.getQueueId(), maxOffset, request.getTagsCode());
+                }
+            }
+        }
+
+        private void doReput() {
+            long minOffset = this.commitLog.getMinOffset();
+            if (this.reputFromOffset < minOffset) {
+                // 分发落后时未分发的文件已过期删除，从最早的文件开始分发
+                System.out.println("reput from offset " + this.reputFromOffset + " has been deleted, correct to " + minOffset);
+                this.reputFromOffset = minOffset;
+            }
+
+            int maxBatchSize = DefaultMessageStore.this.messageStoreConfig.getMaxDispatchBatchSize();
+            List<DispatchRequest> batch = new ArrayList<DispatchRequest>(maxBatchSize);
+            MessageRecord record = new MessageRecord();
+
+            boolean illegal = false;
+            while (!illegal && this.isCommitLogAvailable()) {
+                SelectMappedBufferResult result = this.commitLog.getData(this.reputFromOffset);
+                if (result == null) {
+                    break;
+                }
+
+                try {
+                    ByteBuffer byteBuffer = result.getByteBuffer();
+                    long startOffset = result.getStartOffset();
+                    long nextOffset = -1;
+                    int readSize = 0;
+                    // reputFromOffset只在整批分发完后推进，检查点据此判断哪些消息的索引已经构建
+                    while (readSize < result.getSize()) {
+                        if (MessageRecord.isBlank(byteBuffer, readSize)) {
+                            // 到达文件尾部的空白记录，跳到下一个文件
+                            nextOffset = this.commitLog.rollNextFile(startOffset + readSize);
+                            break;
+                        }
+
+                        if (MessageRecord.isFiller(byteBuffer, readSize)
+                                && byteBuffer.getInt(readSize + MessageDecoder.MESSAGE_TOTALSIZE_POSITION) > DefaultAppendMessageCallback.END_FILE_MIN_BLANK_LENGTH) {
+                            // 并发写入失败的预留空间，没有消息，整段跳过，可能越过本次读取的数据
+                            readSize += byteBuffer.getInt(readSize + MessageDecoder.MESSAGE_TOTALSIZE_POSITION);
+                            continue;
+                        }
+
+                        if (this.isTruncated(byteBuffer, readSize, result.getSize())) {
+                            if (readSize > 0) {
+                                // FileChannel文件一次只读取一部分数据，可能在消息中间结束，从这条消息开始重新读取
+                                break;
+                            }
+                            // 第一条消息就比一次读取的数据长(消息长度超过fileChannelReadAheadSize)，按消息长度重新读取
+                            SelectMappedBufferResult whole = this.readWholeMessage(byteBuffer, startOffset, result.getSize());
+                            if (whole != null) {
+                                result.release();
+                                result = whole;
+                                byteBuffer = result.getByteBuffer();
+                                continue;
+                            }
+                        }
+
+                        if (!record.wrap(byteBuffer, readSize)) {
+                            // 已提交的区域内不应出现无法解析的消息，跳过会使之后已确认的消息不进入消费队列和索引，
+                            // 停在这条消息处，下一轮从这里重新读取
+                            this.reportIllegal(startOffset + readSize);
+                            illegal = true;
+                            break;
+                        }
+
+                        batch.add(DefaultMessageStore.this.buildDispatchRequest(record, startOffset + readSize));
+                        readSize += record.getTotalSize();
+                        if (batch.size() >= maxBatchSize) {
+                            this.dispatch(batch);
+                            batch.clear();
+                            this.reputFromOffset = startOffset + readSize;
+                        }
+                    }
+
+                    if (!batch.isEmpty()) {
+                        this.dispatch(batch);
+                        batch.clear();
+                    }
+                    this.reputFromOffset = nextOffset >= 0 ? nextOffset : startOffset + readSize;
+                } finally {
+                    result.release();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            System.out.println(this.getServiceName() + " service started");
+
+            while (!this.isStopped()) {
+                try {
+                    Thread.sleep(1);
+                    this.doReput();
+                } catch (Exception e) {
+                    System.out.println(this.getServiceName() + " service has exception. ");
+                    e.printStackTrace();
+                }
+            }
+
+            // 停止前分发完已写入的消息
+            this.doReput();
+
+            System.out.println(this.getServiceName() + " service end");
+        }
+
+        @Override
+        public String getServiceName() {
+            return ReputMessageService.class.getSimpleName();
+        }
+    }
+
+    /**
+     * 过期文件清理服务：先按保留时间(磁盘使用率过高时不论是否过期)删除commitLog文件，
+     * 再删除所有条目都指向已删除消息的消费队列文件和索引文件。
+     * 文件删除前会等读取方释放引用，之后立即解除内存映射
+     */
+    class CleanFileService extends ServiceThread {
+
+        /**
+         * 删除过期的commitLog文件
+         */
+        private void deleteExpiredCommitLog() {
+            MessageStoreConfig config = DefaultMessageStore.this.messageStoreConfig;
+            long fileReservedTime = config.getFileReservedTime() * 60L * 60L * 1000L;
+
+            boolean cleanImmediately = this.isSpaceFull();
+            int deleteCount = 0;
+            for (CommitLog commitLog : DefaultMessageStore.this.commitLogs) {
+                deleteCount += commitLog.deleteExpiredFile(fileReservedTime, config.getDeleteCommitLogFilesInterval(),
+                        config.getDestroyMapedFileIntervalForcibly(), cleanImmediately);
+            }
+            if (deleteCount > 0) {
+                System.out.println("delete " + deleteCount + " expired commit log files" + (cleanImmediately ? " because disk is full" : ""));
+            }
+        }
+
+        /**
+         * 重新计算commitLog所在磁盘的使用率
+         * @return 无法获取磁盘大小时返回0
+         */
+        private double updateDiskUsedRatio() {
+            File file = new File(DefaultMessageStore.this.messageStoreConfig.getStorePathCommitLog());
+            // 目录还未创建时按最近的已存在的上级目录所在磁盘计算
+            while (!file.exists() && file.getAbsoluteFile().getParentFile() != null) {
+                file = file.getAbsoluteFile().getParentFile();
+            }
+            long totalSpace = file.getTotalSpace();
+            double ratio = totalSpace > 0 ? (totalSpace - file.getFreeSpace()) * 100.0 / totalSpace : 0;
+            DefaultMessageStore.this.diskUsedRatio = ratio;
+            return ratio;
+        }
+
+        /**
+         * commitLog所在磁盘的使用率是否超过上限
+         * @return
+         */
+        private boolean isSpaceFull() {
+            double ratio = this.updateDiskUsedRatio();
+            int maxRatio = DefaultMessageStore.this.messageStoreConfig.getDiskMaxUsedSpaceRatio();
+            if (ratio > maxRatio) {
+                System.out.println("disk space will be full soon, used ratio " + ratio + "%, max " + maxRatio + "%");
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * 删除指向已删除commitLog文件的消费队列文件和索引文件
+         */
+        private void deleteExpiredConsumeQueueAndIndex() {
+            // 被引用而未能删除的文件在之后的轮次中重试，因此每轮都要检查。
+            // 消费队列和索引只指向所属分片，按所属分片的最小偏移量删除
+            CommitLog[] commitLogs = DefaultMessageStore.this.commitLogs;
+            long[] minOffsets = new long[commitLogs.length];
+            for (int i = 0; i < commitLogs.length; i++) {
+                minOffsets[i] = commitLogs[i].getMinOffset();
+            }
+
+            for (ConcurrentMap<Integer, ConsumeQueue> maps : DefaultMessageStore.this.consumeQueueTable.values()) {
+                for (ConsumeQueue logic : maps.values()) {
+                    int stripe = DefaultMessageStore.this.stripeOfQueue(logic.getTopic(), logic.getQueueId());
+                    if (minOffsets[stripe] > commitLogs[stripe].getBaseOffset()) {
+                        logic.deleteExpiredFile(minOffsets[stripe]);
+                    }
+                }
+            }
+
+            for (int i = 0; i < commitLogs.length; i++) {
+                if (minOffsets[i] > commitLogs[i].getBaseOffset()) {
+                    DefaultMessageStore.this.indexServices[i].deleteExpiredFile(minOffsets[i]);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            System.out.println(this.getServiceName() + " service started");
+            // 启动时先计算一次磁盘使用率，写入准入判断不必等到第一轮清理
+            this.updateDiskUsedRatio();
+
+            while (!this.isStopped()) {
+                try {
+                    this.waitForRunning(DefaultMessageStore.this.messageStoreConfig.getCleanResourceInterval());
+                    if (this.isStopped()) {
+                        break;
+                    }
+                    this.deleteExpiredCommitLog();
+                    this.deleteExpiredConsumeQueueAndIndex();
+                } catch (Exception e) {
+                    System.out.println(this.getServiceName() + " service has exception. ");
+                    e.printStackTrace();
+                }
+            }
+
+            System.out.println(this.getServiceName() + " service end");
+        }
+
+        @Override
+        public String getServiceName() {
+            return CleanFileService.class.getSimpleName();
+        }
+    }
+
+    /**
+     * 消费队列刷盘服务
+     */
+    class FlushConsumeQueueService extends ServiceThread {
+        // 停止服务时，最多重试刷盘的次数
+        private static final int RETRY_TIMES_OVER = 3;
+        // 上次强制刷盘的时间
+        private long lastFlushTimestamp = 0;
+
+        private void doFlush(int retryTimes) {
+            int flushConsumeQueueLeastPages = DefaultMessageStore.this.messageStoreConfig.getFlushConsumeQueueLeastPages();
+
+            if (retryTimes == RETRY_TIMES_OVER) {
+                flushConsumeQueueLeastPages = 0;
+            }
+
+            int flushConsumeQueueThoroughInterval = DefaultMessageStore.this.messageStoreConfig.getFlushConsumeQueueThoroughInterval();
+            long currentTimeMillis = System.currentTimeMillis();
+            if (currentTimeMillis >= (this.lastFlushTimestamp + flushConsumeQueueThoroughInterval)) {
+                this.lastFlushTimestamp = currentTimeMillis;
+                flushConsumeQueueLeastPages = 0;
+            }
+
+            // 全部刷盘前记下分发位置，刷盘完成后这个位置之前的消息的消费队列和索引都已落盘
+            ReputMessageService[] reputMessageServices = DefaultMessageStore.this.reputMessageServices;
+            long[] logicsOffsets = new long[reputMessageServices.length];
+            for (int i = 0; i < reputMessageServices.length; i++) {
+                logicsOffsets[i] = reputMessageServices[i].getReputFromOffset();
+            }
+
+            for (ConcurrentMap<Integer, ConsumeQueue> maps : DefaultMessageStore.this.consumeQueueTable.values()) {
+                for (ConsumeQueue cq : maps.values()) {
+                    boolean result = false;
+                    for (int i = 0; i < retryTimes && !result; i++) {
+                        result = cq.flush(flushConsumeQueueLeastPages);
+                    }
+                }
+            }
+
+            StoreCheckpoint checkpoint = DefaultMessageStore.this.storeCheckpoint;
+            CommitLog[] commitLogs = DefaultMessageStore.this.commitLogs;
+            for (int i = 0; i < commitLogs.length; i++) {
+                checkpoint.setPhysicOffset(i, commitLogs[i].getMappedFileQueue().getFlushedWhere());
+            }
+            if (0 == flushConsumeQueueLeastPages) {
+                for (int i = 0; i < commitLogs.length; i++) {
+                    DefaultMessageStore.this.indexServices[i].flushAll();
+                    checkpoint.setLogicsOffset(i, logicsOffsets[i]);
+                }
+                checkpoint.flush();
+            }
+        }
+
+        @Override
+        public void run() {
+            System.out.println(this.getServiceName() + " service started");
+
+            while (!this.isStopped()) {
+                try {
+                    int interval = DefaultMessageStore.this.messageStoreConfig.getFlushIntervalConsumeQueue();
+                    this.waitForRunning(interval);
+                    this.doFlush(1);
+                } catch (Exception e) {
+                    System.out.println(this.getServiceName() + " service has exception. ");
+                    e.printStackTrace();
+                }
+            }
+
+            this.doFlush(RETRY_TIMES_OVER);
+
+            System.out.println(this.getServiceName() + " service end");
+        }
+
+        @Override
+        public String getServiceName() {
+            return FlushConsumeQueueService.class.getSimpleName();
+        }
+    }
+}
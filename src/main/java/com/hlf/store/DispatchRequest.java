@@ -0,0 +1,59 @@
+package com.hlf.store;
+
+/**
+ * 分发请求：一条写入commitLog的消息中构建索引所需的信息
+ */
+public class DispatchRequest {
+
+    private final String topic;
+    private final int queueId;
+    // 消息在commitLog中的物理偏移量
+    private final long commitLogOffset;
+    // 消息大小
+    private final int msgSize;
+    // tag哈希码
+    private final long tagsCode;
+    // 消息存储时间
+    private final long storeTimestamp;
+    // 消息的业务key，多个key之间用空格分隔
+    private final String keys;
+
+    public DispatchRequest(String topic, int queueId, long commitLogOffset, int msgSize, long tagsCode,
+                           long storeTimestamp, String keys) {
+        this.topic = topic;
+        this.queueId = queueId;
+        this.commitLogOffset = commitLogOffset;
+        this.msgSize = msgSize;
+        this.tagsCode = tagsCode;
+        this.storeTimestamp = storeTimestamp;
+        this.keys = keys;
+    }
+
+    public String getTopic() {
+        return topic;
+    }
+
+    public int getQueueId() {
+        return queueId;
+    }
+
+    public long getCommitLogOffset() {
+        return commitLogOffset;
+    }
+
+    public int getMsgSize() {
+        return msgSize;
+    }
+
+    public long getTagsCode() {
+        return tagsCode;
+    }
+
+    public long getStoreTimestamp() {
+        return storeTimestamp;
+    }
+
+    public String getKeys() {
+        return keys;
+    }
+}
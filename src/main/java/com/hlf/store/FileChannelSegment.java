@@ -0,0 +1,366 @@
+package com.hlf.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * 不使用内存映射的文件：消息先编码到写线程私有的堆外缓冲区，再通过FileChannel按位置写入，
+ * 读取时按位置读到新分配的堆内缓冲区。
+ * 数据量远大于内存时，内存映射会频繁缺页、换出，按位置读写只依赖页缓存，表现更稳定。
+ * 文件格式与MappedFile完全相同，两种后端可以互相切换
+ */
+public class FileChannelSegment extends CommitLogSegment {
+
+    // 每个写线程私有的编码缓冲区，按需扩容。使用堆外内存，写入FileChannel时不需要再拷贝到临时的堆外缓冲区
+    private static final ThreadLocal<ByteBuffer> LOCAL_WRITE_BUFFER = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(64 * 1024);
+        }
+    };
+
+    // 顺序读取(selectMappedBuffer(pos))时一次最多读取的字节数
+    private final int readAheadSize;
+    // 启动恢复时建立的临时只读映射
+    private volatile MappedByteBuffer scanBuffer;
+
+    /**
+     * @param fileName
+     * @param fileSize
+     * @param readAheadSize 顺序读取时一次最多读取的字节数，不能小于消息头的长度
+     * @throws IOException
+     */
+    public FileChannelSegment(final String fileName, final int fileSize, final int readAheadSize) throws IOException {
+        this.fileName = fileName;
+        this.fileSize = fileSize;
+        this.readAheadSize = readAheadSize;
+        this.file = new File(fileName);
+        this.fileFromOffset = Long.parseLong(this.file.getName());
+        boolean ok = false;
+        ensureDirOk(this.file.getParent());
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(this.file, "rw");
+        try {
+            // 与内存映射文件一样预先占满文件大小，加载时按文件大小校验
+            if (randomAccessFile.length() < fileSize) {
+                randomAccessFile.setLength(fileSize);
+            }
+            this.fileChannel = randomAccessFile.getChannel();
+            ok = true;
+        } finally {
+            if (!ok) {
+                randomAccessFile.close();
+            }
+        }
+    }
+
+    /**
+     * 获取当前写线程的编码缓冲区，容量不足时扩容
+     * @param size
+     * @return position为0、limit为size的缓冲区
+     */
+    private static ByteBuffer writeBuffer(final int size) {
+        ByteBuffer buffer = LOCAL_WRITE_BUFFER.get();
+        if (buffer.capacity() < size) {
+            buffer = ByteBuffer.allocateDirect(Math.max(size, buffer.capacity() * 2));
+            LOCAL_WRITE_BUFFER.set(buffer);
+        }
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    /**
+     * 把buffer中[0, length)的数据写到文件的pos处
+     * @param buffer
+     * @param pos
+     * @param length
+     */
+    private void write(final ByteBuffer buffer, final int pos, final int length) {
+        buffer.position(0);
+        buffer.limit(length);
+        long position = pos;
+        try {
+            while (buffer.hasRemaining()) {
+                position += this.fileChannel.write(buffer, position);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("write file " + this.fileName + " at " + pos + " error", e);
+        }
+    }
+
+    /**
+     * 在编码缓冲区中编码消息：fileFromOffset传入写入位置对应的物理偏移量，缓冲区从0开始写，
+     * 编码出的偏移量与直接写在文件的写入位置时相同
+     * @param msgInner
+     * @param cb
+     * @return
+     */
+    @Override
+    public AppendMessageResult appendMessagesInner(final MessageExtBrokerInner msgInner, final AppendMessageCallback cb) {
+        int currentPos = this.wrotePosition.get();
+        if (currentPos < this.fileSize) {
+            int msgLength = cb.calMsgLength(msgInner);
+            if (msgLength < 0) {
+                return new AppendMessageResult(AppendMessageCallback.lengthExceededStatus(msgLength));
+            }
+            ByteBuffer byteBuffer = writeBuffer(msgLength + DefaultAppendMessageCallback.END_FILE_MIN_BLANK_LENGTH);
+            AppendMessageResult result = cb.doAppend(this.fileFromOffset + currentPos, byteBuffer, this.fileSize - currentPos, msgInner);
+            return this.writeAppended(byteBuffer, currentPos, result);
+        }
+
+        return new AppendMessageResult(AppendMessageStatus.UNKNOWN_ERROR);
+    }
+
+    @Override
+    public AppendMessageResult appendMessages(final List<MessageExtBrokerInner> msgs, final AppendMessageCallback cb) {
+        int currentPos = this.wrotePosition.get();
+        if (currentPos < this.fileSize) {
+            int msgLength = cb.calMsgLength(msgs);
+            if (msgLength < 0) {
+                return new AppendMessageResult(AppendMessageCallback.lengthExceededStatus(msgLength));
+            }
+            ByteBuffer byteBuffer = writeBuffer(msgLength + DefaultAppendMessageCallback.END_FILE_MIN_BLANK_LENGTH);
+            AppendMessageResult result = cb.doAppend(this.fileFromOffset + currentPos, byteBuffer, this.fileSize - currentPos, msgs);
+            return this.writeAppended(byteBuffer, currentPos, result);
+        }
+
+        return new AppendMessageResult(AppendMessageStatus.UNKNOWN_ERROR);
+    }
+
+    /**
+     * 把doAppend编码的数据写入文件并推进写指针，空白记录只需写入记录头
+     * @param byteBuffer
+     * @param currentPos
+     * @param result
+     * @return
+     */
+    private AppendMessageResult writeAppended(final ByteBuffer byteBuffer, final int currentPos, final AppendMessageResult result) {
+        switch (result.getStatus()) {
+            case PUT_OK:
+                this.write(byteBuffer, currentPos, result.getWroteBytes());
+                break;
+            case END_OF_FILE:
+                this.write(byteBuffer, currentPos, DefaultAppendMessageCallback.END_FILE_MIN_BLANK_LENGTH);
+                break;
+            default:
+                return result;
+        }
+        this.publishedPosition.set(this.wrotePosition.addAndGet(result.getWroteBytes()));
+        return result;
+    }
+
+    /**
+     * 并发写入：预留空间后在写线程私有的缓冲区中编码，再按位置写入，各写线程的写入互不影响
+     * @param msgInner
+     * @param cb
+     * @return
+     */
+    @Override
+    public AppendMessageResult appendMessagesConcurrently(final MessageExtBrokerInner msgInner, final AppendMessageCallback cb) {
+        return this.writeConcurrently(msgInner, null, cb);
+    }
+
+    @Override
+    public AppendMessageResult appendMessagesConcurrently(final List<MessageExtBrokerInner> msgs, final AppendMessageCallback cb) {
+        return this.writeConcurrently(null, msgs, cb);
+    }
+
+    private AppendMessageResult writeConcurrently(final MessageExtBrokerInner msgInner, final List<MessageExtBrokerInner> msgs,
+                                                  final AppendMessageCallback cb) {
+        final int msgLength = msgInner != null ? cb.calMsgLength(msgInner) : cb.calMsgLength(msgs);
+        if (msgLength < 0) {
+            return new AppendMessageResult(AppendMessageCallback.lengthExceededStatus(msgLength));
+        }
+
+        final int currentPos = this.reserve(msgLength, cb);
+        if (currentPos < 0) {
+            return new AppendMessageResult(AppendMessageStatus.END_OF_FILE);
+        }
+
+        boolean ok = false;
+        try {
+            ByteBuffer byteBuffer = writeBuffer(msgLength);
+            long wroteOffset = this.fileFromOffset + currentPos;
+            AppendMessageResult result = msgInner != null ? cb.doWrite(wroteOffset, byteBuffer, msgInner)
+                    : cb.doWrite(wroteOffset, byteBuffer, msgs);
+            this.write(byteBuffer, currentPos, msgLength);
+            ok = true;
+            return result;
+        } finally {
+            // 无论写入是否成功都要推进水位，否则之后的写线程会一直等待；失败时先用填充记录占满预留空间
+            if (!ok) {
+                this.fillFailedWrite(currentPos, msgLength, cb);
+            }
+            this.publish(currentPos, currentPos + msgLength);
+        }
+    }
+
+    @Override
+    protected void appendBlank(final int pos, final AppendMessageCallback cb) {
+        ByteBuffer byteBuffer = writeBuffer(DefaultAppendMessageCallback.END_FILE_MIN_BLANK_LENGTH);
+        cb.doAppendBlank(this.fileFromOffset + pos, byteBuffer, this.fileSize - pos);
+        this.write(byteBuffer, pos, DefaultAppendMessageCallback.END_FILE_MIN_BLANK_LENGTH);
+    }
+
+    @Override
+    protected void appendFiller(final int pos, final int length, final AppendMessageCallback cb) {
+        ByteBuffer byteBuffer = writeBuffer(DefaultAppendMessageCallback.END_FILE_MIN_BLANK_LENGTH);
+        cb.doAppendFiller(byteBuffer, length);
+        this.write(byteBuffer, pos, DefaultAppendMessageCallback.END_FILE_MIN_BLANK_LENGTH);
+    }
+
+    @Override
+    public boolean appendMessage(final byte[] data) {
+        int currentPos = this.wrotePosition.get();
+        if ((currentPos + data.length) <= this.fileSize) {
+            ByteBuffer byteBuffer = writeBuffer(data.length);
+            byteBuffer.put(data);
+            this.write(byteBuffer, currentPos, data.length);
+            this.publishedPosition.set(this.wrotePosition.addAndGet(data.length));
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * 按位置读取文件中[pos, pos + size)的数据到新分配的缓冲区
+     * @param pos 文件内的相对位置
+     * @param size
+     * @return
+     */
+    @Override
+    public SelectMappedBufferResult selectMappedBuffer(int pos, int size) {
+        int readPosition = getReadPosition();
+        if ((pos + size) <= readPosition) {
+            if (this.hold()) {
+                return this.read(pos, size);
+            } else {
+                System.out.println("matched, but hold failed, request pos: " + pos + ", fileFromOffset: " + this.fileFromOffset);
+            }
+        } else {
+            System.out.println("selectMappedBuffer request pos invalid, request pos: " + pos + ", size: " + size
+                    + ", fileFromOffset: " + this.fileFromOffset);
+        }
+
+        return null;
+    }
+
+    /**
+     * 读取从pos开始的已写入数据，最多readAheadSize字节，结尾可能是不完整的消息
+     * @param pos 文件内的相对位置
+     * @return
+     */
+    @Override
+    public SelectMappedBufferResult selectMappedBuffer(int pos) {
+        int readPosition = getReadPosition();
+        if (pos < readPosition && pos >= 0) {
+            if (this.hold()) {
+                return this.read(pos, Math.min(readPosition - pos, this.readAheadSize));
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * 读取数据，调用前已持有引用，结果release时释放
+     * @param pos
+     * @param size
+     * @return
+     */
+    private SelectMappedBufferResult read(final int pos, final int size) {
+        ByteBuffer byteBuffer = ByteBuffer.allocate(size);
+        try {
+            long position = pos;
+            while (byteBuffer.hasRemaining()) {
+                int n = this.fileChannel.read(byteBuffer, position);
+                if (n < 0) {
+                    break;
+                }
+                position += n;
+            }
+        } catch (IOException e) {
+            System.out.println("read file " + this.fileName + " at " + pos + " error");
+            e.printStackTrace();
+            this.release();
+            return null;
+        }
+        byteBuffer.flip();
+        return new SelectMappedBufferResult(this.fileFromOffset + pos, byteBuffer.asReadOnlyBuffer(), size, this);
+    }
+
+    /**
+     * 临时建立整个文件的只读映射用于扫描，扫描结束后调用releaseScanBuffer解除
+     * @return
+     */
+    @Override
+    public synchronized ByteBuffer scanBuffer() {
+        if (this.scanBuffer == null) {
+            try {
+                this.scanBuffer = this.fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, this.fileSize);
+            } catch (IOException e) {
+                throw new IllegalStateException("map file " + this.fileName + " error", e);
+            }
+        }
+        return this.scanBuffer.slice();
+    }
+
+    @Override
+    public synchronized void releaseScanBuffer() {
+        if (this.scanBuffer != null) {
+            MappedFile.clean(this.scanBuffer);
+            this.scanBuffer = null;
+        }
+    }
+
+    /**
+     * 数据写入FileChannel即可读取，无需提交
+     * @param commitLeastPages
+     * @return
+     */
+    @Override
+    public int commit(final int commitLeastPages) {
+        return this.publishedPosition.get();
+    }
+
+    @Override
+    protected void force() throws IOException {
+        this.fileChannel.force(false);
+    }
+
+    @Override
+    public int getReadPosition() {
+        return this.publishedPosition.get();
+    }
+
+    /**
+     * 不使用内存映射，没有缺页中断，无需预热
+     * @param pages
+     */
+    @Override
+    public void warmMappedFile(int pages) {
+    }
+
+    /**
+     * 读取结果都是拷贝出来的数据，引用全部释放后只需解除扫描时的临时映射
+     * @param currentRef
+     * @return
+     */
+    @Override
+    public boolean cleanup(final long currentRef) {
+        if (this.isAvailable()) {
+            System.out.println("this file[REF:" + currentRef + "] " + this.fileName + " have not shutdown, stop cleanup.");
+            return false;
+        }
+
+        this.releaseScanBuffer();
+        return true;
+    }
+}
@@ -0,0 +1,10 @@
+package com.hlf.store;
+
+/**
+ * 刷盘方式
+ */
+public enum FlushDiskType {
+
+    SYNC_FLUSH,// 同步刷盘，写入线程等待数据落盘后才返回
+    ASYNC_FLUSH// 异步刷盘，由后台线程定时刷盘
+}
@@ -0,0 +1,90 @@
+package com.hlf.store;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 按逻辑偏移量读取消息的结果，消息数据是commitLog映射区域的只读切片。
+ * 使用完毕后必须调用release释放对文件的引用
+ */
+public class GetMessageResult {
+
+    private final List<SelectMappedBufferResult> messageMapedList = new ArrayList<SelectMappedBufferResult>(32);
+    private final List<ByteBuffer> messageBufferList = new ArrayList<ByteBuffer>(32);
+
+    private GetMessageStatus status;
+    // 下次读取的起始逻辑偏移量
+    private long nextBeginOffset;
+    private long minOffset;
+    private long maxOffset;
+    // 所有消息的总字节数
+    private int bufferTotalSize = 0;
+
+    public void addMessage(final SelectMappedBufferResult mapedBuffer) {
+        this.messageMapedList.add(mapedBuffer);
+        this.messageBufferList.add(mapedBuffer.getByteBuffer());
+        this.bufferTotalSize += mapedBuffer.getSize();
+    }
+
+    public void release() {
+        for (SelectMappedBufferResult select : this.messageMapedList) {
+            select.release();
+        }
+    }
+
+    public int getMessageCount() {
+        return this.messageMapedList.size();
+    }
+
+    public List<SelectMappedBufferResult> getMessageMapedList() {
+        return messageMapedList;
+    }
+
+    public List<ByteBuffer> getMessageBufferList() {
+        return messageBufferList;
+    }
+
+    public GetMessageStatus getStatus() {
+        return status;
+    }
+
+    public void setStatus(GetMessageStatus status) {
+        this.status = status;
+    }
+
+    public long getNextBeginOffset() {
+        return nextBeginOffset;
+    }
+
+    public void setNextBeginOffset(long nextBeginOffset) {
+        this.nextBeginOffset = nextBeginOffset;
+    }
+
+    public long getMinOffset() {
+        return minOffset;
+    }
+
+    public void setMinOffset(long minOffset) {
+        this.minOffset = minOffset;
+    }
+
+    public long getMaxOffset() {
+        return maxOffset;
+    }
+
+    public void setMaxOffset(long maxOffset) {
+        this.maxOffset = maxOffset;
+    }
+
+    public int getBufferTotalSize() {
+        return bufferTotalSize;
+    }
+
+    @Override
+    public String toString() {
+        return "GetMessageResult [status=" + status + ", nextBeginOffset=" + nextBeginOffset + ", minOffset="
+                + minOffset + ", maxOffset=" + maxOffset + ", bufferTotalSize=" + bufferTotalSize
+                + ", messageCount=" + getMessageCount() + "]";
+    }
+}
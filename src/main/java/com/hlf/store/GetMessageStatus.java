@@ -0,0 +1,14 @@
+package com.hlf.store;
+
+public enum GetMessageStatus {
+
+    FOUND,// 找到消息
+    NO_MATCHED_MESSAGE,// 没有匹配的消息
+    MESSAGE_WAS_REMOVING,// 消息所在的commitLog文件已被删除
+    MESSAGE_CRC_ERROR,// 消息校验码错误，数据已损坏
+    OFFSET_FOUND_NULL,// 逻辑偏移量对应的消费队列文件不存在
+    OFFSET_OVERFLOW_BADLY,// 逻辑偏移量大于队列最大偏移量
+    OFFSET_OVERFLOW_ONE,// 逻辑偏移量等于队列最大偏移量，暂无新消息
+    OFFSET_TOO_SMALL,// 逻辑偏移量小于队列最小偏移量
+    NO_MESSAGE_IN_QUEUE// 队列中没有消息
+}
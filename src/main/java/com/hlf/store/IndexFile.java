@@ -0,0 +1,248 @@
+package com.hlf.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.List;
+
+/**
+ * 哈希索引文件：文件头(40) + 哈希槽(hashSlotNum * 4) + 索引条目(indexNum * 20)。
+ * 哈希槽保存该槽最后一个索引条目的编号，条目内容为
+ * key哈希码(4) + 物理偏移量(8) + 距文件第一条索引的时间差(4，秒) + 同一槽中上一个条目的编号(4)，
+ * 同一个槽的条目组成一个从新到旧的链表。
+ * 按key查询只需读取一个哈希槽和链表上的条目，无需扫描commitLog
+ */
+public class IndexFile {
+
+    private static final int HASH_SLOT_SIZE = 4;
+    private static final int INDEX_SIZE = 20;
+    private static final int INVALID_INDEX = 0;
+
+    private final int hashSlotNum;
+    private final int indexNum;
+    private final MappedFile mappedFile;
+    private final MappedByteBuffer mappedByteBuffer;
+    private final IndexHeader indexHeader;
+
+    /**
+     * @param fileName
+     * @param hashSlotNum
+     * @param indexNum
+     * @param endPhyOffset 上一个索引文件的最后物理偏移量
+     * @param endTimestamp 上一个索引文件的最后存储时间
+     * @throws IOException
+     */
+    public IndexFile(final String fileName, final int hashSlotNum, final int indexNum,
+                     final long endPhyOffset, final long endTimestamp) throws IOException {
+        int fileTotalSize = IndexHeader.INDEX_HEADER_SIZE + (hashSlotNum * HASH_SLOT_SIZE) + (indexNum * INDEX_SIZE);
+        this.mappedFile = new MappedFile(fileName, fileTotalSize);
+        this.mappedByteBuffer = this.mappedFile.getMappedByteBuffer();
+        this.hashSlotNum = hashSlotNum;
+        this.indexNum = indexNum;
+
+        ByteBuffer byteBuffer = this.mappedByteBuffer.slice();
+        this.indexHeader = new IndexHeader(byteBuffer);
+
+        if (endPhyOffset > 0) {
+            this.indexHeader.setBeginPhyOffset(endPhyOffset);
+            this.indexHeader.setEndPhyOffset(endPhyOffset);
+        }
+
+        if (endTimestamp > 0) {
+            this.indexHeader.setBeginTimestamp(endTimestamp);
+            this.indexHeader.setEndTimestamp(endTimestamp);
+        }
+    }
+
+    public String getFileName() {
+        return this.mappedFile.getFileName();
+    }
+
+    public void load() {
+        this.indexHeader.load();
+    }
+
+    public void flush() {
+        long beginTime = System.currentTimeMillis();
+        if (this.mappedFile.hold()) {
+            this.indexHeader.updateByteBuffer();
+            this.mappedByteBuffer.force();
+            this.mappedFile.release();
+            System.out.println("flush index file elapsed time(ms) " + (System.currentTimeMillis() - beginTime));
+        }
+    }
+
+    public boolean destroy(final long intervalForcibly) {
+        return this.mappedFile.destroy(intervalForcibly);
+    }
+
+    public boolean isWriteFull() {
+        return this.indexHeader.getIndexCount() >= this.indexNum;
+    }
+
+    /**
+     * 添加一个索引条目，索引文件只有一个写线程
+     * @param key
+     * @param phyOffset 消息的物理偏移量
+     * @param storeTimestamp 消息的存储时间
+     * @return 文件已写满时返回false
+     */
+    public boolean putKey(final String key, final long phyOffset, final long storeTimestamp) {
+        if (this.indexHeader.getIndexCount() < this.indexNum) {
+            int keyHash = indexKeyHashMethod(key);
+            int slotPos = keyHash % this.hashSlotNum;
+            int absSlotPos = IndexHeader.INDEX_HEADER_SIZE + slotPos * HASH_SLOT_SIZE;
+
+            int slotValue = this.mappedByteBuffer.getInt(absSlotPos);
+            if (slotValue <= INVALID_INDEX || slotValue > this.indexHeader.getIndexCount()) {
+                slotValue = INVALID_INDEX;
+            }
+
+            // 时间差以秒为单位，4字节可以覆盖60多年
+            long timeDiff = storeTimestamp - this.indexHeader.getBeginTimestamp();
+            timeDiff = timeDiff / 1000;
+            if (this.indexHeader.getBeginTimestamp() <= 0) {
+                timeDiff = 0;
+            } else if (timeDiff > Integer.MAX_VALUE) {
+                timeDiff = Integer.MAX_VALUE;
+            } else if (timeDiff < 0) {
+                timeDiff = 0;
+            }
+
+            int absIndexPos = IndexHeader.INDEX_HEADER_SIZE + this.hashSlotNum * HASH_SLOT_SIZE
+                    + this.indexHeader.getIndexCount() * INDEX_SIZE;
+
+            this.mappedByteBuffer.putInt(absIndexPos, keyHash);
+            this.mappedByteBuffer.putLong(absIndexPos + 4, phyOffset);
+            this.mappedByteBuffer.putInt(absIndexPos + 4 + 8, (int) timeDiff);
+            this.mappedByteBuffer.putInt(absIndexPos + 4 + 8 + 4, slotValue);
+
+            // 条目写完后再更新哈希槽，读线程看到新的槽值时条目已经完整
+            this.mappedByteBuffer.putInt(absSlotPos, this.indexHeader.getIndexCount());
+
+            if (this.indexHeader.getIndexCount() <= 1) {
+                this.indexHeader.setBeginPhyOffset(phyOffset);
+                this.indexHeader.setBeginTimestamp(storeTimestamp);
+            }
+
+            if (INVALID_INDEX == slotValue) {
+                this.indexHeader.incHashSlotCount();
+            }
+            this.indexHeader.incIndexCount();
+            this.indexHeader.setEndPhyOffset(phyOffset);
+            this.indexHeader.setEndTimestamp(storeTimestamp);
+
+            return true;
+        } else {
+            System.out.println("Over index file capacity: index count = " + this.indexHeader.getIndexCount()
+                    + "; index max num = " + this.indexNum);
+        }
+
+        return false;
+    }
+
+    public int indexKeyHashMethod(final String key) {
+        int keyHash = key.hashCode();
+        int keyHashPositive = Math.abs(keyHash);
+        if (keyHashPositive < 0) {
+            keyHashPositive = 0;
+        }
+        return keyHashPositive;
+    }
+
+    /**
+     * 按key查找存储时间在[begin, end]内的消息物理偏移量，哈希冲突的结果需要调用方再次过滤
+     * @param phyOffsets 查找结果
+     * @param key
+     * @param maxNum
+     * @param begin
+     * @param end
+     */
+    public void selectPhyOffset(final List<Long> phyOffsets, final String key, final int maxNum,
+                                final long begin, final long end) {
+        if (this.mappedFile.hold()) {
+            int keyHash = indexKeyHashMethod(key);
+            int slotPos = keyHash % this.hashSlotNum;
+            int absSlotPos = IndexHeader.INDEX_HEADER_SIZE + slotPos * HASH_SLOT_SIZE;
+
+            try {
+                int slotValue = this.mappedByteBuffer.getInt(absSlotPos);
+                if (slotValue <= INVALID_INDEX || slotValue > this.indexHeader.getIndexCount()
+                        || this.indexHeader.getIndexCount() <= 1) {
+                    return;
+                }
+
+                for (int nextIndexToRead = slotValue; ; ) {
+                    if (phyOffsets.size() >= maxNum) {
+                        break;
+                    }
+
+                    int absIndexPos = IndexHeader.INDEX_HEADER_SIZE + this.hashSlotNum * HASH_SLOT_SIZE
+                            + nextIndexToRead * INDEX_SIZE;
+
+                    int keyHashRead = this.mappedByteBuffer.getInt(absIndexPos);
+                    long phyOffsetRead = this.mappedByteBuffer.getLong(absIndexPos + 4);
+                    long timeDiff = this.mappedByteBuffer.getInt(absIndexPos + 4 + 8);
+                    int prevIndexRead = this.mappedByteBuffer.getInt(absIndexPos + 4 + 8 + 4);
+
+                    if (timeDiff < 0) {
+                        break;
+                    }
+
+                    long timeRead = this.indexHeader.getBeginTimestamp() + timeDiff * 1000L;
+                    boolean timeMatched = (timeRead >= begin) && (timeRead <= end);
+
+                    if (keyHash == keyHashRead && timeMatched) {
+                        phyOffsets.add(phyOffsetRead);
+                    }
+
+                    // 链表上的条目从新到旧排列，早于查询范围时不必继续
+                    if (prevIndexRead <= INVALID_INDEX || prevIndexRead > this.indexHeader.getIndexCount()
+                            || prevIndexRead == nextIndexToRead || timeRead < begin) {
+                        break;
+                    }
+
+                    nextIndexToRead = prevIndexRead;
+                }
+            } finally {
+                this.mappedFile.release();
+            }
+        }
+    }
+
+    /**
+     * 文件的时间范围是否与[begin, end]有交集
+     * @param begin
+     * @param end
+     * @return
+     */
+    public boolean isTimeMatched(final long begin, final long end) {
+        long beginTimestamp = this.indexHeader.getBeginTimestamp();
+        long endTimestamp = this.indexHeader.getEndTimestamp();
+        return begin <= endTimestamp && end >= beginTimestamp;
+    }
+
+    public long getBeginTimestamp() {
+        return this.indexHeader.getBeginTimestamp();
+    }
+
+    public long getEndTimestamp() {
+        return this.indexHeader.getEndTimestamp();
+    }
+
+    public long getBeginPhyOffset() {
+        return this.indexHeader.getBeginPhyOffset();
+    }
+
+    public long getEndPhyOffset() {
+        return this.indexHeader.getEndPhyOffset();
+    }
+
+    public int getIndexCount() {
+        return this.indexHeader.getIndexCount();
+    }
+
+    public MappedFile getMappedFile() {
+        return mappedFile;
+    }
+}
@@ -0,0 +1,349 @@
+package com.hlf.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 消息key索引服务：按 topic#key 建立哈希索引，一个索引文件写满后创建下一个，
+ * 查询时从新到旧遍历与时间范围有交集的索引文件
+ */
+public class IndexService {
+
+    // 创建索引文件失败时的重试次数
+    private static final int MAX_TRY_IDX_CREATE = 3;
+
+    private final MessageStoreConfig messageStoreConfig;
+    private final int hashSlotNum;
+    private final int indexNum;
+    private final String storePath;
+    // 按创建时间升序排列的索引文件
+    private final ArrayList<IndexFile> indexFileList = new ArrayList<IndexFile>();
+    private final ReadWriteLock readWriteLock = new ReentrantReadWriteLock();
+    // 异常退出后删除了未完整落盘的索引文件时，需要从该物理偏移量开始重新构建索引
+    private long rebuildFromOffset = Long.MAX_VALUE;
+
+    public IndexService(final MessageStoreConfig messageStoreConfig) {
+        this(messageStoreConfig, messageStoreConfig.getStorePathIndex());
+    }
+
+    /**
+     * @param messageStoreConfig
+     * @param storePath 索引文件目录，commitLog分片时每个分片的索引在各自的目录下
+     */
+    public IndexService(final MessageStoreConfig messageStoreConfig, final String storePath) {
+        this.messageStoreConfig = messageStoreConfig;
+        this.hashSlotNum = messageStoreConfig.getMaxHashSlotNum();
+        this.indexNum = messageStoreConfig.getMaxIndexNum();
+        this.storePath = storePath;
+    }
+
+    /**
+     * 加载已有的索引文件。异常退出时，检查点之后才写入的索引文件可能没有完整落盘，直接删除，
+     * 由分发服务从这些文件的第一条消息开始重新构建
+     * @param lastExitOK 上次是否正常退出
+     * @param checkpointOffset 检查点记录的索引已落盘的分发位置
+     * @return
+     */
+    public boolean load(final boolean lastExitOK, final long checkpointOffset) {
+        File dir = new File(this.storePath);
+        File[] files = dir.listFiles();
+        if (files != null) {
+            // 文件名是创建时间，按文件名排序即按创建时间排序
+            Arrays.sort(files);
+            for (File file : files) {
+                try {
+                    IndexFile f = new IndexFile(file.getPath(), this.hashSlotNum, this.indexNum, 0, 0);
+                    f.load();
+
+                    if (!lastExitOK && f.getEndPhyOffset() > checkpointOffset) {
+                        this.rebuildFromOffset = Math.min(this.rebuildFromOffset, f.getBeginPhyOffset());
+                        f.destroy(0);
+                        continue;
+                    }
+
+                    System.out.println("load index file OK, " + f.getFileName());
+                    this.indexFileList.add(f);
+                } catch (IOException e) {
+                    System.out.println("load file " + file + " error");
+                    e.printStackTrace();
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * 删除所有索引都指向commitLog已删除部分的文件，最后一个文件正在写入，不会被删除
+     * @param offset commitLog中最小的物理偏移量
+     */
+    public void deleteExpiredFile(final long offset) {
+        List<IndexFile> files = new ArrayList<IndexFile>();
+        this.readWriteLock.readLock().lock();
+        try {
+            for (int i = 0; i < this.indexFileList.size() - 1; i++) {
+                IndexFile f = this.indexFileList.get(i);
+                if (f.getEndPhyOffset() >= offset) {
+                    break;
+                }
+                files.add(f);
+            }
+        } finally {
+            this.readWriteLock.readLock().unlock();
+        }
+
+        if (files.isEmpty()) {
+            return;
+        }
+
+        this.readWriteLock.writeLock().lock();
+        try {
+            for (IndexFile f : files) {
+                // 正在查询的文件等查询结束后再删除，下一轮重试
+                if (!f.destroy(3000)) {
+                    System.out.println("destroy index file " + f.getFileName() + " failed, retry next time");
+                    break;
+                }
+                this.indexFileList.remove(f);
+            }
+        } finally {
+            this.readWriteLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 查询 topic#key 在[begin, end]内的消息物理偏移量
+     * @param topic
+     * @param key
+     * @param maxNum
+     * @param begin
+     * @param end
+     * @return
+     */
+    public QueryOffsetResult queryOffset(String topic, String key, int maxNum, long begin, long end) {
+        List<Long> phyOffsets = new ArrayList<Long>(maxNum);
+
+        long indexLastUpdateTimestamp = 0;
+        long indexLastUpdatePhyoffset = 0;
+        try {
+            this.readWriteLock.readLock().lock();
+            if (!this.indexFileList.isEmpty()) {
+                for (int i = this.indexFileList.size(); i > 0; i--) {
+                    IndexFile f = this.indexFileList.get(i - 1);
+                    boolean lastFile = i == this.indexFileList.size();
+                    if (lastFile) {
+                        indexLastUpdateTimestamp = f.getEndTimestamp();
+                        indexLastUpdatePhyoffset = f.getEndPhyOffset();
+                    }
+
+                    if (f.isTimeMatched(begin, end)) {
+                        f.selectPhyOffset(phyOffsets, buildKey(topic, key), maxNum, begin, end);
+                    }
+
+                    if (f.getBeginTimestamp() < begin) {
+                        break;
+                    }
+
+                    if (phyOffsets.size() >= maxNum) {
+                        break;
+                    }
+                }
+            }
+        } catch (Exception e) {
+            System.out.println("queryMsg exception");
+            e.printStackTrace();
+        } finally {
+            this.readWriteLock.readLock().unlock();
+        }
+
+        return new QueryOffsetResult(phyOffsets, indexLastUpdateTimestamp, indexLastUpdatePhyoffset);
+    }
+
+    public static String buildKey(final String topic, final String key) {
+        return topic + "#" + key;
+    }
+
+    /**
+     * 为消息的每个key建立索引
+     * @param req
+     */
+    public synchronized void buildIndex(DispatchRequest req) {
+        String keys = req.getKeys();
+        if (keys == null || keys.length() == 0) {
+            return;
+        }
+
+        IndexFile indexFile = this.retryGetAndCreateIndexFile();
+        if (indexFile == null) {
+            System.out.println("build index error, stop building index");
+            return;
+        }
+
+        // 恢复后重新分发时跳过已构建过索引的消息
+        long endPhyOffset = indexFile.getEndPhyOffset();
+        if (req.getCommitLogOffset() < endPhyOffset
+                || (req.getCommitLogOffset() == endPhyOffset && (endPhyOffset > 0 || indexFile.getIndexCount() > 1))) {
+            return;
+        }
+
+        String[] keyset = keys.split(MessageConst.KEY_SEPARATOR);
+        for (String key : keyset) {
+            if (key.length() > 0) {
+                indexFile = this.putKey(indexFile, req, buildKey(req.getTopic(), key));
+                if (indexFile == null) {
+                    System.out.println("putKey error commitlog " + req.getCommitLogOffset() + " key " + key);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * 添加索引，当前文件写满时切换到新文件
+     * @param indexFile
+     * @param req
+     * @param idxKey
+     * @return 最终写入的索引文件，创建新文件失败时返回null
+     */
+    private IndexFile putKey(IndexFile indexFile, DispatchRequest req, String idxKey) {
+        for (boolean ok = indexFile.putKey(idxKey, req.getCommitLogOffset(), req.getStoreTimestamp()); !ok; ) {
+            System.out.println("Index file [" + indexFile.getFileName() + "] is full, trying to create another one");
+
+            indexFile = this.retryGetAndCreateIndexFile();
+            if (null == indexFile) {
+                return null;
+            }
+
+            ok = indexFile.putKey(idxKey, req.getCommitLogOffset(), req.getStoreTimestamp());
+        }
+
+        return indexFile;
+    }
+
+    /**
+     * 获取最后一个索引文件，创建失败时重试
+     * @return
+     */
+    public IndexFile retryGetAndCreateIndexFile() {
+        IndexFile indexFile = null;
+
+        for (int times = 0; null == indexFile && times < MAX_TRY_IDX_CREATE; times++) {
+            indexFile = this.getAndCreateLastIndexFile();
+            if (null != indexFile) {
+                break;
+            }
+
+            try {
+                System.out.println("Tried to create index file " + times + " times");
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        return indexFile;
+    }
+
+    /**
+     * 获取最后一个索引文件，不存在或已写满时创建新文件，写满的文件在后台线程刷盘
+     * @return
+     */
+    public IndexFile getAndCreateLastIndexFile() {
+        IndexFile indexFile = null;
+        IndexFile prevIndexFile = null;
+        long lastUpdateEndPhyOffset = 0;
+        long lastUpdateIndexTimestamp = 0;
+
+        this.readWriteLock.readLock().lock();
+        try {
+            if (!this.indexFileList.isEmpty()) {
+                IndexFile tmp = this.indexFileList.get(this.indexFileList.size() - 1);
+                if (!tmp.isWriteFull()) {
+                    indexFile = tmp;
+                } else {
+                    lastUpdateEndPhyOffset = tmp.getEndPhyOffset();
+                    lastUpdateIndexTimestamp = tmp.getEndTimestamp();
+                    prevIndexFile = tmp;
+                }
+            }
+        } finally {
+            this.readWriteLock.readLock().unlock();
+        }
+
+        if (indexFile == null) {
+            try {
+                String fileName = this.storePath + File.separator
+                        + new SimpleDateFormat("yyyyMMddHHmmssSSS").format(new Date());
+                indexFile = new IndexFile(fileName, this.hashSlotNum, this.indexNum,
+                        lastUpdateEndPhyOffset, lastUpdateIndexTimestamp);
+                this.readWriteLock.writeLock().lock();
+                try {
+                    this.indexFileList.add(indexFile);
+                } finally {
+                    this.readWriteLock.writeLock().unlock();
+                }
+            } catch (IOException e) {
+                System.out.println("getLastIndexFile exception ");
+                e.printStackTrace();
+            }
+
+            if (indexFile != null) {
+                final IndexFile flushThisFile = prevIndexFile;
+                Thread flushThread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        IndexService.this.flush(flushThisFile);
+                    }
+                }, "FlushIndexFileThread");
+
+                flushThread.setDaemon(true);
+                flushThread.start();
+            }
+        }
+
+        return indexFile;
+    }
+
+    public void flush(final IndexFile f) {
+        if (null == f) {
+            return;
+        }
+
+        f.flush();
+    }
+
+    /**
+     * 把所有索引文件刷盘
+     */
+    public void flushAll() {
+        this.readWriteLock.readLock().lock();
+        try {
+            for (IndexFile f : this.indexFileList) {
+                f.flush();
+            }
+        } finally {
+            this.readWriteLock.readLock().unlock();
+        }
+    }
+
+    public void shutdown() {
+        this.flushAll();
+    }
+
+    public long getRebuildFromOffset() {
+        return rebuildFromOffset;
+    }
+
+    public MessageStoreConfig getMessageStoreConfig() {
+        return messageStoreConfig;
+    }
+}
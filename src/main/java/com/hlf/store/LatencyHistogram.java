@@ -0,0 +1,98 @@
+package com.hlf.store;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 固定分桶的延迟直方图，按微秒以2的幂分桶：第0个桶为[0, 1)微秒，第i个桶为[2^(i-1), 2^i)微秒，
+ * 最后一个桶包含所有更大的值。每个桶是一个LongAdder，多个写线程记录时不加锁、不分配对象
+ */
+public class LatencyHistogram {
+
+    // 桶的数量，倒数第二个桶的上界为2^24微秒(约16秒)
+    public static final int BUCKET_NUM = 26;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKET_NUM];
+    // 上次取值之后记录到的最大延迟(微秒)
+    private final LongAccumulator maxMicros = new LongAccumulator(Math::max, 0);
+
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKET_NUM; i++) {
+            this.buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * 记录一次延迟
+     * @param costNanos 耗时(纳秒)
+     */
+    public void record(final long costNanos) {
+        long micros = Math.max(0, costNanos / 1000);
+        this.buckets[bucketIndex(micros)].increment();
+        this.maxMicros.accumulate(micros);
+    }
+
+    /**
+     * 延迟所在的桶
+     * @param micros
+     * @return
+     */
+    public static int bucketIndex(final long micros) {
+        return Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKET_NUM - 1);
+    }
+
+    /**
+     * 第index个桶的上界(微秒，不含)，最后一个桶没有上界，返回Long.MAX_VALUE
+     * @param index
+     * @return
+     */
+    public static long bucketUpperBoundMicros(final int index) {
+        return index >= BUCKET_NUM - 1 ? Long.MAX_VALUE : 1L << index;
+    }
+
+    /**
+     * 各桶的累计次数
+     * @return
+     */
+    public long[] bucketCounts() {
+        long[] counts = new long[BUCKET_NUM];
+        for (int i = 0; i < BUCKET_NUM; i++) {
+            counts[i] = this.buckets[i].sum();
+        }
+        return counts;
+    }
+
+    /**
+     * 取出上次取值之后记录到的最大延迟并清零
+     * @return 最大延迟(微秒)
+     */
+    public long getThenResetMaxMicros() {
+        return this.maxMicros.getThenReset();
+    }
+
+    /**
+     * 按各桶的次数估算分位数，返回该分位所在桶的上界
+     * @param counts 各桶的次数
+     * @param percentile 分位，如0.99
+     * @return 延迟(微秒)，没有记录时返回0
+     */
+    public static long percentileMicros(final long[] counts, final double percentile) {
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(total * percentile);
+        long sum = 0;
+        for (int i = 0; i < counts.length; i++) {
+            sum += counts[i];
+            if (sum >= rank) {
+                return bucketUpperBoundMicros(i);
+            }
+        }
+        return bucketUpperBoundMicros(counts.length - 1);
+    }
+}
@@ -4,33 +4,38 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * 内存映射文件
  */
-public class MappedFile {
-
-    // 操作系统每页大小，默认4K
-    public static final int OS_PAGE_SIZE = 1024 * 4;// 页大小4KB
-    // 文件名
-    private String fileName;
-    // 物理文件
-    private File file;
-    // 文件大小
-    private int fileSize;
-    // 文件通道
-    private FileChannel fileChannel;
-    // mmap对应的内存映射ByteBuffer
-    private MappedByteBuffer mappedByteBuffer;
-
-    // 当前内存映射文件中的写指针
-    private final AtomicInteger wrotePosition = new AtomicInteger(0);
-    // 文件的起始偏移量
-    private long fileFromOffset;
+public class MappedFile extends CommitLogSegment {
+
+    // 当前已映射的虚拟内存总量
+    private static final AtomicLong TOTAL_MAPPED_VIRTUAL_MEMORY = new AtomicLong(0);
+    // 当前已映射的文件数
+    private static final AtomicLong TOTAL_MAPPED_FILES = new AtomicLong(0);
+    // 释放堆外内存的方法：JDK9及以上为Unsafe.invokeCleaner(ByteBuffer)，JDK8上为Cleaner.clean()，都不可用时为null
+    private static final MethodHandle BUFFER_CLEANER = findBufferCleaner();
+    // mmap对应的内存映射ByteBuffer，纳入映射预算的文件被解除映射后为null，再次访问时重新映射
+    private volatile MappedByteBuffer mappedByteBuffer;
+    // 启用堆外内存池时，消息先写入该堆外内存，再提交到FileChannel
+    private volatile ByteBuffer writeBuffer = null;
+    // 堆外内存池
+    private TransientStorePool transientStorePool = null;
+    // 所属的映射预算，为null时文件一直保持映射
+    private volatile MappedFileBudget mappedFileBudget = null;
+    // 最近一次读取的时间，映射预算据此解除最久未读取的文件的映射
+    private volatile long lastReadTimestamp = System.currentTimeMillis();
 
     /**
      * 构造方法，创建MappedFile
@@ -42,6 +47,23 @@ public class MappedFile {
         init(fileName, fileSize);
     }
 
+    /**
+     * 构造方法，创建使用堆外内存池写入的MappedFile，池中没有可用内存时退化为直接写内存映射
+     * @param fileName
+     * @param fileSize
+     * @param transientStorePool
+     * @throws IOException
+     */
+    public MappedFile(String fileName, int fileSize, TransientStorePool transientStorePool) throws IOException {
+        init(fileName, fileSize);
+        this.writeBuffer = transientStorePool.borrowBuffer();
+        if (this.writeBuffer != null) {
+            this.transientStorePool = transientStorePool;
+        } else {
+            System.out.println("no available buffer in TransientStorePool, write to mmap directly: " + fileName);
+        }
+    }
+
     /**
      * 初始化MappedFile
      * @param fileName
@@ -59,6 +81,8 @@ public class MappedFile {
         try {
             this.fileChannel = new RandomAccessFile(this.file, "rw").getChannel();
             this.mappedByteBuffer = this.fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+            TOTAL_MAPPED_VIRTUAL_MEMORY.addAndGet(fileSize);
+            TOTAL_MAPPED_FILES.incrementAndGet();
             System.out.println("启用mmap");
 
             ok = true;
@@ -73,23 +97,69 @@ public class MappedFile {
         }
     }
 
+    /**
+     * 查找释放堆外内存的方法。JDK9起Cleaner不再可以直接访问，改用Unsafe.invokeCleaner
+     * @return 不可用时返回null，此时映射区域只能等待GC回收
+     */
+    private static MethodHandle findBufferCleaner() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return MethodHandles.lookup().unreflect(invokeCleaner).bindTo(theUnsafe.get(null));
+        } catch (Throwable e) {
+            // JDK8没有invokeCleaner，使用DirectBuffer.cleaner().clean()
+        }
 
-    public static void ensureDirOk(final String dirName) {
-        if (dirName != null) {
-            File f = new File(dirName);
-            if (!f.exists()) {
-                boolean result = f.mkdirs();
-                System.out.println(dirName + " mkdir " + (result ? "OK" : "Failed"));
-            }
+        try {
+            Class<?> directBufferClass = Class.forName("sun.nio.ch.DirectBuffer");
+            Method cleaner = directBufferClass.getMethod("cleaner");
+            Method clean = cleaner.getReturnType().getMethod("clean");
+            MethodHandle cleanerHandle = MethodHandles.lookup().unreflect(cleaner)
+                    .asType(MethodType.methodType(Object.class, ByteBuffer.class));
+            MethodHandle cleanHandle = MethodHandles.lookup().unreflect(clean)
+                    .asType(MethodType.methodType(void.class, Object.class));
+            return MethodHandles.filterArguments(cleanHandle, 0, cleanerHandle);
+        } catch (Throwable e) {
+            System.out.println("buffer cleaner not available, mapped files will be unmapped by GC");
+            return null;
         }
     }
 
+    /**
+     * 立即解除内存映射，不等待GC回收MappedByteBuffer。调用后再访问该buffer会导致JVM崩溃，
+     * 必须确保没有任何读写方仍在使用
+     * @param buffer
+     */
+    public static void clean(final ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect() || buffer.capacity() == 0 || BUFFER_CLEANER == null) {
+            return;
+        }
+
+        try {
+            BUFFER_CLEANER.invoke(buffer);
+        } catch (Throwable e) {
+            System.out.println("clean buffer error");
+            e.printStackTrace();
+        }
+    }
+
+    public static long getTotalMappedVirtualMemory() {
+        return TOTAL_MAPPED_VIRTUAL_MEMORY.get();
+    }
+
+    public static long getTotalMappedFiles() {
+        return TOTAL_MAPPED_FILES.get();
+    }
+
     /**
      * 往文件中追加消息
      * @param msgInner
      * @param cb
      * @return
      */
+    @Override
     public AppendMessageResult appendMessagesInner(final MessageExtBrokerInner msgInner, final AppendMessageCallback cb) {
         assert msgInner != null;
         assert cb != null;
@@ -97,10 +167,10 @@ public class MappedFile {
         // 获取内存映射文件的当前写指针
         int currentPos = this.wrotePosition.get();
         if (currentPos < this.fileSize) {
-            ByteBuffer byteBuffer = this.mappedByteBuffer.slice();
+            ByteBuffer byteBuffer = this.writeSlice();
             byteBuffer.position(currentPos);
             AppendMessageResult result = cb.doAppend(this.fileFromOffset, byteBuffer, this.fileSize - currentPos, msgInner);
-            this.wrotePosition.addAndGet(result.getWroteBytes());
+            this.publishedPosition.set(this.wrotePosition.addAndGet(result.getWroteBytes()));
             return result;
         }
 
@@ -108,55 +178,520 @@ public class MappedFile {
 
     }
 
-    public long getFileFromOffset() {
-        return fileFromOffset;
+    /**
+     * 追加原始数据，用于消费队列等定长条目的索引文件
+     * @param data
+     * @return 剩余空间不足时返回false
+     */
+    @Override
+    public boolean appendMessage(final byte[] data) {
+        int currentPos = this.wrotePosition.get();
+        if ((currentPos + data.length) <= this.fileSize) {
+            ByteBuffer byteBuffer = this.writeSlice();
+            byteBuffer.position(currentPos);
+            byteBuffer.put(data);
+            this.publishedPosition.set(this.wrotePosition.addAndGet(data.length));
+            return true;
+        }
+
+        return false;
     }
 
-    public void setFileFromOffset(long fileFromOffset) {
-        this.fileFromOffset = fileFromOffset;
+    /**
+     * 往文件中批量追加消息，整批消息只做一次空间检查、一次写入
+     * @param msgs
+     * @param cb
+     * @return
+     */
+    @Override
+    public AppendMessageResult appendMessages(final List<MessageExtBrokerInner> msgs, final AppendMessageCallback cb) {
+        assert msgs != null;
+        assert cb != null;
+
+        int currentPos = this.wrotePosition.get();
+        if (currentPos < this.fileSize) {
+            ByteBuffer byteBuffer = this.writeSlice();
+            byteBuffer.position(currentPos);
+            AppendMessageResult result = cb.doAppend(this.fileFromOffset, byteBuffer, this.fileSize - currentPos, msgs);
+            this.publishedPosition.set(this.wrotePosition.addAndGet(result.getWroteBytes()));
+            return result;
+        }
+
+        return new AppendMessageResult(AppendMessageStatus.UNKNOWN_ERROR);
     }
 
-    public String getFileName() {
-        return fileName;
+    /**
+     * 多个写线程并发追加消息，无需全局锁：
+     * 1.在写线程私有的缓冲区中编码消息
+     * 2.通过CAS移动写指针，为消息预留空间
+     * 3.各写线程并行地把消息拷贝到各自预留的空间
+     * 4.按预留顺序推进提交水位，保证水位之前的区域都已写完
+     * @param msgInner
+     * @param cb
+     * @return
+     */
+    @Override
+    public AppendMessageResult appendMessagesConcurrently(final MessageExtBrokerInner msgInner, final AppendMessageCallback cb) {
+        assert msgInner != null;
+        assert cb != null;
+
+        if (cb.isDirectEncode()) {
+            return this.writeConcurrently(msgInner, null, cb);
+        }
+        ByteBuffer encoded = cb.encode(msgInner);
+        if (encoded == null) {
+            return new AppendMessageResult(AppendMessageCallback.lengthExceededStatus(cb.calMsgLength(msgInner)));
+        }
+        return this.appendEncodedConcurrently(encoded, cb);
     }
 
-    public void setFileName(String fileName) {
-        this.fileName = fileName;
+    /**
+     * 并发批量追加消息，整批消息只通过一次CAS预留空间
+     * @param msgs
+     * @param cb
+     * @return
+     */
+    @Override
+    public AppendMessageResult appendMessagesConcurrently(final List<MessageExtBrokerInner> msgs, final AppendMessageCallback cb) {
+        assert msgs != null;
+        assert cb != null;
+
+        if (cb.isDirectEncode()) {
+            return this.writeConcurrently(null, msgs, cb);
+        }
+        ByteBuffer encoded = cb.encode(msgs);
+        if (encoded == null) {
+            return new AppendMessageResult(AppendMessageCallback.lengthExceededStatus(cb.calMsgLength(msgs)));
+        }
+        return this.appendEncodedConcurrently(encoded, cb);
+    }
+
+    private AppendMessageResult appendEncodedConcurrently(final ByteBuffer encoded, final AppendMessageCallback cb) {
+        final int msgLength = encoded.limit();
+
+        final int currentPos = this.reserve(msgLength, cb);
+        if (currentPos < 0) {
+            return new AppendMessageResult(AppendMessageStatus.END_OF_FILE);
+        }
+
+        ByteBuffer byteBuffer = this.writeSlice();
+        byteBuffer.position(currentPos);
+        boolean ok = false;
+        try {
+            AppendMessageResult result = cb.doWrite(this.fileFromOffset, byteBuffer, encoded);
+            ok = true;
+            return result;
+        } finally {
+            if (!ok) {
+                this.fillFailedWrite(currentPos, msgLength, cb);
+            }
+            this.publish(currentPos, currentPos + msgLength);
+        }
+    }
+
+    /**
+     * 先计算消息长度预留空间，再把消息直接编码到预留空间中，不经过写线程私有的缓冲区
+     * @param msgInner 单条写入时的消息
+     * @param msgs 批量写入时的消息
+     * @param cb
+     * @return
+     */
+    private AppendMessageResult writeConcurrently(final MessageExtBrokerInner msgInner, final List<MessageExtBrokerInner> msgs,
+                                                  final AppendMessageCallback cb) {
+        final int msgLength = msgInner != null ? cb.calMsgLength(msgInner) : cb.calMsgLength(msgs);
+        if (msgLength < 0) {
+            return new AppendMessageResult(AppendMessageCallback.lengthExceededStatus(msgLength));
+        }
+
+        final int currentPos = this.reserve(msgLength, cb);
+        if (currentPos < 0) {
+            return new AppendMessageResult(AppendMessageStatus.END_OF_FILE);
+        }
+
+        ByteBuffer byteBuffer = this.writeSlice();
+        byteBuffer.position(currentPos);
+        boolean ok = false;
+        try {
+            AppendMessageResult result = msgInner != null ? cb.doWrite(this.fileFromOffset, byteBuffer, msgInner)
+                    : cb.doWrite(this.fileFromOffset, byteBuffer, msgs);
+            ok = true;
+            return result;
+        } finally {
+            // 无论编码是否成功都要推进水位，否则之后的写线程会一直等待；失败时先用填充记录占满预留空间
+            if (!ok) {
+                this.fillFailedWrite(currentPos, msgLength, cb);
+            }
+            this.publish(currentPos, currentPos + msgLength);
+        }
     }
 
-    public File getFile() {
-        return file;
+    @Override
+    protected void appendBlank(final int pos, final AppendMessageCallback cb) {
+        ByteBuffer byteBuffer = this.writeSlice();
+        byteBuffer.position(pos);
+        cb.doAppendBlank(this.fileFromOffset, byteBuffer, this.fileSize - pos);
     }
 
-    public void setFile(File file) {
-        this.file = file;
+    @Override
+    protected void appendFiller(final int pos, final int length, final AppendMessageCallback cb) {
+        ByteBuffer byteBuffer = this.writeSlice();
+        byteBuffer.position(pos);
+        cb.doAppendFiller(byteBuffer, length);
     }
 
-    public int getFileSize() {
-        return fileSize;
+    /**
+     * 写入区域：使用堆外内存时为堆外内存，否则为内存映射区域
+     * @return
+     */
+    private ByteBuffer writeSlice() {
+        return this.writeBuffer != null ? this.writeBuffer.slice() : this.mappedBuffer().slice();
     }
 
-    public void setFileSize(int fileSize) {
-        this.fileSize = fileSize;
+    /**
+     * 将堆外内存中已写完的数据提交到FileChannel
+     * @param commitLeastPages 至少提交的页数，为0时只要有未提交的数据就提交
+     * @return 提交后的位置
+     */
+    @Override
+    public int commit(final int commitLeastPages) {
+        if (this.transientStorePool == null) {
+            // 直接写内存映射的文件无需提交
+            return this.publishedPosition.get();
+        }
+
+        if (this.writeBuffer != null && this.isAbleToCommit(commitLeastPages)) {
+            this.commit0();
+        }
+
+        // 所有数据都已提交，归还堆外内存
+        if (this.writeBuffer != null && this.fileSize == this.committedPosition.get()) {
+            this.returnWriteBuffer();
+        }
+
+        return this.committedPosition.get();
+    }
+
+    /**
+     * 归还借用的堆外内存，之后不能再通过堆外内存写入该文件。
+     * 文件写满并全部提交、文件被销毁或者commitLog停止时调用，调用前数据必须已经提交到FileChannel
+     */
+    public synchronized void returnWriteBuffer() {
+        ByteBuffer buffer = this.writeBuffer;
+        this.writeBuffer = null;
+        if (buffer != null) {
+            this.transientStorePool.returnBuffer(buffer);
+        }
+    }
+
+    private void commit0() {
+        int writePos = this.publishedPosition.get();
+        int lastCommittedPosition = this.committedPosition.get();
+
+        if (writePos > lastCommittedPosition) {
+            try {
+                ByteBuffer byteBuffer = this.writeBuffer.slice();
+                byteBuffer.position(lastCommittedPosition);
+                byteBuffer.limit(writePos);
+                long position = lastCommittedPosition;
+                while (byteBuffer.hasRemaining()) {
+                    position += this.fileChannel.write(byteBuffer, position);
+                }
+                this.committedPosition.set(writePos);
+            } catch (Throwable e) {
+                System.out.println("Error occurred when commit data to FileChannel.");
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private boolean isAbleToCommit(final int commitLeastPages) {
+        int commit = this.committedPosition.get();
+        int write = this.publishedPosition.get();
+
+        if (this.isFull()) {
+            return write > commit;
+        }
+
+        if (commitLeastPages > 0) {
+            return ((write / OS_PAGE_SIZE) - (commit / OS_PAGE_SIZE)) >= commitLeastPages;
+        }
+
+        return write > commit;
     }
 
-    public FileChannel getFileChannel() {
-        return fileChannel;
+    /**
+     * 通过FileChannel写入的数据用FileChannel刷盘，否则刷内存映射
+     * @throws IOException
+     */
+    @Override
+    protected void force() throws IOException {
+        if (this.transientStorePool != null) {
+            this.fileChannel.force(false);
+        } else {
+            this.mappedBuffer().force();
+        }
     }
 
-    public void setFileChannel(FileChannel fileChannel) {
-        this.fileChannel = fileChannel;
+    /**
+     * 读取文件中[pos, pos + size)的数据，返回映射区域的只读切片，不拷贝数据。
+     * 返回结果持有文件的引用，文件被删除时切片仍然有效，直到调用方release
+     * @param pos 文件内的相对位置
+     * @param size
+     * @return 数据还不可读或文件已关闭时返回null
+     */
+    @Override
+    public SelectMappedBufferResult selectMappedBuffer(int pos, int size) {
+        int readPosition = getReadPosition();
+        if ((pos + size) <= readPosition) {
+            if (this.hold()) {
+                MappedByteBuffer mappedBuffer = this.readMappedBuffer();
+                if (mappedBuffer == null) {
+                    this.release();
+                    return null;
+                }
+                ByteBuffer byteBuffer = mappedBuffer.slice();
+                byteBuffer.position(pos);
+                ByteBuffer byteBufferNew = byteBuffer.slice();
+                byteBufferNew.limit(size);
+                return new SelectMappedBufferResult(this.fileFromOffset + pos, byteBufferNew.asReadOnlyBuffer(), size, this);
+            } else {
+                System.out.println("matched, but hold failed, request pos: " + pos + ", fileFromOffset: " + this.fileFromOffset);
+            }
+        } else {
+            System.out.println("selectMappedBuffer request pos invalid, request pos: " + pos + ", size: " + size
+                    + ", fileFromOffset: " + this.fileFromOffset);
+        }
+
+        return null;
     }
 
+    /**
+     * 读取文件中从pos到当前可读位置的所有数据
+     * @param pos 文件内的相对位置
+     * @return
+     */
+    @Override
+    public SelectMappedBufferResult selectMappedBuffer(int pos) {
+        int readPosition = getReadPosition();
+        if (pos < readPosition && pos >= 0) {
+            if (this.hold()) {
+                MappedByteBuffer mappedBuffer = this.readMappedBuffer();
+                if (mappedBuffer == null) {
+                    this.release();
+                    return null;
+                }
+                ByteBuffer byteBuffer = mappedBuffer.slice();
+                byteBuffer.position(pos);
+                int size = readPosition - pos;
+                ByteBuffer byteBufferNew = byteBuffer.slice();
+                byteBufferNew.limit(size);
+                return new SelectMappedBufferResult(this.fileFromOffset + pos, byteBufferNew.asReadOnlyBuffer(), size, this);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * 引用全部释放后解除内存映射，此时已没有读取方持有该文件的切片
+     * @param currentRef
+     * @return
+     */
+    @Override
+    public boolean cleanup(final long currentRef) {
+        if (this.isAvailable()) {
+            System.out.println("this file[REF:" + currentRef + "] " + this.fileName + " have not shutdown, stop unmapping.");
+            return false;
+        }
+
+        if (this.isCleanupOver()) {
+            System.out.println("this file[REF:" + currentRef + "] " + this.fileName + " have cleanup, do not do it again.");
+            return true;
+        }
+
+        MappedByteBuffer buffer = this.mappedByteBuffer;
+        this.mappedByteBuffer = null;
+        if (buffer != null) {
+            clean(buffer);
+            TOTAL_MAPPED_VIRTUAL_MEMORY.addAndGet(this.fileSize * (-1));
+            TOTAL_MAPPED_FILES.decrementAndGet();
+        }
+        if (this.mappedFileBudget != null) {
+            this.mappedFileBudget.onDestroyed(this, buffer != null);
+        }
+        // 还没有全部提交的文件被销毁时，归还借用的堆外内存
+        this.returnWriteBuffer();
+        System.out.println("unmap file[REF:" + currentRef + "] " + this.fileName + " OK");
+        return true;
+    }
+
+    /**
+     * 预热文件：每个OS_PAGE_SIZE页写入一个0，提前触发缺页中断，
+     * 每写满pages页刷一次盘，避免预热结束后大量脏页集中回写
+     * @param pages
+     */
+    @Override
+    public void warmMappedFile(int pages) {
+        long beginTime = System.currentTimeMillis();
+        MappedByteBuffer mappedBuffer = this.mappedBuffer();
+        ByteBuffer byteBuffer = mappedBuffer.slice();
+        int flush = 0;
+        for (int i = 0, j = 0; i < this.fileSize; i += OS_PAGE_SIZE, j++) {
+            byteBuffer.put(i, (byte) 0);
+            if ((i / OS_PAGE_SIZE) - (flush / OS_PAGE_SIZE) >= pages) {
+                flush = i;
+                mappedBuffer.force();
+            }
+
+            // 让出CPU，避免长时间的循环导致GC无法进入安全点
+            if (j % 1000 == 0) {
+                try {
+                    Thread.sleep(0);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        mappedBuffer.force();
+        System.out.println("mapped file warm-up done. mappedFile=" + this.getFileName()
+                + ", costTime=" + (System.currentTimeMillis() - beginTime));
+    }
+
+    /**
+     * 可读取的位置：直接写内存映射时为提交水位，使用堆外内存时为已提交到FileChannel的位置
+     * @return
+     */
+    @Override
+    public int getReadPosition() {
+        return this.transientStorePool == null ? this.publishedPosition.get() : this.committedPosition.get();
+    }
+
+    /**
+     * 内存映射区域本身就是整个文件的视图。纳入映射预算的文件在扫描期间持有引用，防止被解除映射
+     * @return
+     */
+    @Override
+    public ByteBuffer scanBuffer() {
+        if (this.mappedFileBudget != null) {
+            this.hold();
+        }
+        return this.mappedBuffer().slice();
+    }
+
+    @Override
+    public void releaseScanBuffer() {
+        if (this.mappedFileBudget != null) {
+            this.release();
+        }
+    }
+
+    /**
+     * 读取方访问映射区域，记录读取时间，已被解除映射时重新映射。调用方必须已持有引用
+     * @return 重新映射失败时返回null
+     */
+    private MappedByteBuffer readMappedBuffer() {
+        long now = System.currentTimeMillis();
+        if (this.lastReadTimestamp != now) {
+            this.lastReadTimestamp = now;
+        }
+        return this.mappedBuffer();
+    }
+
+    /**
+     * 当前的映射区域，已被映射预算解除映射时重新映射。
+     * 重新映射后通知预算，可能解除其他文件的映射，因此不能在持有文件锁时通知
+     * @return 重新映射失败时返回null
+     */
+    private MappedByteBuffer mappedBuffer() {
+        MappedByteBuffer buffer = this.mappedByteBuffer;
+        if (buffer != null) {
+            return buffer;
+        }
+
+        synchronized (this) {
+            buffer = this.mappedByteBuffer;
+            if (buffer != null) {
+                return buffer;
+            }
+            if (this.isCleanupOver()) {
+                return null;
+            }
+            try {
+                buffer = this.fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, this.fileSize);
+            } catch (IOException e) {
+                System.out.println("remap file " + this.fileName + " failed");
+                e.printStackTrace();
+                return null;
+            }
+            this.mappedByteBuffer = buffer;
+            TOTAL_MAPPED_VIRTUAL_MEMORY.addAndGet(this.fileSize);
+            TOTAL_MAPPED_FILES.incrementAndGet();
+        }
+
+        if (this.mappedFileBudget != null) {
+            this.mappedFileBudget.onRemapped(this);
+        }
+        return buffer;
+    }
+
+    /**
+     * 是否可以解除映射：文件已写满并全部刷盘(之后不会再有写入和刷盘访问映射区域)，且未关闭
+     * @return
+     */
+    boolean isAbleToUnmap() {
+        return this.mappedByteBuffer != null && this.isAvailable() && this.writeBuffer == null
+                && this.flushedPosition.get() == this.fileSize;
+    }
+
+    /**
+     * 没有读取方持有引用时解除映射。hold()与该方法使用同一把锁，
+     * 因此解除映射之后持有引用的读取方一定能看到映射已解除，并在访问前重新映射
+     * @return 是否解除了映射
+     */
+    synchronized boolean unmapIfIdle() {
+        if (!this.isAbleToUnmap() || this.getRefCount() != 1) {
+            return false;
+        }
+
+        MappedByteBuffer buffer = this.mappedByteBuffer;
+        this.mappedByteBuffer = null;
+        clean(buffer);
+        TOTAL_MAPPED_VIRTUAL_MEMORY.addAndGet(this.fileSize * (-1));
+        TOTAL_MAPPED_FILES.decrementAndGet();
+        if (this.mappedFileBudget != null) {
+            this.mappedFileBudget.onUnmapped(this);
+        }
+        return true;
+    }
+
+    /**
+     * 纳入映射预算
+     * @param mappedFileBudget
+     * @return 当前是否处于映射状态
+     */
+    synchronized boolean setMappedFileBudget(final MappedFileBudget mappedFileBudget) {
+        this.mappedFileBudget = mappedFileBudget;
+        return this.mappedByteBuffer != null;
+    }
+
+    public long getLastReadTimestamp() {
+        return lastReadTimestamp;
+    }
+
+    public boolean isMapped() {
+        return this.mappedByteBuffer != null;
+    }
+
+    /**
+     * 纳入映射预算的文件随时可能被解除映射，返回的buffer只能在持有引用期间使用
+     * @return
+     */
     public MappedByteBuffer getMappedByteBuffer() {
-        return mappedByteBuffer;
+        return this.mappedBuffer();
     }
 
     public void setMappedByteBuffer(MappedByteBuffer mappedByteBuffer) {
         this.mappedByteBuffer = mappedByteBuffer;
     }
-
-    public AtomicInteger getWrotePosition() {
-        return wrotePosition;
-    }
 }
@@ -0,0 +1,119 @@
+package com.hlf.store;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 内存映射预算：限制纳入预算的文件映射的虚拟内存总量，避免保留大量历史文件时映射数超过vm.max_map_count。
+ * 每次建立映射后检查总量，超出上限时按最近读取时间(LRU)解除已写满并刷盘、且没有读取方持有引用的文件的映射，
+ * 被解除映射的文件在下次读取时重新映射
+ */
+public class MappedFileBudget {
+
+    // 虚拟内存上限(字节)，0表示不限制
+    private final long maxMappedVirtualMemory;
+    // 纳入预算的文件
+    private final Set<MappedFile> mappedFiles = ConcurrentHashMap.newKeySet();
+    // 纳入预算的文件当前映射的虚拟内存
+    private final AtomicLong mappedVirtualMemory = new AtomicLong(0);
+    // 累计解除映射的次数
+    private final AtomicLong unmapTimes = new AtomicLong(0);
+    // 累计重新映射的次数
+    private final AtomicLong remapTimes = new AtomicLong(0);
+
+    public MappedFileBudget(final long maxMappedVirtualMemory) {
+        this.maxMappedVirtualMemory = maxMappedVirtualMemory;
+    }
+
+    /**
+     * 文件纳入预算，之后该文件建立和解除映射都通知预算
+     * @param mappedFile
+     */
+    public void register(final MappedFile mappedFile) {
+        if (this.mappedFiles.add(mappedFile)) {
+            if (mappedFile.setMappedFileBudget(this)) {
+                this.mappedVirtualMemory.addAndGet(mappedFile.getFileSize());
+            }
+            this.unmapIfOverBudget();
+        }
+    }
+
+    /**
+     * 被解除映射的文件重新映射后调用，调用方不能持有任何文件的锁
+     * @param mappedFile
+     */
+    void onRemapped(final MappedFile mappedFile) {
+        this.mappedVirtualMemory.addAndGet(mappedFile.getFileSize());
+        this.remapTimes.incrementAndGet();
+        this.unmapIfOverBudget();
+    }
+
+    /**
+     * 文件因超出预算被解除映射后调用
+     * @param mappedFile
+     */
+    void onUnmapped(final MappedFile mappedFile) {
+        this.mappedVirtualMemory.addAndGet(-mappedFile.getFileSize());
+        this.unmapTimes.incrementAndGet();
+    }
+
+    /**
+     * 文件关闭后调用，移出预算
+     * @param mappedFile
+     * @param mapped 关闭前是否处于映射状态
+     */
+    void onDestroyed(final MappedFile mappedFile, final boolean mapped) {
+        if (this.mappedFiles.remove(mappedFile) && mapped) {
+            this.mappedVirtualMemory.addAndGet(-mappedFile.getFileSize());
+        }
+    }
+
+    /**
+     * 超出上限时，按最近读取时间从早到晚解除可以解除的文件的映射，直到不超过上限。
+     * 所有文件都在使用时允许暂时超出上限
+     */
+    private synchronized void unmapIfOverBudget() {
+        if (this.maxMappedVirtualMemory <= 0 || this.mappedVirtualMemory.get() <= this.maxMappedVirtualMemory) {
+            return;
+        }
+
+        List<MappedFile> candidates = new ArrayList<MappedFile>();
+        for (MappedFile mappedFile : this.mappedFiles) {
+            if (mappedFile.isAbleToUnmap()) {
+                candidates.add(mappedFile);
+            }
+        }
+        candidates.sort(Comparator.comparingLong(MappedFile::getLastReadTimestamp));
+
+        for (MappedFile mappedFile : candidates) {
+            if (this.mappedVirtualMemory.get() <= this.maxMappedVirtualMemory) {
+                break;
+            }
+            mappedFile.unmapIfIdle();
+        }
+    }
+
+    public long getMaxMappedVirtualMemory() {
+        return maxMappedVirtualMemory;
+    }
+
+    public long getMappedVirtualMemory() {
+        return mappedVirtualMemory.get();
+    }
+
+    public int getMappedFileCount() {
+        return mappedFiles.size();
+    }
+
+    public long getUnmapTimes() {
+        return unmapTimes.get();
+    }
+
+    public long getRemapTimes() {
+        return remapTimes.get();
+    }
+}
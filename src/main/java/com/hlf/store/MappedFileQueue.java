@@ -0,0 +1,523 @@
+package com.hlf.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 文件队列，由多个大小相同的文件组成(默认为内存映射文件，也可以使用FileChannel读写)，
+ * 每个文件以其起始物理偏移量(fileFromOffset)命名，写满后自动滚动到下一个文件
+ */
+public class MappedFileQueue {
+
+    // 存储目录
+    private final String storePath;
+    // 每个文件的大小
+    private final int mappedFileSize;
+    // 按fileFromOffset升序排列的文件列表
+    private final CopyOnWriteArrayList<CommitLogSegment> mappedFiles = new CopyOnWriteArrayList<CommitLogSegment>();
+    // 已刷盘的全局物理偏移量
+    private volatile long flushedWhere = 0;
+    // 已从堆外内存提交到FileChannel的全局物理偏移量
+    private volatile long committedWhere = 0;
+    // 文件预分配服务，为null时在写入线程中直接创建文件
+    private final AllocateMappedFileService allocateMappedFileService;
+    // 文件的读写方式：MAPPED为内存映射，UN_MAPPED为FileChannel按位置读写
+    private final ByteBufferType byteBufferType;
+    // FileChannel文件顺序读取时一次最多读取的字节数
+    private final int readAheadSize;
+    // 内存映射预算，为null时文件一直保持映射
+    private volatile MappedFileBudget mappedFileBudget;
+
+    public MappedFileQueue(final String storePath, int mappedFileSize) {
+        this(storePath, mappedFileSize, null);
+    }
+
+    public MappedFileQueue(final String storePath, int mappedFileSize,
+                           AllocateMappedFileService allocateMappedFileService) {
+        this(storePath, mappedFileSize, allocateMappedFileService, ByteBufferType.MAPPED, 0);
+    }
+
+    public MappedFileQueue(final String storePath, int mappedFileSize, AllocateMappedFileService allocateMappedFileService,
+                           ByteBufferType byteBufferType, int readAheadSize) {
+        this.storePath = storePath;
+        this.mappedFileSize = mappedFileSize;
+        this.allocateMappedFileService = allocateMappedFileService;
+        this.byteBufferType = byteBufferType;
+        this.readAheadSize = readAheadSize;
+    }
+
+    /**
+     * 启动时加载目录中已有的文件，写指针先置于文件末尾，由恢复流程截断到实际的数据末尾
+     * @return 文件大小与配置不符时返回false
+     */
+    public boolean load() {
+        File dir = new File(this.storePath);
+        File[] files = dir.listFiles();
+        if (files != null) {
+            // 文件名是定长的起始偏移量，按文件名排序即按偏移量排序
+            Arrays.sort(files);
+            for (File file : files) {
+                if (file.length() != this.mappedFileSize) {
+                    System.out.println(file + "\t" + file.length()
+                            + " length not matched message store config value, please check it manually");
+                    return false;
+                }
+
+                try {
+                    CommitLogSegment mappedFile = CommitLogSegment.create(this.byteBufferType, file.getPath(),
+                            this.mappedFileSize, this.readAheadSize);
+                    mappedFile.setWrotePosition(this.mappedFileSize);
+                    mappedFile.setFlushedPosition(this.mappedFileSize);
+                    mappedFile.setCommittedPosition(this.mappedFileSize);
+                    this.mappedFiles.add(mappedFile);
+                    this.registerBudget(mappedFile);
+                    System.out.println("load " + file.getPath() + " OK");
+                } catch (IOException e) {
+                    System.out.println("load file " + file + " error");
+                    e.printStackTrace();
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * 截断offset之后的数据：offset所在文件的写指针退回到offset，之后的文件全部删除
+     * @param offset
+     */
+    public void truncateDirtyFiles(final long offset) {
+        for (CommitLogSegment file : this.mappedFiles) {
+            long fileTailOffset = file.getFileFromOffset() + this.mappedFileSize;
+            if (fileTailOffset > offset) {
+                if (offset >= file.getFileFromOffset()) {
+                    int pos = (int) (offset % this.mappedFileSize);
+                    file.setWrotePosition(pos);
+                    file.setCommittedPosition(pos);
+                    file.setFlushedPosition(pos);
+                } else {
+                    file.destroy(1000);
+                    this.mappedFiles.remove(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * 删除最后一个文件
+     */
+    public void deleteLastMappedFile() {
+        CommitLogSegment lastMappedFile = this.getLastMappedFile();
+        if (lastMappedFile != null) {
+            lastMappedFile.destroy(1000);
+            this.mappedFiles.remove(lastMappedFile);
+            System.out.println("on recover, destroy a logic mapped file " + lastMappedFile.getFileName());
+        }
+    }
+
+    /**
+     * 获取最后一个文件，如果不存在或者已写满，则按需创建新文件。
+     * 并发写入模式下可能有多个写线程同时发现文件已满，因此该方法需要同步
+     * @param startOffset 队列中还没有文件时，新文件的起始偏移量
+     * @param needCreate 是否需要创建
+     * @return
+     */
+    public synchronized CommitLogSegment getLastMappedFile(final long startOffset, boolean needCreate) {
+        long createOffset = -1;
+        CommitLogSegment mappedFileLast = getLastMappedFile();
+
+        // 队列为空，根据startOffset计算第一个文件的起始偏移量
+        if (mappedFileLast == null) {
+            createOffset = startOffset - (startOffset % this.mappedFileSize);
+        }
+
+        // 最后一个文件已写满，创建下一个文件
+        if (mappedFileLast != null && mappedFileLast.isFull()) {
+            createOffset = mappedFileLast.getFileFromOffset() + this.mappedFileSize;
+        }
+
+        if (createOffset != -1 && needCreate) {
+            String nextFilePath = this.storePath + File.separator + offset2FileName(createOffset);
+            String nextNextFilePath = this.storePath + File.separator
+                    + offset2FileName(createOffset + this.mappedFileSize);
+            CommitLogSegment mappedFile = null;
+
+            if (this.allocateMappedFileService != null) {
+                // 由预分配服务创建，同时提前创建下下个文件
+                mappedFile = this.allocateMappedFileService.putRequestAndReturnMappedFile(nextFilePath,
+                        nextNextFilePath, this.mappedFileSize);
+            } else {
+                try {
+                    mappedFile = CommitLogSegment.create(this.byteBufferType, nextFilePath, this.mappedFileSize, this.readAheadSize);
+                } catch (IOException e) {
+                    System.out.println("create mappedFile exception: " + nextFilePath);
+                    e.printStackTrace();
+                }
+            }
+
+            if (mappedFile != null) {
+                this.mappedFiles.add(mappedFile);
+                this.registerBudget(mappedFile);
+            }
+            return mappedFile;
+        }
+
+        return mappedFileLast;
+    }
+
+    /**
+     * 内存映射文件纳入映射预算
+     * @param mappedFile
+     */
+    private void registerBudget(final CommitLogSegment mappedFile) {
+        if (this.mappedFileBudget != null && mappedFile instanceof MappedFile) {
+            this.mappedFileBudget.register((MappedFile) mappedFile);
+        }
+    }
+
+    public CommitLogSegment getLastMappedFile(final long startOffset) {
+        return getLastMappedFile(startOffset, true);
+    }
+
+    /**
+     * 获取最后一个文件，不创建
+     * @return
+     */
+    public CommitLogSegment getLastMappedFile() {
+        CommitLogSegment mappedFileLast = null;
+
+        while (!this.mappedFiles.isEmpty()) {
+            try {
+                mappedFileLast = this.mappedFiles.get(this.mappedFiles.size() - 1);
+                break;
+            } catch (IndexOutOfBoundsException e) {
+                // 并发删除文件时重试
+            }
+        }
+
+        return mappedFileLast;
+    }
+
+    public CommitLogSegment getFirstMappedFile() {
+        CommitLogSegment mappedFileFirst = null;
+
+        if (!this.mappedFiles.isEmpty()) {
+            try {
+                mappedFileFirst = this.mappedFiles.get(0);
+            } catch (IndexOutOfBoundsException e) {
+                // 并发删除文件时忽略
+            }
+        }
+
+        return mappedFileFirst;
+    }
+
+    /**
+     * 根据全局物理偏移量查找其所在的文件。
+     * 所有文件大小相同，因此直接用 offset / mappedFileSize 计算下标，时间复杂度O(1)
+     * @param offset 全局物理偏移量
+     * @param returnFirstOnNotFound 未找到时是否返回第一个文件
+     * @return
+     */
+    public CommitLogSegment findMappedFileByOffset(final long offset, final boolean returnFirstOnNotFound) {
+        CommitLogSegment firstMappedFile = this.getFirstMappedFile();
+        CommitLogSegment lastMappedFile = this.getLastMappedFile();
+        if (firstMappedFile != null && lastMappedFile != null) {
+            if (offset < firstMappedFile.getFileFromOffset()
+                    || offset >= lastMappedFile.getFileFromOffset() + this.mappedFileSize) {
+                System.out.println("Offset not matched. Request offset: " + offset
+                        + ", firstOffset: " + firstMappedFile.getFileFromOffset()
+                        + ", lastOffset: " + (lastMappedFile.getFileFromOffset() + this.mappedFileSize));
+            } else {
+                int index = (int) ((offset / this.mappedFileSize)
+                        - (firstMappedFile.getFileFromOffset() / this.mappedFileSize));
+                CommitLogSegment targetFile = null;
+                try {
+                    targetFile = this.mappedFiles.get(index);
+                } catch (IndexOutOfBoundsException e) {
+                    // 文件列表在计算下标后发生了变化，下面退化为顺序查找
+                }
+
+                if (targetFile != null && offset >= targetFile.getFileFromOffset()
+                        && offset < targetFile.getFileFromOffset() + this.mappedFileSize) {
+                    return targetFile;
+                }
+
+                for (CommitLogSegment tmpMappedFile : this.mappedFiles) {
+                    if (offset >= tmpMappedFile.getFileFromOffset()
+                            && offset < tmpMappedFile.getFileFromOffset() + this.mappedFileSize) {
+                        return tmpMappedFile;
+                    }
+                }
+            }
+
+            if (returnFirstOnNotFound) {
+                return firstMappedFile;
+            }
+        }
+
+        return null;
+    }
+
+    public CommitLogSegment findMappedFileByOffset(final long offset) {
+        return findMappedFileByOffset(offset, false);
+    }
+
+    /**
+     * 按全局物理偏移量读取[offset, offset + size)的数据，不拷贝
+     * @param offset
+     * @param size
+     * @return 使用完毕后需调用release，数据不存在时返回null
+     */
+    public SelectMappedBufferResult selectMappedBuffer(final long offset, final int size) {
+        // 过期文件删除后offset可能小于第一个文件的起始偏移量，不能退化为返回第一个文件
+        CommitLogSegment mappedFile = this.findMappedFileByOffset(offset);
+        if (mappedFile != null) {
+            int pos = (int) (offset % this.mappedFileSize);
+            return mappedFile.selectMappedBuffer(pos, size);
+        }
+        return null;
+    }
+
+    /**
+     * 按全局物理偏移量读取offset所在文件中从offset到可读位置的所有数据
+     * @param offset
+     * @return 使用完毕后需调用release，数据不存在时返回null
+     */
+    public SelectMappedBufferResult selectMappedBuffer(final long offset) {
+        // 过期文件删除后offset可能小于第一个文件的起始偏移量，不能退化为返回第一个文件
+        CommitLogSegment mappedFile = this.findMappedFileByOffset(offset);
+        if (mappedFile != null) {
+            int pos = (int) (offset % this.mappedFileSize);
+            return mappedFile.selectMappedBuffer(pos);
+        }
+        return null;
+    }
+
+    /**
+     * 按修改时间删除过期文件，最后一个文件正在写入，不会被删除。
+     * 仍有读取方持有引用的文件会在intervalForcibly后的某一轮中被强制删除
+     * @param expiredTime 文件保留时间(毫秒)
+     * @param deleteFilesInterval 每删除一个文件后的间隔(毫秒)，避免集中删除造成IO抖动
+     * @param intervalForcibly 强制删除仍被引用的文件前等待的时间(毫秒)
+     * @param cleanImmediately 是否不论是否过期都删除，磁盘空间不足时使用
+     * @param deleteFilesBatchMax 一次最多删除的文件数
+     * @return 删除的文件数
+     */
+    public int deleteExpiredFileByTime(final long expiredTime, final int deleteFilesInterval, final long intervalForcibly,
+                                       final boolean cleanImmediately, final int deleteFilesBatchMax) {
+        Object[] mfs = this.mappedFiles.toArray();
+        if (mfs.length <= 1) {
+            return 0;
+        }
+
+        List<CommitLogSegment> files = new ArrayList<CommitLogSegment>();
+        for (int i = 0; i < mfs.length - 1; i++) {
+            CommitLogSegment mappedFile = (CommitLogSegment) mfs[i];
+            long liveMaxTimestamp = mappedFile.getLastModifiedTimestamp() + expiredTime;
+            if (System.currentTimeMillis() < liveMaxTimestamp && !cleanImmediately) {
+                // 之后的文件更新，也不会过期
+                break;
+            }
+
+            if (!mappedFile.destroy(intervalForcibly)) {
+                // 文件仍被引用，下一轮再删除，之后的文件也等这个文件删除后再删除
+                break;
+            }
+
+            files.add(mappedFile);
+            if (files.size() >= deleteFilesBatchMax) {
+                break;
+            }
+
+            if (deleteFilesInterval > 0 && i + 1 < mfs.length - 1) {
+                try {
+                    Thread.sleep(deleteFilesInterval);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+
+        this.deleteExpiredFile(files);
+        return files.size();
+    }
+
+    /**
+     * 删除所有条目都指向offset之前的消息的文件，用于消费队列跟随commitLog删除，最后一个文件不会被删除
+     * @param offset commitLog中最小的物理偏移量
+     * @param unitSize 条目大小
+     * @return 删除的文件数
+     */
+    public int deleteExpiredFileByOffset(final long offset, final int unitSize) {
+        Object[] mfs = this.mappedFiles.toArray();
+        if (mfs.length <= 1) {
+            return 0;
+        }
+
+        List<CommitLogSegment> files = new ArrayList<CommitLogSegment>();
+        for (int i = 0; i < mfs.length - 1; i++) {
+            CommitLogSegment mappedFile = (CommitLogSegment) mfs[i];
+            // 条目按物理偏移量升序排列，只需检查文件中最后一个条目
+            SelectMappedBufferResult result = mappedFile.selectMappedBuffer(this.mappedFileSize - unitSize);
+            if (result == null) {
+                // 文件还没写满，之后的文件都不会过期
+                break;
+            }
+
+            boolean destroy;
+            try {
+                ByteBuffer byteBuffer = result.getByteBuffer();
+                destroy = byteBuffer.getLong(0) < offset;
+            } finally {
+                result.release();
+            }
+
+            if (!destroy || !mappedFile.destroy(1000 * 60)) {
+                break;
+            }
+            files.add(mappedFile);
+        }
+
+        this.deleteExpiredFile(files);
+        return files.size();
+    }
+
+    /**
+     * 从文件列表中移除已删除的文件
+     * @param files
+     */
+    private void deleteExpiredFile(final List<CommitLogSegment> files) {
+        if (!files.isEmpty()) {
+            if (!this.mappedFiles.removeAll(files)) {
+                System.out.println("deleteExpiredFile remove failed.");
+            }
+
+            // 刷盘和提交位置落在已删除的文件中时，移到第一个文件的开头，否则再也找不到要刷盘的文件
+            long minOffset = this.getMinOffset();
+            if (minOffset > this.flushedWhere) {
+                this.flushedWhere = minOffset;
+            }
+            if (minOffset > this.committedWhere) {
+                this.committedWhere = minOffset;
+            }
+        }
+    }
+
+    /**
+     * 队列中最小的物理偏移量
+     * @return
+     */
+    public long getMinOffset() {
+        CommitLogSegment mappedFileFirst = this.getFirstMappedFile();
+        if (mappedFileFirst != null) {
+            return mappedFileFirst.getFileFromOffset();
+        }
+        return -1;
+    }
+
+    /**
+     * 队列中当前最大的可读物理偏移量(最后一个文件的提交水位)
+     * @return
+     */
+    public long getMaxOffset() {
+        CommitLogSegment mappedFile = getLastMappedFile();
+        if (mappedFile != null) {
+            return mappedFile.getFileFromOffset() + mappedFile.getReadPosition();
+        }
+        return 0;
+    }
+
+    /**
+     * 对flushedWhere所在的文件刷盘
+     * @param flushLeastPages
+     * @return true表示本次没有数据落盘
+     */
+    public boolean flush(final int flushLeastPages) {
+        boolean result = true;
+        CommitLogSegment mappedFile = this.findMappedFileByOffset(this.flushedWhere, this.flushedWhere == 0);
+        if (mappedFile != null) {
+            int offset = mappedFile.flush(flushLeastPages);
+            long where = mappedFile.getFileFromOffset() + offset;
+            result = where == this.flushedWhere;
+            this.flushedWhere = where;
+        }
+
+        return result;
+    }
+
+    /**
+     * 将committedWhere所在文件的堆外内存数据提交到FileChannel
+     * @param commitLeastPages
+     * @return true表示本次没有数据提交
+     */
+    public boolean commit(final int commitLeastPages) {
+        boolean result = true;
+        CommitLogSegment mappedFile = this.findMappedFileByOffset(this.committedWhere, this.committedWhere == 0);
+        if (mappedFile != null) {
+            int offset = mappedFile.commit(commitLeastPages);
+            long where = mappedFile.getFileFromOffset() + offset;
+            result = where == this.committedWhere;
+            this.committedWhere = where;
+        }
+
+        return result;
+    }
+
+    /**
+     * 将偏移量格式化为20位文件名，不足位数左补0
+     * @param offset
+     * @return
+     */
+    public static String offset2FileName(final long offset) {
+        final NumberFormat nf = NumberFormat.getInstance();
+        nf.setMinimumIntegerDigits(20);
+        nf.setMaximumFractionDigits(0);
+        nf.setGroupingUsed(false);
+        return nf.format(offset);
+    }
+
+    public long getFlushedWhere() {
+        return flushedWhere;
+    }
+
+    public void setFlushedWhere(long flushedWhere) {
+        this.flushedWhere = flushedWhere;
+    }
+
+    public long getCommittedWhere() {
+        return committedWhere;
+    }
+
+    public void setCommittedWhere(long committedWhere) {
+        this.committedWhere = committedWhere;
+    }
+
+    public String getStorePath() {
+        return storePath;
+    }
+
+    public int getMappedFileSize() {
+        return mappedFileSize;
+    }
+
+    public List<CommitLogSegment> getMappedFiles() {
+        return mappedFiles;
+    }
+
+    /**
+     * 设置内存映射预算，需在load之前调用
+     * @param mappedFileBudget
+     */
+    public void setMappedFileBudget(MappedFileBudget mappedFileBudget) {
+        this.mappedFileBudget = mappedFileBudget;
+    }
+}
@@ -1,6 +1,7 @@
 package com.hlf.store;
 
 import java.io.Serializable;
+import java.util.HashMap;
 import java.util.Map;
 
 public class Message implements Serializable {
@@ -28,6 +29,41 @@ public class Message implements Serializable {
 
     public void setProperties(Map<String, String> properties) {
         this.properties = properties;
+        this.onPropertiesChanged();
+    }
+
+    public String getTags() {
+        return this.properties == null ? null : this.properties.get(MessageConst.PROPERTY_TAGS);
+    }
+
+    public void setTags(String tags) {
+        if (this.properties == null) {
+            this.properties = new HashMap<String, String>();
+        }
+        this.properties.put(MessageConst.PROPERTY_TAGS, tags);
+        this.onPropertiesChanged();
+    }
+
+    public String getKeys() {
+        return this.properties == null ? null : this.properties.get(MessageConst.PROPERTY_KEYS);
+    }
+
+    /**
+     * 设置消息的业务key，多个key之间用空格分隔
+     * @param keys
+     */
+    public void setKeys(String keys) {
+        if (this.properties == null) {
+            this.properties = new HashMap<String, String>();
+        }
+        this.properties.put(MessageConst.PROPERTY_KEYS, keys);
+        this.onPropertiesChanged();
+    }
+
+    /**
+     * 通过setter修改属性后调用，子类据此清除缓存的属性编码
+     */
+    protected void onPropertiesChanged() {
     }
 
     public byte[] getBody() {
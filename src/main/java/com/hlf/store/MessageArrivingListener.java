@@ -0,0 +1,16 @@
+package com.hlf.store;
+
+/**
+ * 新消息分发到消费队列后的回调，用于唤醒等待该队列新消息的拉取请求
+ */
+public interface MessageArrivingListener {
+
+    /**
+     * 在分发线程中调用，实现方不能阻塞
+     * @param topic
+     * @param queueId
+     * @param logicOffset 队列的最大逻辑偏移量，即下一条新消息的逻辑偏移量
+     * @param tagsCode 新消息的tag哈希码
+     */
+    void arriving(String topic, int queueId, long logicOffset, long tagsCode);
+}
@@ -0,0 +1,15 @@
+package com.hlf.store;
+
+/**
+ * 消息属性中的保留字段
+ */
+public class MessageConst {
+
+    // 消息的业务key，多个key之间用KEY_SEPARATOR分隔，按key建立哈希索引
+    public static final String PROPERTY_KEYS = "KEYS";
+
+    // 消息的tag，消费队列中保存其哈希码，用于按tag过滤
+    public static final String PROPERTY_TAGS = "TAGS";
+
+    public static final String KEY_SEPARATOR = " ";
+}
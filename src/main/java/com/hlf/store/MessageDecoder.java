@@ -2,14 +2,50 @@ package com.hlf.store;
 
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 public class MessageDecoder {
 
+    public static final char NAME_VALUE_SEPARATOR = 1;
+    public static final char PROPERTY_SEPARATOR = 2;
     public static final int MSG_ID_LENGTH = 8; // 8字节消息物理偏移量
 
+    // 消息存储格式中各字段的位置
+    public static final int MESSAGE_TOTALSIZE_POSITION = 0;
+    public static final int MESSAGE_MAGIC_CODE_POSITION = 4;
+    public static final int MESSAGE_QUEUEID_POSITION = 8;
+    public static final int MESSAGE_PHYSIC_OFFSET_POSITION = 12;
+    public static final int MESSAGE_STORE_TIMESTAMP_POSITION = 20;
+    public static final int MESSAGE_BODY_LENGTH_POSITION = 28;
+
+    // 消息魔数
+    public static final int MESSAGE_MAGIC_CODE = 0xDAA320A7;
+    // 末尾带CRC32C校验码的消息魔数
+    public static final int MESSAGE_MAGIC_CODE_CRC = 0xDAA320A8;
+    // 文件尾部空白记录的魔数，空白记录只有 TOTALSIZE(4) + MAGICCODE(4)，TOTALSIZE为到文件末尾的长度
+    public static final int BLANK_MAGIC_CODE = 0xCBD43194;
+    // 并发写入失败时填充预留空间的记录魔数，只有 TOTALSIZE(4) + MAGICCODE(4)，TOTALSIZE为预留空间的长度，读取和恢复时整段跳过
+    public static final int FILLER_MAGIC_CODE = 0xCBD43195;
+
     public static final Charset CHARSET_UTF8 = Charset.forName("UTF-8");
     final static char[] HEX_ARRAY = "0123456789ABCDEF".toCharArray();
 
+    /**
+     * 直接由物理偏移量生成消息ID，与 createMessageId(ByteBuffer, long) 结果相同，不需要中间缓冲区
+     * @param offset
+     * @return
+     */
+    public static String createMessageId(final long offset) {
+        char[] hexChars = new char[MSG_ID_LENGTH * 2];
+        for (int i = 0; i < hexChars.length; i++) {
+            hexChars[i] = HEX_ARRAY[(int) (offset >>> ((hexChars.length - 1 - i) * 4)) & 0x0F];
+        }
+        return new String(hexChars);
+    }
+
     public static String createMessageId(final ByteBuffer input, final long offset) {
         input.flip();
         input.limit(MSG_ID_LENGTH);
@@ -17,6 +53,15 @@ public class MessageDecoder {
         return bytes2string(input.array());
     }
 
+    /**
+     * 消息ID即消息物理偏移量的16进制表示
+     * @param msgId
+     * @return 消息在commitLog中的物理偏移量
+     */
+    public static long decodeMessageId(final String msgId) {
+        return Long.parseUnsignedLong(msgId, 16);
+    }
+
     public static String bytes2string(byte[] src) {
         char[] hexChars = new char[src.length * 2];
         for (int j = 0; j < src.length; j++) {
@@ -26,4 +71,78 @@ public class MessageDecoder {
         }
         return new String(hexChars);
     }
+
+    /**
+     * 从byteBuffer的当前位置解码一条消息，解码后position移动到下一条消息
+     * @param byteBuffer
+     * @param readBody 是否读取消息体
+     * @return 数据不完整时返回null
+     */
+    public static MessageExt decode(ByteBuffer byteBuffer, final boolean readBody) {
+        MessageRecord record = new MessageRecord();
+        if (!record.wrap(byteBuffer, byteBuffer.position())) {
+            return null;
+        }
+
+        MessageExt msgExt = record.toMessageExt(readBody);
+        byteBuffer.position(byteBuffer.position() + record.getTotalSize());
+        return msgExt;
+    }
+
+    public static MessageExt decode(ByteBuffer byteBuffer) {
+        return decode(byteBuffer, true);
+    }
+
+    /**
+     * 解码byteBuffer中剩余的所有完整消息
+     * @param byteBuffer
+     * @param readBody
+     * @return
+     */
+    public static List<MessageExt> decodes(ByteBuffer byteBuffer, final boolean readBody) {
+        List<MessageExt> msgExts = new ArrayList<MessageExt>();
+        while (byteBuffer.hasRemaining()) {
+            MessageExt msgExt = decode(byteBuffer, readBody);
+            if (null == msgExt) {
+                break;
+            }
+            msgExts.add(msgExt);
+        }
+        return msgExts;
+    }
+
+    public static List<MessageExt> decodes(ByteBuffer byteBuffer) {
+        return decodes(byteBuffer, true);
+    }
+
+    public static String messageProperties2String(Map<String, String> properties) {
+        StringBuilder sb = new StringBuilder();
+        if (properties != null) {
+            for (final Map.Entry<String, String> entry : properties.entrySet()) {
+                final String name = entry.getKey();
+                final String value = entry.getValue();
+
+                sb.append(name);
+                sb.append(NAME_VALUE_SEPARATOR);
+                sb.append(value);
+                sb.append(PROPERTY_SEPARATOR);
+            }
+        }
+        return sb.toString();
+    }
+
+    public static Map<String, String> string2messageProperties(final String properties) {
+        Map<String, String> map = new HashMap<String, String>();
+        if (properties != null) {
+            String[] items = properties.split(String.valueOf(PROPERTY_SEPARATOR));
+            for (String i : items) {
+                String[] nv = i.split(String.valueOf(NAME_VALUE_SEPARATOR));
+                if (2 == nv.length) {
+                    map.put(nv[0], nv[1]);
+                }
+            }
+        }
+
+        return map;
+    }
 }
@@ -7,6 +7,10 @@ public class MessageExt extends Message {
     private int queueId;
     private int storeSize;
     private String msgId;
+    // 消息在commitLog中的物理偏移量
+    private long commitLogOffset;
+    // 消息写入commitLog的时间
+    private long storeTimestamp;
 
     public int getQueueId() {
         return queueId;
@@ -31,4 +35,20 @@ public class MessageExt extends Message {
     public void setMsgId(String msgId) {
         this.msgId = msgId;
     }
+
+    public long getStoreTimestamp() {
+        return storeTimestamp;
+    }
+
+    public void setStoreTimestamp(long storeTimestamp) {
+        this.storeTimestamp = storeTimestamp;
+    }
+
+    public long getCommitLogOffset() {
+        return commitLogOffset;
+    }
+
+    public void setCommitLogOffset(long commitLogOffset) {
+        this.commitLogOffset = commitLogOffset;
+    }
 }
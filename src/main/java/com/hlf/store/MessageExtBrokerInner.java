@@ -4,14 +4,39 @@ public class MessageExtBrokerInner extends MessageExt {
 
     private static final long serialVersionUID = 7256001576878700634L;
     private String propertiesString;
+    // 已编码为UTF-8的消息属性，不为null时写入commitLog时直接使用，不再编码propertiesString。
+    // 通过setter修改属性时清空，直接修改getProperties()返回的属性表不会清空
+    private byte[] propertiesData;
     private long tagsCode;
 
+    public static long tagsString2tagsCode(final String tags) {
+        if (null == tags || tags.length() == 0) {
+            return 0;
+        }
+
+        return tags.hashCode();
+    }
+
     public String getPropertiesString() {
         return propertiesString;
     }
 
     public void setPropertiesString(String propertiesString) {
         this.propertiesString = propertiesString;
+        this.propertiesData = null;
+    }
+
+    public byte[] getPropertiesData() {
+        return propertiesData;
+    }
+
+    public void setPropertiesData(byte[] propertiesData) {
+        this.propertiesData = propertiesData;
+    }
+
+    @Override
+    protected void onPropertiesChanged() {
+        this.propertiesData = null;
     }
 
     public long getTagsCode() {
@@ -0,0 +1,230 @@
+package com.hlf.store;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * commitLog中一条消息的享元视图：只记录各字段在ByteBuffer中的位置，
+ * 读取topic、消息体、属性时才分配byte[]/String。
+ * 同一个实例可通过wrap反复指向不同的消息，按topic过滤时无需为跳过的消息分配内存
+ */
+public class MessageRecord {
+
+    private ByteBuffer buffer;
+    // 消息在buffer中的起始位置
+    private int offset;
+    private int totalSize;
+    private int bodyLength;
+    private int topicLength;
+    private int propertiesLength;
+    // 消息末尾是否有校验码
+    private boolean crcPresent;
+
+    /**
+     * 指向buffer中offset处的消息，不改变buffer的position
+     * @param buffer
+     * @param offset
+     * @return buffer中没有一条完整的消息，或者魔数、各字段长度与消息总长度不符时返回false
+     */
+    public boolean wrap(ByteBuffer buffer, int offset) {
+        if (offset + MessageDecoder.MESSAGE_BODY_LENGTH_POSITION + 4 > buffer.limit()) {
+            return false;
+        }
+
+        int totalSize = buffer.getInt(offset + MessageDecoder.MESSAGE_TOTALSIZE_POSITION);
+        int magicCode = buffer.getInt(offset + MessageDecoder.MESSAGE_MAGIC_CODE_POSITION);
+        boolean crcPresent = magicCode == MessageDecoder.MESSAGE_MAGIC_CODE_CRC;
+        if (totalSize <= 0 || offset + totalSize > buffer.limit()
+                || (magicCode != MessageDecoder.MESSAGE_MAGIC_CODE && !crcPresent)) {
+            return false;
+        }
+
+        // 逐个校验变长字段不超出消息范围，防止读取写了一半的消息时越界
+        int end = offset + totalSize;
+        int bodyLength = buffer.getInt(offset + MessageDecoder.MESSAGE_BODY_LENGTH_POSITION);
+        int topicLengthPosition = offset + MessageDecoder.MESSAGE_BODY_LENGTH_POSITION + 4 + bodyLength;
+        if (bodyLength < 0 || topicLengthPosition + 1 > end) {
+            return false;
+        }
+        int topicLength = buffer.get(topicLengthPosition) & 0xFF;
+        int propertiesLengthPosition = topicLengthPosition + 1 + topicLength;
+        if (propertiesLengthPosition + 2 > end) {
+            return false;
+        }
+        int propertiesLength = buffer.getShort(propertiesLengthPosition) & 0xFFFF;
+        if (propertiesLengthPosition + 2 + propertiesLength + (crcPresent ? 4 : 0) > end) {
+            return false;
+        }
+
+        this.buffer = buffer;
+        this.offset = offset;
+        this.totalSize = totalSize;
+        this.bodyLength = bodyLength;
+        this.topicLength = topicLength;
+        this.propertiesLength = propertiesLength;
+        this.crcPresent = crcPresent;
+        return true;
+    }
+
+    /**
+     * offset处是否为文件尾部的空白记录
+     * @param buffer
+     * @param offset
+     * @return
+     */
+    public static boolean isBlank(ByteBuffer buffer, int offset) {
+        return offset + DefaultAppendMessageCallback.END_FILE_MIN_BLANK_LENGTH <= buffer.limit()
+                && buffer.getInt(offset + MessageDecoder.MESSAGE_MAGIC_CODE_POSITION) == MessageDecoder.BLANK_MAGIC_CODE;
+    }
+
+    /**
+     * offset处是否为写入失败的预留空间的填充记录
+     * @param buffer
+     * @param offset
+     * @return
+     */
+    public static boolean isFiller(ByteBuffer buffer, int offset) {
+        return offset + DefaultAppendMessageCallback.END_FILE_MIN_BLANK_LENGTH <= buffer.limit()
+                && buffer.getInt(offset + MessageDecoder.MESSAGE_MAGIC_CODE_POSITION) == MessageDecoder.FILLER_MAGIC_CODE;
+    }
+
+    public boolean isCrcPresent() {
+        return crcPresent;
+    }
+
+    /**
+     * 校验消息末尾的CRC32C
+     * @return 校验通过或消息没有校验码时返回true
+     */
+    public boolean verifyCrc() {
+        if (!this.crcPresent) {
+            return true;
+        }
+        int storedCrc = this.buffer.getInt(this.offset + this.totalSize - 4);
+        return storedCrc == Crc32cUtil.crc32c(this.buffer, this.offset, this.totalSize - 4);
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getTotalSize() {
+        return totalSize;
+    }
+
+    public int getQueueId() {
+        return this.buffer.getInt(this.offset + MessageDecoder.MESSAGE_QUEUEID_POSITION);
+    }
+
+    public long getPhysicOffset() {
+        return this.buffer.getLong(this.offset + MessageDecoder.MESSAGE_PHYSIC_OFFSET_POSITION);
+    }
+
+    public long getStoreTimestamp() {
+        return this.buffer.getLong(this.offset + MessageDecoder.MESSAGE_STORE_TIMESTAMP_POSITION);
+    }
+
+    public int getBodyLength() {
+        return bodyLength;
+    }
+
+    /**
+     * 消息体在buffer中的位置
+     * @return
+     */
+    public int getBodyPosition() {
+        return this.offset + MessageDecoder.MESSAGE_BODY_LENGTH_POSITION + 4;
+    }
+
+    public int getTopicLength() {
+        return topicLength;
+    }
+
+    /**
+     * topic在buffer中的位置
+     * @return
+     */
+    public int getTopicPosition() {
+        return this.getBodyPosition() + this.bodyLength + 1;
+    }
+
+    public int getPropertiesLength() {
+        return propertiesLength;
+    }
+
+    /**
+     * 属性在buffer中的位置
+     * @return
+     */
+    public int getPropertiesPosition() {
+        return this.getTopicPosition() + this.topicLength + 2;
+    }
+
+    /**
+     * 不分配内存地比较topic
+     * @param topicData topic的UTF-8编码
+     * @return
+     */
+    public boolean topicEquals(byte[] topicData) {
+        if (topicData.length != this.topicLength) {
+            return false;
+        }
+
+        int topicPosition = this.getTopicPosition();
+        for (int i = 0; i < topicData.length; i++) {
+            if (this.buffer.get(topicPosition + i) != topicData[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public byte[] getBody() {
+        return this.readBytes(this.getBodyPosition(), this.bodyLength);
+    }
+
+    public String getTopic() {
+        return new String(this.readBytes(this.getTopicPosition(), this.topicLength), MessageDecoder.CHARSET_UTF8);
+    }
+
+    public String getPropertiesString() {
+        if (this.propertiesLength == 0) {
+            return null;
+        }
+        return new String(this.readBytes(this.getPropertiesPosition(), this.propertiesLength), MessageDecoder.CHARSET_UTF8);
+    }
+
+    public Map<String, String> getProperties() {
+        return MessageDecoder.string2messageProperties(this.getPropertiesString());
+    }
+
+    /**
+     * 物化为MessageExt
+     * @param readBody 是否读取消息体
+     * @return
+     */
+    public MessageExt toMessageExt(boolean readBody) {
+        MessageExt msgExt = new MessageExt();
+        msgExt.setStoreSize(this.totalSize);
+        msgExt.setQueueId(this.getQueueId());
+        msgExt.setCommitLogOffset(this.getPhysicOffset());
+        msgExt.setStoreTimestamp(this.getStoreTimestamp());
+        msgExt.setMsgId(MessageDecoder.createMessageId(this.getPhysicOffset()));
+        if (readBody) {
+            msgExt.setBody(this.getBody());
+        }
+        msgExt.setTopic(this.getTopic());
+        msgExt.setProperties(this.getProperties());
+        return msgExt;
+    }
+
+    private byte[] readBytes(int position, int length) {
+        byte[] data = new byte[length];
+        if (length > 0) {
+            ByteBuffer duplicate = this.buffer.duplicate();
+            duplicate.position(position);
+            duplicate.get(data);
+        }
+        return data;
+    }
+}
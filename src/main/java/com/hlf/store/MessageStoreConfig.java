@@ -0,0 +1,520 @@
+package com.hlf.store;
+
+import java.io.File;
+
+/**
+ * 消息存储相关配置
+ */
+public class MessageStoreConfig {
+
+    // 存储根目录
+    private String storePathRootDir = System.getProperty("user.home") + File.separator + "store";
+    // commitLog存储目录
+    private String storePathCommitLog = System.getProperty("user.home") + File.separator + "store"
+            + File.separator + "commitlog";
+    // 消费队列存储目录
+    private String storePathConsumeQueue = System.getProperty("user.home") + File.separator + "store"
+            + File.separator + "consumequeue";
+    // 索引文件存储目录
+    private String storePathIndex = System.getProperty("user.home") + File.separator + "store"
+            + File.separator + "index";
+    // commitLog每个文件的大小，默认1G
+    private int mappedFileSizeCommitLog = 1024 * 1024 * 1024;
+    // 消费队列每个文件的大小，默认30万个条目
+    private int mappedFileSizeConsumeQueue = 300000 * ConsumeQueue.CQ_STORE_UNIT_SIZE;
+    // 消息最大长度，默认4M
+    private int maxMessageSize = 1024 * 1024 * 4;
+    // 是否启用无锁并发写入：多个写线程通过CAS预留空间后并行拷贝消息，否则通过全局锁串行写入
+    private boolean concurrentAppendEnable = false;
+    // commitLog分片数：大于1时启动多个相互独立的commitLog，各自有文件队列、写指针和刷盘服务，
+    // 每个(topic, queueId)按哈希固定写入其中一个分片，写入吞吐随分片数扩展。
+    // 修改分片数后已有的存储无法加载
+    private int commitLogStripeCount = 1;
+    // 刷盘方式
+    private FlushDiskType flushDiskType = FlushDiskType.ASYNC_FLUSH;
+    // 异步刷盘时间间隔(毫秒)
+    private int flushIntervalCommitLog = 500;
+    // 异步刷盘时，脏页数达到该值才刷盘
+    private int flushCommitLogLeastPages = 4;
+    // 异步刷盘时，距上次刷盘超过该时间(毫秒)则忽略脏页数限制强制刷盘
+    private int flushCommitLogThoroughInterval = 1000 * 10;
+    // 同步刷盘时，写入线程等待刷盘完成的超时时间(毫秒)
+    private int syncFlushTimeout = 1000 * 5;
+    // 是否在每条消息末尾写入CRC32C校验码，每条消息多占4字节并在写入路径上多一次计算。
+    // 关闭时恢复只能按消息格式校验，发现不了消息体内的静默损坏
+    private boolean messageCrcEnable = false;
+    // 启动恢复时是否校验消息的CRC32C
+    private boolean checkCrcOnRecover = true;
+    // 读取消息时是否校验CRC32C，关闭时只在恢复时校验
+    private boolean checkCrcOnRead = false;
+    // 是否复用写入结果对象(AppendMessageResult/PutMessageResult)，减少写入路径上的对象分配，
+    // 开启后写入结果只在同一线程下一次写入之前有效
+    private boolean appendResultReuseEnable = false;
+    // 是否把消息直接编码到commitLog文件(或堆外内存)的写入区域，关闭时先编码到堆内缓冲区再拷贝。
+    // 开启后编码在写锁内或预留空间之后进行，编码失败时预留的空间只能写入填充记录，默认关闭
+    private boolean directEncodeEnable = false;
+    // 启动恢复时并行扫描commitLog文件的线程数
+    private int recoverConcurrency = Runtime.getRuntime().availableProcessors();
+    // 分发服务每批最多分发的消息条数
+    private int maxDispatchBatchSize = 64;
+    // 消费队列刷盘时间间隔(毫秒)
+    private int flushIntervalConsumeQueue = 1000;
+    // 消费队列脏页数达到该值才刷盘
+    private int flushConsumeQueueLeastPages = 2;
+    // 距上次刷盘超过该时间(毫秒)则忽略脏页数限制强制刷盘
+    private int flushConsumeQueueThoroughInterval = 1000 * 60;
+    // 是否按消息key建立索引
+    private boolean messageIndexEnable = true;
+    // 每个索引文件的哈希槽数
+    private int maxHashSlotNum = 5000000;
+    // 每个索引文件的索引条目数
+    private int maxIndexNum = 5000000 * 4;
+    // commitLog文件的读写方式：MAPPED为内存映射；UN_MAPPED通过FileChannel按位置读写，
+    // 内存远小于数据量、内存映射频繁缺页时使用。两种方式的文件格式相同，可以直接切换
+    private ByteBufferType commitLogByteBufferType = ByteBufferType.MAPPED;
+    // UN_MAPPED时，分发服务顺序读取commitLog一次最多读取的字节数
+    private int fileChannelReadAheadSize = 1024 * 1024 * 4;
+    // 是否启用堆外内存池，消息先写入堆外内存，再由后台线程提交到FileChannel，仅在异步刷盘时生效
+    private boolean transientStorePoolEnable = false;
+    // 堆外内存池中的内存块数量，所有commitLog分片共用一个堆外内存池
+    private int transientStorePoolSize = 5;
+    // 提交堆外内存到FileChannel的时间间隔(毫秒)
+    private int commitIntervalCommitLog = 200;
+    // 未提交的数据达到该页数才提交
+    private int commitCommitLogLeastPages = 4;
+    // 距上次提交超过该时间(毫秒)则忽略页数限制强制提交
+    private int commitCommitLogThoroughInterval = 200;
+    // 是否预热新创建的commitLog文件：逐页写0，提前触发缺页中断
+    private boolean warmMappedFileEnable = false;
+    // 预热时每写满多少页刷一次盘
+    private int flushLeastPagesWhenWarmMappedFile = 1024 / 4 * 16;
+    // 文件保留时间(小时)，commitLog文件超过该时间未修改即删除，消费队列和索引随之删除
+    private int fileReservedTime = 72;
+    // 清理过期文件的时间间隔(毫秒)
+    private int cleanResourceInterval = 10000;
+    // 每删除一个commitLog文件后的间隔(毫秒)，避免集中删除造成IO抖动
+    private int deleteCommitLogFilesInterval = 100;
+    // 每轮最多删除的commitLog文件数
+    private int deleteFilesBatchMax = 10;
+    // 文件仍被读取方引用时，等待该时间(毫秒)后强制删除
+    private int destroyMapedFileIntervalForcibly = 1000 * 120;
+    // commitLog所在磁盘的使用率(百分比)超过该值时，不论是否过期都从最早的文件开始删除
+    private int diskMaxUsedSpaceRatio = 75;
+    // 写线程持有写锁超过该时间(毫秒)时认为存储繁忙，broker快速拒绝新的写入请求，0表示不检查
+    private long osPageCacheBusyTimeOutMills = 1000;
+    // 所有commitLog分片已写入未刷盘的字节数超过该值时认为存储繁忙，0表示不检查
+    private long flushBehindBusyBytes = 1024L * 1024 * 1024;
+    // commitLog所在磁盘的使用率(百分比)超过该值时认为存储繁忙
+    private int diskBusyUsedSpaceRatio = 90;
+    // 存储统计服务生成并打印周期快照的时间间隔(毫秒)
+    private int storeStatsInterval = 1000 * 60;
+    // 内存映射的commitLog文件占用的虚拟内存上限(字节)，超出时解除最久未读取的文件的映射，再次读取时重新映射，0表示不限制
+    private long maxMappedVirtualMemory = 0;
+
+    public String getStorePathRootDir() {
+        return storePathRootDir;
+    }
+
+    public void setStorePathRootDir(String storePathRootDir) {
+        this.storePathRootDir = storePathRootDir;
+    }
+
+    public String getStorePathCommitLog() {
+        return storePathCommitLog;
+    }
+
+    public void setStorePathCommitLog(String storePathCommitLog) {
+        this.storePathCommitLog = storePathCommitLog;
+    }
+
+    public String getStorePathConsumeQueue() {
+        return storePathConsumeQueue;
+    }
+
+    public void setStorePathConsumeQueue(String storePathConsumeQueue) {
+        this.storePathConsumeQueue = storePathConsumeQueue;
+    }
+
+    public String getStorePathIndex() {
+        return storePathIndex;
+    }
+
+    public void setStorePathIndex(String storePathIndex) {
+        this.storePathIndex = storePathIndex;
+    }
+
+    public int getMappedFileSizeCommitLog() {
+        return mappedFileSizeCommitLog;
+    }
+
+    public void setMappedFileSizeCommitLog(int mappedFileSizeCommitLog) {
+        this.mappedFileSizeCommitLog = mappedFileSizeCommitLog;
+    }
+
+    /**
+     * 消费队列文件大小取整为条目大小的整数倍，保证条目不会跨文件
+     * @return
+     */
+    public int getMappedFileSizeConsumeQueue() {
+        int factor = (int) Math.ceil(this.mappedFileSizeConsumeQueue / (ConsumeQueue.CQ_STORE_UNIT_SIZE * 1.0));
+        return factor * ConsumeQueue.CQ_STORE_UNIT_SIZE;
+    }
+
+    public void setMappedFileSizeConsumeQueue(int mappedFileSizeConsumeQueue) {
+        this.mappedFileSizeConsumeQueue = mappedFileSizeConsumeQueue;
+    }
+
+    public int getMaxMessageSize() {
+        return maxMessageSize;
+    }
+
+    public void setMaxMessageSize(int maxMessageSize) {
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    public boolean isConcurrentAppendEnable() {
+        return concurrentAppendEnable;
+    }
+
+    public void setConcurrentAppendEnable(boolean concurrentAppendEnable) {
+        this.concurrentAppendEnable = concurrentAppendEnable;
+    }
+
+    public int getCommitLogStripeCount() {
+        return commitLogStripeCount;
+    }
+
+    public void setCommitLogStripeCount(int commitLogStripeCount) {
+        this.commitLogStripeCount = commitLogStripeCount;
+    }
+
+    public FlushDiskType getFlushDiskType() {
+        return flushDiskType;
+    }
+
+    public void setFlushDiskType(FlushDiskType flushDiskType) {
+        this.flushDiskType = flushDiskType;
+    }
+
+    public int getFlushIntervalCommitLog() {
+        return flushIntervalCommitLog;
+    }
+
+    public void setFlushIntervalCommitLog(int flushIntervalCommitLog) {
+        this.flushIntervalCommitLog = flushIntervalCommitLog;
+    }
+
+    public int getFlushCommitLogLeastPages() {
+        return flushCommitLogLeastPages;
+    }
+
+    public void setFlushCommitLogLeastPages(int flushCommitLogLeastPages) {
+        this.flushCommitLogLeastPages = flushCommitLogLeastPages;
+    }
+
+    public int getFlushCommitLogThoroughInterval() {
+        return flushCommitLogThoroughInterval;
+    }
+
+    public void setFlushCommitLogThoroughInterval(int flushCommitLogThoroughInterval) {
+        this.flushCommitLogThoroughInterval = flushCommitLogThoroughInterval;
+    }
+
+    public int getSyncFlushTimeout() {
+        return syncFlushTimeout;
+    }
+
+    public void setSyncFlushTimeout(int syncFlushTimeout) {
+        this.syncFlushTimeout = syncFlushTimeout;
+    }
+
+    public boolean isMessageCrcEnable() {
+        return messageCrcEnable;
+    }
+
+    public void setMessageCrcEnable(boolean messageCrcEnable) {
+        this.messageCrcEnable = messageCrcEnable;
+    }
+
+    public boolean isCheckCrcOnRecover() {
+        return checkCrcOnRecover;
+    }
+
+    public void setCheckCrcOnRecover(boolean checkCrcOnRecover) {
+        this.checkCrcOnRecover = checkCrcOnRecover;
+    }
+
+    public boolean isCheckCrcOnRead() {
+        return checkCrcOnRead;
+    }
+
+    public void setCheckCrcOnRead(boolean checkCrcOnRead) {
+        this.checkCrcOnRead = checkCrcOnRead;
+    }
+
+    public boolean isAppendResultReuseEnable() {
+        return appendResultReuseEnable;
+    }
+
+    public void setAppendResultReuseEnable(boolean appendResultReuseEnable) {
+        this.appendResultReuseEnable = appendResultReuseEnable;
+    }
+
+    public boolean isDirectEncodeEnable() {
+        return directEncodeEnable;
+    }
+
+    public void setDirectEncodeEnable(boolean directEncodeEnable) {
+        this.directEncodeEnable = directEncodeEnable;
+    }
+
+    public int getRecoverConcurrency() {
+        return recoverConcurrency;
+    }
+
+    public void setRecoverConcurrency(int recoverConcurrency) {
+        this.recoverConcurrency = recoverConcurrency;
+    }
+
+    public String getStorePathCheckpoint() {
+        return this.storePathRootDir + File.separator + "checkpoint";
+    }
+
+    public String getStorePathAbortFile() {
+        return this.storePathRootDir + File.separator + "abort";
+    }
+
+    public int getMaxDispatchBatchSize() {
+        return maxDispatchBatchSize;
+    }
+
+    public void setMaxDispatchBatchSize(int maxDispatchBatchSize) {
+        this.maxDispatchBatchSize = maxDispatchBatchSize;
+    }
+
+    public int getFlushIntervalConsumeQueue() {
+        return flushIntervalConsumeQueue;
+    }
+
+    public void setFlushIntervalConsumeQueue(int flushIntervalConsumeQueue) {
+        this.flushIntervalConsumeQueue = flushIntervalConsumeQueue;
+    }
+
+    public int getFlushConsumeQueueLeastPages() {
+        return flushConsumeQueueLeastPages;
+    }
+
+    public void setFlushConsumeQueueLeastPages(int flushConsumeQueueLeastPages) {
+        this.flushConsumeQueueLeastPages = flushConsumeQueueLeastPages;
+    }
+
+    public int getFlushConsumeQueueThoroughInterval() {
+        return flushConsumeQueueThoroughInterval;
+    }
+
+    public void setFlushConsumeQueueThoroughInterval(int flushConsumeQueueThoroughInterval) {
+        this.flushConsumeQueueThoroughInterval = flushConsumeQueueThoroughInterval;
+    }
+
+    public boolean isMessageIndexEnable() {
+        return messageIndexEnable;
+    }
+
+    public void setMessageIndexEnable(boolean messageIndexEnable) {
+        this.messageIndexEnable = messageIndexEnable;
+    }
+
+    public int getMaxHashSlotNum() {
+        return maxHashSlotNum;
+    }
+
+    public void setMaxHashSlotNum(int maxHashSlotNum) {
+        this.maxHashSlotNum = maxHashSlotNum;
+    }
+
+    public int getMaxIndexNum() {
+        return maxIndexNum;
+    }
+
+    public void setMaxIndexNum(int maxIndexNum) {
+        this.maxIndexNum = maxIndexNum;
+    }
+
+    /**
+     * 堆外内存池只在异步刷盘时启用，同步刷盘要求数据写入后立即落盘，先写堆外内存没有意义
+     * @return
+     */
+    public boolean isTransientStorePoolEnable() {
+        return transientStorePoolEnable && FlushDiskType.ASYNC_FLUSH == getFlushDiskType();
+    }
+
+    public void setTransientStorePoolEnable(boolean transientStorePoolEnable) {
+        this.transientStorePoolEnable = transientStorePoolEnable;
+    }
+
+    public int getTransientStorePoolSize() {
+        return transientStorePoolSize;
+    }
+
+    public void setTransientStorePoolSize(int transientStorePoolSize) {
+        this.transientStorePoolSize = transientStorePoolSize;
+    }
+
+    public int getCommitIntervalCommitLog() {
+        return commitIntervalCommitLog;
+    }
+
+    public void setCommitIntervalCommitLog(int commitIntervalCommitLog) {
+        this.commitIntervalCommitLog = commitIntervalCommitLog;
+    }
+
+    public int getCommitCommitLogLeastPages() {
+        return commitCommitLogLeastPages;
+    }
+
+    public void setCommitCommitLogLeastPages(int commitCommitLogLeastPages) {
+        this.commitCommitLogLeastPages = commitCommitLogLeastPages;
+    }
+
+    public int getCommitCommitLogThoroughInterval() {
+        return commitCommitLogThoroughInterval;
+    }
+
+    public void setCommitCommitLogThoroughInterval(int commitCommitLogThoroughInterval) {
+        this.commitCommitLogThoroughInterval = commitCommitLogThoroughInterval;
+    }
+
+    public boolean isWarmMappedFileEnable() {
+        return warmMappedFileEnable;
+    }
+
+    public void setWarmMappedFileEnable(boolean warmMappedFileEnable) {
+        this.warmMappedFileEnable = warmMappedFileEnable;
+    }
+
+    public int getFlushLeastPagesWhenWarmMappedFile() {
+        return flushLeastPagesWhenWarmMappedFile;
+    }
+
+    public void setFlushLeastPagesWhenWarmMappedFile(int flushLeastPagesWhenWarmMappedFile) {
+        this.flushLeastPagesWhenWarmMappedFile = flushLeastPagesWhenWarmMappedFile;
+    }
+
+    public int getFileReservedTime() {
+        return fileReservedTime;
+    }
+
+    public void setFileReservedTime(int fileReservedTime) {
+        this.fileReservedTime = fileReservedTime;
+    }
+
+    public int getCleanResourceInterval() {
+        return cleanResourceInterval;
+    }
+
+    public void setCleanResourceInterval(int cleanResourceInterval) {
+        this.cleanResourceInterval = cleanResourceInterval;
+    }
+
+    public int getDeleteCommitLogFilesInterval() {
+        return deleteCommitLogFilesInterval;
+    }
+
+    public void setDeleteCommitLogFilesInterval(int deleteCommitLogFilesInterval) {
+        this.deleteCommitLogFilesInterval = deleteCommitLogFilesInterval;
+    }
+
+    public int getDeleteFilesBatchMax() {
+        return deleteFilesBatchMax;
+    }
+
+    public void setDeleteFilesBatchMax(int deleteFilesBatchMax) {
+        this.deleteFilesBatchMax = deleteFilesBatchMax;
+    }
+
+    public int getDestroyMapedFileIntervalForcibly() {
+        return destroyMapedFileIntervalForcibly;
+    }
+
+    public void setDestroyMapedFileIntervalForcibly(int destroyMapedFileIntervalForcibly) {
+        this.destroyMapedFileIntervalForcibly = destroyMapedFileIntervalForcibly;
+    }
+
+    /**
+     * 取值限制在[10, 95]之间
+     * @return
+     */
+    public int getDiskMaxUsedSpaceRatio() {
+        if (this.diskMaxUsedSpaceRatio < 10) {
+            return 10;
+        }
+        if (this.diskMaxUsedSpaceRatio > 95) {
+            return 95;
+        }
+        return diskMaxUsedSpaceRatio;
+    }
+
+    public void setDiskMaxUsedSpaceRatio(int diskMaxUsedSpaceRatio) {
+        this.diskMaxUsedSpaceRatio = diskMaxUsedSpaceRatio;
+    }
+
+    public long getOsPageCacheBusyTimeOutMills() {
+        return osPageCacheBusyTimeOutMills;
+    }
+
+    public void setOsPageCacheBusyTimeOutMills(long osPageCacheBusyTimeOutMills) {
+        this.osPageCacheBusyTimeOutMills = osPageCacheBusyTimeOutMills;
+    }
+
+    public long getFlushBehindBusyBytes() {
+        return flushBehindBusyBytes;
+    }
+
+    public void setFlushBehindBusyBytes(long flushBehindBusyBytes) {
+        this.flushBehindBusyBytes = flushBehindBusyBytes;
+    }
+
+    public int getDiskBusyUsedSpaceRatio() {
+        return diskBusyUsedSpaceRatio;
+    }
+
+    public void setDiskBusyUsedSpaceRatio(int diskBusyUsedSpaceRatio) {
+        this.diskBusyUsedSpaceRatio = diskBusyUsedSpaceRatio;
+    }
+
+    public int getStoreStatsInterval() {
+        return storeStatsInterval;
+    }
+
+    public void setStoreStatsInterval(int storeStatsInterval) {
+        this.storeStatsInterval = storeStatsInterval;
+    }
+
+    public long getMaxMappedVirtualMemory() {
+        return maxMappedVirtualMemory;
+    }
+
+    public void setMaxMappedVirtualMemory(long maxMappedVirtualMemory) {
+        this.maxMappedVirtualMemory = maxMappedVirtualMemory;
+    }
+
+    public ByteBufferType getCommitLogByteBufferType() {
+        return commitLogByteBufferType;
+    }
+
+    public void setCommitLogByteBufferType(ByteBufferType commitLogByteBufferType) {
+        this.commitLogByteBufferType = commitLogByteBufferType;
+    }
+
+    /**
+     * 一次读取至少要能容纳消息头，比一次读取的数据更长的消息由分发服务按消息长度重新读取
+     * @return
+     */
+    public int getFileChannelReadAheadSize() {
+        return Math.max(this.fileChannelReadAheadSize, MessageDecoder.MESSAGE_BODY_LENGTH_POSITION + 4);
+    }
+
+    public void setFileChannelReadAheadSize(int fileChannelReadAheadSize) {
+        this.fileChannelReadAheadSize = fileChannelReadAheadSize;
+    }
+}
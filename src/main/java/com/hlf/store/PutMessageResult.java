@@ -0,0 +1,40 @@
+package com.hlf.store;
+
+public class PutMessageResult {
+
+    // 写入commitLog的结果
+    private PutMessageStatus putMessageStatus;
+    // 写入内存映射文件的结果
+    private AppendMessageResult appendMessageResult;
+
+    public PutMessageResult(PutMessageStatus putMessageStatus, AppendMessageResult appendMessageResult) {
+        this.putMessageStatus = putMessageStatus;
+        this.appendMessageResult = appendMessageResult;
+    }
+
+    public boolean isOk() {
+        return this.appendMessageResult != null && this.appendMessageResult.isOk();
+    }
+
+    public PutMessageStatus getPutMessageStatus() {
+        return putMessageStatus;
+    }
+
+    public void setPutMessageStatus(PutMessageStatus putMessageStatus) {
+        this.putMessageStatus = putMessageStatus;
+    }
+
+    public AppendMessageResult getAppendMessageResult() {
+        return appendMessageResult;
+    }
+
+    public void setAppendMessageResult(AppendMessageResult appendMessageResult) {
+        this.appendMessageResult = appendMessageResult;
+    }
+
+    @Override
+    public String toString() {
+        return "PutMessageResult [putMessageStatus=" + putMessageStatus + ", appendMessageResult="
+                + appendMessageResult + "]";
+    }
+}
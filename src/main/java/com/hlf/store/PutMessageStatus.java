@@ -0,0 +1,10 @@
+package com.hlf.store;
+
+public enum PutMessageStatus {
+
+    PUT_OK,// 写入成功
+    FLUSH_DISK_TIMEOUT,// 同步刷盘超时，消息已写入但未确认落盘
+    CREATE_MAPEDFILE_FAILED,// 创建内存映射文件失败
+    MESSAGE_ILLEGAL,// 消息不合法(长度或属性超过限制)
+    UNKNOWN_ERROR// 未知异常
+}
@@ -0,0 +1,60 @@
+package com.hlf.store;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 按key查询消息的结果，消息数据是commitLog映射区域的只读切片。
+ * 使用完毕后必须调用release释放对文件的引用
+ */
+public class QueryMessageResult {
+
+    private final List<SelectMappedBufferResult> messageMapedList = new ArrayList<SelectMappedBufferResult>(32);
+    private final List<ByteBuffer> messageBufferList = new ArrayList<ByteBuffer>(32);
+
+    private long indexLastUpdateTimestamp;
+    private long indexLastUpdatePhyoffset;
+    // 所有消息的总字节数
+    private int bufferTotalSize = 0;
+
+    public void addMessage(final SelectMappedBufferResult mapedBuffer) {
+        this.messageMapedList.add(mapedBuffer);
+        this.messageBufferList.add(mapedBuffer.getByteBuffer());
+        this.bufferTotalSize += mapedBuffer.getSize();
+    }
+
+    public void release() {
+        for (SelectMappedBufferResult select : this.messageMapedList) {
+            select.release();
+        }
+    }
+
+    public List<SelectMappedBufferResult> getMessageMapedList() {
+        return messageMapedList;
+    }
+
+    public List<ByteBuffer> getMessageBufferList() {
+        return messageBufferList;
+    }
+
+    public long getIndexLastUpdateTimestamp() {
+        return indexLastUpdateTimestamp;
+    }
+
+    public void setIndexLastUpdateTimestamp(long indexLastUpdateTimestamp) {
+        this.indexLastUpdateTimestamp = indexLastUpdateTimestamp;
+    }
+
+    public long getIndexLastUpdatePhyoffset() {
+        return indexLastUpdatePhyoffset;
+    }
+
+    public void setIndexLastUpdatePhyoffset(long indexLastUpdatePhyoffset) {
+        this.indexLastUpdatePhyoffset = indexLastUpdatePhyoffset;
+    }
+
+    public int getBufferTotalSize() {
+        return bufferTotalSize;
+    }
+}
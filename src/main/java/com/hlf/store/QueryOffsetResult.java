@@ -0,0 +1,34 @@
+package com.hlf.store;
+
+import java.util.List;
+
+/**
+ * 按key查询索引的结果
+ */
+public class QueryOffsetResult {
+
+    // 消息的物理偏移量
+    private final List<Long> phyOffsets;
+    // 最后一个索引文件的最后存储时间
+    private final long indexLastUpdateTimestamp;
+    // 最后一个索引文件的最后物理偏移量
+    private final long indexLastUpdatePhyoffset;
+
+    public QueryOffsetResult(List<Long> phyOffsets, long indexLastUpdateTimestamp, long indexLastUpdatePhyoffset) {
+        this.phyOffsets = phyOffsets;
+        this.indexLastUpdateTimestamp = indexLastUpdateTimestamp;
+        this.indexLastUpdatePhyoffset = indexLastUpdatePhyoffset;
+    }
+
+    public List<Long> getPhyOffsets() {
+        return phyOffsets;
+    }
+
+    public long getIndexLastUpdateTimestamp() {
+        return indexLastUpdateTimestamp;
+    }
+
+    public long getIndexLastUpdatePhyoffset() {
+        return indexLastUpdatePhyoffset;
+    }
+}
@@ -0,0 +1,85 @@
+package com.hlf.store;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 引用计数资源：读取方持有引用期间资源不会被释放，
+ * 关闭后等所有引用都释放(或超过强制释放时间)才真正清理
+ */
+public abstract class ReferenceResource {
+
+    // 引用计数，初始为1，代表资源自身的引用
+    protected final AtomicLong refCount = new AtomicLong(1);
+    // 是否可用，关闭后不再允许新的引用
+    protected volatile boolean available = true;
+    // 是否已清理完毕
+    protected volatile boolean cleanupOver = false;
+    // 第一次关闭的时间
+    private volatile long firstShutdownTimestamp = 0;
+
+    /**
+     * 增加引用
+     * @return 资源已关闭时返回false
+     */
+    public synchronized boolean hold() {
+        if (this.isAvailable()) {
+            if (this.refCount.getAndIncrement() > 0) {
+                return true;
+            } else {
+                this.refCount.getAndDecrement();
+            }
+        }
+
+        return false;
+    }
+
+    public boolean isAvailable() {
+        return this.available;
+    }
+
+    /**
+     * 关闭资源，释放自身的引用。若超过intervalForcibly后仍有引用未释放，则强制释放
+     * @param intervalForcibly
+     */
+    public void shutdown(final long intervalForcibly) {
+        if (this.available) {
+            this.available = false;
+            this.firstShutdownTimestamp = System.currentTimeMillis();
+            this.release();
+        } else if (this.getRefCount() > 0) {
+            if ((System.currentTimeMillis() - this.firstShutdownTimestamp) >= intervalForcibly) {
+                this.refCount.set(-1000 - this.getRefCount());
+                this.release();
+            }
+        }
+    }
+
+    /**
+     * 释放引用，引用计数归零时清理资源
+     */
+    public void release() {
+        long value = this.refCount.decrementAndGet();
+        if (value > 0) {
+            return;
+        }
+
+        synchronized (this) {
+            this.cleanupOver = this.cleanup(value);
+        }
+    }
+
+    public long getRefCount() {
+        return this.refCount.get();
+    }
+
+    /**
+     * 清理资源
+     * @param currentRef
+     * @return 是否清理完毕
+     */
+    public abstract boolean cleanup(final long currentRef);
+
+    public boolean isCleanupOver() {
+        return this.refCount.get() <= 0 && this.cleanupOver;
+    }
+}
@@ -0,0 +1,57 @@
+package com.hlf.store;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 从文件中读取的结果，内存映射文件返回映射区域的只读切片，没有数据拷贝；
+ * FileChannel文件返回读取到的数据副本。使用完毕后必须调用release释放对文件的引用
+ */
+public class SelectMappedBufferResult {
+
+    // 数据在commitLog中的起始物理偏移量
+    private final long startOffset;
+    // 映射区域的只读切片或读取到的数据
+    private final ByteBuffer byteBuffer;
+    // 数据长度
+    private int size;
+    // 数据所在的文件
+    private CommitLogSegment mappedFile;
+
+    public SelectMappedBufferResult(long startOffset, ByteBuffer byteBuffer, int size, CommitLogSegment mappedFile) {
+        this.startOffset = startOffset;
+        this.byteBuffer = byteBuffer;
+        this.size = size;
+        this.mappedFile = mappedFile;
+    }
+
+    public ByteBuffer getByteBuffer() {
+        return byteBuffer;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public void setSize(final int s) {
+        this.size = s;
+        this.byteBuffer.limit(this.size);
+    }
+
+    public CommitLogSegment getMappedFile() {
+        return mappedFile;
+    }
+
+    /**
+     * 释放对文件的引用
+     */
+    public synchronized void release() {
+        if (this.mappedFile != null) {
+            this.mappedFile.release();
+            this.mappedFile = null;
+        }
+    }
+
+    public long getStartOffset() {
+        return startOffset;
+    }
+}
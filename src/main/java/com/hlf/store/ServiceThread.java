@@ -0,0 +1,86 @@
+package com.hlf.store;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 后台服务线程基类，支持按时间间隔等待以及被其他线程提前唤醒
+ */
+public abstract class ServiceThread implements Runnable {
+
+    private static final long JOIN_TIME = 90 * 1000;
+
+    protected final Thread thread;
+    // 是否已被唤醒，避免重复notify
+    protected final AtomicBoolean hasNotified = new AtomicBoolean(false);
+    protected volatile boolean stopped = false;
+
+    public ServiceThread() {
+        this.thread = new Thread(this, this.getServiceName());
+    }
+
+    public abstract String getServiceName();
+
+    public void start() {
+        this.thread.start();
+    }
+
+    /**
+     * 停止服务，唤醒并等待线程退出
+     */
+    public void shutdown() {
+        this.stopped = true;
+        System.out.println("shutdown thread " + this.getServiceName());
+        this.wakeup();
+
+        try {
+            this.thread.join(JOIN_TIME);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 唤醒服务线程
+     */
+    public void wakeup() {
+        if (hasNotified.compareAndSet(false, true)) {
+            synchronized (this) {
+                this.notify();
+            }
+        }
+    }
+
+    /**
+     * 等待interval毫秒，期间被唤醒则提前返回
+     * @param interval
+     */
+    protected void waitForRunning(long interval) {
+        if (hasNotified.compareAndSet(true, false)) {
+            this.onWaitEnd();
+            return;
+        }
+
+        synchronized (this) {
+            try {
+                if (!hasNotified.get()) {
+                    this.wait(interval);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                hasNotified.set(false);
+                this.onWaitEnd();
+            }
+        }
+    }
+
+    /**
+     * 每次等待结束时回调
+     */
+    protected void onWaitEnd() {
+    }
+
+    public boolean isStopped() {
+        return stopped;
+    }
+}
@@ -0,0 +1,125 @@
+package com.hlf.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 检查点文件，记录已落盘的位置，重启时从这里开始校验数据，无需扫描全部文件。
+ * 每个commitLog分片占16字节，分片i从i * 16处开始：
+ * commitLog已刷盘的物理偏移量(8) + 消费队列和索引已刷盘时的分发位置(8)。
+ * 文件最后4字节记录分片数，不分片时的旧文件中为0
+ */
+public class StoreCheckpoint {
+
+    // 每个分片占用的字节数
+    private static final int STRIPE_UNIT_SIZE = 16;
+    // 分片数的存储位置
+    private static final int STRIPE_COUNT_POSITION = MappedFile.OS_PAGE_SIZE - 4;
+
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel fileChannel;
+    private final MappedByteBuffer mappedByteBuffer;
+    private final int stripeCount;
+    // 文件中记录的分片数，文件不存在时为当前分片数
+    private final int storedStripeCount;
+    // 各分片commitLog已刷盘的物理偏移量，之前的消息都已完整落盘
+    private final long[] physicOffsets;
+    // 各分片消费队列和索引已刷盘时的分发位置，之前的消息都已构建索引并落盘
+    private final long[] logicsOffsets;
+
+    public StoreCheckpoint(final String scpPath) throws IOException {
+        this(scpPath, 1);
+    }
+
+    /**
+     * @param scpPath
+     * @param stripeCount commitLog分片数
+     * @throws IOException
+     */
+    public StoreCheckpoint(final String scpPath, final int stripeCount) throws IOException {
+        File file = new File(scpPath);
+        MappedFile.ensureDirOk(file.getParent());
+        boolean fileExists = file.exists();
+
+        this.randomAccessFile = new RandomAccessFile(file, "rw");
+        this.fileChannel = this.randomAccessFile.getChannel();
+        this.mappedByteBuffer = this.fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, MappedFile.OS_PAGE_SIZE);
+        this.stripeCount = stripeCount;
+        this.physicOffsets = new long[stripeCount];
+        this.logicsOffsets = new long[stripeCount];
+
+        if (fileExists) {
+            int stored = this.mappedByteBuffer.getInt(STRIPE_COUNT_POSITION);
+            this.storedStripeCount = stored > 0 ? stored : 1;
+            for (int i = 0; i < Math.min(stripeCount, this.storedStripeCount); i++) {
+                this.physicOffsets[i] = this.mappedByteBuffer.getLong(i * STRIPE_UNIT_SIZE);
+                this.logicsOffsets[i] = this.mappedByteBuffer.getLong(i * STRIPE_UNIT_SIZE + 8);
+
+                System.out.println("store checkpoint file stripe " + i + " physicOffset " + this.physicOffsets[i]
+                        + " logicsOffset " + this.logicsOffsets[i]);
+            }
+        } else {
+            this.storedStripeCount = stripeCount;
+            System.out.println("store checkpoint file not exists, " + scpPath);
+        }
+    }
+
+    public void shutdown() {
+        this.flush();
+
+        try {
+            this.fileChannel.close();
+        } catch (IOException e) {
+            System.out.println("Failed to properly close the channel");
+            e.printStackTrace();
+        }
+    }
+
+    public void flush() {
+        for (int i = 0; i < this.stripeCount; i++) {
+            this.mappedByteBuffer.putLong(i * STRIPE_UNIT_SIZE, this.physicOffsets[i]);
+            this.mappedByteBuffer.putLong(i * STRIPE_UNIT_SIZE + 8, this.logicsOffsets[i]);
+        }
+        this.mappedByteBuffer.putInt(STRIPE_COUNT_POSITION, this.stripeCount);
+        this.mappedByteBuffer.force();
+    }
+
+    public int getStoredStripeCount() {
+        return storedStripeCount;
+    }
+
+    public long getPhysicOffset() {
+        return this.getPhysicOffset(0);
+    }
+
+    public void setPhysicOffset(long physicOffset) {
+        this.setPhysicOffset(0, physicOffset);
+    }
+
+    public long getLogicsOffset() {
+        return this.getLogicsOffset(0);
+    }
+
+    public void setLogicsOffset(long logicsOffset) {
+        this.setLogicsOffset(0, logicsOffset);
+    }
+
+    public long getPhysicOffset(final int stripe) {
+        return physicOffsets[stripe];
+    }
+
+    public void setPhysicOffset(final int stripe, final long physicOffset) {
+        this.physicOffsets[stripe] = physicOffset;
+    }
+
+    public long getLogicsOffset(final int stripe) {
+        return logicsOffsets[stripe];
+    }
+
+    public void setLogicsOffset(final int stripe, final long logicsOffset) {
+        this.logicsOffsets[stripe] = logicsOffset;
+    }
+}
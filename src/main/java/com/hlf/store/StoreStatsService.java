@@ -0,0 +1,180 @@
+package com.hlf.store;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 存储统计服务：写线程和刷盘线程通过LongAdder和固定分桶直方图记录，不加锁；
+ * 后台线程每隔storeStatsInterval生成一次周期快照并打印，统计周期内的写入TPS、字节速率和延迟分布
+ */
+public class StoreStatsService extends ServiceThread {
+
+    private final MessageStoreConfig messageStoreConfig;
+    // 累计写入的消息数
+    private final LongAdder putMessageTimesTotal = new LongAdder();
+    // 累计写入的字节数
+    private final LongAdder putMessageBytesTotal = new LongAdder();
+    // 累计写入失败的次数
+    private final LongAdder putMessageFailedTimesTotal = new LongAdder();
+    // 追加消息到commitLog文件的耗时，不含等待写锁和刷盘
+    private final LatencyHistogram appendLatency = new LatencyHistogram();
+    // commitLog有数据落盘的刷盘耗时
+    private final LatencyHistogram flushLatency = new LatencyHistogram();
+    // 各topic累计写入的消息数
+    private final ConcurrentMap<String, LongAdder> topicPutTimesTotal = new ConcurrentHashMap<String, LongAdder>(128);
+
+    // 上次生成快照时的累计值，只在生成快照时访问
+    private long lastSnapshotTimestamp = System.currentTimeMillis();
+    private long lastPutMessageTimes = 0;
+    private long lastPutMessageBytes = 0;
+    private long lastPutMessageFailedTimes = 0;
+    private long[] lastAppendLatencyBuckets = new long[LatencyHistogram.BUCKET_NUM];
+    private long[] lastFlushLatencyBuckets = new long[LatencyHistogram.BUCKET_NUM];
+    // 最近一次生成的快照
+    private volatile StoreStatsSnapshot lastSnapshot;
+
+    public StoreStatsService(final MessageStoreConfig messageStoreConfig) {
+        this.messageStoreConfig = messageStoreConfig;
+    }
+
+    /**
+     * 记录一次追加消息的耗时
+     * @param costNanos
+     */
+    public void recordAppendLatency(final long costNanos) {
+        this.appendLatency.record(costNanos);
+    }
+
+    /**
+     * 记录一次有数据落盘的刷盘耗时
+     * @param costNanos
+     */
+    public void recordFlushLatency(final long costNanos) {
+        this.flushLatency.record(costNanos);
+    }
+
+    /**
+     * 记录写入成功的一条消息
+     * @param topic
+     * @param wroteBytes
+     */
+    public void recordPut(final String topic, final long wroteBytes) {
+        this.putMessageTimesTotal.increment();
+        this.putMessageBytesTotal.add(wroteBytes);
+        this.topicPutTimes(topic).increment();
+    }
+
+    /**
+     * 记录写入成功的一批消息
+     * @param msgs
+     * @param wroteBytes 整批消息的字节数
+     */
+    public void recordPut(final List<MessageExtBrokerInner> msgs, final long wroteBytes) {
+        this.putMessageTimesTotal.add(msgs.size());
+        this.putMessageBytesTotal.add(wroteBytes);
+        for (MessageExtBrokerInner msg : msgs) {
+            this.topicPutTimes(msg.getTopic()).increment();
+        }
+    }
+
+    public void recordPutFailed() {
+        this.putMessageFailedTimesTotal.increment();
+    }
+
+    private LongAdder topicPutTimes(final String topic) {
+        LongAdder times = this.topicPutTimesTotal.get(topic);
+        if (null == times) {
+            LongAdder newTimes = new LongAdder();
+            LongAdder oldTimes = this.topicPutTimesTotal.putIfAbsent(topic, newTimes);
+            times = oldTimes != null ? oldTimes : newTimes;
+        }
+        return times;
+    }
+
+    /**
+     * 生成自上次快照以来的周期快照
+     * @return
+     */
+    public synchronized StoreStatsSnapshot snapshot() {
+        long now = System.currentTimeMillis();
+        long putMessageTimes = this.putMessageTimesTotal.sum();
+        long putMessageBytes = this.putMessageBytesTotal.sum();
+        long putMessageFailedTimes = this.putMessageFailedTimesTotal.sum();
+        long[] appendLatencyBuckets = this.appendLatency.bucketCounts();
+        long[] flushLatencyBuckets = this.flushLatency.bucketCounts();
+
+        Map<String, Long> topicPutTimes = new HashMap<String, Long>(this.topicPutTimesTotal.size());
+        for (Map.Entry<String, LongAdder> entry : this.topicPutTimesTotal.entrySet()) {
+            topicPutTimes.put(entry.getKey(), entry.getValue().sum());
+        }
+
+        StoreStatsSnapshot snapshot = new StoreStatsSnapshot(now, now - this.lastSnapshotTimestamp,
+                putMessageTimes - this.lastPutMessageTimes, putMessageBytes - this.lastPutMessageBytes,
+                putMessageFailedTimes - this.lastPutMessageFailedTimes,
+                delta(appendLatencyBuckets, this.lastAppendLatencyBuckets), this.appendLatency.getThenResetMaxMicros(),
+                delta(flushLatencyBuckets, this.lastFlushLatencyBuckets), this.flushLatency.getThenResetMaxMicros(),
+                topicPutTimes);
+
+        this.lastSnapshotTimestamp = now;
+        this.lastPutMessageTimes = putMessageTimes;
+        this.lastPutMessageBytes = putMessageBytes;
+        this.lastPutMessageFailedTimes = putMessageFailedTimes;
+        this.lastAppendLatencyBuckets = appendLatencyBuckets;
+        this.lastFlushLatencyBuckets = flushLatencyBuckets;
+        this.lastSnapshot = snapshot;
+        return snapshot;
+    }
+
+    private static long[] delta(final long[] current, final long[] last) {
+        long[] delta = new long[current.length];
+        for (int i = 0; i < current.length; i++) {
+            delta[i] = current[i] - last[i];
+        }
+        return delta;
+    }
+
+    @Override
+    public void run() {
+        System.out.println(this.getServiceName() + " service started");
+
+        while (!this.isStopped()) {
+            try {
+                this.waitForRunning(this.messageStoreConfig.getStoreStatsInterval());
+                if (this.isStopped()) {
+                    break;
+                }
+                System.out.println("[STORESTATS] " + this.snapshot());
+            } catch (Exception e) {
+                System.out.println(this.getServiceName() + " service has exception. ");
+                e.printStackTrace();
+            }
+        }
+
+        System.out.println(this.getServiceName() + " service end");
+    }
+
+    @Override
+    public String getServiceName() {
+        return StoreStatsService.class.getSimpleName();
+    }
+
+    public long getPutMessageTimesTotal() {
+        return putMessageTimesTotal.sum();
+    }
+
+    public long getPutMessageBytesTotal() {
+        return putMessageBytesTotal.sum();
+    }
+
+    public long getPutMessageFailedTimesTotal() {
+        return putMessageFailedTimesTotal.sum();
+    }
+
+    public StoreStatsSnapshot getLastSnapshot() {
+        return lastSnapshot;
+    }
+}
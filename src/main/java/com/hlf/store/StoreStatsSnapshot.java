@@ -0,0 +1,142 @@
+package com.hlf.store;
+
+import java.util.Map;
+
+/**
+ * 一个统计周期内的存储统计：写入TPS、写入字节速率、写入和刷盘的延迟分布，以及各topic累计写入的消息数
+ */
+public class StoreStatsSnapshot {
+
+    // 生成快照的时间
+    private final long timestamp;
+    // 统计周期(毫秒)
+    private final long intervalMillis;
+    // 周期内写入的消息数
+    private final long putMessageTimes;
+    // 周期内写入的字节数
+    private final long putMessageBytes;
+    // 周期内写入失败的次数
+    private final long putMessageFailedTimes;
+    // 周期内追加消息耗时的分桶次数
+    private final long[] appendLatencyBuckets;
+    // 周期内追加消息的最大耗时(微秒)
+    private final long appendLatencyMaxMicros;
+    // 周期内刷盘耗时的分桶次数，只统计有数据落盘的刷盘
+    private final long[] flushLatencyBuckets;
+    // 周期内刷盘的最大耗时(微秒)
+    private final long flushLatencyMaxMicros;
+    // 各topic累计写入的消息数
+    private final Map<String, Long> topicPutTimes;
+
+    public StoreStatsSnapshot(long timestamp, long intervalMillis, long putMessageTimes, long putMessageBytes,
+                              long putMessageFailedTimes, long[] appendLatencyBuckets, long appendLatencyMaxMicros,
+                              long[] flushLatencyBuckets, long flushLatencyMaxMicros, Map<String, Long> topicPutTimes) {
+        this.timestamp = timestamp;
+        this.intervalMillis = intervalMillis;
+        this.putMessageTimes = putMessageTimes;
+        this.putMessageBytes = putMessageBytes;
+        this.putMessageFailedTimes = putMessageFailedTimes;
+        this.appendLatencyBuckets = appendLatencyBuckets;
+        this.appendLatencyMaxMicros = appendLatencyMaxMicros;
+        this.flushLatencyBuckets = flushLatencyBuckets;
+        this.flushLatencyMaxMicros = flushLatencyMaxMicros;
+        this.topicPutTimes = topicPutTimes;
+    }
+
+    /**
+     * 周期内每秒写入的消息数
+     * @return
+     */
+    public double getPutTps() {
+        return this.intervalMillis > 0 ? this.putMessageTimes * 1000.0 / this.intervalMillis : 0;
+    }
+
+    /**
+     * 周期内每秒写入的字节数
+     * @return
+     */
+    public double getPutBytesPerSecond() {
+        return this.intervalMillis > 0 ? this.putMessageBytes * 1000.0 / this.intervalMillis : 0;
+    }
+
+    /**
+     * 追加消息耗时的分位数(微秒)，不超过周期内的最大耗时
+     * @param percentile 分位，如0.99
+     * @return
+     */
+    public long getAppendLatencyMicros(final double percentile) {
+        return Math.min(LatencyHistogram.percentileMicros(this.appendLatencyBuckets, percentile), this.appendLatencyMaxMicros);
+    }
+
+    /**
+     * 刷盘耗时的分位数(微秒)，不超过周期内的最大耗时
+     * @param percentile 分位，如0.99
+     * @return
+     */
+    public long getFlushLatencyMicros(final double percentile) {
+        return Math.min(LatencyHistogram.percentileMicros(this.flushLatencyBuckets, percentile), this.flushLatencyMaxMicros);
+    }
+
+    /**
+     * 周期内有数据落盘的刷盘次数
+     * @return
+     */
+    public long getFlushTimes() {
+        long times = 0;
+        for (long count : this.flushLatencyBuckets) {
+            times += count;
+        }
+        return times;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    public long getPutMessageTimes() {
+        return putMessageTimes;
+    }
+
+    public long getPutMessageBytes() {
+        return putMessageBytes;
+    }
+
+    public long getPutMessageFailedTimes() {
+        return putMessageFailedTimes;
+    }
+
+    public long[] getAppendLatencyBuckets() {
+        return appendLatencyBuckets;
+    }
+
+    public long getAppendLatencyMaxMicros() {
+        return appendLatencyMaxMicros;
+    }
+
+    public long[] getFlushLatencyBuckets() {
+        return flushLatencyBuckets;
+    }
+
+    public long getFlushLatencyMaxMicros() {
+        return flushLatencyMaxMicros;
+    }
+
+    public Map<String, Long> getTopicPutTimes() {
+        return topicPutTimes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("putTps %.1f, putBytesPerSecond %.1f, putFailed %d, "
+                        + "append latency(us) p50 %d p99 %d p999 %d max %d, "
+                        + "flush times %d latency(us) p50 %d p99 %d max %d, topics %d",
+                this.getPutTps(), this.getPutBytesPerSecond(), this.putMessageFailedTimes,
+                this.getAppendLatencyMicros(0.5), this.getAppendLatencyMicros(0.99), this.getAppendLatencyMicros(0.999),
+                this.appendLatencyMaxMicros, this.getFlushTimes(), this.getFlushLatencyMicros(0.5),
+                this.getFlushLatencyMicros(0.99), this.flushLatencyMaxMicros, this.topicPutTimes.size());
+    }
+}
@@ -0,0 +1,76 @@
+package com.hlf.store;
+
+import java.nio.ByteBuffer;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+/**
+ * 堆外内存池：预先分配若干块与commitLog文件等大的堆外内存，
+ * 消息先写入堆外内存，再由后台线程批量提交到FileChannel，读取仍然走内存映射
+ */
+public class TransientStorePool {
+
+    // 堆外内存块数量
+    private final int poolSize;
+    // 每块堆外内存的大小，与commitLog文件大小一致
+    private final int fileSize;
+    // 可用的堆外内存
+    private final Deque<ByteBuffer> availableBuffers;
+
+    public TransientStorePool(final MessageStoreConfig storeConfig) {
+        this.poolSize = storeConfig.getTransientStorePoolSize();
+        this.fileSize = storeConfig.getMappedFileSizeCommitLog();
+        this.availableBuffers = new ConcurrentLinkedDeque<ByteBuffer>();
+    }
+
+    /**
+     * 预先分配堆外内存
+     */
+    public void init() {
+        for (int i = 0; i < poolSize; i++) {
+            ByteBuffer byteBuffer = ByteBuffer.allocateDirect(fileSize);
+            availableBuffers.offer(byteBuffer);
+        }
+    }
+
+    /**
+     * 立即释放池中的堆外内存，不等待GC回收。调用前借出的内存必须都已归还，
+     * 未归还的内存仍被文件引用，不能释放，只能等GC回收
+     */
+    public void destroy() {
+        int notReturned = poolSize - availableBuffers.size();
+        if (notReturned > 0) {
+            System.out.println("TransientStorePool destroy, " + notReturned + " sheets not returned");
+        }
+        ByteBuffer buffer;
+        while ((buffer = availableBuffers.pollFirst()) != null) {
+            MappedFile.clean(buffer);
+        }
+    }
+
+    /**
+     * 归还堆外内存
+     * @param byteBuffer
+     */
+    public void returnBuffer(ByteBuffer byteBuffer) {
+        byteBuffer.position(0);
+        byteBuffer.limit(fileSize);
+        this.availableBuffers.offerFirst(byteBuffer);
+    }
+
+    /**
+     * 借出一块堆外内存，没有可用的堆外内存时返回null
+     * @return
+     */
+    public ByteBuffer borrowBuffer() {
+        ByteBuffer buffer = availableBuffers.pollFirst();
+        if (availableBuffers.size() < poolSize * 0.4) {
+            System.out.println("TransientStorePool only remain " + availableBuffers.size() + " sheets.");
+        }
+        return buffer;
+    }
+
+    public int availableBufferNums() {
+        return availableBuffers.size();
+    }
+}
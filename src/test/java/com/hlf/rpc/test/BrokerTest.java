@@ -1,12 +1,14 @@
 package com.hlf.rpc.test;
 import com.hlf.rpc.netty.NettyServerConfig;
+import com.hlf.rpc.test.broker.BrokerConfig;
 import com.hlf.rpc.test.broker.BrokerController;
+import com.hlf.store.MessageStoreConfig;
 
 public class BrokerTest {
 
     public static void main(String[] args) {
         final NettyServerConfig nettyServerConfig = new NettyServerConfig();
-        BrokerController brokerController = new BrokerController(nettyServerConfig);
+        BrokerController brokerController = new BrokerController(new BrokerConfig(), nettyServerConfig, new MessageStoreConfig());
         boolean result = brokerController.initialize();
         if (result) {
             brokerController.start();
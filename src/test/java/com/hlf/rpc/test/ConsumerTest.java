@@ -0,0 +1,36 @@
+package com.hlf.rpc.test;
+
+import com.hlf.rpc.netty.NettyClientConfig;
+import com.hlf.rpc.test.consumer.DefaultMQPullConsumer;
+import com.hlf.rpc.test.consumer.PullResult;
+import com.hlf.store.MessageExt;
+
+public class ConsumerTest {
+
+    public static void main(String[] args) {
+        try {
+            NettyClientConfig nettyClientConfig = new NettyClientConfig();
+            String brokerAddr = "127.0.0.1:8888";
+
+            DefaultMQPullConsumer consumer = new DefaultMQPullConsumer(nettyClientConfig);
+            consumer.setBrokerAddr(brokerAddr);
+            consumer.start();
+
+            long offset = 0;
+            while (true) {
+                // 没有新消息时请求在broker挂起，生产者发送消息后立即返回
+                PullResult pullResult = consumer.pullBlockIfNotFound("my-topic", 0, offset, 32);
+                System.out.println("拉取结果：" + pullResult);
+                if (pullResult.getMsgFoundList() != null) {
+                    for (MessageExt msg : pullResult.getMsgFoundList()) {
+                        System.out.println("消费消息，offset：" + msg.getCommitLogOffset() + "，内容：" + new String(msg.getBody(), "UTF-8"));
+                    }
+                }
+                offset = pullResult.getNextBeginOffset();
+                System.out.println("=======================================");
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
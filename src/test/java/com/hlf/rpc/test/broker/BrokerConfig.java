@@ -0,0 +1,15 @@
+package com.hlf.rpc.test.broker;
+
+public class BrokerConfig {
+
+    // 拉取消息时是否先把消息拷贝到响应体中再发送，为false时消息直接从commitLog写到socket
+    private boolean transferMsgByHeap = false;
+
+    public boolean isTransferMsgByHeap() {
+        return transferMsgByHeap;
+    }
+
+    public void setTransferMsgByHeap(boolean transferMsgByHeap) {
+        this.transferMsgByHeap = transferMsgByHeap;
+    }
+}
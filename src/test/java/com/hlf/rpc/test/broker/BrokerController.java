@@ -3,31 +3,58 @@ package com.hlf.rpc.test.broker;
 import com.hlf.rpc.RemotingServer;
 import com.hlf.rpc.netty.NettyRemotingServer;
 import com.hlf.rpc.netty.NettyServerConfig;
+import com.hlf.rpc.test.model.RequestCode;
+import com.hlf.store.DefaultMessageStore;
+import com.hlf.store.MessageStoreConfig;
 
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 public class BrokerController {
 
+    private BrokerConfig brokerConfig;
     private NettyServerConfig nettyServerConfig;
+    private MessageStoreConfig messageStoreConfig;
     private RemotingServer remotingServer;
+    private DefaultMessageStore messageStore;
+    // 长轮询挂起的拉取请求
+    private PullRequestHoldService pullRequestHoldService;
 
-    public BrokerController(NettyServerConfig nettyServerConfig) {
+    public BrokerController(BrokerConfig brokerConfig, NettyServerConfig nettyServerConfig, MessageStoreConfig messageStoreConfig) {
+        this.brokerConfig = brokerConfig;
         this.nettyServerConfig = nettyServerConfig;
+        this.messageStoreConfig = messageStoreConfig;
     }
 
     public boolean initialize() {
         try {
+            this.messageStore = new DefaultMessageStore(this.messageStoreConfig);
+            if (!this.messageStore.load()) {
+                return false;
+            }
+
             this.remotingServer = new NettyRemotingServer(this.nettyServerConfig);
             ExecutorService remotingExecutor = Executors.newFixedThreadPool(nettyServerConfig.getServerWorkerThreads());
-            this.remotingServer.registerDefaultProcessor(new SendMessageProcessor(), remotingExecutor);
+            this.remotingServer.registerDefaultProcessor(new SendMessageProcessor(this.messageStore), remotingExecutor);
+
+            ExecutorService pullMessageExecutor = Executors.newFixedThreadPool(nettyServerConfig.getServerWorkerThreads());
+            PullMessageProcessor pullMessageProcessor = new PullMessageProcessor(this.brokerConfig, this.messageStore, pullMessageExecutor);
+            this.pullRequestHoldService = new PullRequestHoldService(this.messageStore, pullMessageProcessor);
+            pullMessageProcessor.setPullRequestHoldService(this.pullRequestHoldService);
+            this.remotingServer.registerProcessor(RequestCode.PULL_MESSAGE, pullMessageProcessor, pullMessageExecutor);
+
+            // 新消息分发到消费队列后唤醒挂起的拉取请求
+            this.messageStore.setMessageArrivingListener(new NotifyMessageArrivingListener(this.pullRequestHoldService));
             return true;
         } catch (Exception e) {
+            e.printStackTrace();
             return false;
         }
     }
 
     public void start() {
+        this.messageStore.start();
+        this.pullRequestHoldService.start();
         this.remotingServer.start();
     }
 }
@@ -0,0 +1,83 @@
+package com.hlf.rpc.test.broker;
+
+import com.hlf.store.GetMessageResult;
+import io.netty.channel.FileRegion;
+import io.netty.util.AbstractReferenceCounted;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+
+/**
+ * 拉取响应的零拷贝发送：响应头之后直接写出commitLog映射区域的消息切片，
+ * 不再拷贝到RemotingCommand.body和编码器的ByteBuf中。
+ * 发送完成(或连接关闭)后由Netty调用release，此时才释放对commitLog文件的引用
+ */
+public class ManyMessageTransfer extends AbstractReferenceCounted implements FileRegion {
+
+    private final GetMessageResult getMessageResult;
+    // 响应头和各条消息，按发送顺序排列
+    private final ByteBuffer[] byteBuffers;
+    private final long count;
+    // 已发送的字节数
+    private long transfered;
+
+    public ManyMessageTransfer(final ByteBuffer byteBufferHeader, final GetMessageResult getMessageResult) {
+        this.getMessageResult = getMessageResult;
+
+        List<ByteBuffer> messageBufferList = getMessageResult.getMessageBufferList();
+        this.byteBuffers = new ByteBuffer[messageBufferList.size() + 1];
+        this.byteBuffers[0] = byteBufferHeader;
+        for (int i = 0; i < messageBufferList.size(); i++) {
+            this.byteBuffers[i + 1] = messageBufferList.get(i);
+        }
+        this.count = byteBufferHeader.limit() + getMessageResult.getBufferTotalSize();
+    }
+
+    @Override
+    public long position() {
+        return 0;
+    }
+
+    @Override
+    public long transfered() {
+        return this.transfered;
+    }
+
+    @Override
+    public long count() {
+        return this.count;
+    }
+
+    /**
+     * socket支持聚集写时，响应头和所有消息通过一次write系统调用发送
+     * @param target
+     * @param position 已发送的字节数，由transfered()记录，这里不使用
+     * @return 本次发送的字节数
+     * @throws IOException
+     */
+    @Override
+    public long transferTo(WritableByteChannel target, long position) throws IOException {
+        long written = 0;
+        if (target instanceof GatheringByteChannel) {
+            written = ((GatheringByteChannel) target).write(this.byteBuffers);
+        } else {
+            for (ByteBuffer bb : this.byteBuffers) {
+                if (bb.hasRemaining()) {
+                    written = target.write(bb);
+                    break;
+                }
+            }
+        }
+
+        this.transfered += written;
+        return written;
+    }
+
+    @Override
+    protected void deallocate() {
+        this.getMessageResult.release();
+    }
+}
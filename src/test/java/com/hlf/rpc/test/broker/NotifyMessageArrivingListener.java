@@ -0,0 +1,20 @@
+package com.hlf.rpc.test.broker;
+
+import com.hlf.store.MessageArrivingListener;
+
+/**
+ * 新消息到达时唤醒挂起的拉取请求
+ */
+public class NotifyMessageArrivingListener implements MessageArrivingListener {
+
+    private final PullRequestHoldService pullRequestHoldService;
+
+    public NotifyMessageArrivingListener(final PullRequestHoldService pullRequestHoldService) {
+        this.pullRequestHoldService = pullRequestHoldService;
+    }
+
+    @Override
+    public void arriving(String topic, int queueId, long logicOffset, long tagsCode) {
+        this.pullRequestHoldService.notifyMessageArriving(topic, queueId, logicOffset);
+    }
+}
@@ -0,0 +1,169 @@
+package com.hlf.rpc.test.broker;
+
+import com.hlf.rpc.exception.RemotingCommandException;
+import com.hlf.rpc.netty.NettyRequestProcessor;
+import com.hlf.rpc.protocol.RemotingCommand;
+import com.hlf.rpc.test.consumer.PullMessageRequestHeader;
+import com.hlf.rpc.test.model.ResponseCode;
+import com.hlf.store.DefaultMessageStore;
+import com.hlf.store.GetMessageResult;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * 拉取消息：从消费队列的逻辑偏移量开始读取最多maxMsgNums条消息。
+ * 没有新消息时挂起请求，新消息到达或超时后再处理并写回响应，避免消费者空轮询。
+ * 读取到的消息默认由ManyMessageTransfer直接从commitLog写到socket，不经过响应体拷贝
+ */
+public class PullMessageProcessor implements NettyRequestProcessor {
+
+    private final BrokerConfig brokerConfig;
+    private final DefaultMessageStore messageStore;
+    private final ExecutorService pullMessageExecutor;
+    private PullRequestHoldService pullRequestHoldService;
+
+    public PullMessageProcessor(final BrokerConfig brokerConfig, final DefaultMessageStore messageStore,
+                                final ExecutorService pullMessageExecutor) {
+        this.brokerConfig = brokerConfig;
+        this.messageStore = messageStore;
+        this.pullMessageExecutor = pullMessageExecutor;
+    }
+
+    @Override
+    public RemotingCommand processRequest(ChannelHandlerContext ctx, RemotingCommand request) throws Exception {
+        return this.processRequest(ctx.channel(), request, true);
+    }
+
+    /**
+     * @param channel
+     * @param request
+     * @param brokerAllowSuspend 没有新消息时是否允许挂起，被唤醒后再次处理时不再挂起
+     * @return 请求被挂起或响应已直接写到channel时返回null
+     * @throws RemotingCommandException
+     */
+    private RemotingCommand processRequest(final Channel channel, final RemotingCommand request,
+                                           final boolean brokerAllowSuspend) throws RemotingCommandException {
+        final RemotingCommand response = RemotingCommand.createResponseCommand(PullMessageResponseHeader.class);
+        final PullMessageResponseHeader responseHeader = (PullMessageResponseHeader) response.readCustomHeader();
+        final PullMessageRequestHeader requestHeader =
+                (PullMessageRequestHeader) request.decodeCommandCustomHeader(PullMessageRequestHeader.class);
+        response.setOpaque(request.getOpaque());
+
+        final GetMessageResult getMessageResult = this.messageStore.getMessage(requestHeader.getTopic(),
+                requestHeader.getQueueId(), requestHeader.getQueueOffset(), requestHeader.getMaxMsgNums());
+        // 零拷贝发送时，消息发送完成后才释放对commitLog文件的引用
+        boolean releaseResult = true;
+        try {
+            responseHeader.setNextBeginOffset(getMessageResult.getNextBeginOffset());
+            responseHeader.setMinOffset(getMessageResult.getMinOffset());
+            responseHeader.setMaxOffset(getMessageResult.getMaxOffset());
+
+            switch (getMessageResult.getStatus()) {
+                case FOUND:
+                    response.setCode(ResponseCode.SUCCESS);
+                    if (this.brokerConfig.isTransferMsgByHeap()) {
+                        response.setBody(this.readGetMessageResult(getMessageResult));
+                        break;
+                    }
+
+                    response.markResponseType();
+                    ManyMessageTransfer fileRegion = new ManyMessageTransfer(
+                            response.encodeHeader(getMessageResult.getBufferTotalSize()), getMessageResult);
+                    releaseResult = false;
+                    channel.writeAndFlush(fileRegion).addListener(new ChannelFutureListener() {
+                        @Override
+                        public void operationComplete(ChannelFuture future) throws Exception {
+                            if (!future.isSuccess()) {
+                                System.out.println("transfer many message by pagecache failed, " + channel.remoteAddress());
+                                future.cause().printStackTrace();
+                            }
+                        }
+                    });
+                    return null;
+                case MESSAGE_WAS_REMOVING:
+                case MESSAGE_CRC_ERROR:
+                case NO_MATCHED_MESSAGE:
+                    response.setCode(ResponseCode.PULL_RETRY_IMMEDIATELY);
+                    break;
+                case NO_MESSAGE_IN_QUEUE:
+                case OFFSET_FOUND_NULL:
+                case OFFSET_OVERFLOW_ONE:
+                    response.setCode(ResponseCode.PULL_NOT_FOUND);
+                    break;
+                case OFFSET_OVERFLOW_BADLY:
+                case OFFSET_TOO_SMALL:
+                    response.setCode(ResponseCode.PULL_OFFSET_MOVED);
+                    break;
+                default:
+                    response.setCode(ResponseCode.SYSTEM_ERROR);
+                    response.setRemark("unknown get message status " + getMessageResult.getStatus());
+                    break;
+            }
+        } finally {
+            if (releaseResult) {
+                getMessageResult.release();
+            }
+        }
+
+        if (ResponseCode.PULL_NOT_FOUND == response.getCode() && brokerAllowSuspend
+                && requestHeader.getSuspendTimeoutMillis() > 0) {
+            PullRequest pullRequest = new PullRequest(request, channel, requestHeader.getSuspendTimeoutMillis(),
+                    System.currentTimeMillis(), requestHeader.getQueueOffset());
+            this.pullRequestHoldService.suspendPullRequest(requestHeader.getTopic(), requestHeader.getQueueId(), pullRequest);
+            return null;
+        }
+
+        return response;
+    }
+
+    /**
+     * 把读取到的消息拷贝到响应体中
+     * @param getMessageResult
+     * @return
+     */
+    private byte[] readGetMessageResult(final GetMessageResult getMessageResult) {
+        final ByteBuffer byteBuffer = ByteBuffer.allocate(getMessageResult.getBufferTotalSize());
+        List<ByteBuffer> messageBufferList = getMessageResult.getMessageBufferList();
+        for (ByteBuffer bb : messageBufferList) {
+            byteBuffer.put(bb);
+        }
+        return byteBuffer.array();
+    }
+
+    /**
+     * 被挂起的请求在新消息到达或超时后重新处理，此时不再挂起，直接写回响应
+     * @param channel
+     * @param request
+     */
+    public void executeRequestWhenWakeup(final Channel channel, final RemotingCommand request) {
+        Runnable run = () -> {
+            try {
+                final RemotingCommand response = PullMessageProcessor.this.processRequest(channel, request, false);
+                if (response != null) {
+                    response.setOpaque(request.getOpaque());
+                    response.markResponseType();
+                    channel.writeAndFlush(response);
+                }
+            } catch (RemotingCommandException e) {
+                System.out.println("process pull request after wakeup error");
+                e.printStackTrace();
+            }
+        };
+        this.pullMessageExecutor.submit(run);
+    }
+
+    public void setPullRequestHoldService(PullRequestHoldService pullRequestHoldService) {
+        this.pullRequestHoldService = pullRequestHoldService;
+    }
+
+    @Override
+    public boolean rejectRequest() {
+        return false;
+    }
+}
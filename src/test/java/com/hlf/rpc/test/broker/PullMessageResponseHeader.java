@@ -0,0 +1,40 @@
+package com.hlf.rpc.test.broker;
+
+import com.hlf.rpc.CommandCustomHeader;
+
+public class PullMessageResponseHeader implements CommandCustomHeader {
+
+    // 下次拉取的起始逻辑偏移量
+    private Long nextBeginOffset;
+    private Long minOffset;
+    private Long maxOffset;
+
+    public Long getNextBeginOffset() {
+        return nextBeginOffset;
+    }
+
+    public void setNextBeginOffset(Long nextBeginOffset) {
+        this.nextBeginOffset = nextBeginOffset;
+    }
+
+    public Long getMinOffset() {
+        return minOffset;
+    }
+
+    public void setMinOffset(Long minOffset) {
+        this.minOffset = minOffset;
+    }
+
+    public Long getMaxOffset() {
+        return maxOffset;
+    }
+
+    public void setMaxOffset(Long maxOffset) {
+        this.maxOffset = maxOffset;
+    }
+
+    @Override
+    public void checkFields() {
+
+    }
+}
@@ -0,0 +1,47 @@
+package com.hlf.rpc.test.broker;
+
+import com.hlf.rpc.protocol.RemotingCommand;
+import io.netty.channel.Channel;
+
+/**
+ * 被挂起的拉取请求
+ */
+public class PullRequest {
+
+    private final RemotingCommand requestCommand;
+    private final Channel clientChannel;
+    private final long timeoutMillis;
+    // 挂起的时间
+    private final long suspendTimestamp;
+    // 拉取的起始逻辑偏移量，队列最大偏移量超过它时说明有新消息
+    private final long pullFromThisOffset;
+
+    public PullRequest(RemotingCommand requestCommand, Channel clientChannel, long timeoutMillis, long suspendTimestamp,
+                       long pullFromThisOffset) {
+        this.requestCommand = requestCommand;
+        this.clientChannel = clientChannel;
+        this.timeoutMillis = timeoutMillis;
+        this.suspendTimestamp = suspendTimestamp;
+        this.pullFromThisOffset = pullFromThisOffset;
+    }
+
+    public RemotingCommand getRequestCommand() {
+        return requestCommand;
+    }
+
+    public Channel getClientChannel() {
+        return clientChannel;
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    public long getSuspendTimestamp() {
+        return suspendTimestamp;
+    }
+
+    public long getPullFromThisOffset() {
+        return pullFromThisOffset;
+    }
+}
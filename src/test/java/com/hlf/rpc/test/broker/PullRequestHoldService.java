@@ -0,0 +1,162 @@
+package com.hlf.rpc.test.broker;
+
+import com.hlf.store.DefaultMessageStore;
+import com.hlf.store.ServiceThread;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 长轮询：没有新消息的拉取请求按队列挂起，分发线程构建好新消息的消费队列后立即唤醒，
+ * 后台线程定时检查超时的请求，超时后返回没有新消息
+ */
+public class PullRequestHoldService extends ServiceThread {
+
+    private static final String TOPIC_QUEUEID_SEPARATOR = "@";
+    // 检查超时请求的间隔
+    private static final long CHECK_INTERVAL = 1000;
+
+    private final DefaultMessageStore messageStore;
+    private final PullMessageProcessor pullMessageProcessor;
+    // <topic@queueId, 挂起的请求>
+    private final ConcurrentMap<String, ManyPullRequest> pullRequestTable = new ConcurrentHashMap<String, ManyPullRequest>(1024);
+
+    public PullRequestHoldService(final DefaultMessageStore messageStore, final PullMessageProcessor pullMessageProcessor) {
+        this.messageStore = messageStore;
+        this.pullMessageProcessor = pullMessageProcessor;
+    }
+
+    /**
+     * 挂起请求。挂起前刚到达的消息不会再有通知，挂起后再检查一次队列的最大偏移量
+     * @param topic
+     * @param queueId
+     * @param pullRequest
+     */
+    public void suspendPullRequest(final String topic, final int queueId, final PullRequest pullRequest) {
+        String key = this.buildKey(topic, queueId);
+        ManyPullRequest mpr = this.pullRequestTable.get(key);
+        if (null == mpr) {
+            mpr = new ManyPullRequest();
+            ManyPullRequest prev = this.pullRequestTable.putIfAbsent(key, mpr);
+            if (prev != null) {
+                mpr = prev;
+            }
+        }
+
+        mpr.addPullRequest(pullRequest);
+
+        long maxOffset = this.messageStore.getMaxOffsetInQueue(topic, queueId);
+        if (maxOffset > pullRequest.getPullFromThisOffset()) {
+            this.notifyMessageArriving(topic, queueId, maxOffset);
+        }
+    }
+
+    /**
+     * 队列有新消息时唤醒拉取偏移量小于maxOffset的请求，同时处理已超时的请求
+     * @param topic
+     * @param queueId
+     * @param maxOffset 队列的最大逻辑偏移量
+     */
+    public void notifyMessageArriving(final String topic, final int queueId, final long maxOffset) {
+        ManyPullRequest mpr = this.pullRequestTable.get(this.buildKey(topic, queueId));
+        if (null == mpr) {
+            return;
+        }
+
+        List<PullRequest> requestList = mpr.cloneListAndClear();
+        if (requestList == null) {
+            return;
+        }
+
+        List<PullRequest> replayList = new ArrayList<PullRequest>();
+        for (PullRequest request : requestList) {
+            if (maxOffset > request.getPullFromThisOffset()) {
+                this.pullMessageProcessor.executeRequestWhenWakeup(request.getClientChannel(), request.getRequestCommand());
+                continue;
+            }
+
+            if (System.currentTimeMillis() >= request.getSuspendTimestamp() + request.getTimeoutMillis()) {
+                // 超时，不再挂起，返回没有新消息
+                this.pullMessageProcessor.executeRequestWhenWakeup(request.getClientChannel(), request.getRequestCommand());
+                continue;
+            }
+
+            replayList.add(request);
+        }
+
+        if (!replayList.isEmpty()) {
+            mpr.addPullRequest(replayList);
+        }
+    }
+
+    /**
+     * 检查所有挂起的请求
+     */
+    private void checkHoldRequest() {
+        for (Map.Entry<String, ManyPullRequest> entry : this.pullRequestTable.entrySet()) {
+            String key = entry.getKey();
+            int index = key.lastIndexOf(TOPIC_QUEUEID_SEPARATOR);
+            String topic = key.substring(0, index);
+            int queueId = Integer.parseInt(key.substring(index + 1));
+            this.notifyMessageArriving(topic, queueId, this.messageStore.getMaxOffsetInQueue(topic, queueId));
+        }
+    }
+
+    private String buildKey(final String topic, final int queueId) {
+        return topic + TOPIC_QUEUEID_SEPARATOR + queueId;
+    }
+
+    @Override
+    public void run() {
+        System.out.println(this.getServiceName() + " service started");
+
+        while (!this.isStopped()) {
+            try {
+                this.waitForRunning(CHECK_INTERVAL);
+                this.checkHoldRequest();
+            } catch (Throwable e) {
+                System.out.println(this.getServiceName() + " service has exception. ");
+                e.printStackTrace();
+            }
+        }
+
+        System.out.println(this.getServiceName() + " service end");
+    }
+
+    @Override
+    public String getServiceName() {
+        return PullRequestHoldService.class.getSimpleName();
+    }
+
+    /**
+     * 同一队列上挂起的请求
+     */
+    static class ManyPullRequest {
+
+        private final ArrayList<PullRequest> pullRequestList = new ArrayList<PullRequest>();
+
+        public synchronized void addPullRequest(final PullRequest pullRequest) {
+            this.pullRequestList.add(pullRequest);
+        }
+
+        public synchronized void addPullRequest(final List<PullRequest> many) {
+            this.pullRequestList.addAll(many);
+        }
+
+        /**
+         * 取出所有请求
+         * @return 没有挂起的请求时返回null
+         */
+        public synchronized List<PullRequest> cloneListAndClear() {
+            if (this.pullRequestList.isEmpty()) {
+                return null;
+            }
+            List<PullRequest> result = new ArrayList<PullRequest>(this.pullRequestList);
+            this.pullRequestList.clear();
+            return result;
+        }
+    }
+}
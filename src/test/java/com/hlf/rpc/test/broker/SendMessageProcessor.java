@@ -4,30 +4,41 @@ import com.hlf.rpc.exception.RemotingCommandException;
 import com.hlf.rpc.netty.NettyRequestProcessor;
 import com.hlf.rpc.protocol.RemotingCommand;
 import com.hlf.rpc.test.model.RequestCode;
+import com.hlf.rpc.test.model.ResponseCode;
 import com.hlf.rpc.test.producer.SendMessageRequestHeader;
+import com.hlf.store.DefaultMessageStore;
+import com.hlf.store.MessageExtBrokerInner;
+import com.hlf.store.PutMessageResult;
 import io.netty.channel.ChannelHandlerContext;
 
 import java.io.UnsupportedEncodingException;
-import java.util.UUID;
 
 public class SendMessageProcessor implements NettyRequestProcessor {
 
+    private final DefaultMessageStore messageStore;
+
+    public SendMessageProcessor(final DefaultMessageStore messageStore) {
+        this.messageStore = messageStore;
+    }
+
     @Override
     public RemotingCommand processRequest(ChannelHandlerContext ctx, RemotingCommand request) throws Exception {
 
         switch (request.getCode()) {
             case RequestCode.SEND_MESSAGE:
                 // 1.处理请求，写入消息
-                sendMessage(request);
+                PutMessageResult putMessageResult = sendMessage(request);
 
                 // 2.返回响应
                 final RemotingCommand response = RemotingCommand.createResponseCommand(SendMessageResponseHeader.class);
                 final SendMessageResponseHeader responseHeader = (SendMessageResponseHeader)response.readCustomHeader();
-                responseHeader.setMsgId(UUID.randomUUID().toString().replace("-", ""));
                 response.setOpaque(request.getOpaque());
-                response.setCode(-1);
-                if (response.getCode() != -1) {
-                    return response;
+                if (putMessageResult.isOk()) {
+                    responseHeader.setMsgId(putMessageResult.getAppendMessageResult().getMsgId());
+                    response.setCode(ResponseCode.SUCCESS);
+                } else {
+                    response.setCode(ResponseCode.SYSTEM_ERROR);
+                    response.setRemark("put message failed, " + putMessageResult.getPutMessageStatus());
                 }
                 return response;
             default:
@@ -37,7 +48,7 @@ public class SendMessageProcessor implements NettyRequestProcessor {
     }
 
 
-    private void sendMessage(RemotingCommand request) throws RemotingCommandException {
+    private PutMessageResult sendMessage(RemotingCommand request) throws RemotingCommandException {
         SendMessageRequestHeader requestHeader = parseRequestHeader(request);
         final byte[] body = request.getBody();
         try {
@@ -45,6 +56,13 @@ public class SendMessageProcessor implements NettyRequestProcessor {
         } catch (UnsupportedEncodingException e) {
             e.printStackTrace();
         }
+
+        MessageExtBrokerInner msgInner = new MessageExtBrokerInner();
+        msgInner.setTopic(requestHeader.getTopic());
+        msgInner.setQueueId(requestHeader.getQueueId());
+        msgInner.setBody(body);
+        msgInner.setPropertiesString(requestHeader.getProperties());
+        return this.messageStore.putMessage(msgInner);
     }
 
     protected SendMessageRequestHeader parseRequestHeader(RemotingCommand request)
@@ -55,8 +73,12 @@ public class SendMessageProcessor implements NettyRequestProcessor {
         return requestHeader;
     }
 
+    /**
+     * 存储繁忙(磁盘变慢、刷盘跟不上或磁盘将满)时直接返回SYSTEM_BUSY，请求不进入线程池排队
+     * @return
+     */
     @Override
     public boolean rejectRequest() {
-        return false;
+        return this.messageStore.isStoreBusy();
     }
 }
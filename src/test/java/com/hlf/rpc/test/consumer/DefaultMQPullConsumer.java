@@ -0,0 +1,106 @@
+package com.hlf.rpc.test.consumer;
+
+import com.hlf.rpc.RemotingClient;
+import com.hlf.rpc.exception.RemotingCommandException;
+import com.hlf.rpc.exception.RemotingConnectException;
+import com.hlf.rpc.exception.RemotingSendRequestException;
+import com.hlf.rpc.exception.RemotingTimeoutException;
+import com.hlf.rpc.netty.NettyClientConfig;
+import com.hlf.rpc.netty.NettyRemotingClient;
+import com.hlf.rpc.protocol.RemotingCommand;
+import com.hlf.rpc.test.broker.PullMessageResponseHeader;
+import com.hlf.rpc.test.model.RequestCode;
+import com.hlf.rpc.test.model.ResponseCode;
+import com.hlf.store.MessageDecoder;
+import com.hlf.store.MessageExt;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * 消息拉取消费者，没有新消息时由broker挂起请求(长轮询)
+ */
+public class DefaultMQPullConsumer {
+    // 没有新消息时broker挂起请求的最长时间
+    private long brokerSuspendMaxTimeMillis = 15000;
+    // 挂起时请求的超时时间，需大于brokerSuspendMaxTimeMillis
+    private long consumerTimeoutMillisWhenSuspend = 30000;
+    private NettyClientConfig nettyClientConfig;
+    private RemotingClient remotingClient;
+    private String brokerAddr;
+
+    public DefaultMQPullConsumer(NettyClientConfig nettyClientConfig) {
+        this.nettyClientConfig = nettyClientConfig;
+        this.remotingClient = new NettyRemotingClient(this.nettyClientConfig);
+    }
+
+    public void setBrokerAddr(String brokerAddr) {
+        this.brokerAddr = brokerAddr;
+    }
+
+    public void setBrokerSuspendMaxTimeMillis(long brokerSuspendMaxTimeMillis) {
+        this.brokerSuspendMaxTimeMillis = brokerSuspendMaxTimeMillis;
+    }
+
+    public void setConsumerTimeoutMillisWhenSuspend(long consumerTimeoutMillisWhenSuspend) {
+        this.consumerTimeoutMillisWhenSuspend = consumerTimeoutMillisWhenSuspend;
+    }
+
+    public void start() {
+        if (this.remotingClient != null) {
+            this.remotingClient.start();
+        }
+    }
+
+    /**
+     * 从队列的逻辑偏移量offset开始拉取消息，没有新消息时阻塞到有新消息或broker挂起超时
+     * @param topic
+     * @param queueId
+     * @param offset
+     * @param maxNums
+     * @return
+     */
+    public PullResult pullBlockIfNotFound(String topic, int queueId, long offset, int maxNums) throws InterruptedException,
+            RemotingTimeoutException, RemotingSendRequestException, RemotingConnectException, RemotingCommandException {
+        // 1.构造请求
+        PullMessageRequestHeader requestHeader = new PullMessageRequestHeader();
+        requestHeader.setTopic(topic);
+        requestHeader.setQueueId(queueId);
+        requestHeader.setQueueOffset(offset);
+        requestHeader.setMaxMsgNums(maxNums);
+        requestHeader.setSuspendTimeoutMillis(this.brokerSuspendMaxTimeMillis);
+        RemotingCommand request = RemotingCommand.createRequestCommand(RequestCode.PULL_MESSAGE, requestHeader);
+
+        // 2.发送请求
+        RemotingCommand response = this.remotingClient.invokeSync(this.brokerAddr, request, this.consumerTimeoutMillisWhenSuspend);
+
+        // 3.解析响应
+        PullStatus pullStatus;
+        switch (response.getCode()) {
+            case ResponseCode.SUCCESS:
+                pullStatus = PullStatus.FOUND;
+                break;
+            case ResponseCode.PULL_NOT_FOUND:
+                pullStatus = PullStatus.NO_NEW_MSG;
+                break;
+            case ResponseCode.PULL_RETRY_IMMEDIATELY:
+                pullStatus = PullStatus.NO_MATCHED_MSG;
+                break;
+            case ResponseCode.PULL_OFFSET_MOVED:
+                pullStatus = PullStatus.OFFSET_ILLEGAL;
+                break;
+            default:
+                throw new RemotingCommandException("pull message failed, code: " + response.getCode() + " remark: " + response.getRemark());
+        }
+
+        PullMessageResponseHeader responseHeader =
+                (PullMessageResponseHeader) response.decodeCommandCustomHeader(PullMessageResponseHeader.class);
+        List<MessageExt> msgFoundList = null;
+        if (PullStatus.FOUND == pullStatus && response.getBody() != null) {
+            msgFoundList = MessageDecoder.decodes(ByteBuffer.wrap(response.getBody()));
+        }
+
+        return new PullResult(pullStatus, responseHeader.getNextBeginOffset(), responseHeader.getMinOffset(),
+                responseHeader.getMaxOffset(), msgFoundList);
+    }
+}
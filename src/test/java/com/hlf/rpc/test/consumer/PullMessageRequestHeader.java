@@ -0,0 +1,66 @@
+package com.hlf.rpc.test.consumer;
+
+import com.hlf.rpc.CommandCustomHeader;
+import com.hlf.rpc.annotation.CFNotNull;
+
+public class PullMessageRequestHeader implements CommandCustomHeader {
+
+    @CFNotNull
+    private String topic;
+    @CFNotNull
+    private Integer queueId;
+    // 拉取的起始逻辑偏移量
+    @CFNotNull
+    private Long queueOffset;
+    // 最多拉取的消息条数
+    @CFNotNull
+    private Integer maxMsgNums;
+    // 没有新消息时broker挂起请求的最长时间，为0时立即返回
+    @CFNotNull
+    private Long suspendTimeoutMillis;
+
+    public String getTopic() {
+        return topic;
+    }
+
+    public void setTopic(String topic) {
+        this.topic = topic;
+    }
+
+    public Integer getQueueId() {
+        return queueId;
+    }
+
+    public void setQueueId(Integer queueId) {
+        this.queueId = queueId;
+    }
+
+    public Long getQueueOffset() {
+        return queueOffset;
+    }
+
+    public void setQueueOffset(Long queueOffset) {
+        this.queueOffset = queueOffset;
+    }
+
+    public Integer getMaxMsgNums() {
+        return maxMsgNums;
+    }
+
+    public void setMaxMsgNums(Integer maxMsgNums) {
+        this.maxMsgNums = maxMsgNums;
+    }
+
+    public Long getSuspendTimeoutMillis() {
+        return suspendTimeoutMillis;
+    }
+
+    public void setSuspendTimeoutMillis(Long suspendTimeoutMillis) {
+        this.suspendTimeoutMillis = suspendTimeoutMillis;
+    }
+
+    @Override
+    public void checkFields() {
+
+    }
+}
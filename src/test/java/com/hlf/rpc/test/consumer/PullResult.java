@@ -0,0 +1,51 @@
+package com.hlf.rpc.test.consumer;
+
+import com.hlf.store.MessageExt;
+
+import java.util.List;
+
+public class PullResult {
+
+    private final PullStatus pullStatus;
+    // 下次拉取的起始逻辑偏移量
+    private final long nextBeginOffset;
+    private final long minOffset;
+    private final long maxOffset;
+    private final List<MessageExt> msgFoundList;
+
+    public PullResult(PullStatus pullStatus, long nextBeginOffset, long minOffset, long maxOffset,
+                      List<MessageExt> msgFoundList) {
+        this.pullStatus = pullStatus;
+        this.nextBeginOffset = nextBeginOffset;
+        this.minOffset = minOffset;
+        this.maxOffset = maxOffset;
+        this.msgFoundList = msgFoundList;
+    }
+
+    public PullStatus getPullStatus() {
+        return pullStatus;
+    }
+
+    public long getNextBeginOffset() {
+        return nextBeginOffset;
+    }
+
+    public long getMinOffset() {
+        return minOffset;
+    }
+
+    public long getMaxOffset() {
+        return maxOffset;
+    }
+
+    public List<MessageExt> getMsgFoundList() {
+        return msgFoundList;
+    }
+
+    @Override
+    public String toString() {
+        return "PullResult [pullStatus=" + pullStatus + ", nextBeginOffset=" + nextBeginOffset + ", minOffset="
+                + minOffset + ", maxOffset=" + maxOffset + ", msgFoundList="
+                + (msgFoundList == null ? 0 : msgFoundList.size()) + "]";
+    }
+}
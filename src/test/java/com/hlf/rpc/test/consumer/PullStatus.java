@@ -0,0 +1,9 @@
+package com.hlf.rpc.test.consumer;
+
+public enum PullStatus {
+
+    FOUND,// 拉取到消息
+    NO_NEW_MSG,// 挂起超时仍没有新消息
+    NO_MATCHED_MSG,// 没有读取到可用的消息，可以立即重新拉取
+    OFFSET_ILLEGAL// 逻辑偏移量不合法，从nextBeginOffset重新拉取
+}
@@ -4,4 +4,6 @@ public class RequestCode {
 
     public static final int SEND_MESSAGE = 10;
 
+    public static final int PULL_MESSAGE = 11;
+
 }
@@ -0,0 +1,18 @@
+package com.hlf.rpc.test.model;
+
+import com.hlf.rpc.protocol.RemotingSysResponseCode;
+
+/**
+ * 业务响应码，0~4为通信层的系统响应码
+ */
+public class ResponseCode extends RemotingSysResponseCode {
+
+    // 没有新消息
+    public static final int PULL_NOT_FOUND = 19;
+
+    // 没有读取到可用的消息，但队列中还有消息，可以立即重新拉取
+    public static final int PULL_RETRY_IMMEDIATELY = 20;
+
+    // 拉取的逻辑偏移量不合法，需要从nextBeginOffset重新拉取
+    public static final int PULL_OFFSET_MOVED = 21;
+}
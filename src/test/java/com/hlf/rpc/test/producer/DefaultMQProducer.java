@@ -9,6 +9,7 @@ import com.hlf.rpc.netty.NettyClientConfig;
 import com.hlf.rpc.netty.NettyRemotingClient;
 import com.hlf.rpc.protocol.RemotingCommand;
 import com.hlf.rpc.test.model.RequestCode;
+import com.hlf.rpc.test.model.ResponseCode;
 import com.hlf.rpc.test.broker.SendMessageResponseHeader;
 import com.hlf.rpc.test.store.Message;
 import com.hlf.rpc.test.store.MessageDecoder;
@@ -48,6 +49,11 @@ public class DefaultMQProducer {
 
         // 2.发送请求
         RemotingCommand response = this.remotingClient.invokeSync(this.brokerAddr, request, this.sendMsgTimeout);
+        if (response.getCode() != ResponseCode.SUCCESS) {
+            // broker存储繁忙时返回SYSTEM_BUSY，可稍后重试
+            System.out.println("send message failed, code " + response.getCode() + ", " + response.getRemark());
+            return null;
+        }
 
         try {
             // 3.解析响应
@@ -5,6 +5,7 @@ import com.hlf.rpc.CommandCustomHeader;
 public class SendMessageRequestHeader implements CommandCustomHeader {
 
     private String topic;
+    private int queueId;
     private String properties;
     private long bornTimestamp;
 
@@ -16,6 +17,14 @@ public class SendMessageRequestHeader implements CommandCustomHeader {
         this.topic = topic;
     }
 
+    public int getQueueId() {
+        return queueId;
+    }
+
+    public void setQueueId(int queueId) {
+        this.queueId = queueId;
+    }
+
     public String getProperties() {
         return properties;
     }
@@ -0,0 +1,93 @@
+package com.hlf.store.benchmark;
+
+import com.hlf.store.MessageDecoder;
+import com.hlf.store.MessageExtBrokerInner;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 基准测试公用的方法：在系统临时目录下创建存储目录，构造指定大小的消息
+ */
+public class BenchmarkSupport {
+
+    public static final String TOPIC = "BenchmarkTopic";
+
+    /**
+     * 在java.io.tmpdir下创建存储目录，可通过 -Djava.io.tmpdir 指定被测磁盘
+     * @param prefix
+     * @return
+     * @throws IOException
+     */
+    public static File createStoreDir(final String prefix) throws IOException {
+        return Files.createTempDirectory(prefix).toFile();
+    }
+
+    /**
+     * 删除存储目录及其中的文件
+     * @param dir
+     */
+    public static void deleteStoreDir(final File dir) {
+        if (dir == null || !dir.exists()) {
+            return;
+        }
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    deleteStoreDir(file);
+                } else if (!file.delete()) {
+                    System.out.println("delete file " + file + " Failed");
+                }
+            }
+        }
+        if (!dir.delete()) {
+            System.out.println("delete dir " + dir + " Failed");
+        }
+    }
+
+    /**
+     * 构造消息体为bodySize字节的消息
+     * @param bodySize
+     * @param queueId
+     * @return
+     */
+    public static MessageExtBrokerInner buildMessage(final int bodySize, final int queueId) {
+        MessageExtBrokerInner message = new MessageExtBrokerInner();
+        message.setTopic(TOPIC);
+        message.setQueueId(queueId);
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put("type", "message");
+        message.setProperties(properties);
+        // 提前编码属性，直接写文件的基准测试不经过CommitLog的预处理
+        message.setPropertiesString(MessageDecoder.messageProperties2String(properties));
+        message.setPropertiesData(message.getPropertiesString().getBytes(MessageDecoder.CHARSET_UTF8));
+
+        byte[] body = new byte[bodySize];
+        for (int i = 0; i < bodySize; i++) {
+            body[i] = (byte) ('a' + i % 26);
+        }
+        message.setBody(body);
+        return message;
+    }
+
+    /**
+     * 构造一批消息，批量写入时使用
+     * @param bodySize
+     * @param batchSize
+     * @param queueId
+     * @return
+     */
+    public static List<MessageExtBrokerInner> buildBatch(final int bodySize, final int batchSize, final int queueId) {
+        List<MessageExtBrokerInner> msgs = new ArrayList<MessageExtBrokerInner>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            msgs.add(buildMessage(bodySize, queueId));
+        }
+        return msgs;
+    }
+}
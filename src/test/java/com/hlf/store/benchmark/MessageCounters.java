@@ -0,0 +1,25 @@
+package com.hlf.store.benchmark;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * 每个线程写入的消息数和字节数。批量写入时一次调用写入多条消息，
+ * Throughput模式下这两个计数器给出每秒写入的消息数和字节数
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class MessageCounters {
+
+    public long messages;
+    public long bytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        this.messages = 0;
+        this.bytes = 0;
+    }
+}
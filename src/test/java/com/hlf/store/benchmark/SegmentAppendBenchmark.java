@@ -0,0 +1,167 @@
+package com.hlf.store.benchmark;
+
+import com.hlf.store.AppendMessageResult;
+import com.hlf.store.AppendMessageStatus;
+import com.hlf.store.ByteBufferType;
+import com.hlf.store.CommitLogSegment;
+import com.hlf.store.DefaultAppendMessageCallback;
+import com.hlf.store.MappedFileQueue;
+import com.hlf.store.MessageExtBrokerInner;
+import com.hlf.store.MessageStoreConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 单个写线程直接往文件中追加消息，比较不同写入方式的开销，不经过CommitLog的锁、刷盘和分发：
+ * MAPPED为MappedFile(内存映射)，UN_MAPPED为FileChannelSegment(FileChannel按位置写入)，
+ * STREAM为把同样编码好的消息写入带64KB缓冲的FileOutputStream。
+ * 文件写满后删除并创建下一个文件，磁盘占用不超过一个文件
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@Threads(1)
+public class SegmentAppendBenchmark {
+
+    // 每个文件的大小
+    private static final int FILE_SIZE = 1024 * 1024 * 256;
+    private static final String STREAM = "STREAM";
+
+    @Param({"MAPPED", "UN_MAPPED", "STREAM"})
+    private String backend;
+
+    // 消息体大小
+    @Param({"128", "1024", "4096"})
+    private int messageSize;
+
+    // 每次写入的消息条数，大于1时整批编码、一次写入
+    @Param({"1", "16"})
+    private int batchSize;
+
+    private File storeDir;
+    private DefaultAppendMessageCallback callback;
+    private MessageExtBrokerInner message;
+    private List<MessageExtBrokerInner> batch;
+
+    // 当前文件的起始偏移量
+    private long fileFromOffset;
+    private CommitLogSegment segment;
+    private OutputStream outputStream;
+    // STREAM方式下当前文件已写入的字节数
+    private int streamWrotePosition;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        this.storeDir = BenchmarkSupport.createStoreDir("segment-benchmark");
+        this.callback = new DefaultAppendMessageCallback(new MessageStoreConfig());
+        this.message = BenchmarkSupport.buildMessage(this.messageSize, 0);
+        this.batch = BenchmarkSupport.buildBatch(this.messageSize, this.batchSize, 0);
+        this.fileFromOffset = 0;
+        this.openFile();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        this.closeFile();
+        BenchmarkSupport.deleteStoreDir(this.storeDir);
+    }
+
+    @Benchmark
+    public int append(MessageCounters counters) throws IOException {
+        int wroteBytes;
+        if (STREAM.equals(this.backend)) {
+            wroteBytes = this.appendToStream();
+        } else {
+            AppendMessageResult result = this.appendToSegment();
+            if (AppendMessageStatus.END_OF_FILE == result.getStatus()) {
+                this.rollFile();
+                result = this.appendToSegment();
+            }
+            if (!result.isOk()) {
+                throw new IllegalStateException("append message failed, " + result.getStatus());
+            }
+            wroteBytes = result.getWroteBytes();
+        }
+
+        counters.messages += this.batchSize;
+        counters.bytes += wroteBytes;
+        return wroteBytes;
+    }
+
+    private AppendMessageResult appendToSegment() {
+        if (this.batchSize == 1) {
+            return this.segment.appendMessagesInner(this.message, this.callback);
+        }
+        return this.segment.appendMessages(this.batch, this.callback);
+    }
+
+    private int appendToStream() throws IOException {
+        ByteBuffer encoded = this.batchSize == 1 ? this.callback.encode(this.message) : this.callback.encode(this.batch);
+        int length = encoded.limit();
+        if (this.streamWrotePosition + length > FILE_SIZE) {
+            this.rollFile();
+        }
+        this.outputStream.write(encoded.array(), 0, length);
+        this.streamWrotePosition += length;
+        return length;
+    }
+
+    /**
+     * 删除写满的文件，创建下一个文件
+     * @throws IOException
+     */
+    private void rollFile() throws IOException {
+        this.closeFile();
+        this.fileFromOffset += FILE_SIZE;
+        this.openFile();
+    }
+
+    private void openFile() throws IOException {
+        String fileName = this.storeDir.getPath() + File.separator + MappedFileQueue.offset2FileName(this.fileFromOffset);
+        if (STREAM.equals(this.backend)) {
+            this.outputStream = new BufferedOutputStream(new FileOutputStream(fileName), 64 * 1024);
+            this.streamWrotePosition = 0;
+        } else {
+            this.segment = CommitLogSegment.create(ByteBufferType.valueOf(this.backend), fileName, FILE_SIZE, 0);
+        }
+    }
+
+    private void closeFile() throws IOException {
+        String fileName = this.storeDir.getPath() + File.separator + MappedFileQueue.offset2FileName(this.fileFromOffset);
+        if (this.outputStream != null) {
+            this.outputStream.close();
+            this.outputStream = null;
+            if (!new File(fileName).delete()) {
+                System.out.println("delete file " + fileName + " Failed");
+            }
+        }
+        if (this.segment != null) {
+            this.segment.destroy(0);
+            this.segment = null;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.hlf.store.benchmark;
+
+import com.hlf.store.ByteBufferType;
+import com.hlf.store.DefaultMessageStore;
+import com.hlf.store.FlushDiskType;
+import com.hlf.store.MessageExtBrokerInner;
+import com.hlf.store.MessageStoreConfig;
+import com.hlf.store.PutMessageResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 通过DefaultMessageStore写入消息的完整路径：CommitLog加锁或并发预留空间、刷盘、分发到消费队列。
+ * 写线程数用JMH的 -t 参数指定，各线程写入不同的队列，commitLog分片时各队列按哈希分布到不同分片。
+ * 过期文件保留时间设为0，已写满的文件由清理线程删除，长时间运行不会占满磁盘
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@Threads(1)
+public class StorePutBenchmark {
+
+    @Param({"MAPPED", "UN_MAPPED"})
+    private ByteBufferType backend;
+
+    // 消息体大小
+    @Param({"128", "1024", "4096"})
+    private int messageSize;
+
+    // 每次写入的消息条数，大于1时调用putMessages批量写入
+    @Param({"1", "16"})
+    private int batchSize;
+
+    @Param({"ASYNC_FLUSH", "SYNC_FLUSH"})
+    private FlushDiskType flushDiskType;
+
+    // 是否开启多线程并发写入CommitLog
+    @Param({"false", "true"})
+    private boolean concurrentAppend;
+
+    // commitLog分片数
+    @Param({"1", "4"})
+    private int commitLogStripeCount;
+
+    private File storeDir;
+    private DefaultMessageStore messageStore;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        this.storeDir = BenchmarkSupport.createStoreDir("store-benchmark");
+
+        MessageStoreConfig config = new MessageStoreConfig();
+        config.setStorePathRootDir(this.storeDir.getPath());
+        config.setStorePathCommitLog(this.storeDir.getPath() + File.separator + "commitlog");
+        config.setStorePathConsumeQueue(this.storeDir.getPath() + File.separator + "consumequeue");
+        config.setStorePathIndex(this.storeDir.getPath() + File.separator + "index");
+        config.setMappedFileSizeCommitLog(1024 * 1024 * 256);
+        config.setCommitLogByteBufferType(this.backend);
+        config.setFlushDiskType(this.flushDiskType);
+        config.setConcurrentAppendEnable(this.concurrentAppend);
+        config.setCommitLogStripeCount(this.commitLogStripeCount);
+        config.setFileReservedTime(0);
+        config.setCleanResourceInterval(1000);
+
+        this.messageStore = new DefaultMessageStore(config);
+        if (!this.messageStore.load()) {
+            throw new IllegalStateException("load message store failed");
+        }
+        this.messageStore.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.messageStore.shutdown();
+        BenchmarkSupport.deleteStoreDir(this.storeDir);
+    }
+
+    /**
+     * 每个写线程复用自己的消息对象
+     */
+    @State(Scope.Thread)
+    public static class Producer {
+
+        private MessageExtBrokerInner message;
+        private List<MessageExtBrokerInner> batch;
+
+        @Setup(Level.Trial)
+        public void setup(StorePutBenchmark benchmark, ThreadParams threadParams) {
+            int queueId = threadParams.getThreadIndex();
+            this.message = BenchmarkSupport.buildMessage(benchmark.messageSize, queueId);
+            this.batch = BenchmarkSupport.buildBatch(benchmark.messageSize, benchmark.batchSize, queueId);
+        }
+    }
+
+    @Benchmark
+    public PutMessageResult put(Producer producer, MessageCounters counters) {
+        PutMessageResult result = this.batchSize == 1
+                ? this.messageStore.putMessage(producer.message)
+                : this.messageStore.putMessages(producer.batch);
+        if (!result.isOk()) {
+            throw new IllegalStateException("put message failed, " + result.getPutMessageStatus());
+        }
+
+        counters.messages += this.batchSize;
+        counters.bytes += result.getAppendMessageResult().getWroteBytes();
+        return result;
+    }
+}
@@ -13,7 +13,7 @@ public class TestAppendMessage {
         try {
             MappedFile mappedFile = new MappedFile("F:\\storetest\\0", 1024 * 1024 * 1024);
 
-            DefaultAppendMessageCallback cb = new DefaultAppendMessageCallback(1024);
+            DefaultAppendMessageCallback cb = new DefaultAppendMessageCallback(new MessageStoreConfig());
             MessageExtBrokerInner message = new MessageExtBrokerInner();
             message.setTopic("test");
             Map<String, String> properties = new HashMap<String, String>();
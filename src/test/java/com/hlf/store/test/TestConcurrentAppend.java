@@ -0,0 +1,321 @@
+package com.hlf.store.test;
+
+import com.hlf.store.*;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * 并发写入检查：多个写线程通过CAS预留空间并发写入小文件，频繁滚动文件，检查
+ * 1.所有写入成功，同一写线程的消息物理偏移量递增
+ * 2.按文件逐条扫描，消息首尾相接，物理偏移量与位置一致，空白记录恰好填满文件尾部
+ * 3.各消费队列按写入顺序读到全部消息
+ * 4.文件大小不足以写下最大长度的消息时拒绝创建commitLog
+ * 5.编码失败的写入返回UNKNOWN_ERROR，预留空间被填充记录占满，前后写入的消息都能分发，恢复时不被截断
+ * 任何一项不符时抛出异常
+ */
+public class TestConcurrentAppend {
+
+    private static final int THREAD_NUM = 4;
+    private static final int MSG_NUM_PER_THREAD = 3000;
+    private static final int BATCH_SIZE = 10;
+    static final String TOPIC = "TestConcurrentAppend";
+
+    public static void main(String[] args) throws Exception {
+        String root = System.getProperty("java.io.tmpdir") + File.separator + "store-check-" + System.nanoTime();
+        MessageStoreConfig config = storeConfig(root);
+        try {
+            checkFileSizeValidated(root);
+            checkFailedWrite(root, ByteBufferType.MAPPED);
+            checkFailedWrite(root, ByteBufferType.UN_MAPPED);
+
+            DefaultMessageStore messageStore = new DefaultMessageStore(config);
+            check(messageStore.load(), "load failed");
+            messageStore.start();
+            try {
+                long[][] offsets = put(messageStore);
+                for (int t = 0; t < THREAD_NUM; t++) {
+                    for (int i = 1; i < MSG_NUM_PER_THREAD; i++) {
+                        check(offsets[t][i] > offsets[t][i - 1], "offset not increasing, thread " + t + ", msg " + i);
+                    }
+                }
+
+                check(scanCommitLog(messageStore.getCommitLog()) == THREAD_NUM * MSG_NUM_PER_THREAD, "message count in commit log");
+
+                waitDispatched(messageStore);
+                for (int t = 0; t < THREAD_NUM; t++) {
+                    checkQueue(messageStore, t, MSG_NUM_PER_THREAD);
+                }
+            } finally {
+                messageStore.shutdown();
+            }
+            System.out.println("TestConcurrentAppend OK");
+        } finally {
+            deleteFile(new File(root));
+        }
+    }
+
+    static MessageStoreConfig storeConfig(String root) {
+        MessageStoreConfig config = new MessageStoreConfig();
+        config.setStorePathRootDir(root);
+        config.setStorePathCommitLog(root + File.separator + "commitlog");
+        config.setStorePathConsumeQueue(root + File.separator + "consumequeue");
+        config.setStorePathIndex(root + File.separator + "index");
+        config.setMappedFileSizeCommitLog(64 * 1024);
+        config.setMappedFileSizeConsumeQueue(1000 * ConsumeQueue.CQ_STORE_UNIT_SIZE);
+        config.setMaxMessageSize(8192);
+        config.setMaxHashSlotNum(64);
+        config.setMaxIndexNum(5000);
+        config.setConcurrentAppendEnable(true);
+        return config;
+    }
+
+    /**
+     * 文件装不下最大长度的消息加空白记录时，滚动到新文件也写不下，必须在创建时拒绝
+     * @param root
+     */
+    private static void checkFileSizeValidated(String root) {
+        MessageStoreConfig config = storeConfig(root + File.separator + "invalid");
+        config.setMappedFileSizeCommitLog(config.getMaxMessageSize() + 4);
+        try {
+            new CommitLog(config);
+            throw new IllegalStateException("commit log created with mappedFileSizeCommitLog < maxMessageSize");
+        } catch (IllegalArgumentException e) {
+            // 预期的结果
+        }
+    }
+
+    /**
+     * 每隔几条消息注入一次编码失败，失败的写入已经预留了空间，检查预留空间被跳过而不是截断之后的消息
+     * @param root
+     * @param byteBufferType
+     * @throws Exception
+     */
+    private static void checkFailedWrite(String root, ByteBufferType byteBufferType) throws Exception {
+        MessageStoreConfig config = storeConfig(root + File.separator + "failed-" + byteBufferType);
+        config.setCommitLogByteBufferType(byteBufferType);
+        // 直接编码时在预留空间中编码，编码到一半失败
+        config.setDirectEncodeEnable(true);
+        final int msgNum = 1000;
+        DefaultMessageStore messageStore = new DefaultMessageStore(config);
+        check(messageStore.load(), "load failed");
+        messageStore.start();
+        try {
+            long expectedOffset = 0;
+            for (int i = 0; i < msgNum; i++) {
+                boolean afterFailure = i % 7 == 3;
+                if (afterFailure) {
+                    MessageExtBrokerInner failing = new FailingMessage();
+                    failing.setTopic(TOPIC);
+                    failing.setQueueId(0);
+                    failing.setBody(message(0, i).getBody());
+                    PutMessageResult failed = messageStore.putMessage(failing);
+                    check(failed.getPutMessageStatus() == PutMessageStatus.UNKNOWN_ERROR, "failed put " + failed.getPutMessageStatus());
+                }
+                PutMessageResult result = messageStore.putMessage(message(0, i));
+                check(result.getPutMessageStatus() == PutMessageStatus.PUT_OK, "put after failed put " + result.getPutMessageStatus());
+                check(!afterFailure || result.getAppendMessageResult().getWroteOffset() > expectedOffset,
+                        "failed put reserved no space, " + byteBufferType);
+                expectedOffset = result.getAppendMessageResult().getWroteOffset() + result.getAppendMessageResult().getWroteBytes();
+            }
+            waitDispatched(messageStore);
+            check(scanCommitLog(messageStore.getCommitLog()) == msgNum, "message count in commit log, " + byteBufferType);
+            checkQueue(messageStore, 0, msgNum);
+        } finally {
+            messageStore.shutdown();
+        }
+
+        // 模拟异常退出：检查点回退到0，删除消费队列，恢复时从头校验commitLog并重新分发
+        long maxOffset = messageStore.getCommitLog().getMaxOffset();
+        check(new File(config.getStorePathAbortFile()).createNewFile(), "create abort file");
+        StoreCheckpoint storeCheckpoint = new StoreCheckpoint(config.getStorePathCheckpoint());
+        storeCheckpoint.setPhysicOffset(0, 0);
+        storeCheckpoint.setLogicsOffset(0, 0);
+        storeCheckpoint.shutdown();
+        deleteFile(new File(config.getStorePathConsumeQueue()));
+
+        messageStore = new DefaultMessageStore(config);
+        check(messageStore.load(), "reload failed");
+        messageStore.start();
+        try {
+            check(messageStore.getCommitLog().getMaxOffset() == maxOffset,
+                    "commit log truncated at " + messageStore.getCommitLog().getMaxOffset() + ", expect " + maxOffset);
+            waitDispatched(messageStore);
+            checkQueue(messageStore, 0, msgNum);
+        } finally {
+            messageStore.shutdown();
+        }
+    }
+
+    /**
+     * 编码到存储时间时失败的消息，此时预留空间中只写了一半消息头
+     */
+    private static class FailingMessage extends MessageExtBrokerInner {
+        @Override
+        public long getStoreTimestamp() {
+            throw new IllegalStateException("injected encode failure");
+        }
+    }
+
+    /**
+     * 等待分发完成，分发停在无法解析的消息处时超时失败
+     * @param messageStore
+     * @throws InterruptedException
+     */
+    private static void waitDispatched(DefaultMessageStore messageStore) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10 * 1000;
+        while (messageStore.dispatchBehindBytes() > 0) {
+            check(System.currentTimeMillis() < deadline, "dispatch stopped, behind " + messageStore.dispatchBehindBytes());
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * 每个写线程写入一个队列，最后一个写线程批量写入
+     * @param messageStore
+     * @return 各写线程每条消息的物理偏移量
+     * @throws InterruptedException
+     */
+    private static long[][] put(final DefaultMessageStore messageStore) throws InterruptedException {
+        final long[][] offsets = new long[THREAD_NUM][MSG_NUM_PER_THREAD];
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        final CountDownLatch latch = new CountDownLatch(THREAD_NUM);
+        for (int t = 0; t < THREAD_NUM; t++) {
+            final int queueId = t;
+            new Thread(() -> {
+                try {
+                    boolean batch = queueId == THREAD_NUM - 1;
+                    for (int i = 0; i < MSG_NUM_PER_THREAD; ) {
+                        if (batch) {
+                            List<MessageExtBrokerInner> msgs = new ArrayList<MessageExtBrokerInner>(BATCH_SIZE);
+                            for (int j = 0; j < BATCH_SIZE; j++) {
+                                msgs.add(message(queueId, i + j));
+                            }
+                            PutMessageResult result = messageStore.putMessages(msgs);
+                            check(result.getPutMessageStatus() == PutMessageStatus.PUT_OK, "put batch " + result.getPutMessageStatus());
+                            long[] msgOffsets = result.getAppendMessageResult().getMsgOffsets();
+                            String msgId = result.getAppendMessageResult().getMsgId();
+                            check(MessageDecoder.createMessageId(msgOffsets[0]).equals(msgId), "batch msgId " + msgId);
+                            System.arraycopy(msgOffsets, 0, offsets[queueId], i, BATCH_SIZE);
+                            i += BATCH_SIZE;
+                        } else {
+                            PutMessageResult result = messageStore.putMessage(message(queueId, i));
+                            check(result.getPutMessageStatus() == PutMessageStatus.PUT_OK, "put " + result.getPutMessageStatus());
+                            offsets[queueId][i] = result.getAppendMessageResult().getWroteOffset();
+                            i++;
+                        }
+                    }
+                } catch (Throwable e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                } finally {
+                    latch.countDown();
+                }
+            }).start();
+        }
+        latch.await();
+        if (!errors.isEmpty()) {
+            throw new IllegalStateException("put failed", errors.get(0));
+        }
+        return offsets;
+    }
+
+    /**
+     * 消息体长度随序号变化，使文件尾部的剩余空间各不相同
+     * @param queueId
+     * @param index
+     * @return
+     */
+    static MessageExtBrokerInner message(int queueId, int index) {
+        StringBuilder body = new StringBuilder(queueId + "-" + index + "-");
+        for (int i = 0; i < index % 300; i++) {
+            body.append('x');
+        }
+        MessageExtBrokerInner msg = new MessageExtBrokerInner();
+        msg.setTopic(TOPIC);
+        msg.setQueueId(queueId);
+        msg.setBody(body.toString().getBytes(MessageDecoder.CHARSET_UTF8));
+        return msg;
+    }
+
+    /**
+     * 逐个文件扫描已写入的数据，跳过写入失败的预留空间
+     * @param commitLog
+     * @return 消息条数
+     */
+    private static int scanCommitLog(CommitLog commitLog) {
+        List<CommitLogSegment> files = commitLog.getMappedFileQueue().getMappedFiles();
+        check(files.size() > 3, "expect several roll-overs, files " + files.size());
+
+        MessageRecord record = new MessageRecord();
+        int count = 0;
+        for (int f = 0; f < files.size(); f++) {
+            CommitLogSegment file = files.get(f);
+            boolean last = f == files.size() - 1;
+            check(last || file.isFull(), "file not full before roll-over " + file.getFileName());
+            SelectMappedBufferResult result = file.selectMappedBuffer(0);
+            check(result != null, "select " + file.getFileName());
+            try {
+                ByteBuffer buffer = result.getByteBuffer();
+                int pos = 0;
+                while (pos < buffer.limit()) {
+                    if (MessageRecord.isBlank(buffer, pos)) {
+                        check(pos + buffer.getInt(pos) == file.getFileSize(), "blank record does not reach end of " + file.getFileName());
+                        pos = file.getFileSize();
+                        break;
+                    }
+                    if (MessageRecord.isFiller(buffer, pos)) {
+                        pos += buffer.getInt(pos);
+                        continue;
+                    }
+                    check(record.wrap(buffer, pos), "bad record at " + (file.getFileFromOffset() + pos));
+                    check(record.getPhysicOffset() == file.getFileFromOffset() + pos, "physic offset at " + (file.getFileFromOffset() + pos));
+                    pos += record.getTotalSize();
+                    count++;
+                }
+                check(pos == buffer.limit() || pos == file.getFileSize(), "records do not end at read position of " + file.getFileName());
+                check(last || pos == file.getFileSize(), "full file not padded " + file.getFileName());
+            } finally {
+                result.release();
+            }
+        }
+        return count;
+    }
+
+    static void checkQueue(DefaultMessageStore messageStore, int queueId, int size) {
+        check(messageStore.getMaxOffsetInQueue(TOPIC, queueId) == size, "queue " + queueId + " size " + messageStore.getMaxOffsetInQueue(TOPIC, queueId));
+        for (long offset = 0; offset < size; ) {
+            GetMessageResult result = messageStore.getMessage(TOPIC, queueId, offset, 32);
+            try {
+                check(result.getStatus() == GetMessageStatus.FOUND, "queue " + queueId + " offset " + offset + " " + result.getStatus());
+                for (ByteBuffer buffer : result.getMessageBufferList()) {
+                    String body = new String(MessageDecoder.decode(buffer).getBody(), MessageDecoder.CHARSET_UTF8);
+                    check(body.startsWith(queueId + "-" + offset + "-"), "queue " + queueId + " offset " + offset + " body " + body);
+                    offset++;
+                }
+            } finally {
+                result.release();
+            }
+        }
+    }
+
+    static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new IllegalStateException(message);
+        }
+    }
+
+    static void deleteFile(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteFile(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,165 @@
+package com.hlf.store.test;
+
+import com.hlf.store.*;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 内存映射预算检查：预算只能容纳2个commitLog文件，写入多个文件并全部刷盘后，检查
+ * 1.读取方持有引用的冷文件在其他文件频繁重新映射时不会被解除映射，持有的数据一直可读且内容不变
+ * 2.引用释放后该文件按最近读取时间被解除映射
+ * 3.再次读取时重新映射，读到的消息正确
+ * 4.正在写入的最后一个文件不会被解除映射，预算记录的映射总量与各文件实际的映射状态一致
+ * 任何一项不符时抛出异常
+ */
+public class TestMappedFileBudget {
+
+    private static final int MSG_NUM = 2000;
+    private static final int BUDGET_FILE_NUM = 2;
+
+    public static void main(String[] args) throws Exception {
+        String root = System.getProperty("java.io.tmpdir") + File.separator + "store-check-" + System.nanoTime();
+        MessageStoreConfig config = TestConcurrentAppend.storeConfig(root);
+        config.setMaxMappedVirtualMemory((long) BUDGET_FILE_NUM * config.getMappedFileSizeCommitLog());
+        config.setFlushIntervalCommitLog(10);
+        try {
+            DefaultMessageStore messageStore = new DefaultMessageStore(config);
+            TestConcurrentAppend.check(messageStore.load(), "load failed");
+            messageStore.start();
+            try {
+                for (int i = 0; i < MSG_NUM; i++) {
+                    PutMessageResult result = messageStore.putMessage(TestConcurrentAppend.message(0, i));
+                    TestConcurrentAppend.check(result.getPutMessageStatus() == PutMessageStatus.PUT_OK, "put " + result.getPutMessageStatus());
+                }
+                while (messageStore.dispatchBehindBytes() > 0) {
+                    Thread.sleep(1);
+                }
+
+                List<CommitLogSegment> files = messageStore.getCommitLog().getMappedFileQueue().getMappedFiles();
+                TestConcurrentAppend.check(files.size() > BUDGET_FILE_NUM + 2, "expect several commit log files, files " + files.size());
+                waitFlushed(files);
+                checkBudget(messageStore.getMappedFileBudget(), files);
+
+                MappedFile first = (MappedFile) files.get(0);
+                checkHeldNotUnmapped(messageStore.getMappedFileBudget(), files, first);
+                checkUnmapAndRemap(messageStore, files, first);
+            } finally {
+                messageStore.shutdown();
+            }
+            System.out.println("TestMappedFileBudget OK");
+        } finally {
+            TestConcurrentAppend.deleteFile(new File(root));
+        }
+    }
+
+    /**
+     * 等待除最后一个文件外的所有文件刷盘，只有刷盘完成的文件才能解除映射
+     * @param files
+     * @throws InterruptedException
+     */
+    private static void waitFlushed(List<CommitLogSegment> files) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10 * 1000;
+        for (int i = 0; i < files.size() - 1; i++) {
+            CommitLogSegment file = files.get(i);
+            while (file.getFlushedPosition() != file.getFileSize()) {
+                TestConcurrentAppend.check(System.currentTimeMillis() < deadline, "file not flushed " + file.getFileName());
+                Thread.sleep(1);
+            }
+        }
+    }
+
+    /**
+     * 持有第一个文件的数据，依次读取其他文件使它们重新映射并触发解除映射
+     * @param budget
+     * @param files
+     * @param first
+     * @throws InterruptedException
+     */
+    private static void checkHeldNotUnmapped(MappedFileBudget budget, List<CommitLogSegment> files, MappedFile first)
+            throws InterruptedException {
+        SelectMappedBufferResult held = first.selectMappedBuffer(0);
+        TestConcurrentAppend.check(held != null, "select first file");
+        try {
+            byte[] expected = new byte[held.getSize()];
+            held.getByteBuffer().duplicate().get(expected);
+            for (int round = 0; round < 2; round++) {
+                for (int i = 1; i < files.size() - 1; i++) {
+                    readFile(files.get(i));
+                    // 先检查映射状态，映射已解除时访问持有的数据会使进程崩溃
+                    TestConcurrentAppend.check(first.isMapped(), "held file unmapped");
+                    checkBudget(budget, files);
+                }
+            }
+            TestConcurrentAppend.check(budget.getUnmapTimes() > 0, "no file unmapped under budget pressure");
+            byte[] actual = new byte[held.getSize()];
+            held.getByteBuffer().duplicate().get(actual);
+            TestConcurrentAppend.check(Arrays.equals(expected, actual), "held data changed");
+        } finally {
+            held.release();
+        }
+    }
+
+    /**
+     * 释放引用后读取其他文件，第一个文件最久没有读取，应被解除映射；再从消费队列读取其中的消息时重新映射
+     * @param messageStore
+     * @param files
+     * @param first
+     * @throws InterruptedException
+     */
+    private static void checkUnmapAndRemap(DefaultMessageStore messageStore, List<CommitLogSegment> files, MappedFile first)
+            throws InterruptedException {
+        MappedFileBudget budget = messageStore.getMappedFileBudget();
+        for (int i = 1; i < files.size() - 1 && first.isMapped(); i++) {
+            readFile(files.get(i));
+        }
+        TestConcurrentAppend.check(!first.isMapped(), "released cold file not unmapped");
+        TestConcurrentAppend.check(((MappedFile) files.get(files.size() - 1)).isMapped(), "file being written unmapped");
+        checkBudget(budget, files);
+
+        long remapTimes = budget.getRemapTimes();
+        GetMessageResult result = messageStore.getMessage(TestConcurrentAppend.TOPIC, 0, 0, 1);
+        try {
+            TestConcurrentAppend.check(result.getStatus() == GetMessageStatus.FOUND, "get first message " + result.getStatus());
+            ByteBuffer buffer = result.getMessageBufferList().get(0);
+            String body = new String(MessageDecoder.decode(buffer).getBody(), MessageDecoder.CHARSET_UTF8);
+            TestConcurrentAppend.check(body.startsWith("0-0-"), "first message body " + body);
+        } finally {
+            result.release();
+        }
+        TestConcurrentAppend.check(first.isMapped(), "file not remapped on read");
+        TestConcurrentAppend.check(budget.getRemapTimes() > remapTimes, "remap not counted");
+        checkBudget(budget, files);
+    }
+
+    private static void readFile(CommitLogSegment file) throws InterruptedException {
+        // 读取时间精确到毫秒，间隔读取使各文件的最近读取时间不同
+        Thread.sleep(2);
+        SelectMappedBufferResult result = file.selectMappedBuffer(0);
+        TestConcurrentAppend.check(result != null, "select " + file.getFileName());
+        try {
+            result.getByteBuffer().getInt(MessageDecoder.MESSAGE_MAGIC_CODE_POSITION);
+        } finally {
+            result.release();
+        }
+    }
+
+    /**
+     * 预算记录的映射总量必须等于各文件实际的映射大小之和
+     * @param budget
+     * @param files
+     */
+    private static void checkBudget(MappedFileBudget budget, List<CommitLogSegment> files) {
+        long mapped = 0;
+        for (CommitLogSegment file : files) {
+            if (((MappedFile) file).isMapped()) {
+                mapped += file.getFileSize();
+            }
+        }
+        TestConcurrentAppend.check(budget.getMappedFileCount() == files.size(), "budget file count " + budget.getMappedFileCount());
+        TestConcurrentAppend.check(budget.getMappedVirtualMemory() == mapped,
+                "budget mapped " + budget.getMappedVirtualMemory() + ", actual " + mapped);
+    }
+}
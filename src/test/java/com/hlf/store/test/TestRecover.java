@@ -0,0 +1,204 @@
+package com.hlf.store.test;
+
+import com.hlf.store.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 异常退出后的恢复检查：写入消息后破坏其中一条消息，模拟异常退出(保留abort文件、检查点回退到0)后重新加载，检查
+ * 1.commitLog在损坏的消息处截断，之后的文件被删除
+ * 2.消费队列中指向被截断消息的条目被删除，之前的消息都能按顺序读到
+ * 3.恢复后新写入的消息从截断处开始
+ * 4.topic超过Byte.MAX_VALUE字节、属性超过Short.MAX_VALUE字节的消息被拒绝，不写入任何数据
+ * 5.同一个消息对象修改属性后再次写入，写入的是修改后的属性
+ * 任何一项不符时抛出异常
+ */
+public class TestRecover {
+
+    private static final int MSG_NUM = 2000;
+    // 被破坏的消息序号
+    private static final int CORRUPT_INDEX = MSG_NUM / 3;
+    private static final String TOPIC = TestConcurrentAppend.TOPIC;
+
+    public static void main(String[] args) throws Exception {
+        String root = System.getProperty("java.io.tmpdir") + File.separator + "store-check-" + System.nanoTime();
+        MessageStoreConfig config = TestConcurrentAppend.storeConfig(root);
+        config.setConcurrentAppendEnable(false);
+        // 开启CRC，恢复时同时按CRC校验
+        config.setMessageCrcEnable(true);
+        try {
+            checkLengthRejected(config);
+
+            long[] offsets = new long[MSG_NUM];
+            DefaultMessageStore messageStore = new DefaultMessageStore(config);
+            TestConcurrentAppend.check(messageStore.load(), "load failed");
+            messageStore.start();
+            try {
+                checkOversizedNotWritten(messageStore);
+                checkPropertiesChanged(messageStore);
+                for (int i = 0; i < MSG_NUM; i++) {
+                    PutMessageResult result = messageStore.putMessage(TestConcurrentAppend.message(0, i));
+                    TestConcurrentAppend.check(result.getPutMessageStatus() == PutMessageStatus.PUT_OK, "put " + result.getPutMessageStatus());
+                    offsets[i] = result.getAppendMessageResult().getWroteOffset();
+                }
+                while (messageStore.dispatchBehindBytes() > 0) {
+                    Thread.sleep(1);
+                }
+                TestConcurrentAppend.check(messageStore.getCommitLog().getMappedFileQueue().getMappedFiles().size() > 3,
+                        "expect several commit log files");
+            } finally {
+                messageStore.shutdown();
+            }
+
+            simulateCrash(config, offsets[CORRUPT_INDEX]);
+
+            messageStore = new DefaultMessageStore(config);
+            TestConcurrentAppend.check(messageStore.load(), "reload failed");
+            try {
+                CommitLog commitLog = messageStore.getCommitLog();
+                TestConcurrentAppend.check(commitLog.getMaxOffset() == offsets[CORRUPT_INDEX],
+                        "commit log truncated at " + commitLog.getMaxOffset() + ", expect " + offsets[CORRUPT_INDEX]);
+                long fileSize = config.getMappedFileSizeCommitLog();
+                long lastFileFromOffset = commitLog.getMappedFileQueue().getLastMappedFile().getFileFromOffset();
+                TestConcurrentAppend.check(lastFileFromOffset == offsets[CORRUPT_INDEX] / fileSize * fileSize,
+                        "files after the corrupt message not deleted");
+                TestConcurrentAppend.check(messageStore.getMaxOffsetInQueue(TOPIC, 0) == CORRUPT_INDEX,
+                        "queue size " + messageStore.getMaxOffsetInQueue(TOPIC, 0) + ", expect " + CORRUPT_INDEX);
+
+                messageStore.start();
+                checkQueue(messageStore, CORRUPT_INDEX);
+
+                PutMessageResult result = messageStore.putMessage(TestConcurrentAppend.message(0, CORRUPT_INDEX));
+                TestConcurrentAppend.check(result.getPutMessageStatus() == PutMessageStatus.PUT_OK, "put after recover " + result.getPutMessageStatus());
+                TestConcurrentAppend.check(result.getAppendMessageResult().getWroteOffset() == offsets[CORRUPT_INDEX],
+                        "put after recover at " + result.getAppendMessageResult().getWroteOffset());
+                while (messageStore.dispatchBehindBytes() > 0) {
+                    Thread.sleep(1);
+                }
+                checkQueue(messageStore, CORRUPT_INDEX + 1);
+            } finally {
+                messageStore.shutdown();
+            }
+            System.out.println("TestRecover OK");
+        } finally {
+            TestConcurrentAppend.deleteFile(new File(root));
+        }
+    }
+
+    /**
+     * 长度字段放不下的topic和属性，计算长度和编码时都要拒绝
+     * @param config
+     */
+    private static void checkLengthRejected(MessageStoreConfig config) {
+        DefaultAppendMessageCallback cb = new DefaultAppendMessageCallback(config);
+        TestConcurrentAppend.check(cb.calMsgLength(longTopicMessage()) == AppendMessageCallback.LENGTH_MESSAGE_SIZE_EXCEEDED,
+                "topic longer than Byte.MAX_VALUE not rejected");
+        TestConcurrentAppend.check(cb.calMsgLength(largePropertiesMessage()) == AppendMessageCallback.LENGTH_PROPERTIES_SIZE_EXCEEDED,
+                "properties longer than Short.MAX_VALUE not rejected");
+        TestConcurrentAppend.check(cb.encode(longTopicMessage()) == null, "encode topic longer than Byte.MAX_VALUE");
+        TestConcurrentAppend.check(cb.encode(largePropertiesMessage()) == null, "encode properties longer than Short.MAX_VALUE");
+    }
+
+    private static void checkOversizedNotWritten(DefaultMessageStore messageStore) {
+        long maxOffset = messageStore.getCommitLog().getMaxOffset();
+        PutMessageResult result = messageStore.putMessage(longTopicMessage());
+        TestConcurrentAppend.check(result.getPutMessageStatus() == PutMessageStatus.MESSAGE_ILLEGAL, "put long topic " + result.getPutMessageStatus());
+        result = messageStore.putMessage(largePropertiesMessage());
+        TestConcurrentAppend.check(result.getPutMessageStatus() == PutMessageStatus.MESSAGE_ILLEGAL, "put large properties " + result.getPutMessageStatus());
+        TestConcurrentAppend.check(messageStore.getCommitLog().getMaxOffset() == maxOffset, "rejected message written to commit log");
+    }
+
+    /**
+     * 写入后通过各个setter修改属性再写入，每次读到的tag都必须是最新设置的，而不是第一次写入时编码的属性。
+     * 消息写入队列1，不影响队列0的检查
+     * @param messageStore
+     */
+    private static void checkPropertiesChanged(DefaultMessageStore messageStore) {
+        MessageExtBrokerInner msg = TestConcurrentAppend.message(1, 0);
+        msg.setTags("tagA");
+        putAndCheckTags(messageStore, msg, "tagA");
+        msg.setTags("tagB");
+        putAndCheckTags(messageStore, msg, "tagB");
+
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put(MessageConst.PROPERTY_TAGS, "tagC");
+        msg.setProperties(properties);
+        putAndCheckTags(messageStore, msg, "tagC");
+
+        properties = new HashMap<String, String>();
+        properties.put(MessageConst.PROPERTY_TAGS, "tagD");
+        msg.setPropertiesString(MessageDecoder.messageProperties2String(properties));
+        putAndCheckTags(messageStore, msg, "tagD");
+    }
+
+    private static void putAndCheckTags(DefaultMessageStore messageStore, MessageExtBrokerInner msg, String tags) {
+        PutMessageResult result = messageStore.putMessage(msg);
+        TestConcurrentAppend.check(result.getPutMessageStatus() == PutMessageStatus.PUT_OK, "put " + tags + " " + result.getPutMessageStatus());
+        MessageExt stored = messageStore.lookMessageByOffset(result.getAppendMessageResult().getWroteOffset());
+        TestConcurrentAppend.check(stored != null && tags.equals(stored.getTags()),
+                "expect " + tags + ", stored " + (stored == null ? null : stored.getTags()));
+    }
+
+    private static MessageExtBrokerInner longTopicMessage() {
+        MessageExtBrokerInner msg = TestConcurrentAppend.message(0, 0);
+        StringBuilder topic = new StringBuilder();
+        for (int i = 0; i <= Byte.MAX_VALUE; i++) {
+            topic.append('t');
+        }
+        msg.setTopic(topic.toString());
+        return msg;
+    }
+
+    private static MessageExtBrokerInner largePropertiesMessage() {
+        MessageExtBrokerInner msg = TestConcurrentAppend.message(0, 0);
+        msg.setPropertiesData(new byte[Short.MAX_VALUE + 1]);
+        return msg;
+    }
+
+    /**
+     * 破坏指定位置的消息的魔数，重新创建abort文件，检查点回退到0，使恢复从头校验全部消息
+     * @param config
+     * @param corruptOffset
+     * @throws Exception
+     */
+    private static void simulateCrash(MessageStoreConfig config, long corruptOffset) throws Exception {
+        long fileSize = config.getMappedFileSizeCommitLog();
+        long fileFromOffset = corruptOffset / fileSize * fileSize;
+        File file = new File(config.getStorePathCommitLog(), MappedFileQueue.offset2FileName(fileFromOffset));
+        TestConcurrentAppend.check(file.exists(), "commit log file " + file.getPath());
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.seek(corruptOffset - fileFromOffset + MessageDecoder.MESSAGE_MAGIC_CODE_POSITION);
+            randomAccessFile.writeInt(0x12345678);
+        } finally {
+            randomAccessFile.close();
+        }
+
+        TestConcurrentAppend.check(new File(config.getStorePathAbortFile()).createNewFile(), "create abort file");
+        StoreCheckpoint storeCheckpoint = new StoreCheckpoint(config.getStorePathCheckpoint());
+        storeCheckpoint.setPhysicOffset(0, 0);
+        storeCheckpoint.setLogicsOffset(0, 0);
+        storeCheckpoint.shutdown();
+    }
+
+    private static void checkQueue(DefaultMessageStore messageStore, int size) {
+        TestConcurrentAppend.check(messageStore.getMaxOffsetInQueue(TOPIC, 0) == size, "queue size " + messageStore.getMaxOffsetInQueue(TOPIC, 0));
+        for (long offset = 0; offset < size; ) {
+            GetMessageResult result = messageStore.getMessage(TOPIC, 0, offset, 32);
+            try {
+                TestConcurrentAppend.check(result.getStatus() == GetMessageStatus.FOUND, "offset " + offset + " " + result.getStatus());
+                for (ByteBuffer buffer : result.getMessageBufferList()) {
+                    String body = new String(MessageDecoder.decode(buffer).getBody(), MessageDecoder.CHARSET_UTF8);
+                    TestConcurrentAppend.check(body.startsWith("0-" + offset + "-"), "offset " + offset + " body " + body);
+                    offset++;
+                }
+            } finally {
+                result.release();
+            }
+        }
+    }
+}
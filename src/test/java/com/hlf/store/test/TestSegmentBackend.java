@@ -0,0 +1,161 @@
+package com.hlf.store.test;
+
+import com.hlf.store.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * 内存映射与FileChannel两种commitLog实现的一致性检查：按相同顺序写入相同的消息，其中部分消息比FileChannel一次读取的数据长，检查
+ * 1.两种实现中每条消息的物理偏移量相同
+ * 2.分发服务构建出完整的消费队列，各队列按写入顺序读到全部消息
+ * 3.停止后两种实现的commitLog文件内容相同(不比较存储时间)
+ * 任何一项不符时抛出异常
+ */
+public class TestSegmentBackend {
+
+    private static final int MSG_NUM = 1500;
+    private static final int QUEUE_NUM = 2;
+    // FileChannel一次读取的字节数，小于长消息的长度
+    private static final int READ_AHEAD_SIZE = 1024;
+    // 每隔多少条消息写入一条长消息
+    private static final int LARGE_INTERVAL = 25;
+    private static final int LARGE_BODY_SIZE = 5000;
+
+    public static void main(String[] args) throws Exception {
+        String root = System.getProperty("java.io.tmpdir") + File.separator + "store-check-" + System.nanoTime();
+        try {
+            MessageStoreConfig mappedConfig = storeConfig(root + File.separator + "mapped", ByteBufferType.MAPPED);
+            MessageStoreConfig unMappedConfig = storeConfig(root + File.separator + "unmapped", ByteBufferType.UN_MAPPED);
+            long[] mappedOffsets = putAndCheck(mappedConfig);
+            long[] unMappedOffsets = putAndCheck(unMappedConfig);
+            TestConcurrentAppend.check(Arrays.equals(mappedOffsets, unMappedOffsets), "physic offsets differ between backends");
+            compareFiles(mappedConfig, unMappedConfig, mappedOffsets);
+            System.out.println("TestSegmentBackend OK");
+        } finally {
+            TestConcurrentAppend.deleteFile(new File(root));
+        }
+    }
+
+    private static MessageStoreConfig storeConfig(String root, ByteBufferType byteBufferType) {
+        MessageStoreConfig config = TestConcurrentAppend.storeConfig(root);
+        config.setCommitLogByteBufferType(byteBufferType);
+        config.setFileChannelReadAheadSize(READ_AHEAD_SIZE);
+        // CRC覆盖存储时间，关闭后才能逐字节比较文件内容
+        config.setMessageCrcEnable(false);
+        // 内存映射直接编码、FileChannel先编码再拷贝，比较文件内容时同时检查两种编码方式写出的数据相同
+        config.setDirectEncodeEnable(byteBufferType == ByteBufferType.MAPPED);
+        return config;
+    }
+
+    /**
+     * 写入消息，等待分发完成后检查各消费队列
+     * @param config
+     * @return 每条消息的物理偏移量
+     * @throws Exception
+     */
+    private static long[] putAndCheck(MessageStoreConfig config) throws Exception {
+        long[] offsets = new long[MSG_NUM];
+        DefaultMessageStore messageStore = new DefaultMessageStore(config);
+        TestConcurrentAppend.check(messageStore.load(), "load failed");
+        messageStore.start();
+        try {
+            for (int i = 0; i < MSG_NUM; i++) {
+                PutMessageResult result = messageStore.putMessage(message(i));
+                TestConcurrentAppend.check(result.getPutMessageStatus() == PutMessageStatus.PUT_OK, "put " + result.getPutMessageStatus());
+                offsets[i] = result.getAppendMessageResult().getWroteOffset();
+            }
+            while (messageStore.dispatchBehindBytes() > 0) {
+                Thread.sleep(1);
+            }
+            TestConcurrentAppend.check(messageStore.getCommitLog().getMappedFileQueue().getMappedFiles().size() > 3,
+                    "expect several commit log files");
+            for (int queueId = 0; queueId < QUEUE_NUM; queueId++) {
+                checkQueue(messageStore, queueId, config.getCommitLogByteBufferType());
+            }
+        } finally {
+            messageStore.shutdown();
+        }
+        return offsets;
+    }
+
+    /**
+     * 第i条消息写入队列i % QUEUE_NUM，是该队列的第i / QUEUE_NUM条消息
+     * @param i
+     * @return
+     */
+    private static MessageExtBrokerInner message(int i) {
+        MessageExtBrokerInner msg = TestConcurrentAppend.message(i % QUEUE_NUM, i / QUEUE_NUM);
+        if (i % LARGE_INTERVAL == 0) {
+            byte[] body = Arrays.copyOf(msg.getBody(), LARGE_BODY_SIZE);
+            Arrays.fill(body, msg.getBody().length, body.length, (byte) 'y');
+            msg.setBody(body);
+        }
+        return msg;
+    }
+
+    private static void checkQueue(DefaultMessageStore messageStore, int queueId, ByteBufferType byteBufferType) {
+        int size = MSG_NUM / QUEUE_NUM;
+        String tag = byteBufferType + " queue " + queueId;
+        TestConcurrentAppend.check(messageStore.getMaxOffsetInQueue(TestConcurrentAppend.TOPIC, queueId) == size,
+                tag + " size " + messageStore.getMaxOffsetInQueue(TestConcurrentAppend.TOPIC, queueId));
+        for (long offset = 0; offset < size; ) {
+            GetMessageResult result = messageStore.getMessage(TestConcurrentAppend.TOPIC, queueId, offset, 32);
+            try {
+                TestConcurrentAppend.check(result.getStatus() == GetMessageStatus.FOUND, tag + " offset " + offset + " " + result.getStatus());
+                for (ByteBuffer buffer : result.getMessageBufferList()) {
+                    byte[] body = MessageDecoder.decode(buffer).getBody();
+                    byte[] expected = message((int) offset * QUEUE_NUM + queueId).getBody();
+                    TestConcurrentAppend.check(Arrays.equals(body, expected), tag + " offset " + offset + " body differs");
+                    offset++;
+                }
+            } finally {
+                result.release();
+            }
+        }
+    }
+
+    /**
+     * 逐个文件比较两种实现写入的数据，比较前清零每条消息的存储时间
+     * @param mappedConfig
+     * @param unMappedConfig
+     * @param offsets
+     * @throws Exception
+     */
+    private static void compareFiles(MessageStoreConfig mappedConfig, MessageStoreConfig unMappedConfig, long[] offsets) throws Exception {
+        File[] mappedFiles = new File(mappedConfig.getStorePathCommitLog()).listFiles();
+        File[] unMappedFiles = new File(unMappedConfig.getStorePathCommitLog()).listFiles();
+        TestConcurrentAppend.check(mappedFiles != null && unMappedFiles != null && mappedFiles.length == unMappedFiles.length,
+                "commit log file count differs");
+        Arrays.sort(mappedFiles);
+        Arrays.sort(unMappedFiles);
+        int fileSize = mappedConfig.getMappedFileSizeCommitLog();
+        for (int f = 0; f < mappedFiles.length; f++) {
+            TestConcurrentAppend.check(mappedFiles[f].getName().equals(unMappedFiles[f].getName()), "commit log file name differs");
+            byte[] mapped = readFile(mappedFiles[f]);
+            byte[] unMapped = readFile(unMappedFiles[f]);
+            long fileFromOffset = Long.parseLong(mappedFiles[f].getName());
+            for (long offset : offsets) {
+                if (offset >= fileFromOffset && offset < fileFromOffset + fileSize) {
+                    int pos = (int) (offset - fileFromOffset) + MessageDecoder.MESSAGE_STORE_TIMESTAMP_POSITION;
+                    Arrays.fill(mapped, pos, pos + 8, (byte) 0);
+                    Arrays.fill(unMapped, pos, pos + 8, (byte) 0);
+                }
+            }
+            TestConcurrentAppend.check(Arrays.equals(mapped, unMapped), "content differs in " + mappedFiles[f].getName());
+        }
+    }
+
+    private static byte[] readFile(File file) throws Exception {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[(int) randomAccessFile.length()];
+            randomAccessFile.readFully(data);
+            return data;
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+}
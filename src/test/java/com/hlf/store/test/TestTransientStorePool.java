@@ -0,0 +1,114 @@
+package com.hlf.store.test;
+
+import com.hlf.store.*;
+
+import java.io.File;
+
+/**
+ * 堆外内存池检查：启用堆外内存池并分为多个commitLog分片，写入消息使各分片都多次滚动文件，检查
+ * 1.所有分片共用存储创建的同一个堆外内存池
+ * 2.所有写入成功，各分片都滚动了多个文件，各消费队列按写入顺序读到全部消息
+ * 3.各分片停止后，除预分配的文件外，所有文件借用的堆外内存都已归还
+ * 4.存储停止后预分配但没有被使用的文件被删除，堆外内存池被清空
+ * 任何一项不符时抛出异常
+ */
+public class TestTransientStorePool {
+
+    private static final int STRIPE_COUNT = 2;
+    private static final int POOL_SIZE = 3;
+    private static final int QUEUE_NUM = 4;
+    private static final int MSG_NUM_PER_QUEUE = 1000;
+
+    public static void main(String[] args) throws Exception {
+        String root = System.getProperty("java.io.tmpdir") + File.separator + "store-check-" + System.nanoTime();
+        MessageStoreConfig config = TestConcurrentAppend.storeConfig(root);
+        config.setCommitLogStripeCount(STRIPE_COUNT);
+        config.setTransientStorePoolEnable(true);
+        config.setTransientStorePoolSize(POOL_SIZE);
+        config.setCommitIntervalCommitLog(10);
+        try {
+            DefaultMessageStore messageStore = new DefaultMessageStore(config);
+            TestConcurrentAppend.check(messageStore.load(), "load failed");
+            messageStore.start();
+            long[] lastFileFromOffsets = new long[STRIPE_COUNT];
+            try {
+                TransientStorePool pool = messageStore.getTransientStorePool();
+                TestConcurrentAppend.check(pool != null, "transient store pool not created");
+                for (int i = 0; i < STRIPE_COUNT; i++) {
+                    TestConcurrentAppend.check(messageStore.getCommitLog(i).getTransientStorePool() == pool,
+                            "stripe " + i + " does not share the store's pool");
+                }
+
+                for (int i = 0; i < MSG_NUM_PER_QUEUE; i++) {
+                    for (int queueId = 0; queueId < QUEUE_NUM; queueId++) {
+                        PutMessageResult result = messageStore.putMessage(TestConcurrentAppend.message(queueId, i));
+                        TestConcurrentAppend.check(result.getPutMessageStatus() == PutMessageStatus.PUT_OK, "put " + result.getPutMessageStatus());
+                    }
+                }
+                for (int i = 0; i < STRIPE_COUNT; i++) {
+                    int files = messageStore.getCommitLog(i).getMappedFileQueue().getMappedFiles().size();
+                    TestConcurrentAppend.check(files > POOL_SIZE, "stripe " + i + " files " + files);
+                }
+
+                waitDispatched(messageStore);
+                for (int queueId = 0; queueId < QUEUE_NUM; queueId++) {
+                    TestConcurrentAppend.checkQueue(messageStore, queueId, MSG_NUM_PER_QUEUE);
+                }
+                for (int i = 0; i < STRIPE_COUNT; i++) {
+                    lastFileFromOffsets[i] = messageStore.getCommitLog(i).getMappedFileQueue().getLastMappedFile().getFileFromOffset();
+                }
+
+                // 先单独停止各分片，此时共用的预分配服务和堆外内存池还没有停止
+                for (int i = 0; i < STRIPE_COUNT; i++) {
+                    messageStore.getCommitLog(i).shutdown();
+                }
+                int preAllocated = countPreAllocated(config, lastFileFromOffsets);
+                TestConcurrentAppend.check(pool.availableBufferNums() >= POOL_SIZE - preAllocated,
+                        "buffers not returned, available " + pool.availableBufferNums() + ", pre allocated files " + preAllocated);
+            } finally {
+                messageStore.shutdown();
+            }
+            TestConcurrentAppend.check(countPreAllocated(config, lastFileFromOffsets) == 0, "pre allocated file not deleted");
+            TestConcurrentAppend.check(messageStore.getTransientStorePool().availableBufferNums() == 0, "pool not destroyed");
+            System.out.println("TestTransientStorePool OK");
+        } finally {
+            TestConcurrentAppend.deleteFile(new File(root));
+        }
+    }
+
+    /**
+     * 统计各分片目录中最后一个文件之后的预分配文件数
+     * @param config
+     * @param lastFileFromOffsets
+     * @return
+     */
+    private static int countPreAllocated(MessageStoreConfig config, long[] lastFileFromOffsets) {
+        int count = 0;
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            File[] files = new File(config.getStorePathCommitLog(), String.valueOf(i)).listFiles();
+            TestConcurrentAppend.check(files != null, "stripe " + i + " directory");
+            for (File file : files) {
+                if (Long.parseLong(file.getName()) > lastFileFromOffsets[i]) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 堆外内存中的数据提交到FileChannel后才能被分发，等待各队列的消息全部分发
+     * @param messageStore
+     * @throws InterruptedException
+     */
+    private static void waitDispatched(DefaultMessageStore messageStore) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10 * 1000;
+        for (int queueId = 0; queueId < QUEUE_NUM; queueId++) {
+            while (messageStore.getMaxOffsetInQueue(TestConcurrentAppend.TOPIC, queueId) < MSG_NUM_PER_QUEUE) {
+                TestConcurrentAppend.check(System.currentTimeMillis() < deadline,
+                        "queue " + queueId + " dispatched " + messageStore.getMaxOffsetInQueue(TestConcurrentAppend.TOPIC, queueId));
+                Thread.sleep(1);
+            }
+        }
+    }
+}